@@ -0,0 +1,173 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Times the note list's query while another thread keeps writing, once with write-ahead logging
+ * and once with the rollback journal, on a real device's SQLite and storage. Without WAL every
+ * read has to wait for the writer's transaction to finish; with it, reads see the last commit
+ * and go straight through.
+ *
+ * The timings are logged under the NoteDbWalTest tag. Nothing is asserted about them: how much
+ * WAL helps depends on the device's storage, and one run on real hardware is too noisy to fail a
+ * build on. Compare the logged numbers across runs and devices instead.
+ */
+@RunWith(AndroidJUnit4.class)
+public class NoteDbWalTest {
+
+    // Log tag
+    private static final String LOG_TAG = NoteDbWalTest.class.getSimpleName();
+
+    // Kept apart from the app's own Notes.db
+    private static final String DATABASE_NAME = "NoteDbWalTest.db";
+
+    private static final int NOTE_COUNT = 2000;
+    private static final int READ_COUNT = 200;
+
+    // How many notes each of the writer's transactions updates
+    private static final int WRITES_PER_TRANSACTION = 20;
+
+    // The first page of the note list, as the list loader asks for it
+    private static final String SQL_LIST_PAGE = "SELECT " + NoteEntry._ID + ", "
+            + NoteEntry.COLUMN_TITLE + ", " + NoteEntry.COLUMN_PREVIEW + ", "
+            + NoteEntry.COLUMN_MODIFIED_AT
+            + " FROM " + NoteEntry.TABLE_NAME
+            + " WHERE " + NoteEntry.COLUMN_DELETED_AT + " IS NULL"
+            + " ORDER BY " + NoteEntry.COLUMN_MODIFIED_AT + " DESC LIMIT 50";
+
+    @Test
+    public void listReads_whileAWriterRuns() throws Exception {
+        long[] rollback = timeListReads(NoteDbProfile.ROLLBACK_JOURNAL);
+        long[] wal = timeListReads(NoteDbProfile.DEFAULT);
+
+        Log.i(LOG_TAG, "Rollback journal: " + describe(rollback));
+        Log.i(LOG_TAG, "WAL: " + describe(wal));
+
+        // The slow reads are the ones that waited on a commit, so compare those
+        long rollbackP95 = percentile(rollback, 95);
+        long walP95 = percentile(wal, 95);
+        Log.i(LOG_TAG, "95th percentile, WAL against rollback journal: " + walP95 / 1000
+                + " us vs " + rollbackP95 / 1000 + " us ("
+                + (walP95 <= rollbackP95 ? "WAL no slower" : "WAL slower") + ")");
+    }
+
+    // Fills a fresh database, then times READ_COUNT list reads while a second thread writes.
+    // Returns the read times in nanoseconds, sorted
+    private static long[] timeListReads(NoteDbProfile profile) throws Exception {
+        Context context = InstrumentationRegistry.getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        NoteDbHelper dbHelper = new NoteDbHelper(context, DATABASE_NAME, profile, null);
+
+        try {
+            final SQLiteDatabase db = dbHelper.getWritableDatabase();
+            insertNotes(db);
+
+            // Write until the reads are done, starting before the first one
+            final CountDownLatch writing = new CountDownLatch(1);
+            final boolean[] stop = new boolean[1];
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long id = 1;
+                    while (!stopped(stop)) {
+                        db.beginTransaction();
+                        try {
+                            for (int i = 0; i < WRITES_PER_TRANSACTION; i++) {
+                                ContentValues values = new ContentValues();
+                                values.put(NoteEntry.COLUMN_BODY, "Grill the buns, note " + id);
+                                values.put(NoteEntry.COLUMN_MODIFIED_AT,
+                                        System.currentTimeMillis());
+                                db.update(NoteEntry.TABLE_NAME, values, NoteEntry._ID + " = ?",
+                                        new String[] { String.valueOf(id) });
+                                id = id % NOTE_COUNT + 1;
+                            }
+                            db.setTransactionSuccessful();
+                        } finally {
+                            db.endTransaction();
+                        }
+                        writing.countDown();
+                    }
+                }
+            });
+            writer.start();
+            writing.await();
+
+            long[] times = new long[READ_COUNT];
+            try {
+                for (int i = 0; i < READ_COUNT; i++) {
+                    long start = System.nanoTime();
+                    Cursor cursor = db.rawQuery(SQL_LIST_PAGE, null);
+                    try {
+                        // getCount() is what actually runs the query
+                        assertEquals(50, cursor.getCount());
+                    } finally {
+                        cursor.close();
+                    }
+                    times[i] = System.nanoTime() - start;
+                }
+            } finally {
+                synchronized (stop) {
+                    stop[0] = true;
+                }
+                writer.join();
+            }
+
+            Arrays.sort(times);
+            return times;
+        } finally {
+            dbHelper.close();
+            context.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    private static boolean stopped(boolean[] stop) {
+        synchronized (stop) {
+            return stop[0];
+        }
+    }
+
+    private static void insertNotes(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < NOTE_COUNT; i++) {
+                values.put(NoteEntry.COLUMN_TITLE, "Note " + i);
+                values.put(NoteEntry.COLUMN_BODY, "Buy buns for the buffalo burgers, note " + i);
+                values.put(NoteEntry.COLUMN_PREVIEW, "Buy buns for the buffalo burgers");
+                values.put(NoteEntry.COLUMN_MODIFIED_AT, System.currentTimeMillis());
+                db.insert(NoteEntry.TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // The value below which the given percentage of the sorted times fall
+    private static long percentile(long[] sortedTimes, int percent) {
+        int index = (sortedTimes.length * percent + 99) / 100 - 1;
+        return sortedTimes[Math.max(0, index)];
+    }
+
+    private static String describe(long[] sortedTimes) {
+        return "median " + percentile(sortedTimes, 50) / 1000 + " us, 95th percentile "
+                + percentile(sortedTimes, 95) / 1000 + " us, slowest "
+                + sortedTimes[sortedTimes.length - 1] / 1000 + " us";
+    }
+}
@@ -0,0 +1,110 @@
+package com.bullnote.buffalo.burgers;
+
+import android.content.Context;
+
+import com.bullnote.buffalo.burgers.data.NoteListItem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The first screen of the note list, saved to a small file when the user leaves the list and
+ * shown straight away on the next cold start, before the database is even open. The loader then
+ * reads the real list and only the rows that changed in between are redrawn.
+ *
+ * Only the full list is saved, never search results or a tag filter, along with the sort order
+ * it was in so a snapshot in a different order is never shown.
+ */
+class ListSnapshot {
+
+    // Bump this if the format changes; older files are then ignored
+    private static final int FORMAT_VERSION = 1;
+
+    // A screenful of rows, with some to spare for a tall screen
+    static final int MAX_NOTES = 20;
+
+    // Titles are cut down to this; a row only shows the start of one anyway
+    private static final int MAX_TITLE_LENGTH = 200;
+
+    // Does not need a constructor, should never be instantiated
+    private ListSnapshot() {}
+
+    /** Where the snapshot is kept */
+    static File file(Context context) {
+        return new File(context.getFilesDir(), "list_snapshot");
+    }
+
+    /**
+     * Reads the saved notes, or returns null if there's no snapshot in that sort order or it
+     * can't be read. Small enough to read on the main thread
+     * */
+    static List<NoteListItem> read(File file, String sortOrder) {
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FORMAT_VERSION || !in.readUTF().equals(sortOrder)) {
+                return null;
+            }
+            int count = Math.min(in.readInt(), MAX_NOTES);
+            List<NoteListItem> items = new ArrayList<NoteListItem>(count);
+            for (int i = 0; i < count; i++) {
+                items.add(new NoteListItem(in.readLong(), in.readUTF(), in.readUTF(), in.readLong()));
+            }
+            return items;
+        } catch (IOException e) {
+            // A damaged snapshot just means waiting for the real list
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing was written, so nothing is lost
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the first MAX_NOTES notes. The file is written next to the old one and renamed over
+     * it, so a snapshot is never half written. Call it on a background thread
+     * */
+    static void write(File file, String sortOrder, List<NoteListItem> items) throws IOException {
+        File partial = new File(file.getPath() + ".partial");
+        int count = Math.min(items.size(), MAX_NOTES);
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(partial)));
+        try {
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(sortOrder);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                NoteListItem item = items.get(i);
+                String title = item.title == null ? "" : item.title;
+                out.writeLong(item.id);
+                out.writeUTF(title.length() > MAX_TITLE_LENGTH
+                        ? title.substring(0, MAX_TITLE_LENGTH) : title);
+                out.writeUTF(item.preview == null ? "" : item.preview);
+                out.writeLong(item.modifiedAt);
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!partial.renameTo(file)) {
+            partial.delete();
+            throw new IOException("Could not write " + file);
+        }
+    }
+}
@@ -1,42 +1,105 @@
 package com.bullnote.buffalo.burgers;
 
+import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.content.ContentResolver;
 import android.content.ContentUris;
-import android.content.CursorLoader;
+import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.Loader;
-import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.support.v7.app.ActionBar;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.DividerItemDecoration;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
+import android.text.TextUtils;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
+import android.view.ViewTreeObserver;
 import android.widget.Button;
-import android.widget.ListView;
 import android.widget.TextView;
+import android.widget.Toast;
 
+import com.bullnote.buffalo.burgers.data.NoteBackup;
 import com.bullnote.buffalo.burgers.data.NoteContract;
+import com.bullnote.buffalo.burgers.data.NoteListItem;
+import com.bullnote.buffalo.burgers.data.ResolverNoteRepository;
+import com.bullnote.buffalo.burgers.data.StartupTrace;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
- * The main activity of this app. It lists all of the notes in a ListView and has a button the user
- * can click to add a note.
+ * The main activity of this app. It lists all of the notes in a RecyclerView and has a button the
+ * user can click to add a note.
  *
- * Notes are loaded from the database on a background thread using a Loader and the ListView uses a
- * CursorAdapter to recycle views.
+ * Notes are loaded from the database a page at a time on a background thread using a Loader, and
+ * the RecyclerView uses an Adapter with view holders to recycle views. More pages are loaded as
+ * the user scrolls. The list can be narrowed down to the notes with some tags. On a cold start the
+ * first screen is drawn from a ListSnapshot while the first page loads.
  * */
-public class MainActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor>{
+public class MainActivity extends AppCompatActivity
+        implements LoaderManager.LoaderCallbacks<NotePageLoader.LoadedNotes>{
 
     // An integer constant for the Loader
     private static final int NOTE_LOADER = 0;
 
-    // Make the CursorAdapter an instance variable because it's used a lot
-    NoteCursorAdapter mCursorAdapter;
+    // Make the Adapter an instance variable because it's used a lot
+    NoteListAdapter mListAdapter;
+
+    // Shown instead of the list when there are no notes
+    private View mEmptyView;
+    private RecyclerView mNotesListView;
+
+    // The list as it was last time, shown on a cold start until the loader delivers; null once
+    // it has. And the list last saved as the snapshot, so it isn't saved twice
+    private NotePageLoader.LoadedNotes mSnapshot;
+    private NotePageLoader.LoadedNotes mSavedItems;
+
+    // Whether the first frame with loaded notes has been timed yet
+    private boolean mListDrawTraced = false;
+
+    // What the user has typed into the search box; null or empty means list every note
+    private String mSearchQuery;
+
+    // The chosen sort order (one of the NoteEntry.SORT_ constants), remembered between launches
+    private static final String PREF_SORT_ORDER = "sort_order";
+    private String mSortOrder;
+
+    // The tags a note needs to be listed, and their names for the action bar; empty lists every
+    // note. Kept across rotation, but not between launches
+    private static final String STATE_TAG_IDS = "tag_ids";
+    private static final String STATE_TAG_NAMES = "tag_names";
+    private long[] mTagIds = new long[0];
+    private String[] mTagNames = new String[0];
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTrace.mark(StartupTrace.ACTIVITY_CREATED);
         setContentView(R.layout.activity_main);
 
+        if (savedInstanceState != null && savedInstanceState.containsKey(STATE_TAG_IDS)) {
+            mTagIds = savedInstanceState.getLongArray(STATE_TAG_IDS);
+            mTagNames = savedInstanceState.getStringArray(STATE_TAG_NAMES);
+        }
+        showTagFilter();
+
+        // Most recently modified notes come first unless the user picked something else
+        mSortOrder = getPreferences(MODE_PRIVATE)
+                .getString(PREF_SORT_ORDER, NoteContract.NoteEntry.SORT_MODIFIED);
+
         // The view to click to add a new note - should probably not be a text view
         Button newNoteButton = (Button) findViewById(R.id.new_note);
         newNoteButton.setOnClickListener(new View.OnClickListener() {
@@ -46,12 +109,16 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
             }
         });
 
-        // Find the ListView to populate with notes and attach an adapter to it
-        // Since there is no data yet (that comes with the loader) we pass in null
-        ListView notesListView = (ListView) findViewById(R.id.list);
+        // Find the RecyclerView to populate with notes and attach an adapter to it
+        // There is no data yet (that comes with the loader), so the adapter starts out empty
+        RecyclerView notesListView = (RecyclerView) findViewById(R.id.list);
+        mNotesListView = notesListView;
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        notesListView.setLayoutManager(layoutManager);
+        notesListView.addItemDecoration(
+                new DividerItemDecoration(this, layoutManager.getOrientation()));
 
-        View emptyView = findViewById(R.id.empty_view);
-        notesListView.setEmptyView(emptyView);
+        mEmptyView = findViewById(R.id.empty_view);
 
         View emptySubtitle = (TextView) findViewById(R.id.empty_subtitle_text);
         emptySubtitle.setOnClickListener(new View.OnClickListener() {
@@ -61,18 +128,15 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
             }
         });
 
-        mCursorAdapter = new NoteCursorAdapter(this, null);
-        notesListView.setAdapter(mCursorAdapter);
-
-        // Set click listeners on each item that lead to their Edit page
-        notesListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // Clicking a note leads to its Edit page
+        mListAdapter = new NoteListAdapter(this, new NoteListAdapter.OnNoteClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+            public void onNoteClick(long id) {
                 // Create a new intent to go to the Editor page
                 Intent intent = new Intent(MainActivity.this, NoteActivity.class);
 
                 // Form the Content URI for the note that was clicked on by appending the id
-                // (remember we used it back in onCreateLoader) onto the CONTENT_URI
+                // onto the CONTENT_URI
                 Uri currentNoteUri = ContentUris.withAppendedId(NoteContract.NoteEntry.CONTENT_URI, id);
 
                 // Set the URI onto the intent so the fields of the Edit page can be populated
@@ -81,49 +145,438 @@ public class MainActivity extends AppCompatActivity implements LoaderManager.Loa
                 startActivity(intent);
             }
         });
+        notesListView.setAdapter(mListAdapter);
+
+        // Ask the loader for the next page once the user gets within half a page of the end
+        notesListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int itemCount = mListAdapter.getItemCount();
+                if (itemCount > 0 && layoutManager.findLastVisibleItemPosition()
+                        >= itemCount - NotePageLoader.PAGE_SIZE / 2){
+                    loadNextPage();
+                }
+            }
+        });
+
+        // On a cold start, show the list as the user last left it while the real one loads. The
+        // file is a few KB, which is far quicker to read than opening the database
+        if (savedInstanceState == null && mTagIds.length == 0) {
+            List<NoteListItem> snapshot = ListSnapshot.read(ListSnapshot.file(this), mSortOrder);
+            if (snapshot != null) {
+                mSnapshot = NotePageLoader.LoadedNotes.placeholder(snapshot);
+                mListAdapter.setItems(mSnapshot);
+                mEmptyView.setVisibility(snapshot.isEmpty() ? View.VISIBLE : View.GONE);
+                traceNextDraw(StartupTrace.SNAPSHOT_DRAWN);
+            }
+        }
 
         // Kick off the loader
         getLoaderManager().initLoader(NOTE_LOADER, null, this);
     }
 
+    @Override
+    protected void onStop() {
+        super.onStop();
+
+        // Save the first screen of the full list for the next cold start. Not for a rotation,
+        // which keeps the loaded list anyway
+        NotePageLoader.LoadedNotes items = mListAdapter.getItems();
+        if (items != null && items != mSnapshot && items != mSavedItems
+                && TextUtils.isEmpty(mSearchQuery) && mTagIds.length == 0
+                && !isChangingConfigurations()) {
+            mSavedItems = items;
+            List<NoteListItem> firstScreen = new ArrayList<NoteListItem>(
+                    items.subList(0, Math.min(items.size(), ListSnapshot.MAX_NOTES)));
+            new SaveSnapshotTask(ListSnapshot.file(this), mSortOrder, firstScreen).execute();
+        }
+    }
+
+    // Marks the startup phase when the list next draws, which is when the user sees the rows
+    private void traceNextDraw(final String phase) {
+        mNotesListView.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+                    @Override
+                    public boolean onPreDraw() {
+                        mNotesListView.getViewTreeObserver().removeOnPreDrawListener(this);
+                        StartupTrace.mark(phase);
+                        if (StartupTrace.LIST_DRAWN.equals(phase)
+                                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                            // Lets "adb shell am start -W" and the system log time the launch
+                            // to the real list rather than the snapshot
+                            reportFullyDrawn();
+                        }
+                        return true;
+                    }
+                });
+    }
+
+    // Called when the app's screens are all hidden, which is the time to tidy up the database:
+    // nobody is waiting on it. The provider only does the work once a day
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level == TRIM_MEMORY_UI_HIDDEN) {
+            new MaintenanceTask(getApplicationContext()).execute();
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putLongArray(STATE_TAG_IDS, mTagIds);
+        outState.putStringArray(STATE_TAG_NAMES, mTagNames);
+    }
+
     // Opens the New Note form
     private void openNewNote(){
         Intent intent = new Intent(MainActivity.this, NoteActivity.class);
         startActivity(intent);
     }
 
+    // Adds the search box to the action bar
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) searchItem.getActionView();
+        searchView.setQueryHint("Search notes");
+
+        // Every keystroke reruns the search. NoteSearch ranks the matches from the FTS index alone
+        // and only loads the text of the best ones for their snippets, so this stays cheap
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                search(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                search(newText);
+                return true;
+            }
+        });
+
+        return true;
+    }
+
+    // Ticks the sort order that's currently in use
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        int checkedId = NoteContract.NoteEntry.SORT_TITLE.equals(mSortOrder)
+                ? R.id.action_sort_title : R.id.action_sort_modified;
+        menu.findItem(checkedId).setChecked(true);
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()){
+            case R.id.action_sort_modified:
+                setSortOrder(NoteContract.NoteEntry.SORT_MODIFIED);
+                return true;
+            case R.id.action_sort_title:
+                setSortOrder(NoteContract.NoteEntry.SORT_TITLE);
+                return true;
+            case R.id.action_filter_tags:
+                // The tags are read on a background thread, then the dialog opens
+                new TagFilterTask(this).execute();
+                return true;
+            case R.id.action_trash:
+                startActivity(new Intent(this, TrashActivity.class));
+                return true;
+            case R.id.action_export:
+                startBackup(true);
+                return true;
+            case R.id.action_import:
+                showImportConfirmationDialog();
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
+    // Saves the new sort order and reloads the list from the first page
+    private void setSortOrder(String sortOrder){
+        if (sortOrder.equals(mSortOrder)){
+            return;
+        }
+        mSortOrder = sortOrder;
+
+        SharedPreferences.Editor editor = getPreferences(MODE_PRIVATE).edit();
+        editor.putString(PREF_SORT_ORDER, sortOrder);
+        editor.apply();
+
+        invalidateOptionsMenu();
+        getLoaderManager().restartLoader(NOTE_LOADER, null, this);
+    }
+
+    // Lets the user tick the tags a note needs to be listed
+    private void showTagFilterDialog(final TagList tags){
+        if (tags.size() == 0){
+            Toast.makeText(this, "You don't have any tags yet. Add some from a note's menu.",
+                    Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        final boolean[] checked = new boolean[tags.size()];
+        for (int i = 0; i < checked.length; i++) {
+            for (long tagId : mTagIds) {
+                checked[i] |= tags.ids[i] == tagId;
+            }
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Show notes tagged with");
+        builder.setMultiChoiceItems(tags.labelsWithCounts(), checked,
+                new DialogInterface.OnMultiChoiceClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i, boolean isChecked) {
+                        checked[i] = isChecked;
+                    }
+                });
+
+        builder.setPositiveButton("Filter", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                int count = 0;
+                for (boolean isChecked : checked) {
+                    count += isChecked ? 1 : 0;
+                }
+                long[] tagIds = new long[count];
+                String[] tagNames = new String[count];
+                count = 0;
+                for (int tag = 0; tag < checked.length; tag++) {
+                    if (checked[tag]) {
+                        tagIds[count] = tags.ids[tag];
+                        tagNames[count++] = tags.names[tag];
+                    }
+                }
+                setTagFilter(tagIds, tagNames);
+            }
+        });
+
+        builder.setNeutralButton("Show all", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                setTagFilter(new long[0], new String[0]);
+            }
+        });
+
+        AlertDialog alertDialog = builder.create();
+        alertDialog.show();
+    }
+
+    // Lists only the notes with all of the tags and reloads the list from the first page
+    private void setTagFilter(long[] tagIds, String[] tagNames){
+        mTagIds = tagIds;
+        mTagNames = tagNames;
+        showTagFilter();
+        getLoaderManager().restartLoader(NOTE_LOADER, null, this);
+    }
+
+    // Shows the tags being filtered on under the app's name
+    private void showTagFilter(){
+        ActionBar actionBar = getSupportActionBar();
+        if (actionBar != null){
+            actionBar.setSubtitle(mTagIds.length == 0 ? null
+                    : "Tagged " + TextUtils.join(", ", mTagNames));
+        }
+    }
+
+    // Importing adds the backed up notes alongside the ones already here, so check first
+    private void showImportConfirmationDialog(){
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage("Add every note from the backup to your notes?");
+
+        builder.setPositiveButton("Import", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                startBackup(false);
+            }
+        });
+
+        builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                if (dialogInterface != null){
+                    dialogInterface.dismiss();
+                }
+            }
+        });
+
+        AlertDialog alertDialog = builder.create();
+        alertDialog.show();
+    }
+
+    // Exports or imports the backup file on a background thread
+    private void startBackup(boolean export){
+        File directory = getExternalFilesDir(null);
+        if (directory == null){
+            Toast.makeText(this, "Storage isn't available right now.", Toast.LENGTH_LONG).show();
+            return;
+        }
+        new BackupTask(getApplicationContext(), new File(directory, NoteBackup.FILE_NAME), export)
+                .execute();
+    }
+
+    // Restarts the loader with the new search text, unless it hasn't actually changed
+    private void search(String query){
+        if (TextUtils.equals(mSearchQuery, query)){
+            return;
+        }
+        mSearchQuery = query;
+        getLoaderManager().restartLoader(NOTE_LOADER, null, this);
+    }
+
+    // Tells the loader to fetch another page of notes, if it has one
+    private void loadNextPage(){
+        Loader<NotePageLoader.LoadedNotes> loader = getLoaderManager().getLoader(NOTE_LOADER);
+        if (loader != null){
+            ((NotePageLoader) loader).loadNextPage();
+        }
+    }
+
     // Implementing LoaderCallbacks interface methods
     @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        // Define a projection that specifies the columns from the table we want
-        // We must specify _ID because the CursorAdapter expects the Cursor to have an _ID column
-        String[] projection = {
-                NoteContract.NoteEntry._ID,
-                NoteContract.NoteEntry.COLUMN_TITLE,
-                NoteContract.NoteEntry.COLUMN_BODY
-        };
-
-        // the Loader will now execute the ContentProvider's query method on a background thread
-        return new CursorLoader(
-                this,                   // Parent activity context
-                NoteContract.NoteEntry.CONTENT_URI,  // Provider content URI to query
-                projection,             // Columns to include in the resulting Cursor
-                null,                   // No selection clause
-                null,                   // No selection arguments
-                null                    // Default sort order
-        );
-    }
-
-    // Note that the Loader<Cursor> object being passed in here is the one that was returned by
-    // onCreateLoader. This method updates the adapter with the data returned from the database
+    public Loader<NotePageLoader.LoadedNotes> onCreateLoader(int id, Bundle args) {
+        // The loader will page through the ContentProvider on a background thread, or run the
+        // full-text search if the user is searching
+        // On a cold start the loader diffs its first list against the snapshot being shown
+        return new NotePageLoader(this, new ResolverNoteRepository(getContentResolver()),
+                mSearchQuery, mSortOrder, mTagIds, mSnapshot);
+    }
+
+    // Note that the Loader object being passed in here is the one that was returned by
+    // onCreateLoader. This method updates the adapter with the notes loaded so far
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        mCursorAdapter.swapCursor(data);
+    public void onLoadFinished(Loader<NotePageLoader.LoadedNotes> loader,
+                               NotePageLoader.LoadedNotes data) {
+        mListAdapter.setItems(data);
+        mSnapshot = null;
+        mEmptyView.setVisibility(mListAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+
+        // The first frame with the real notes in it is the end of a cold start
+        if (!mListDrawTraced) {
+            mListDrawTraced = true;
+            traceNextDraw(StartupTrace.LIST_DRAWN);
+        }
     }
 
     @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        mCursorAdapter.swapCursor(null);
+    public void onLoaderReset(Loader<NotePageLoader.LoadedNotes> loader) {
+        mListAdapter.setItems(null);
     }
-}
 
+    /**
+     * Reads every tag for the filter dialog. Only holds a weak reference to the activity, so it
+     * doesn't keep a closed one alive
+     * */
+    private static class TagFilterTask extends AsyncTask<Void, Void, TagList> {
+        private final WeakReference<MainActivity> mActivity;
+        private final ContentResolver mContentResolver;
+
+        TagFilterTask(MainActivity activity) {
+            mActivity = new WeakReference<MainActivity>(activity);
+            mContentResolver = activity.getContentResolver();
+        }
+
+        @Override
+        protected TagList doInBackground(Void... params) {
+            return TagList.load(mContentResolver, NoteContract.NoteTagEntry.CONTENT_URI);
+        }
+
+        @Override
+        protected void onPostExecute(TagList tags) {
+            MainActivity activity = mActivity.get();
+            if (activity != null && !activity.isFinishing()) {
+                activity.showTagFilterDialog(tags);
+            }
+        }
+    }
+
+    /**
+     * Writes the list snapshot on a background thread. If it can't be written, the next cold
+     * start just waits for the database like before
+     * */
+    private static class SaveSnapshotTask extends AsyncTask<Void, Void, Void> {
+        private final File mFile;
+        private final String mSortOrder;
+        private final List<NoteListItem> mItems;
+
+        SaveSnapshotTask(File file, String sortOrder, List<NoteListItem> items) {
+            mFile = file;
+            mSortOrder = sortOrder;
+            mItems = items;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            try {
+                ListSnapshot.write(mFile, mSortOrder, mItems);
+            } catch (IOException e) {
+                // Leave whatever snapshot was there before; it's checked against the real list
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Runs the database maintenance (trash purge, vacuum, index merges, statistics) on a
+     * background thread. The provider works in short slices and stops after a second or two
+     * */
+    private static class MaintenanceTask extends AsyncTask<Void, Void, Void> {
+        private final ContentResolver mContentResolver;
+
+        MaintenanceTask(Context appContext) {
+            mContentResolver = appContext.getContentResolver();
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            mContentResolver.call(NoteContract.NoteEntry.CONTENT_URI,
+                    NoteContract.METHOD_RUN_MAINTENANCE, null, null);
+            return null;
+        }
+    }
+
+    /**
+     * Writes every note to the backup file, or reads them back, then says how it went. Only holds
+     * the application context, so it doesn't keep the activity alive; the list updates itself
+     * when the imported notes arrive
+     * */
+    private static class BackupTask extends AsyncTask<Void, Void, String> {
+        private final Context mAppContext;
+        private final ContentResolver mContentResolver;
+        private final File mFile;
+        private final boolean mExport;
+
+        BackupTask(Context appContext, File file, boolean export) {
+            mAppContext = appContext;
+            mContentResolver = appContext.getContentResolver();
+            mFile = file;
+            mExport = export;
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            try {
+                if (mExport) {
+                    int count = NoteBackup.exportNotes(mContentResolver, mFile, true);
+                    return "Exported " + count + " notes to " + mFile;
+                }
+                int count = NoteBackup.importNotes(mContentResolver, mFile);
+                return "Imported " + count + " notes";
+            } catch (IOException e) {
+                return (mExport ? "Export" : "Import") + " failed: " + e.getMessage();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String message) {
+            Toast.makeText(mAppContext, message, Toast.LENGTH_LONG).show();
+        }
+    }
+}
@@ -2,35 +2,89 @@ package com.bullnote.buffalo.burgers;
 
 import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
+import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v7.app.AppCompatActivity;
+import android.text.Editable;
 import android.text.TextUtils;
-import android.view.MotionEvent;
+import android.text.TextWatcher;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.Toast;
 
 import com.bullnote.buffalo.burgers.data.NoteContract;
+import com.bullnote.buffalo.burgers.data.NoteRepository;
+import com.bullnote.buffalo.burgers.data.NoteRow;
+import com.bullnote.buffalo.burgers.data.NoteWriteQueue;
+import com.bullnote.buffalo.burgers.data.ResolverNoteRepository;
+
+import java.lang.ref.WeakReference;
 
 
 /**
  * NoteActivity is the editor page of the app. In the onCreate method we grab the intent
  * that took the user here; if its data is null then it's in "New Note" mode, else it's in
  * "Edit Note" mode and initializes the Loader to fill in the relevant title and body.
+ *
+ * The body is read a chunk at a time on a background thread: the first chunk shows up straight
+ * away and the rest are appended as they arrive, so even a huge note opens quickly. The note
+ * can't be saved until the whole body is in, or the end of it would be lost.
+ *
+ * With autosave on (the default, toggled from the menu) the note is saved a moment after the
+ * user stops typing and whenever the editor goes into the background. Every save compares a hash
+ * of each field with the one last saved, and only writes the fields that actually changed, so
+ * typing in the title never rewrites the body and a save with no changes writes nothing. Writes
+ * go through the NoteWriteQueue, off the main thread.
+ *
+ * A field only counts as saved once its write has been committed. Rotating the screen keeps the
+ * note's URI and what was last saved, so the new editor carries on with the same note and keeps
+ * what's in the text boxes instead of reloading them. Saves that are still on their way are handed
+ * over to the new editor too, so it hears how they went; in particular a new note's first save
+ * tells it the note's URI, so the note is never inserted a second time. Pressing Save while
+ * earlier saves are on their way waits for them, writes whatever they didn't, and reports how
+ * that went.
+ *
+ * Once the note has been saved it can be tagged from the menu: the dialog ticks the note's tags,
+ * and the changes are written on a background thread when the user presses Save.
  * */
 public class NoteActivity extends AppCompatActivity implements LoaderManager.LoaderCallbacks<Cursor> {
 
+    // Log tag
+    private static final String LOG_TAG = NoteActivity.class.getSimpleName();
+
     // Identifier for the note data loader
     private static final int EXISTING_NOTE_LOADER = 0;
 
+    // Whether autosave is on, remembered between launches
+    private static final String PREF_AUTOSAVE = "autosave";
+
+    // How long the user has to stop typing before the note is autosaved, in milliseconds
+    private static final long AUTOSAVE_DELAY_MS = 1000;
+
+    // What a rotation keeps: the note, the hashes of what was last saved and whether it's loaded
+    private static final String STATE_NOTE_URI = "note_uri";
+    private static final String STATE_SAVED_TITLE_HASH = "saved_title_hash";
+    private static final String STATE_SAVED_BODY_HASH = "saved_body_hash";
+    private static final String STATE_LAST_SAVE_FAILED = "last_save_failed";
+    private static final String STATE_CONTENT_LOADED = "content_loaded";
+
     // Content URI for the existing note (null if it's a new note)
     private Uri mCurrentNoteUri;
 
@@ -40,16 +94,62 @@ public class NoteActivity extends AppCompatActivity implements LoaderManager.Loa
     private Button mSaveButton;
     private Button mDeleteButton;
 
-    // Boolean flag to track if the fields have been edited or not; false (not touched) by default
-    private boolean mNoteHasChanged = false;
+    // Streams the body into mBodyBox; null until the note has loaded
+    private BodyLoadTask mBodyLoadTask;
+
+    // False while an existing note is still loading; nothing can be saved until it's all in
+    private boolean mContentLoaded = false;
+
+    // Hashes of the title and body as they were last saved (or loaded), so a save can tell which
+    // fields changed without keeping a second copy of a possibly huge body. A field's hash only
+    // moves on once a write of it has been committed
+    private long mSavedTitleHash = contentHash("");
+    private long mSavedBodyHash = contentHash("");
+
+    // Set when a save fails, so the next one writes both fields whatever the hashes say
+    private boolean mLastSaveFailed = false;
 
-    // OnTouchListener that listens for any touches on a view. If a view is touched, it flags
-    // mNoteHasChanged to notify the user if they try to navigate away after touching anything
-    private View.OnTouchListener mTouchListener = new View.OnTouchListener() {
+    // The saves still on their way, which a rotation hands over to the next editor
+    private PendingSaves mPendingSaves;
+
+    // Set once the user has thrown this note away, so nothing saves it again on the way out
+    private boolean mDiscarded = false;
+
+    // Set while the text boxes are being filled in from the database, so that isn't mistaken
+    // for the user typing
+    private boolean mIgnoreTextChanges = false;
+
+    private boolean mAutosaveEnabled;
+    private final Handler mHandler = new Handler();
+
+    // How many saves were written and how many were skipped because nothing had changed
+    private int mSavesWritten = 0;
+    private int mSavesSkipped = 0;
+
+    // Runs a moment after the user stops typing
+    private final Runnable mAutosaveRunnable = new Runnable() {
         @Override
-        public boolean onTouch(View view, MotionEvent motionEvent) {
-            mNoteHasChanged = true;
-            return false;
+        public void run() {
+            persistNote(null);
+        }
+    };
+
+    // Schedules an autosave on every edit, pushing it back if the user is still typing
+    private final TextWatcher mTextWatcher = new TextWatcher() {
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            if (mAutosaveEnabled && !mIgnoreTextChanges) {
+                mHandler.removeCallbacks(mAutosaveRunnable);
+                mHandler.postDelayed(mAutosaveRunnable, AUTOSAVE_DELAY_MS);
+            }
         }
     };
 
@@ -58,15 +158,17 @@ public class NoteActivity extends AppCompatActivity implements LoaderManager.Loa
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_note);
 
+        mAutosaveEnabled = getPreferences(MODE_PRIVATE).getBoolean(PREF_AUTOSAVE, true);
+
         // Get a reference to the views and the save button
         mTitleBox = (EditText) findViewById(R.id.newNoteTitle);
         mBodyBox = (EditText) findViewById(R.id.newNoteBody);
         mSaveButton = (Button) findViewById(R.id.saveButton);
         mDeleteButton = (Button) findViewById(R.id.deleteButton);
 
-        // Set the touch listener on the views
-        mTitleBox.setOnTouchListener(mTouchListener);
-        mBodyBox.setOnTouchListener(mTouchListener);
+        // Watch both fields for edits
+        mTitleBox.addTextChangedListener(mTextWatcher);
+        mBodyBox.addTextChangedListener(mTextWatcher);
 
         // Save the note when the user clicks the "Save" button
         mSaveButton.setOnClickListener(new View.OnClickListener() {
@@ -80,10 +182,29 @@ public class NoteActivity extends AppCompatActivity implements LoaderManager.Loa
         Intent intent = getIntent();
         mCurrentNoteUri = intent.getData();
 
+        // After a rotation, carry on from where the last editor left off. The text boxes restore
+        // their own text, so there's nothing to reload once the note was all in
+        boolean restored = savedInstanceState != null
+                && savedInstanceState.containsKey(STATE_CONTENT_LOADED);
+        if (restored) {
+            mCurrentNoteUri = savedInstanceState.getParcelable(STATE_NOTE_URI);
+            mSavedTitleHash = savedInstanceState.getLong(STATE_SAVED_TITLE_HASH);
+            mSavedBodyHash = savedInstanceState.getLong(STATE_SAVED_BODY_HASH);
+            mLastSaveFailed = savedInstanceState.getBoolean(STATE_LAST_SAVE_FAILED);
+            mContentLoaded = savedInstanceState.getBoolean(STATE_CONTENT_LOADED);
+        }
+
+        // The last editor's saves may still be on their way; their results come here now
+        Object retained = getLastCustomNonConfigurationInstance();
+        mPendingSaves = retained instanceof PendingSaves
+                ? (PendingSaves) retained : new PendingSaves();
+        mPendingSaves.activity = this;
+
         // If the intent is null, we're in New Note mode. Set the title and the correct behavior
         // for the "Delete" button
-        if (mCurrentNoteUri == null){
+        if (intent.getData() == null){
             setTitle("New Note");
+            mContentLoaded = true;
 
             mDeleteButton.setOnClickListener(new View.OnClickListener() {
                 @Override
@@ -95,7 +216,9 @@ public class NoteActivity extends AppCompatActivity implements LoaderManager.Loa
             // Otherwise this is an existing note, so change the title to "Edit Note" and get the
             // note data from the loader, and set the Delete button to actually delete if pressed
             setTitle("Edit Note");
-            getLoaderManager().initLoader(EXISTING_NOTE_LOADER, null, this);
+            if (!mContentLoaded) {
+                getLoaderManager().initLoader(EXISTING_NOTE_LOADER, null, this);
+            }
 
             mDeleteButton.setOnClickListener(new View.OnClickListener() {
                 @Override
@@ -106,47 +229,375 @@ public class NoteActivity extends AppCompatActivity implements LoaderManager.Loa
         }
     }
 
+    // Adds the autosave toggle and the tags to the action bar menu
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_new_note, menu);
+        menu.findItem(R.id.action_autosave).setChecked(mAutosaveEnabled);
+        return true;
+    }
+
+    // A note has to be in the database before it can have tags
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.action_tags).setVisible(mCurrentNoteUri != null);
+        return super.onPrepareOptionsMenu(menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_autosave) {
+            mAutosaveEnabled = !mAutosaveEnabled;
+            item.setChecked(mAutosaveEnabled);
+
+            SharedPreferences.Editor editor = getPreferences(MODE_PRIVATE).edit();
+            editor.putBoolean(PREF_AUTOSAVE, mAutosaveEnabled);
+            editor.apply();
+
+            // Save whatever's there now rather than waiting for the next edit
+            if (mAutosaveEnabled) {
+                persistNote(null);
+            } else {
+                mHandler.removeCallbacks(mAutosaveRunnable);
+            }
+            return true;
+        }
+        if (item.getItemId() == R.id.action_tags && mCurrentNoteUri != null) {
+            new NoteTagsTask(this).execute(ContentUris.parseId(mCurrentNoteUri));
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Shows every tag with the note's own ticked. Save writes whatever was ticked or unticked,
+     * and New tag asks for a name and adds that tag to the note straight away
+     * */
+    private void showTagsDialog(final TagList allTags, TagList noteTags){
+        final long noteId = ContentUris.parseId(mCurrentNoteUri);
+        final boolean[] wasChecked = new boolean[allTags.size()];
+        final boolean[] checked = new boolean[allTags.size()];
+        for (int i = 0; i < checked.length; i++) {
+            wasChecked[i] = noteTags.contains(allTags.ids[i]);
+            checked[i] = wasChecked[i];
+        }
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(allTags.size() == 0 ? "No tags yet" : "Tags");
+        builder.setMultiChoiceItems(allTags.names, checked,
+                new DialogInterface.OnMultiChoiceClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i, boolean isChecked) {
+                        checked[i] = isChecked;
+                    }
+                });
+
+        builder.setPositiveButton("Save", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                // Only the tags that changed are written
+                int added = 0;
+                int removed = 0;
+                for (int tag = 0; tag < checked.length; tag++) {
+                    if (checked[tag] != wasChecked[tag]) {
+                        if (checked[tag]) {
+                            added++;
+                        } else {
+                            removed++;
+                        }
+                    }
+                }
+                long[] addIds = new long[added];
+                long[] removeIds = new long[removed];
+                added = 0;
+                removed = 0;
+                for (int tag = 0; tag < checked.length; tag++) {
+                    if (checked[tag] != wasChecked[tag]) {
+                        if (checked[tag]) {
+                            addIds[added++] = allTags.ids[tag];
+                        } else {
+                            removeIds[removed++] = allTags.ids[tag];
+                        }
+                    }
+                }
+                if (added + removed > 0) {
+                    new TagEditTask(NoteActivity.this, noteId, addIds, removeIds, null).execute();
+                }
+            }
+        });
+
+        builder.setNeutralButton("New tag", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                showNewTagDialog(noteId);
+            }
+        });
+
+        builder.setNegativeButton("Cancel", null);
+        builder.create().show();
+    }
+
+    // Asks for a tag name and adds that tag to the note, making the tag if it's new
+    private void showNewTagDialog(final long noteId){
+        final EditText nameBox = new EditText(this);
+        nameBox.setHint("Tag name");
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("New tag");
+        builder.setView(nameBox);
+        builder.setPositiveButton("Add", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialogInterface, int i) {
+                String name = nameBox.getText().toString().trim();
+                if (name.isEmpty() || name.length() > NoteContract.NoteTagEntry.MAX_NAME_LENGTH) {
+                    Toast.makeText(NoteActivity.this, "Tag names need 1 to "
+                            + NoteContract.NoteTagEntry.MAX_NAME_LENGTH + " characters",
+                            Toast.LENGTH_LONG).show();
+                    return;
+                }
+                new TagEditTask(NoteActivity.this, noteId, new long[0], new long[0], name).execute();
+            }
+        });
+        builder.setNegativeButton("Cancel", null);
+        builder.create().show();
+    }
+
+    // Keeps the note and what was last saved across a rotation
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putParcelable(STATE_NOTE_URI, mCurrentNoteUri);
+        outState.putLong(STATE_SAVED_TITLE_HASH, mSavedTitleHash);
+        outState.putLong(STATE_SAVED_BODY_HASH, mSavedBodyHash);
+        outState.putBoolean(STATE_LAST_SAVE_FAILED, mLastSaveFailed);
+        outState.putBoolean(STATE_CONTENT_LOADED, mContentLoaded);
+    }
+
+    // Hands the saves that are still on their way to the editor that replaces this one
+    @Override
+    public Object onRetainCustomNonConfigurationInstance() {
+        return mPendingSaves;
+    }
+
+    // Don't leave unsaved work behind when the editor goes into the background
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (mAutosaveEnabled) {
+            persistNote(null);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mAutosaveRunnable);
+        if (mBodyLoadTask != null) {
+            mBodyLoadTask.cancel(false);
+        }
+
+        Log.i(LOG_TAG, "Editor closed after " + mSavesWritten + " saves (" + mSavesSkipped
+                + " skipped as unchanged); write queue "
+                + NoteWriteQueue.getInstance(this).getStats());
+    }
+
     // Saves the note to the database and finishes the Activity
     private void saveNote(){
+        // A second tap on the way out has nothing to add
+        if (isFinishing()) {
+            return;
+        }
+
+        // The write happens on the NoteWriteQueue's background thread, so by the time it's done
+        // this activity is gone; use the application context for the toast
+        final Context appContext = getApplicationContext();
+        final boolean isNewNote = mCurrentNoteUri == null;
+        NoteWriteQueue.Callback report = new NoteWriteQueue.Callback() {
+            @Override
+            public void onWriteFinished(ContentProviderResult result) {
+                // Log some toast to the screen to confirm success or indicate failure
+                if (!isWritten(result)) {
+                    Toast.makeText(appContext, "Save failed, please try again.", Toast.LENGTH_LONG).show();
+                } else if (isNewNote) {
+                    Toast.makeText(appContext, "Note has been saved", Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(appContext, "Note has been updated", Toast.LENGTH_LONG).show();
+                }
+            }
+        };
+
+        // Earlier saves may not make it, and a new note's first save has to finish before anything
+        // else can be written to it, so wait for them and then write whatever is still unsaved
+        if (mPendingSaves.writes > 0) {
+            mPendingSaves.afterWrites = report;
+        } else {
+            persistNote(report);
+        }
+
+        // Exit back to the main screen because we're done here; no need to wait for the write
+        finish();
+    }
+
+    // True if a write was committed: an insert has the new note's URI, an update or delete a count
+    private static boolean isWritten(ContentProviderResult result) {
+        return result != null
+                && (result.uri != null || (result.count != null && result.count != 0));
+    }
+
+    /**
+     * Queues a write of whichever fields have changed since the last save, and returns true if
+     * anything was queued. The callback (which may be null) hears how the write went
+     * */
+    private boolean persistNote(final NoteWriteQueue.Callback callback){
+        mHandler.removeCallbacks(mAutosaveRunnable);
+
+        // Nothing to do until the whole note is in, once it's been thrown away, or while the
+        // first save of a new note is still on its way (it catches up when that finishes)
+        if (!mContentLoaded || mDiscarded || mPendingSaves.inserting) {
+            return false;
+        }
+
         // Grab the text from the fields
         String noteTitle = mTitleBox.getText().toString().trim();
         String noteBody = mBodyBox.getText().toString().trim();
+        final long titleHash = contentHash(noteTitle);
+        final long bodyHash = contentHash(noteBody);
 
-        // Do nothing if this is a new note and all the fields are blank
-        if (mCurrentNoteUri == null && TextUtils.isEmpty(noteTitle) && TextUtils.isEmpty(noteBody)){
-            return;
+        // Only send the fields that changed since the last save, counting the ones on their way
+        ContentValues values = new ContentValues();
+        if (mLastSaveFailed || titleHash != queuedTitleHash()) {
+            values.put(NoteContract.NoteEntry.COLUMN_TITLE, noteTitle);
+        }
+        if (mLastSaveFailed || bodyHash != queuedBodyHash()) {
+            values.put(NoteContract.NoteEntry.COLUMN_BODY, noteBody);
+        }
+        if (values.size() == 0) {
+            mSavesSkipped++;
+            return false;
         }
 
-        // Get a ContentValues object; it will be needed whether it's a new note or an update
-        ContentValues values = new ContentValues();
-        values.put(NoteContract.NoteEntry.COLUMN_TITLE, noteTitle);
-        values.put(NoteContract.NoteEntry.COLUMN_BODY, noteBody);
+        NoteWriteQueue writeQueue = NoteWriteQueue.getInstance(this);
 
-        // If the Content URI is null, it's a new pet, so we add one to the database
+        // If the Content URI is null, it's a new note, so we add one to the database
         if (mCurrentNoteUri == null){
-            Uri newUri = getContentResolver().insert(NoteContract.NoteEntry.CONTENT_URI, values);
+            // Do nothing if all the fields are blank
+            if (TextUtils.isEmpty(noteTitle) && TextUtils.isEmpty(noteBody)){
+                return false;
+            }
 
-            // Log some toast to the screen to confirm success or indicate failure
-            if (newUri == null) {
-                Toast.makeText(this, "Save failed, please try again.", Toast.LENGTH_LONG);
-            } else {
-                Toast.makeText(this, "Note has been saved", Toast.LENGTH_LONG);
+            // A new note needs both fields
+            values.put(NoteContract.NoteEntry.COLUMN_TITLE, noteTitle);
+            values.put(NoteContract.NoteEntry.COLUMN_BODY, noteBody);
+
+            writeQueue.insert(values, new SaveCallback(mPendingSaves, true, titleHash, bodyHash,
+                    true, true, callback));
+            mPendingSaves.inserting = true;
+        } else {
+            // Otherwise this is an existing note, so update it with the Content URI; the URI
+            // already identifies the correct row in the database that we want to modify.
+            writeQueue.update(mCurrentNoteUri, values, new SaveCallback(mPendingSaves, false,
+                    titleHash, bodyHash,
+                    values.containsKey(NoteContract.NoteEntry.COLUMN_TITLE),
+                    values.containsKey(NoteContract.NoteEntry.COLUMN_BODY), callback));
+        }
+
+        // The next save only needs what's changed since this one; if this one fails,
+        // mLastSaveFailed makes the next one write everything
+        mPendingSaves.writes++;
+        mPendingSaves.queuedTitleHash = titleHash;
+        mPendingSaves.queuedBodyHash = bodyHash;
+        mLastSaveFailed = false;
+        mSavesWritten++;
+        return true;
+    }
+
+    // What the title and body will be once the saves on their way are written
+    private long queuedTitleHash(){
+        return mPendingSaves.writes > 0 ? mPendingSaves.queuedTitleHash : mSavedTitleHash;
+    }
+
+    private long queuedBodyHash(){
+        return mPendingSaves.writes > 0 ? mPendingSaves.queuedBodyHash : mSavedBodyHash;
+    }
+
+    // One of this note's saves has been written, or has failed
+    private void onSaveFinished(SaveCallback save, ContentProviderResult result){
+        boolean written = isWritten(result);
+        if (written) {
+            if (save.savedTitle) {
+                mSavedTitleHash = save.titleHash;
+            }
+            if (save.savedBody) {
+                mSavedBodyHash = save.bodyHash;
             }
         } else {
-            // Otherwise this is an existing note, so update it with the Content URI; Pass in null
-            // for the selection and selection args because mCurrentPetUri will already identify
-            // the correct row in the database that we want to modify.
-            int rowsAffected = getContentResolver().update(mCurrentNoteUri, values, null, null);
-
-            // Log some toast to the screen to confirm success or indicate failure
-            if (rowsAffected == 0) {
-                Toast.makeText(this, "Save failed, please try again.", Toast.LENGTH_LONG);
-            } else {
-                Toast.makeText(this, "Note has been updated", Toast.LENGTH_LONG);
+            mLastSaveFailed = true;
+        }
+
+        if (save.insert) {
+            mPendingSaves.inserting = false;
+            if (written) {
+                // From now on this note is saved with updates
+                mCurrentNoteUri = result.uri;
+                invalidateOptionsMenu();
+
+                if (mDiscarded) {
+                    // The user threw the note away while it was being saved
+                    NoteWriteQueue.getInstance(this).delete(result.uri, null);
+                    return;
+                }
+            }
+        }
+
+        if (mPendingSaves.writes > 0) {
+            return;
+        }
+        NoteWriteQueue.Callback afterWrites = mPendingSaves.afterWrites;
+        if (afterWrites != null) {
+            // Save was pressed while this was on its way: write whatever still isn't saved, which
+            // is everything if this failed, and report how that went
+            mPendingSaves.afterWrites = null;
+            if (!persistNote(afterWrites)) {
+                afterWrites.onWriteFinished(mLastSaveFailed ? null : result);
             }
+        } else if (save.insert && written && (mAutosaveEnabled || isFinishing())) {
+            // Catch up with anything typed while the insert was running. A failed insert waits
+            // for the next edit or save, rather than retrying straight away
+            persistNote(null);
         }
+    }
 
-        // Exit back to the main screen because we're done here
+    // True if either field differs from what was last saved
+    private boolean hasUnsavedChanges(){
+        if (!mContentLoaded) {
+            return false;
+        }
+        return mLastSaveFailed
+                || contentHash(mTitleBox.getText().toString().trim()) != queuedTitleHash()
+                || contentHash(mBodyBox.getText().toString().trim()) != queuedBodyHash();
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of the text. Much less likely to collide than String.hashCode(), and
+     * a collision would only skip one save, which the next edit makes up for
+     * */
+    private static long contentHash(CharSequence text){
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            hash ^= text.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // Throws away this note: nothing gets saved on the way out, and if autosave already saved a
+    // new note, it's deleted again
+    private void discardNote(){
+        mDiscarded = true;
+        mHandler.removeCallbacks(mAutosaveRunnable);
+        if (mCurrentNoteUri != null) {
+            NoteWriteQueue.getInstance(this).delete(mCurrentNoteUri, null);
+        }
         finish();
     }
 
@@ -159,7 +610,7 @@ public class NoteActivity extends AppCompatActivity implements LoaderManager.Loa
         builder.setPositiveButton("Delete", new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialogInterface, int i) {
-                finish();
+                discardNote();
             }
         });
 
@@ -181,7 +632,7 @@ public class NoteActivity extends AppCompatActivity implements LoaderManager.Loa
     private void showDeleteConfirmationDialog(){
         // Create an AlertDialog and set the confirmation click to delete the note
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
-        builder.setMessage("This note will be deleted permanently. Are you sure?");
+        builder.setMessage("Move this note to the trash? You can restore it from there for 30 days.");
 
         builder.setPositiveButton("Delete", new DialogInterface.OnClickListener() {
             @Override
@@ -204,20 +655,27 @@ public class NoteActivity extends AppCompatActivity implements LoaderManager.Loa
         alertDialog.show();
     }
 
-    // Delete a note from the database
+    // Moves the note to the trash
     private void deleteNote(){
+        // Nothing should save this note again on the way out
+        mDiscarded = true;
+        mHandler.removeCallbacks(mAutosaveRunnable);
+
         // Only perform the delete if this is an existing note
         if (mCurrentNoteUri != null){
-            // Call the ContentResolver to delete the note at the given URI
-            // Pass in null for selection and selectionArgs because the URI is the note we want
-            int rowsDeleted = getContentResolver().delete(mCurrentNoteUri, null, null);
-
-            // Log some toast to the screen to confirm success or indicate failure
-            if (rowsDeleted == 0){
-                Toast.makeText(this, "Error: Could not delete.", Toast.LENGTH_SHORT).show();
-            } else {
-                Toast.makeText(this, "Successfully deleted.", Toast.LENGTH_SHORT).show();
-            }
+            // Queue the delete on the background writer; the toast shows once it's committed
+            final Context appContext = getApplicationContext();
+            NoteWriteQueue.getInstance(this).delete(mCurrentNoteUri, new NoteWriteQueue.Callback() {
+                @Override
+                public void onWriteFinished(ContentProviderResult result) {
+                    // Log some toast to the screen to confirm success or indicate failure
+                    if (result == null || result.count == null || result.count == 0){
+                        Toast.makeText(appContext, "Error: Could not delete.", Toast.LENGTH_SHORT).show();
+                    } else {
+                        Toast.makeText(appContext, "Moved to the trash.", Toast.LENGTH_SHORT).show();
+                    }
+                }
+            });
         }
 
         // Close the activity
@@ -250,8 +708,9 @@ public class NoteActivity extends AppCompatActivity implements LoaderManager.Loa
     // Override the Back button's normal behavior to notify the user of unsaved changes, if any
     @Override
     public void onBackPressed() {
-        // If the note hasn't been touched, proceed normally
-        if (!mNoteHasChanged){
+        // With autosave on, onPause saves the note on the way out; otherwise, if nothing has
+        // actually changed, proceed normally
+        if (mAutosaveEnabled || !hasUnsavedChanges()){
             super.onBackPressed();
             return;
         }
@@ -274,11 +733,10 @@ public class NoteActivity extends AppCompatActivity implements LoaderManager.Loa
     /** Implementing LoaderCallbacks interface methods */
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        // Get a projection with the columns we want; remember the CursorAdapter needs its _ID
+        // Get a projection with the columns we want; the body is streamed in separately
         String[] projection = {
                 NoteContract.NoteEntry._ID,
-                NoteContract.NoteEntry.COLUMN_TITLE,
-                NoteContract.NoteEntry.COLUMN_BODY
+                NoteContract.NoteEntry.COLUMN_TITLE
         };
 
         // Execute the ContentProvider's query method
@@ -299,27 +757,265 @@ public class NoteActivity extends AppCompatActivity implements LoaderManager.Loa
             return;
         }
 
+        // Only fill in the fields the first time; after that the user's edits (and autosave's
+        // own writes, which make the loader reload) win
+        if (mBodyLoadTask != null) {
+            return;
+        }
+
         // Read the data from the first row of the cursor (there should be only one)
         if (cursor.moveToFirst()){
-            // Get the column numbers of the data we want
-            int titleColumnIndex = cursor.getColumnIndex(NoteContract.NoteEntry.COLUMN_TITLE);
-            int bodyColumnIndex = cursor.getColumnIndex(NoteContract.NoteEntry.COLUMN_BODY);
+            // Read the title through a NoteRow and update the view with it
+            String title = new NoteRow(cursor).title();
+            mIgnoreTextChanges = true;
+            mTitleBox.setText(title);
+            mBodyBox.setText("");
+            mIgnoreTextChanges = false;
+            mSavedTitleHash = contentHash(title.trim());
 
-            // Extract the data from the columns
-            String title = cursor.getString(titleColumnIndex);
-            String body = cursor.getString(bodyColumnIndex);
+            // Start streaming in the body
+            mBodyBox.setFocusable(false);
+            mSaveButton.setEnabled(false);
 
-            // Update the views with the title and body
-            mTitleBox.setText(title);
-            mBodyBox.setText(body);
+            mBodyLoadTask = new BodyLoadTask(this);
+            mBodyLoadTask.execute(ContentUris.parseId(mCurrentNoteUri));
+        }
+    }
+
+    // Adds the next chunk of the body to the end of the body box
+    private void appendBody(String chunk) {
+        mIgnoreTextChanges = true;
+        mBodyBox.append(chunk);
+        mIgnoreTextChanges = false;
+    }
+
+    // Empties the body box so a body that changed while loading can be read in again
+    private void clearBody() {
+        mIgnoreTextChanges = true;
+        mBodyBox.setText("");
+        mIgnoreTextChanges = false;
+    }
+
+    // The whole body is in, so the note can be edited and saved
+    private void onBodyLoaded() {
+        mSavedBodyHash = contentHash(mBodyBox.getText().toString().trim());
+        mContentLoaded = true;
+
+        mBodyBox.setFocusableInTouchMode(true);
+        mSaveButton.setEnabled(true);
+
+        // The title may have been edited while the body was loading
+        if (mAutosaveEnabled && hasUnsavedChanges()) {
+            mHandler.postDelayed(mAutosaveRunnable, AUTOSAVE_DELAY_MS);
         }
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
         // If the loader is invalidated, clear out all the data from the input fields.
+        mIgnoreTextChanges = true;
         mTitleBox.setText("");
         mBodyBox.setText("");
+        mIgnoreTextChanges = false;
     }
-}
 
+    /**
+     * The saves of this note that are still on their way to the database. It points at whichever
+     * editor is showing the note, which a rotation changes before the writes are done
+     * */
+    private static class PendingSaves {
+        NoteActivity activity;
+
+        // Writes queued and not yet answered, and whether one of them is a new note's insert
+        int writes;
+        boolean inserting;
+
+        // Hashes of the title and body the last queued write leaves behind
+        long queuedTitleHash;
+        long queuedBodyHash;
+
+        // Hears how the save went that Save asked for once the writes above are done, or null
+        NoteWriteQueue.Callback afterWrites;
+    }
+
+    /**
+     * Hears how one save went and passes it on to the editor showing the note at the time, and
+     * then to the callback the save was made with
+     * */
+    private static class SaveCallback implements NoteWriteQueue.Callback {
+        private final PendingSaves mPendingSaves;
+        private final NoteWriteQueue.Callback mCallback;
+        final boolean insert;
+        final long titleHash;
+        final long bodyHash;
+
+        // Which fields the write holds, so only those count as saved once it's done
+        final boolean savedTitle;
+        final boolean savedBody;
+
+        SaveCallback(PendingSaves pendingSaves, boolean insert, long titleHash, long bodyHash,
+                     boolean savedTitle, boolean savedBody, NoteWriteQueue.Callback callback) {
+            mPendingSaves = pendingSaves;
+            mCallback = callback;
+            this.insert = insert;
+            this.titleHash = titleHash;
+            this.bodyHash = bodyHash;
+            this.savedTitle = savedTitle;
+            this.savedBody = savedBody;
+        }
+
+        @Override
+        public void onWriteFinished(ContentProviderResult result) {
+            mPendingSaves.writes--;
+            if (mCallback != null) {
+                mCallback.onWriteFinished(result);
+            }
+            mPendingSaves.activity.onSaveFinished(this, result);
+        }
+    }
+
+    /**
+     * Reads a note's body one chunk at a time on a background thread and hands each chunk to the
+     * activity as soon as it's read. Each chunk is its own query, so if anything writes to the
+     * note before the last one (a sync, say) the chunks could come from two versions of it; the
+     * note's change log version is read before and after, and if it moved the activity is told
+     * to start the body over and it's read again. Only holds a weak reference to the activity, so
+     * it doesn't keep a closed editor alive
+     * */
+    private static class BodyLoadTask extends AsyncTask<Long, String, Void> {
+        private final WeakReference<NoteActivity> mActivity;
+        private final NoteRepository mRepository;
+
+        BodyLoadTask(NoteActivity activity) {
+            mActivity = new WeakReference<NoteActivity>(activity);
+            mRepository = new ResolverNoteRepository(activity.getContentResolver());
+        }
+
+        @Override
+        protected Void doInBackground(Long... noteIds) {
+            long noteId = noteIds[0];
+            while (!isCancelled()) {
+                long version = mRepository.queryNoteVersion(noteId);
+                for (int sequence = 0; !isCancelled(); sequence++) {
+                    String chunk = mRepository.queryBodyChunk(noteId, sequence);
+                    if (chunk == null) {
+                        // No more chunks
+                        break;
+                    }
+                    publishProgress(chunk);
+                }
+                if (isCancelled() || mRepository.queryNoteVersion(noteId) == version) {
+                    return null;
+                }
+
+                // The note changed while it was being read; a null chunk empties the body box
+                publishProgress((String) null);
+            }
+            return null;
+        }
+
+        @Override
+        protected void onProgressUpdate(String... chunks) {
+            NoteActivity activity = mActivity.get();
+            if (activity == null) {
+                return;
+            }
+            if (chunks[0] == null) {
+                activity.clearBody();
+            } else {
+                activity.appendBody(chunks[0]);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            NoteActivity activity = mActivity.get();
+            if (activity != null) {
+                activity.onBodyLoaded();
+            }
+        }
+    }
+
+    /**
+     * Reads every tag and the note's own tags on a background thread, then shows the tags dialog.
+     * Only holds a weak reference to the activity, so it doesn't keep a closed editor alive
+     * */
+    private static class NoteTagsTask extends AsyncTask<Long, Void, TagList[]> {
+        private final WeakReference<NoteActivity> mActivity;
+        private final ContentResolver mContentResolver;
+
+        NoteTagsTask(NoteActivity activity) {
+            mActivity = new WeakReference<NoteActivity>(activity);
+            mContentResolver = activity.getContentResolver();
+        }
+
+        @Override
+        protected TagList[] doInBackground(Long... noteIds) {
+            return new TagList[] {
+                    TagList.load(mContentResolver, NoteContract.NoteTagEntry.CONTENT_URI),
+                    TagList.load(mContentResolver, NoteContract.NoteTagEntry.buildNoteTagsUri(noteIds[0]))
+            };
+        }
+
+        @Override
+        protected void onPostExecute(TagList[] tags) {
+            NoteActivity activity = mActivity.get();
+            if (activity != null && !activity.isFinishing()) {
+                activity.showTagsDialog(tags[0], tags[1]);
+            }
+        }
+    }
+
+    /**
+     * Adds tags to a note and takes others off it on a background thread, then says how it
+     * went. Only holds the application context, so it doesn't keep the activity alive
+     * */
+    private static class TagEditTask extends AsyncTask<Void, Void, Boolean> {
+        private final Context mAppContext;
+        private final long mNoteId;
+        private final long[] mAddIds;
+        private final long[] mRemoveIds;
+        private final String mNewTagName;
+
+        TagEditTask(Context context, long noteId, long[] addIds, long[] removeIds, String newTagName) {
+            mAppContext = context.getApplicationContext();
+            mNoteId = noteId;
+            mAddIds = addIds;
+            mRemoveIds = removeIds;
+            mNewTagName = newTagName;
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... params) {
+            ContentResolver resolver = mAppContext.getContentResolver();
+            Uri noteTagsUri = NoteContract.NoteTagEntry.buildNoteTagsUri(mNoteId);
+            boolean allWritten = true;
+            try {
+                for (long tagId : mAddIds) {
+                    ContentValues values = new ContentValues();
+                    values.put(NoteContract.NoteTagEntry._ID, tagId);
+                    allWritten &= resolver.insert(noteTagsUri, values) != null;
+                }
+                if (mNewTagName != null) {
+                    ContentValues values = new ContentValues();
+                    values.put(NoteContract.NoteTagEntry.COLUMN_NAME, mNewTagName);
+                    allWritten &= resolver.insert(noteTagsUri, values) != null;
+                }
+                for (long tagId : mRemoveIds) {
+                    resolver.delete(NoteContract.NoteTagEntry.buildNoteTagUri(mNoteId, tagId),
+                            null, null);
+                }
+            } catch (IllegalArgumentException e) {
+                Log.e(LOG_TAG, "Could not tag note " + mNoteId, e);
+                return false;
+            }
+            return allWritten;
+        }
+
+        @Override
+        protected void onPostExecute(Boolean written) {
+            Toast.makeText(mAppContext, written ? "Tags saved" : "Could not save the tags",
+                    Toast.LENGTH_SHORT).show();
+        }
+    }
+}
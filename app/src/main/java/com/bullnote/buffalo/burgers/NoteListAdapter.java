@@ -0,0 +1,121 @@
+package com.bullnote.buffalo.burgers;
+
+import android.content.Context;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import com.bullnote.buffalo.burgers.data.NoteListItem;
+
+/**
+ * RecyclerView adapter for showing the pages of notes loaded by NotePageLoader in the main
+ * activity. Each row keeps its views in a ViewHolder so binding never has to look them up, and new
+ * lists are applied with the diff the loader already worked out in the background, so only the
+ * rows that actually changed are rebound and animated.
+ */
+
+public class NoteListAdapter extends RecyclerView.Adapter<NoteListAdapter.NoteViewHolder> {
+
+    /** Receives clicks on a note in the list */
+    public interface OnNoteClickListener {
+        void onNoteClick(long id);
+    }
+
+    private final LayoutInflater mInflater;
+    private final OnNoteClickListener mClickListener;
+
+    // The notes loaded so far; replaced whenever the loader delivers a new list
+    private NotePageLoader.LoadedNotes mItems;
+
+    public NoteListAdapter(Context context, OnNoteClickListener clickListener) {
+        mInflater = LayoutInflater.from(context);
+        mClickListener = clickListener;
+
+        // Note _IDs never change, which lets the RecyclerView keep track of rows across updates
+        setHasStableIds(true);
+    }
+
+    /**
+     * Swaps in a newly loaded list. If the loader diffed it against the list we're showing, only
+     * the changed rows are updated; otherwise everything is redrawn
+     * */
+    public void setItems(NotePageLoader.LoadedNotes items) {
+        if (items == mItems) {
+            return;
+        }
+
+        NotePageLoader.LoadedNotes previous = mItems;
+        DiffUtil.DiffResult diff = items == null ? null : items.getDiffFrom(previous);
+        mItems = items;
+
+        if (diff != null) {
+            diff.dispatchUpdatesTo(this);
+        } else {
+            notifyDataSetChanged();
+        }
+    }
+
+    /** The notes being shown, or null if there are none yet */
+    public NotePageLoader.LoadedNotes getItems() {
+        return mItems;
+    }
+
+    @Override
+    public int getItemCount() {
+        return mItems == null ? 0 : mItems.size();
+    }
+
+    // The note's _ID, so click listeners can build its content URI
+    @Override
+    public long getItemId(int position) {
+        return mItems.get(position).id;
+    }
+
+    // Makes a new blank row; no data is bound to it yet
+    @Override
+    public NoteViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        return new NoteViewHolder(mInflater.inflate(R.layout.list_item, parent, false));
+    }
+
+    // Binds the note's title and preview to a recycled row
+    @Override
+    public void onBindViewHolder(NoteViewHolder holder, int position) {
+        NoteListItem item = mItems.get(position);
+
+        // If the title is empty, put (No title)
+        String noteTitle = item.title;
+        if (noteTitle == null || noteTitle.length() == 0){
+            noteTitle = "(No title)";
+        }
+
+        // Set the text to the views; hide the preview line for notes with no body
+        holder.titleView.setText(noteTitle);
+        holder.previewView.setText(item.preview);
+        holder.previewView.setVisibility(item.preview == null || item.preview.length() == 0
+                ? View.GONE : View.VISIBLE);
+    }
+
+    /** Holds on to a row's views so they're only looked up once, when the row is created */
+    class NoteViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        final TextView titleView;
+        final TextView previewView;
+
+        NoteViewHolder(View itemView) {
+            super(itemView);
+            titleView = (TextView) itemView.findViewById(R.id.list_item_title);
+            previewView = (TextView) itemView.findViewById(R.id.list_item_preview);
+            itemView.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            // The row may be on its way out after an update; ignore clicks until it settles
+            if (getAdapterPosition() != RecyclerView.NO_POSITION) {
+                mClickListener.onNoteClick(getItemId());
+            }
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.bullnote.buffalo.burgers;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.support.v7.util.DiffUtil;
+import android.text.TextUtils;
+
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+import com.bullnote.buffalo.burgers.data.NoteListItem;
+import com.bullnote.buffalo.burgers.data.NoteRepository;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Loads the note list one page at a time on a background thread, from the NoteRepository it's
+ * given.
+ *
+ * The first load reads a single page; the list asks for more with loadNextPage() as the user
+ * scrolls, and each new page is a keyset query for the notes after the last one already loaded.
+ * The repository hands back NoteListItems, never a cursor, so memory and first paint time
+ * depend on how far the user has scrolled, not on how many notes there are.
+ *
+ * Pages come back in the sort order the loader was created with. When the notes change, the
+ * loader reads the change log for the notes that changed since its last load and patches just
+ * those into the list (or drops them, if they were deleted) instead of reading every row again.
+ * If a search query is set, the loader returns the ranked search results instead. If tags are
+ * set, only the notes with every one of them are listed (a search still looks through every note).
+ *
+ * Every result also carries the difference from the previously delivered list, worked out on
+ * the loader's thread, so the list can animate just the rows that changed without diffing on the
+ * main thread. The first result is diffed against the placeholder the list was showing before it,
+ * such as the ListSnapshot shown on a cold start, if there was one.
+ */
+public class NotePageLoader extends AsyncTaskLoader<NotePageLoader.LoadedNotes> {
+
+    // How many notes to read per page
+    public static final int PAGE_SIZE = 50;
+
+    // If more notes than this changed at once, reloading the loaded pages is cheaper than patching
+    private static final int MAX_INCREMENTAL_CHANGES = PAGE_SIZE;
+
+    // Reloads the list when anything under NoteEntry.CONTENT_URI changes
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+    private boolean mObserverRegistered = false;
+
+    // Where the notes are read from
+    private final NoteRepository mRepository;
+
+    // The search text, or null to list every note
+    private final String mSearchQuery;
+
+    // The _IDs of the tags a note needs to be listed; empty to list every note
+    private final long[] mTagIds;
+
+    // One of the NoteEntry sort orders, and a comparator that puts items in the same order
+    private final String mSortOrder;
+    private final Comparator<NoteListItem> mComparator;
+
+    // The list that was last delivered; read by the background thread to know where to continue
+    private volatile LoadedNotes mItems;
+
+    // What the list shows until the first load is delivered, or null; the first load is diffed
+    // against it, but it's never patched or paged from
+    private volatile LoadedNotes mPlaceholder;
+
+    // Whether there may be notes after the last loaded page
+    private volatile boolean mHasMore = true;
+
+    // True when the next load should append a page rather than bring the loaded ones up to date
+    private volatile boolean mAppendPage = false;
+
+    public NotePageLoader(Context context, NoteRepository repository, String searchQuery,
+                          String sortOrder, long[] tagIds, LoadedNotes placeholder) {
+        super(context);
+        mRepository = repository;
+        mSearchQuery = searchQuery;
+        mTagIds = tagIds;
+        mSortOrder = sortOrder;
+        mComparator = NoteEntry.SORT_TITLE.equals(sortOrder) ? TITLE_ORDER : MODIFIED_ORDER;
+        mPlaceholder = placeholder;
+    }
+
+    /** Starts loading the next page unless one is already on its way or there are no more notes */
+    public void loadNextPage() {
+        if (mAppendPage || !mHasMore || mItems == null) {
+            return;
+        }
+        mAppendPage = true;
+        forceLoad();
+    }
+
+    @Override
+    public LoadedNotes loadInBackground() {
+        LoadedNotes current = mItems;
+        LoadedNotes items = loadItems(current);
+
+        // The first load has nothing of its own to diff against, but the list may be showing a
+        // placeholder
+        LoadedNotes previous = current != null ? current : mPlaceholder;
+        if (previous != null && items != previous) {
+            items.diffAgainst(previous);
+        }
+        return items;
+    }
+
+    // Works out the new list from the one that was last delivered (null on the first load)
+    private LoadedNotes loadItems(LoadedNotes current) {
+        if (!TextUtils.isEmpty(mSearchQuery)) {
+            mHasMore = false;
+            return new LoadedNotes(LoadedNotes.NO_VERSION, mRepository.search(mSearchQuery));
+        }
+
+        if (mAppendPage && current != null && !current.isEmpty()) {
+            // Continue from the last note we have
+            NoteListItem last = current.get(current.size() - 1);
+            List<NoteListItem> page = mRepository.queryPage(mSortOrder, last, PAGE_SIZE, mTagIds);
+            mHasMore = page.size() == PAGE_SIZE;
+
+            LoadedNotes items = new LoadedNotes(current.version, current);
+            items.addAll(page);
+            return items;
+        }
+
+        // The data changed: patch in just the notes that changed, if there aren't too many
+        if (current != null && current.version != LoadedNotes.NO_VERSION) {
+            LoadedNotes patched = applyChanges(current);
+            if (patched != null) {
+                return patched;
+            }
+        }
+
+        // First load, or too much changed: read everything the user has already scrolled through.
+        // The version is read first so a change that lands in between is patched in next time
+        long version = mRepository.queryLatestVersion();
+        int limit = Math.max(PAGE_SIZE, current == null ? 0 : current.size());
+        List<NoteListItem> page = mRepository.queryPage(mSortOrder, null, limit, mTagIds);
+        mHasMore = page.size() == limit;
+        return new LoadedNotes(version, page);
+    }
+
+    /*
+    * Brings the loaded list up to date using the change log: every note that changed since the
+    * list's version is removed, then read again and put back in its sorted position. Deleted notes
+    * don't come back, and changed notes that now sort past the last loaded one are left for the
+    * page that will cover them. Returns null if so much changed that a reload is cheaper.
+    * */
+    private LoadedNotes applyChanges(LoadedNotes current) {
+        NoteRepository.Changes changes =
+                mRepository.queryChangesSince(current.version, MAX_INCREMENTAL_CHANGES);
+        if (changes == null) {
+            return null;
+        }
+        long[] changedIds = changes.noteIds;
+        if (changedIds.length == 0) {
+            return current;
+        }
+
+        // Read what the changed notes look like now; with a tag filter, a note that lost one of
+        // the tags doesn't come back, just like a deleted one
+        List<NoteListItem> changed = mRepository.queryNotes(changedIds, mTagIds);
+
+        // Notes past the end of what's loaded will show up when their page is read
+        NoteListItem lastLoaded = current.isEmpty() ? null : current.get(current.size() - 1);
+        boolean hasMore = mHasMore;
+
+        LoadedNotes items = new LoadedNotes(changes.version, current.size() + changed.size());
+        for (NoteListItem item : current) {
+            if (Arrays.binarySearch(changedIds, item.id) < 0) {
+                items.add(item);
+            }
+        }
+        for (NoteListItem item : changed) {
+            if (hasMore && lastLoaded != null && mComparator.compare(item, lastLoaded) > 0) {
+                continue;
+            }
+            int position = Collections.binarySearch(items, item, mComparator);
+            items.add(position < 0 ? -position - 1 : position, item);
+        }
+        return items;
+    }
+
+    @Override
+    public void deliverResult(LoadedNotes items) {
+        mItems = items;
+        mPlaceholder = null;
+        mAppendPage = false;
+        if (isStarted()) {
+            super.deliverResult(items);
+        }
+    }
+
+    @Override
+    public void onContentChanged() {
+        // A change means the loaded pages are stale, so update them rather than append
+        mAppendPage = false;
+        super.onContentChanged();
+    }
+
+    @Override
+    public void onCanceled(LoadedNotes items) {
+        mAppendPage = false;
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserverRegistered) {
+            getContext().getContentResolver().registerContentObserver(
+                    NoteEntry.CONTENT_URI, true, mObserver);
+            mObserverRegistered = true;
+        }
+
+        if (mItems != null) {
+            deliverResult(mItems);
+        }
+        if (takeContentChanged() || mItems == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+
+        if (mObserverRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+        mItems = null;
+        mHasMore = true;
+    }
+
+    // Newest first, then by _ID, like NoteEntry.SORT_MODIFIED
+    private static final Comparator<NoteListItem> MODIFIED_ORDER = new Comparator<NoteListItem>() {
+        @Override
+        public int compare(NoteListItem a, NoteListItem b) {
+            if (a.modifiedAt != b.modifiedAt) {
+                return a.modifiedAt > b.modifiedAt ? -1 : 1;
+            }
+            return a.id == b.id ? 0 : (a.id > b.id ? -1 : 1);
+        }
+    };
+
+    // A to Z, then by _ID, like NoteEntry.SORT_TITLE. SQLite's NOCASE only folds ASCII letters,
+    // so this does the same to keep patched notes where a fresh query would put them
+    private static final Comparator<NoteListItem> TITLE_ORDER = new Comparator<NoteListItem>() {
+        @Override
+        public int compare(NoteListItem a, NoteListItem b) {
+            int length = Math.min(a.title.length(), b.title.length());
+            for (int i = 0; i < length; i++) {
+                char x = foldAscii(a.title.charAt(i));
+                char y = foldAscii(b.title.charAt(i));
+                if (x != y) {
+                    return x - y;
+                }
+            }
+            if (a.title.length() != b.title.length()) {
+                return a.title.length() - b.title.length();
+            }
+            return a.id == b.id ? 0 : (a.id < b.id ? -1 : 1);
+        }
+
+        private char foldAscii(char c) {
+            return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+        }
+    };
+
+    /**
+     * The loaded notes along with the change log version they're current as of, and how they
+     * differ from the list the loader delivered before them
+     * */
+    public static class LoadedNotes extends ArrayList<NoteListItem> {
+        static final long NO_VERSION = -1;
+
+        // Hands out a new id to every list so a diff can say which list it was worked out from
+        private static int sNextListId = 0;
+
+        final long version;
+
+        private final int mListId;
+        private int mDiffBaseListId = -1;
+        private DiffUtil.DiffResult mDiff;
+
+        LoadedNotes(long version, int capacity) {
+            super(capacity);
+            this.version = version;
+            mListId = nextListId();
+        }
+
+        /** A list to show before anything is loaded, such as a ListSnapshot */
+        static LoadedNotes placeholder(Collection<NoteListItem> items) {
+            return new LoadedNotes(NO_VERSION, items);
+        }
+
+        LoadedNotes(long version, Collection<NoteListItem> items) {
+            super(items);
+            this.version = version;
+            mListId = nextListId();
+        }
+
+        private static synchronized int nextListId() {
+            return sNextListId++;
+        }
+
+        /**
+         * Returns the updates that turn the given list into this one, or null if they weren't
+         * worked out against that list (in which case the whole list should be redrawn)
+         * */
+        public DiffUtil.DiffResult getDiffFrom(LoadedNotes previous) {
+            return previous != null && previous.mListId == mDiffBaseListId ? mDiff : null;
+        }
+
+        // Works out the updates from the previous list to this one. Only the list id of the
+        // previous list is kept, so old lists don't pile up behind the new ones
+        void diffAgainst(final LoadedNotes previous) {
+            mDiff = DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                @Override
+                public int getOldListSize() {
+                    return previous.size();
+                }
+
+                @Override
+                public int getNewListSize() {
+                    return size();
+                }
+
+                @Override
+                public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+                    return previous.get(oldItemPosition).id == get(newItemPosition).id;
+                }
+
+                @Override
+                public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+                    NoteListItem oldItem = previous.get(oldItemPosition);
+                    NoteListItem newItem = get(newItemPosition);
+                    return oldItem.modifiedAt == newItem.modifiedAt
+                            && TextUtils.equals(oldItem.title, newItem.title)
+                            && TextUtils.equals(oldItem.preview, newItem.preview);
+                }
+            });
+            mDiffBaseListId = previous.mListId;
+        }
+    }
+}
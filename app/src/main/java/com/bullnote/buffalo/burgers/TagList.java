@@ -0,0 +1,69 @@
+package com.bullnote.buffalo.burgers;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTagEntry;
+
+/**
+ * The tags read from NoteTagEntry.CONTENT_URI (or one note's tags), A to Z, copied out of the
+ * cursor so a dialog can show them. Read it on a background thread.
+ */
+class TagList {
+
+    final long[] ids;
+    final String[] names;
+    final int[] noteCounts;
+
+    private TagList(int size) {
+        ids = new long[size];
+        names = new String[size];
+        noteCounts = new int[size];
+    }
+
+    /** Reads every tag at the URI; an empty list if the provider isn't there */
+    static TagList load(ContentResolver resolver, Uri uri) {
+        Cursor cursor = resolver.query(uri, null, null, null, null);
+        if (cursor == null) {
+            return new TagList(0);
+        }
+        try {
+            TagList tags = new TagList(cursor.getCount());
+            int idColumnIndex = cursor.getColumnIndex(NoteTagEntry._ID);
+            int nameColumnIndex = cursor.getColumnIndex(NoteTagEntry.COLUMN_NAME);
+            int countColumnIndex = cursor.getColumnIndex(NoteTagEntry.COLUMN_NOTE_COUNT);
+            for (int i = 0; cursor.moveToNext(); i++) {
+                tags.ids[i] = cursor.getLong(idColumnIndex);
+                tags.names[i] = cursor.getString(nameColumnIndex);
+                tags.noteCounts[i] = cursor.getInt(countColumnIndex);
+            }
+            return tags;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    /** True if a tag with this _ID is in the list */
+    boolean contains(long id) {
+        for (long tagId : ids) {
+            if (tagId == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Each tag's name followed by how many notes have it, for a dialog */
+    String[] labelsWithCounts() {
+        String[] labels = new String[size()];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = names[i] + " (" + noteCounts[i] + ")";
+        }
+        return labels;
+    }
+}
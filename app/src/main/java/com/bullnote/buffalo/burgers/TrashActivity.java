@@ -0,0 +1,188 @@
+package com.bullnote.buffalo.burgers;
+
+import android.app.AlertDialog;
+import android.app.LoaderManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.CursorLoader;
+import android.content.DialogInterface;
+import android.content.Loader;
+import android.database.Cursor;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.view.View;
+import android.widget.AdapterView;
+import android.widget.ListView;
+import android.widget.SimpleCursorAdapter;
+import android.widget.Toast;
+
+import com.bullnote.buffalo.burgers.data.NoteContract;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTrashEntry;
+
+/**
+ * Lists the notes in the trash, most recently deleted first. Tapping one offers to restore it or
+ * delete it for good, and the menu empties the whole trash. Notes left in the trash are deleted
+ * for good by MainActivity once they're older than NoteTrashEntry.RETENTION_MS.
+ * */
+public class TrashActivity extends AppCompatActivity
+        implements LoaderManager.LoaderCallbacks<Cursor> {
+
+    // An integer constant for the Loader
+    private static final int TRASH_LOADER = 0;
+
+    // The trash is small, so a plain cursor adapter is enough here
+    private SimpleCursorAdapter mAdapter;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_trash);
+        setTitle("Trash");
+
+        // Each row shows the title and preview, like the main list
+        mAdapter = new SimpleCursorAdapter(this, R.layout.list_item, null,
+                new String[] { NoteTrashEntry.COLUMN_TITLE, NoteTrashEntry.COLUMN_PREVIEW },
+                new int[] { R.id.list_item_title, R.id.list_item_preview }, 0);
+
+        ListView trashListView = (ListView) findViewById(R.id.trash_list);
+        trashListView.setEmptyView(findViewById(R.id.empty_trash));
+        trashListView.setAdapter(mAdapter);
+
+        // Clicking a note asks what to do with it
+        trashListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                showTrashedNoteDialog(id);
+            }
+        });
+
+        // Kick off the loader
+        getLoaderManager().initLoader(TRASH_LOADER, null, this);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_trash, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_empty_trash) {
+            showEmptyTrashDialog();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    // Restore the note, or delete it for good
+    private void showTrashedNoteDialog(final long id) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage("Restore this note, or delete it for good?");
+        builder.setPositiveButton("Restore", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                new TrashTask(getApplicationContext(), id, true).execute();
+            }
+        });
+        builder.setNeutralButton("Delete forever", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                new TrashTask(getApplicationContext(), id, false).execute();
+            }
+        });
+        builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                if (dialog != null) {
+                    dialog.dismiss();
+                }
+            }
+        });
+        builder.create().show();
+    }
+
+    // Confirm before deleting every note in the trash
+    private void showEmptyTrashDialog() {
+        if (mAdapter.getCount() == 0) {
+            Toast.makeText(this, "The trash is already empty.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setMessage("Every note in the trash will be deleted permanently. Are you sure?");
+        builder.setPositiveButton("Empty trash", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                new TrashTask(getApplicationContext(), TrashTask.ALL_NOTES, false).execute();
+            }
+        });
+        builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                if (dialog != null) {
+                    dialog.dismiss();
+                }
+            }
+        });
+        builder.create().show();
+    }
+
+    /**
+     * Restores a note, or deletes one or all of them for good, on a background thread. Only holds
+     * the application context, so the toast still shows if the user has left the trash
+     * */
+    private static class TrashTask extends AsyncTask<Void, Void, String> {
+        // Stands in for the note _ID when the whole trash is being emptied
+        static final long ALL_NOTES = -1;
+
+        private final Context mAppContext;
+        private final long mNoteId;
+        private final boolean mRestore;
+
+        TrashTask(Context appContext, long noteId, boolean restore) {
+            mAppContext = appContext;
+            mNoteId = noteId;
+            mRestore = restore;
+        }
+
+        @Override
+        protected String doInBackground(Void... params) {
+            ContentResolver resolver = mAppContext.getContentResolver();
+            if (mRestore) {
+                Bundle result = resolver.call(NoteTrashEntry.CONTENT_URI,
+                        NoteContract.METHOD_RESTORE_NOTE,
+                        NoteTrashEntry.buildTrashUri(mNoteId).toString(), null);
+                return result != null && result.getBoolean(NoteContract.RESULT_RESTORED)
+                        ? "Note restored." : "Couldn't restore the note.";
+            }
+
+            int deleted = resolver.delete(mNoteId == ALL_NOTES
+                    ? NoteTrashEntry.CONTENT_URI : NoteTrashEntry.buildTrashUri(mNoteId), null, null);
+            return deleted == 1 ? "Deleted 1 note for good." : "Deleted " + deleted + " notes for good.";
+        }
+
+        @Override
+        protected void onPostExecute(String message) {
+            Toast.makeText(mAppContext, message, Toast.LENGTH_SHORT).show();
+        }
+    }
+
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        // The provider lists the trash most recently deleted first
+        String[] projection = {
+                NoteTrashEntry._ID,
+                NoteTrashEntry.COLUMN_TITLE,
+                NoteTrashEntry.COLUMN_PREVIEW
+        };
+        return new CursorLoader(this, NoteTrashEntry.CONTENT_URI, projection, null, null, null);
+    }
+
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
+        mAdapter.swapCursor(data);
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        mAdapter.swapCursor(null);
+    }
+}
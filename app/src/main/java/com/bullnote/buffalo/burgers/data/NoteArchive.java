@@ -0,0 +1,261 @@
+package com.bullnote.buffalo.burgers.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The backup file format: every note in one file, written and read one note at a time so the
+ * memory used doesn't depend on how many notes there are.
+ *
+ * The file starts with MAGIC and FORMAT_VERSION, followed by one record per note: a RECORD_NOTE
+ * byte, the title and body as UTF-8 with an int length in front of each, then the created and
+ * modified times as longs. A RECORD_END byte and the number of notes close the file, so a file cut
+ * short is caught instead of quietly importing half the notes. All numbers are big-endian.
+ *
+ * The whole file may be gzipped; Reader works that out for itself.
+ */
+public final class NoteArchive {
+
+    // The first bytes of every archive
+    private static final byte[] MAGIC = { 'B', 'U', 'L', 'L', 'N', 'O', 'T', 'E' };
+    public static final int FORMAT_VERSION = 1;
+
+    private static final byte RECORD_NOTE = 1;
+    private static final byte RECORD_END = 0;
+
+    // Bytes moved to or from the channel at a time
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Does not need a constructor, should never be instantiated
+    private NoteArchive() {}
+
+    /** One note read from an archive */
+    public static final class Entry {
+        public final String title;
+        public final String body;
+        public final long createdAt;
+        public final long modifiedAt;
+
+        public Entry(String title, String body, long createdAt, long modifiedAt) {
+            this.title = title;
+            this.body = body;
+            this.createdAt = createdAt;
+            this.modifiedAt = modifiedAt;
+        }
+    }
+
+    /**
+     * Writes an archive to a channel. Call write() for every note, then close(), which finishes
+     * the file; an archive that isn't closed can't be read back
+     * */
+    public static final class Writer implements Closeable {
+        private final WritableByteChannel mChannel;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long mCount = 0;
+        private boolean mClosed = false;
+
+        public Writer(WritableByteChannel channel, boolean gzip) throws IOException {
+            if (gzip) {
+                channel = Channels.newChannel(
+                        new GZIPOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE));
+            }
+            mChannel = channel;
+            mBuffer.put(MAGIC);
+            mBuffer.putInt(FORMAT_VERSION);
+        }
+
+        /** Adds one note to the archive */
+        public void write(String title, String body, long createdAt, long modifiedAt)
+                throws IOException {
+            ensureRoom(1);
+            mBuffer.put(RECORD_NOTE);
+            putString(title);
+            putString(body);
+            ensureRoom(16);
+            mBuffer.putLong(createdAt);
+            mBuffer.putLong(modifiedAt);
+            mCount++;
+        }
+
+        /** How many notes have been written so far */
+        public long count() {
+            return mCount;
+        }
+
+        /** Ends the archive and closes the channel */
+        @Override
+        public void close() throws IOException {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                ensureRoom(9);
+                mBuffer.put(RECORD_END);
+                mBuffer.putLong(mCount);
+                drain();
+            } finally {
+                mChannel.close();
+            }
+        }
+
+        // Writes the string's length and then its bytes, in as many pieces as the buffer needs
+        private void putString(String value) throws IOException {
+            byte[] bytes = value.getBytes(UTF_8);
+            ensureRoom(4);
+            mBuffer.putInt(bytes.length);
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (!mBuffer.hasRemaining()) {
+                    drain();
+                }
+                int length = Math.min(mBuffer.remaining(), bytes.length - offset);
+                mBuffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        // Makes sure the buffer has space for that many more bytes
+        private void ensureRoom(int bytes) throws IOException {
+            if (mBuffer.remaining() < bytes) {
+                drain();
+            }
+        }
+
+        // Writes out everything in the buffer
+        private void drain() throws IOException {
+            mBuffer.flip();
+            while (mBuffer.hasRemaining()) {
+                mChannel.write(mBuffer);
+            }
+            mBuffer.clear();
+        }
+    }
+
+    /**
+     * Reads an archive from a channel, one note at a time. next() returns null once every note
+     * has been read, and throws if the archive is damaged or cut short
+     * */
+    public static final class Reader implements Closeable {
+        private final ReadableByteChannel mChannel;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long mCount = 0;
+        private boolean mFinished = false;
+
+        public Reader(ReadableByteChannel channel) throws IOException {
+            // Gzip files start with 1f 8b; look at the first bytes, then read them again through
+            // the decompressor if that's what this is
+            ByteBuffer start = ByteBuffer.allocate(2);
+            while (start.hasRemaining()) {
+                if (channel.read(start) == -1) {
+                    break;
+                }
+            }
+            byte[] head = Arrays.copyOf(start.array(), start.position());
+            if (head.length == 2 && (head[0] & 0xff) == 0x1f && (head[1] & 0xff) == 0x8b) {
+                InputStream rest = Channels.newInputStream(channel);
+                channel = Channels.newChannel(new GZIPInputStream(
+                        new SequenceInputStream(new ByteArrayInputStream(head), rest), BUFFER_SIZE));
+                head = new byte[0];
+            }
+            mChannel = channel;
+
+            // Start the buffer with whatever was already read, then check the header
+            mBuffer.put(head);
+            mBuffer.flip();
+            byte[] magic = new byte[MAGIC.length];
+            require(magic.length + 4);
+            mBuffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a note archive");
+            }
+            int version = mBuffer.getInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported archive version " + version);
+            }
+        }
+
+        /** Returns the next note in the archive, or null if there are no more */
+        public Entry next() throws IOException {
+            if (mFinished) {
+                return null;
+            }
+
+            require(1);
+            byte record = mBuffer.get();
+            if (record == RECORD_END) {
+                require(8);
+                long count = mBuffer.getLong();
+                if (count != mCount) {
+                    throw new IOException("Archive says it has " + count + " notes, found " + mCount);
+                }
+                mFinished = true;
+                return null;
+            }
+            if (record != RECORD_NOTE) {
+                throw new IOException("Damaged archive after " + mCount + " notes");
+            }
+
+            String title = getString();
+            String body = getString();
+            require(16);
+            long createdAt = mBuffer.getLong();
+            long modifiedAt = mBuffer.getLong();
+            mCount++;
+            return new Entry(title, body, createdAt, modifiedAt);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+
+        // Reads a length and then that many bytes of UTF-8, in as many pieces as the buffer needs
+        private String getString() throws IOException {
+            require(4);
+            int length = mBuffer.getInt();
+            if (length < 0) {
+                throw new IOException("Damaged archive after " + mCount + " notes");
+            }
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                if (!mBuffer.hasRemaining()) {
+                    require(1);
+                }
+                int piece = Math.min(mBuffer.remaining(), length - offset);
+                mBuffer.get(bytes, offset, piece);
+                offset += piece;
+            }
+            return new String(bytes, UTF_8);
+        }
+
+        // Makes sure there are at least that many bytes in the buffer, reading more if needed
+        private void require(int bytes) throws IOException {
+            if (mBuffer.remaining() >= bytes) {
+                return;
+            }
+            mBuffer.compact();
+            while (mBuffer.position() < bytes) {
+                if (mChannel.read(mBuffer) == -1) {
+                    throw new EOFException("Archive is cut short after " + mCount + " notes");
+                }
+            }
+            mBuffer.flip();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.Bundle;
+
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Exports every note to a NoteArchive file and imports them back, e.g. to move them to a new
+ * phone. Both run on the calling thread and can take a while, so call them from a background one.
+ *
+ * Export reads the notes a page at a time through the provider and writes each page straight to
+ * the file, so only one page is ever in memory. Import hands the file to the provider, which adds
+ * the notes in a single transaction as it reads them.
+ */
+public final class NoteBackup {
+
+    // Where the app keeps its backup, inside the app's external files directory
+    public static final String FILE_NAME = "notes.bullnote";
+
+    // Notes read from the provider per query while exporting
+    private static final int EXPORT_PAGE_SIZE = 200;
+
+    private static final String[] EXPORT_COLUMNS = {
+            NoteEntry._ID,
+            NoteEntry.COLUMN_TITLE,
+            NoteEntry.COLUMN_BODY,
+            NoteEntry.COLUMN_CREATED_AT,
+            NoteEntry.COLUMN_MODIFIED_AT
+    };
+
+    // Does not need a constructor, should never be instantiated
+    private NoteBackup() {}
+
+    /**
+     * Writes every note to the file, gzipped if asked, and returns how many there were. The
+     * archive is written next to the file and only moved into place once it's complete, so a
+     * failed export never replaces a good backup
+     * */
+    public static int exportNotes(ContentResolver resolver, File file, boolean gzip)
+            throws IOException {
+        File partial = new File(file.getPath() + ".partial");
+        NoteArchive.Writer writer =
+                new NoteArchive.Writer(new FileOutputStream(partial).getChannel(), gzip);
+        boolean complete = false;
+        try {
+            // Page through the notes in _ID order, each page starting after the last one written
+            long afterId = NoteEntry.FIRST_PAGE;
+            while (true) {
+                Cursor page = resolver.query(
+                        NoteEntry.buildPageUri(null, null, afterId, EXPORT_PAGE_SIZE),
+                        EXPORT_COLUMNS, null, null, null);
+                if (page == null) {
+                    throw new IOException("Could not read the notes");
+                }
+                int rows;
+                try {
+                    rows = page.getCount();
+                    while (page.moveToNext()) {
+                        writer.write(page.getString(1), page.getString(2),
+                                page.getLong(3), page.getLong(4));
+                        afterId = page.getLong(0);
+                    }
+                } finally {
+                    page.close();
+                }
+                if (rows < EXPORT_PAGE_SIZE) {
+                    break;
+                }
+            }
+            writer.close();
+            complete = true;
+        } finally {
+            if (!complete) {
+                writer.close();
+                partial.delete();
+            }
+        }
+
+        if (!partial.renameTo(file)) {
+            partial.delete();
+            throw new IOException("Could not write " + file);
+        }
+        return (int) writer.count();
+    }
+
+    /**
+     * Adds every note in an archive written by exportNotes to the notes already there, and
+     * returns how many were added. If the file is damaged nothing is added and this throws
+     * */
+    public static int importNotes(ContentResolver resolver, File file) throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("No backup at " + file);
+        }
+        try {
+            Bundle result = resolver.call(NoteEntry.CONTENT_URI,
+                    NoteContract.METHOD_IMPORT_NOTES, file.getAbsolutePath(), null);
+            return result == null ? 0 : result.getInt(NoteContract.RESULT_IMPORTED);
+        } catch (IllegalArgumentException e) {
+            // The provider couldn't read the file
+            throw new IOException("Could not import " + file, e);
+        }
+    }
+}
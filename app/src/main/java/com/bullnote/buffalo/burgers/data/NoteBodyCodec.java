@@ -0,0 +1,114 @@
+package com.bullnote.buffalo.burgers.data;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses long note bodies for storage.
+ *
+ * Bodies shorter than COMPRESSION_THRESHOLD are stored as plain TEXT; compressing them would save
+ * little and cost a decompress on every read. Longer bodies are deflated and stored as a BLOB, with
+ * NoteEntry.COLUMN_BODY_CODEC saying which form a row is in. A body is only kept compressed if
+ * that actually makes it meaningfully smaller, since some text (or pasted base64) barely shrinks.
+ * Bodies longer than NoteChunkEntry.CHUNK_SIZE don't go in the notes row at all; they're split
+ * into chunks, each of which is compressed the same way.
+ */
+public final class NoteBodyCodec {
+
+    // Bodies with fewer characters than this are never compressed
+    public static final int COMPRESSION_THRESHOLD = 4 * 1024;
+
+    // The compressed form is only kept if it's at most this fraction of the UTF-8 size
+    private static final double MAX_COMPRESSED_RATIO = 0.9;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Does not need a constructor, should never be instantiated
+    private NoteBodyCodec() {}
+
+    /** A body ready to be written to the notes table */
+    public static final class EncodedBody {
+        // One of the NoteEntry.BODY_CODEC_ constants
+        public final int codec;
+
+        // What goes in the body column: the text itself for a plain body, the deflated bytes for a
+        // compressed one, and an empty string for a chunked one
+        public final Object value;
+
+        private EncodedBody(int codec, Object value) {
+            this.codec = codec;
+            this.value = value;
+        }
+    }
+
+    /** Works out how to store the body: in chunks, deflated, or as it is */
+    public static EncodedBody encode(String body) {
+        if (body.length() > NoteContract.NoteChunkEntry.CHUNK_SIZE) {
+            return new EncodedBody(NoteContract.NoteEntry.BODY_CODEC_CHUNKED, "");
+        }
+
+        byte[] compressed = compress(body);
+        if (compressed == null) {
+            return new EncodedBody(NoteContract.NoteEntry.BODY_CODEC_PLAIN, body);
+        }
+        return new EncodedBody(NoteContract.NoteEntry.BODY_CODEC_DEFLATE, compressed);
+    }
+
+    /**
+     * Returns the body deflated, or null if it should be stored as plain text because it's short
+     * or doesn't compress well
+     * */
+    public static byte[] compress(String body) {
+        if (body.length() < COMPRESSION_THRESHOLD) {
+            return null;
+        }
+
+        byte[] plain = body.getBytes(UTF_8);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(plain);
+            deflater.finish();
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(plain.length / 2);
+            byte[] buffer = new byte[8 * 1024];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                compressed.write(buffer, 0, length);
+
+                // Give up as soon as it's clear the result won't be small enough
+                if (compressed.size() > plain.length * MAX_COMPRESSED_RATIO) {
+                    return null;
+                }
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /** Returns the body that compress() turned into the given bytes */
+    public static String decompress(byte[] data) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+
+            ByteArrayOutputStream plain = new ByteArrayOutputStream(data.length * 3);
+            byte[] buffer = new byte[8 * 1024];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalArgumentException("Truncated note body");
+                }
+                plain.write(buffer, 0, length);
+            }
+            return new String(plain.toByteArray(), UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt note body", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+
+/**
+ * Wraps a cursor over the notes table so the body column always reads as plain text, inflating
+ * compressed bodies and joining chunked ones only when someone actually asks for one.
+ *
+ * The cursor needs the note's _ID and NoteEntry.COLUMN_BODY_CODEC alongside the body to know how
+ * to read it; projectionFor() adds them to a projection that asks for the body.
+ */
+class NoteBodyCursor extends CursorWrapper {
+
+    // Chunked bodies are read from here when they're asked for
+    private final SQLiteDatabase mDatabase;
+
+    private final int mBodyColumn;
+    private final int mCodecColumn;
+    private final int mIdColumn;
+
+    // The last body decoded, so reading the same one twice doesn't decode it twice
+    private int mDecodedPosition = -1;
+    private String mDecodedBody;
+
+    /** Returns the projection with the columns needed to read the body added, if it has a body */
+    static String[] projectionFor(String[] projection) {
+        // A null projection is every column, which already has them
+        if (projection == null || indexOf(projection, NoteEntry.COLUMN_BODY) == -1) {
+            return projection;
+        }
+
+        boolean needsId = indexOf(projection, NoteEntry._ID) == -1;
+        boolean needsCodec = indexOf(projection, NoteEntry.COLUMN_BODY_CODEC) == -1;
+        if (!needsId && !needsCodec) {
+            return projection;
+        }
+
+        String[] withBodyColumns = new String[projection.length
+                + (needsId ? 1 : 0) + (needsCodec ? 1 : 0)];
+        System.arraycopy(projection, 0, withBodyColumns, 0, projection.length);
+        int next = projection.length;
+        if (needsId) {
+            withBodyColumns[next++] = NoteEntry._ID;
+        }
+        if (needsCodec) {
+            withBodyColumns[next] = NoteEntry.COLUMN_BODY_CODEC;
+        }
+        return withBodyColumns;
+    }
+
+    /**
+     * Returns the cursor wrapped if it has a body column, otherwise the cursor itself. The cursor
+     * must come from a projection passed through projectionFor()
+     * */
+    static Cursor wrap(Cursor cursor, SQLiteDatabase database) {
+        int bodyColumn = cursor.getColumnIndex(NoteEntry.COLUMN_BODY);
+        return bodyColumn == -1 ? cursor : new NoteBodyCursor(cursor, database, bodyColumn);
+    }
+
+    /** Reads a plain or deflated body (or chunk) from the given column of the cursor's current row */
+    static String decode(int codec, Cursor cursor, int column) {
+        if (codec == NoteEntry.BODY_CODEC_DEFLATE) {
+            return NoteBodyCodec.decompress(cursor.getBlob(column));
+        }
+        return cursor.getString(column);
+    }
+
+    private NoteBodyCursor(Cursor cursor, SQLiteDatabase database, int bodyColumn) {
+        super(cursor);
+        mDatabase = database;
+        mBodyColumn = bodyColumn;
+        mCodecColumn = cursor.getColumnIndexOrThrow(NoteEntry.COLUMN_BODY_CODEC);
+        mIdColumn = cursor.getColumnIndexOrThrow(NoteEntry._ID);
+    }
+
+    @Override
+    public String getString(int columnIndex) {
+        if (columnIndex != mBodyColumn) {
+            return super.getString(columnIndex);
+        }
+        int position = getPosition();
+        if (position != mDecodedPosition) {
+            int codec = getInt(mCodecColumn);
+            if (codec == NoteEntry.BODY_CODEC_CHUNKED) {
+                mDecodedBody = NoteChunks.readBody(mDatabase, getLong(mIdColumn));
+            } else {
+                mDecodedBody = decode(codec, getWrappedCursor(), columnIndex);
+            }
+            mDecodedPosition = position;
+        }
+        return mDecodedBody;
+    }
+
+    @Override
+    public int getType(int columnIndex) {
+        // Callers only ever see the body as text
+        if (columnIndex == mBodyColumn) {
+            return FIELD_TYPE_STRING;
+        }
+        return super.getType(columnIndex);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public boolean requery() {
+        mDecodedPosition = -1;
+        mDecodedBody = null;
+        return super.requery();
+    }
+
+    // Returns the position of the column in the projection, or -1 if it isn't there
+    private static int indexOf(String[] projection, String column) {
+        for (int i = 0; i < projection.length; i++) {
+            if (projection[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
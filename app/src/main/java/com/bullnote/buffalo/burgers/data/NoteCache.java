@@ -0,0 +1,180 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+
+/**
+ * A bounded, in-memory LRU cache of recently read notes, used by NoteProvider so that reopening a
+ * note the user just looked at doesn't go back to SQLite.
+ *
+ * The cache is sized by how much text it holds rather than by how many notes, so a few huge notes
+ * can't push its memory use past the limit. A note bigger than MAX_ENTRY_FRACTION of that isn't
+ * cached at all, since making room for it would evict every other note. The provider evicts a note whenever it writes to it,
+ * and a generation counter stops a read that raced with a write from caching the old copy.
+ *
+ * Hit, miss and eviction counts are kept so the size can be tuned.
+ */
+public class NoteCache {
+
+    // How much note text to keep, in bytes
+    public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    // Rough per-note overhead on top of the text itself, in bytes
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+    // The biggest note cached, as a fraction of the cache's size: 1/8 of it
+    private static final int MAX_ENTRY_FRACTION = 8;
+
+    /** The columns the cache holds; a query asking for anything else goes to the database */
+    public static final String[] COLUMNS = {
+            NoteEntry._ID,
+            NoteEntry.COLUMN_TITLE,
+            NoteEntry.COLUMN_BODY,
+            NoteEntry.COLUMN_PREVIEW,
+            NoteEntry.COLUMN_CREATED_AT,
+            NoteEntry.COLUMN_MODIFIED_AT
+    };
+
+    // What to read from the database to fill the cache: COLUMNS plus what NoteBodyCursor needs
+    // to read the body
+    static final String[] QUERY_COLUMNS = NoteBodyCursor.projectionFor(COLUMNS);
+
+    private final LruCache<Long, Entry> mCache;
+
+    // Bumped on every eviction; a read only caches its row if nothing was evicted meanwhile.
+    // Guarded by "this"
+    private long mGeneration = 0;
+
+    public NoteCache(int maxBytes) {
+        mCache = new LruCache<Long, Entry>(maxBytes) {
+            @Override
+            protected int sizeOf(Long id, Entry entry) {
+                return entry.sizeInBytes();
+            }
+        };
+    }
+
+    /** Returns true if every column in the projection is one the cache holds */
+    public boolean canServe(String[] projection) {
+        if (projection == null) {
+            return false;
+        }
+        for (String column : projection) {
+            if (columnIndex(column) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns a cursor over the cached note, or null if it isn't cached */
+    public Cursor get(long id, String[] projection) {
+        Entry entry = mCache.get(id);
+        return entry == null ? null : entry.toCursor(projection);
+    }
+
+    /** Returns the current generation; pass it to put() along with the row read after calling this */
+    public synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches the note in the cursor's current row, which must hold all of COLUMNS with the body
+     * already readable as plain text (see NoteBodyCursor), and returns a
+     * cursor over it with the given projection. The note is only cached if nothing has been
+     * evicted since generation was read, since the row might be older than that eviction, and
+     * if it's no bigger than 1/MAX_ENTRY_FRACTION of the cache
+     * */
+    public Cursor put(long id, Cursor row, long generation, String[] projection) {
+        Entry entry = new Entry(row);
+        if (entry.sizeInBytes() > mCache.maxSize() / MAX_ENTRY_FRACTION) {
+            return entry.toCursor(projection);
+        }
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mCache.put(id, entry);
+            }
+        }
+        return entry.toCursor(projection);
+    }
+
+    /** Evicts one note, e.g. because it was just updated or deleted */
+    public synchronized void remove(long id) {
+        mGeneration++;
+        mCache.remove(id);
+    }
+
+    /** Evicts every note, e.g. after a write that could have touched any of them */
+    public synchronized void clear() {
+        mGeneration++;
+        mCache.evictAll();
+    }
+
+    public int hitCount() {
+        return mCache.hitCount();
+    }
+
+    public int missCount() {
+        return mCache.missCount();
+    }
+
+    public int evictionCount() {
+        return mCache.evictionCount();
+    }
+
+    public int sizeInBytes() {
+        return mCache.size();
+    }
+
+    public int maxSizeInBytes() {
+        return mCache.maxSize();
+    }
+
+    @Override
+    public String toString() {
+        return mCache.toString();
+    }
+
+    // Returns the position of the column in COLUMNS, or -1 if the cache doesn't hold it
+    private static int columnIndex(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** One cached note, with its values in the same order as COLUMNS */
+    private static class Entry {
+        private final Object[] mValues = new Object[COLUMNS.length];
+
+        Entry(Cursor row) {
+            mValues[0] = row.getLong(row.getColumnIndexOrThrow(COLUMNS[0]));
+            mValues[1] = row.getString(row.getColumnIndexOrThrow(COLUMNS[1]));
+            mValues[2] = row.getString(row.getColumnIndexOrThrow(COLUMNS[2]));
+            mValues[3] = row.getString(row.getColumnIndexOrThrow(COLUMNS[3]));
+            mValues[4] = row.getLong(row.getColumnIndexOrThrow(COLUMNS[4]));
+            mValues[5] = row.getLong(row.getColumnIndexOrThrow(COLUMNS[5]));
+        }
+
+        // Strings are two bytes per char; bodies are held inflated, so count them that way
+        int sizeInBytes() {
+            return ENTRY_OVERHEAD_BYTES + 2 * (((String) mValues[1]).length()
+                    + ((String) mValues[2]).length() + ((String) mValues[3]).length());
+        }
+
+        Cursor toCursor(String[] projection) {
+            MatrixCursor cursor = new MatrixCursor(projection, 1);
+            Object[] row = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                row[i] = mValues[columnIndex(projection[i])];
+            }
+            cursor.addRow(row);
+            return cursor;
+        }
+    }
+}
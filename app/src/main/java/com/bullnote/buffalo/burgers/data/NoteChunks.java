@@ -0,0 +1,152 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteChunkEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+
+/**
+ * Reads and writes the chunks of bodies too long to keep in a single notes row.
+ *
+ * A chunked body is split into pieces of at most NoteChunkEntry.CHUNK_SIZE characters, numbered
+ * from 0, and each piece goes through NoteBodyCodec on its own. Readers can then fetch a body a
+ * few chunks at a time, so no cursor window ever has to hold the whole thing.
+ */
+final class NoteChunks {
+
+    // Columns returned by query()
+    static final String[] CHUNK_COLUMNS = {
+            NoteChunkEntry.COLUMN_SEQUENCE,
+            NoteChunkEntry.COLUMN_TEXT
+    };
+
+    private static final String SQL_INSERT_CHUNK = "INSERT INTO " + NoteChunkEntry.TABLE_NAME + " ("
+            + NoteChunkEntry.COLUMN_NOTE_ID + ", " + NoteChunkEntry.COLUMN_SEQUENCE + ", "
+            + NoteChunkEntry.COLUMN_CODEC + ", " + NoteChunkEntry.COLUMN_DATA + ") VALUES (?, ?, ?, ?)";
+
+    private static final String SQL_DELETE_CHUNKS = "DELETE FROM " + NoteChunkEntry.TABLE_NAME
+            + " WHERE " + NoteChunkEntry.COLUMN_NOTE_ID + " = ?";
+
+    private static final String[] STORED_COLUMNS = {
+            NoteChunkEntry.COLUMN_SEQUENCE,
+            NoteChunkEntry.COLUMN_CODEC,
+            NoteChunkEntry.COLUMN_DATA
+    };
+
+    // Does not need a constructor, should never be instantiated
+    private NoteChunks() {}
+
+    /**
+     * Replaces the note's chunks with the given body split up, or just deletes them if body is
+     * null (because the note's body now fits in its row). Call this inside the transaction that
+     * writes the note itself
+     * */
+    static void replace(SQLiteDatabase db, long noteId, String body) {
+        SQLiteStatement delete = db.compileStatement(SQL_DELETE_CHUNKS);
+        try {
+            delete.bindLong(1, noteId);
+            delete.executeUpdateDelete();
+        } finally {
+            delete.close();
+        }
+
+        if (body == null) {
+            return;
+        }
+
+        SQLiteStatement insert = db.compileStatement(SQL_INSERT_CHUNK);
+        try {
+            int start = 0;
+            for (int sequence = 0; start < body.length(); sequence++) {
+                int end = Math.min(start + NoteChunkEntry.CHUNK_SIZE, body.length());
+
+                // Never cut a surrogate pair in half
+                if (end < body.length() && Character.isHighSurrogate(body.charAt(end - 1))) {
+                    end--;
+                }
+
+                String text = body.substring(start, end);
+                byte[] compressed = NoteBodyCodec.compress(text);
+                insert.bindLong(1, noteId);
+                insert.bindLong(2, sequence);
+                if (compressed == null) {
+                    insert.bindLong(3, NoteEntry.BODY_CODEC_PLAIN);
+                    insert.bindString(4, text);
+                } else {
+                    insert.bindLong(3, NoteEntry.BODY_CODEC_DEFLATE);
+                    insert.bindBlob(4, compressed);
+                }
+                insert.executeInsert();
+
+                start = end;
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
+    /** Returns the note's whole chunked body, joined back together */
+    static String readBody(SQLiteDatabase db, long noteId) {
+        Cursor chunks = queryStored(db, noteId, 0, -1);
+        try {
+            StringBuilder body = new StringBuilder(chunks.getCount() * NoteChunkEntry.CHUNK_SIZE);
+            while (chunks.moveToNext()) {
+                body.append(NoteBodyCursor.decode(chunks.getInt(1), chunks, 2));
+            }
+            return body.toString();
+        } finally {
+            chunks.close();
+        }
+    }
+
+    /**
+     * Returns a cursor over at most limit chunks of the note's body as plain text, starting at
+     * chunk number from, with the columns in CHUNK_COLUMNS. A body that isn't chunked is one
+     * chunk; a note that doesn't exist has none
+     * */
+    static Cursor query(SQLiteDatabase db, long noteId, int from, int limit) {
+        MatrixCursor result = new MatrixCursor(CHUNK_COLUMNS);
+
+        Cursor note = db.query(NoteEntry.TABLE_NAME,
+                new String[] { NoteEntry.COLUMN_BODY_CODEC, NoteEntry.COLUMN_BODY },
+                NoteEntry._ID + " = ?", new String[] { String.valueOf(noteId) },
+                null, null, null);
+        try {
+            if (!note.moveToFirst()) {
+                return result;
+            }
+            int codec = note.getInt(0);
+            if (codec != NoteEntry.BODY_CODEC_CHUNKED) {
+                if (from == 0 && limit != 0) {
+                    result.addRow(new Object[] { 0, NoteBodyCursor.decode(codec, note, 1) });
+                }
+                return result;
+            }
+        } finally {
+            note.close();
+        }
+
+        Cursor chunks = queryStored(db, noteId, from, limit);
+        try {
+            while (chunks.moveToNext()) {
+                result.addRow(new Object[] {
+                        chunks.getInt(0), NoteBodyCursor.decode(chunks.getInt(1), chunks, 2) });
+            }
+        } finally {
+            chunks.close();
+        }
+        return result;
+    }
+
+    // Returns the stored chunks of a note in order, starting at from; a negative limit means all
+    private static Cursor queryStored(SQLiteDatabase db, long noteId, int from, int limit) {
+        return db.query(NoteChunkEntry.TABLE_NAME, STORED_COLUMNS,
+                NoteChunkEntry.COLUMN_NOTE_ID + " = ? AND " + NoteChunkEntry.COLUMN_SEQUENCE + " >= ?",
+                new String[] { String.valueOf(noteId), String.valueOf(from) },
+                null, null, NoteChunkEntry.COLUMN_SEQUENCE + " ASC",
+                limit < 0 ? null : String.valueOf(limit));
+    }
+}
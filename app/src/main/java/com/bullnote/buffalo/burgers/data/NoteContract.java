@@ -1,11 +1,12 @@
 package com.bullnote.buffalo.burgers.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
 /**
- * Contract class for notes. There is only one table; it contains the notes.
+ * Contract class for notes. The notes table holds the notes; the other tables hang off it.
  */
 public class NoteContract {
 
@@ -16,6 +17,85 @@ public class NoteContract {
     public static final String CONTENT_AUTHORITY = "com.example.android.notepad";
     public static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
     public static final String PATH_NOTES = "notes";
+    public static final String PATH_SEARCH = "search";
+    public static final String PATH_CHANGES = "changes";
+    public static final String PATH_CHUNKS = "chunks";
+    public static final String PATH_REVISIONS = "revisions";
+    public static final String PATH_TAGS = "tags";
+    public static final String PATH_TRASH = "trash";
+
+    // Query parameter the sync engine adds (set to "true") to every URI it writes through. Notes it
+    // writes are still logged as changed, but flagged NoteChangeEntry.COLUMN_FROM_SYNC, so what
+    // came down from the server isn't sent straight back up
+    public static final String QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER = "caller_is_syncadapter";
+
+    // ContentResolver.call() method that returns the provider's note cache counters in a Bundle
+    // under the STAT_ keys below, so the cache size can be tuned
+    public static final String METHOD_GET_CACHE_STATS = "get_cache_stats";
+    public static final String STAT_CACHE_HITS = "hits";
+    public static final String STAT_CACHE_MISSES = "misses";
+    public static final String STAT_CACHE_EVICTIONS = "evictions";
+    public static final String STAT_CACHE_SIZE_BYTES = "size_bytes";
+    public static final String STAT_CACHE_MAX_SIZE_BYTES = "max_size_bytes";
+
+    // ContentResolver.call() method that returns the provider's timing stats (see
+    // NoteProviderStats) in a Bundle: a readable report under STAT_REPORT, each operation's latency
+    // histogram under its name in NoteProviderStats.OPERATION_NAMES, and the counters under the
+    // keys below. Pass ARG_RESET_STATS as the arg to start counting again afterwards. The same
+    // report is printed by "adb shell dumpsys activity provider"
+    public static final String METHOD_GET_QUERY_STATS = "get_query_stats";
+    public static final String ARG_RESET_STATS = "reset";
+    public static final String STAT_REPORT = "report";
+    public static final String STAT_WINDOW_FILLS = "window_fills";
+    public static final String STAT_NOTIFICATIONS = "notifications";
+    public static final String STAT_NOTIFICATIONS_HELD = "notifications_held";
+    public static final String STAT_SLOW_OPERATIONS = "slow_operations";
+
+    // ContentResolver.call() method that sets how slow (in milliseconds, passed as the arg) an
+    // operation has to be before the provider logs it, with the query plan for a query
+    public static final String METHOD_SET_SLOW_QUERY_THRESHOLD = "set_slow_query_threshold";
+
+    // ContentResolver.call() method that puts a note back the way it was at an earlier revision.
+    // Pass the revision's URI (from NoteRevisionEntry.buildRevisionUri) as the arg; the returned
+    // Bundle says under RESULT_RESTORED whether it worked. The restore is itself a new revision,
+    // so it can be undone the same way
+    public static final String METHOD_RESTORE_REVISION = "restore_revision";
+    public static final String RESULT_RESTORED = "restored";
+
+    // ContentResolver.call() method that adds every note in a NoteArchive file to the notes that
+    // are already there, all in one transaction. Pass the file's path as the arg; the returned
+    // Bundle has the number of notes added under RESULT_IMPORTED. NoteBackup wraps this
+    public static final String METHOD_IMPORT_NOTES = "import_notes";
+    public static final String RESULT_IMPORTED = "imported";
+
+    // ContentResolver.call() method that takes a note out of the trash. Pass the note's trash URI
+    // (from NoteTrashEntry.buildTrashUri) as the arg; the returned Bundle says under
+    // RESULT_RESTORED whether it worked
+    public static final String METHOD_RESTORE_NOTE = "restore_note";
+
+    // ContentResolver.call() method that deletes the notes that have been in the trash longer than
+    // NoteTrashEntry.RETENTION_MS, a small batch at a time, and gives the space back. The returned
+    // Bundle has the number of notes deleted under RESULT_PURGED
+    public static final String METHOD_PURGE_TRASH = "purge_trash";
+    public static final String RESULT_PURGED = "purged";
+
+    // ContentResolver.call() method that runs the database housekeeping in NoteMaintenance (trash
+    // purge, incremental vacuum, full-text index merges, statistics and an integrity check) for
+    // about a second and a half. Call it while the app is in the background. It only runs once a
+    // day unless ARG_FORCE_MAINTENANCE is the arg; the returned Bundle says under
+    // RESULT_MAINTENANCE_RAN whether it did. If it ran, the Bundle also has the database's size
+    // and the list's first page time before and after, under the STAT_ keys below, the notes
+    // purged under RESULT_PURGED and a readable report under STAT_REPORT
+    public static final String METHOD_RUN_MAINTENANCE = "run_maintenance";
+    public static final String ARG_FORCE_MAINTENANCE = "force";
+    public static final String RESULT_MAINTENANCE_RAN = "maintenance_ran";
+    public static final String STAT_DB_SIZE_BEFORE = "db_size_before";
+    public static final String STAT_DB_SIZE_AFTER = "db_size_after";
+    public static final String STAT_FREE_PAGES_BEFORE = "free_pages_before";
+    public static final String STAT_FREE_PAGES_AFTER = "free_pages_after";
+    public static final String STAT_LIST_MICROS_BEFORE = "list_micros_before";
+    public static final String STAT_LIST_MICROS_AFTER = "list_micros_after";
+    public static final String STAT_INTEGRITY = "integrity";
 
     /**
      * Inner class that defines constant values for the notes database table.
@@ -40,6 +120,353 @@ public class NoteContract {
         public static final String TABLE_NAME = "notes";
         public static final String COLUMN_TITLE = "title";
         public static final String COLUMN_BODY = "body";
+
+        // The first few characters of the body, kept up to date by the provider whenever the body
+        // is written, so the list never has to read whole bodies just to show a line of each note
+        public static final String COLUMN_PREVIEW = "preview";
+        public static final int MAX_PREVIEW_LENGTH = 100;
+
+        // The content URI for full-text search; pass the search text as the "q" query parameter
+        public static final Uri SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        // Extra column returned by SEARCH_URI with the matching piece of text from the note
+        public static final String COLUMN_SNIPPET = "snippet";
+
+        // When the note was created and last changed, in milliseconds since the epoch. The
+        // provider fills these in unless the caller supplies them (e.g. when restoring a backup)
+        public static final String COLUMN_CREATED_AT = "created_at";
+        public static final String COLUMN_MODIFIED_AT = "modified_at";
+
+        // A random UUID that names the note on every device and on the sync server, unlike the _ID,
+        // which is only meaningful on this device. The provider makes one up for each new note
+        // unless the caller brings its own (as the sync engine does), and it never changes
+        public static final String COLUMN_UUID = "uuid";
+
+        // How the body is stored. Long bodies are deflated into a BLOB by the provider, and bodies
+        // too long for one row are split up into NoteChunkEntry rows. Cursors from the provider
+        // always hand back the plain text, so only the provider reads this
+        public static final String COLUMN_BODY_CODEC = "body_codec";
+        public static final int BODY_CODEC_PLAIN = 0;
+        public static final int BODY_CODEC_DEFLATE = 1;
+        public static final int BODY_CODEC_CHUNKED = 2;
+
+        // Query parameter choosing one of the sort orders below; each one is backed by an index
+        public static final String QUERY_PARAMETER_SORT = "sort";
+
+        // Most recently modified first
+        public static final String SORT_MODIFIED = "modified";
+
+        // By title, A to Z, ignoring case
+        public static final String SORT_TITLE = "title";
+
+        // Query parameters for reading CONTENT_URI one page at a time. A paged query returns at
+        // most "limit" notes, starting after the note whose _ID is "after_id" and whose sort key
+        // (its modified_at or title, depending on the sort) is "after_key". Without a sort the
+        // pages are in _ID order and only "after_id" is needed. Each page is an index seek
+        // instead of an OFFSET scan over every earlier row
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+        public static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+        public static final String QUERY_PARAMETER_AFTER_KEY = "after_key";
+
+        // Used as afterId to start from the first page
+        public static final long FIRST_PAGE = -1;
+
+        // When the note was moved to the trash, in milliseconds since the epoch, or null if it
+        // isn't in the trash. CONTENT_URI and search leave trashed notes out; see NoteTrashEntry
+        public static final String COLUMN_DELETED_AT = "deleted_at";
+
+        // Query parameter that, set to "true", makes CONTENT_URI return trashed notes as well. The
+        // sync engine needs this to find a note it's been sent a change for wherever it is
+        public static final String QUERY_PARAMETER_INCLUDE_TRASHED = "include_trashed";
+
+        // Query parameter holding the _ID of a tag, once per tag. CONTENT_URI (paged or not) then
+        // only returns the notes that have every one of the tags
+        public static final String QUERY_PARAMETER_TAG = "tag";
+
+        /**
+         * Builds the URI for the page of at most limit notes in the given sort order that comes
+         * after the note afterId, whose sort key is afterKey. sort may be null for _ID order
+         * */
+        public static Uri buildPageUri(String sort, String afterKey, long afterId, int limit) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit));
+            if (sort != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_SORT, sort);
+            }
+            if (afterId != FIRST_PAGE) {
+                builder.appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId));
+                if (afterKey != null) {
+                    builder.appendQueryParameter(QUERY_PARAMETER_AFTER_KEY, afterKey);
+                }
+            }
+            return builder.build();
+        }
+
+        /** Adds the tag filter to a CONTENT_URI query: only notes with all of the tags come back */
+        public static Uri withTags(Uri uri, long[] tagIds) {
+            if (tagIds == null || tagIds.length == 0) {
+                return uri;
+            }
+            Uri.Builder builder = uri.buildUpon();
+            for (long tagId : tagIds) {
+                builder.appendQueryParameter(QUERY_PARAMETER_TAG, String.valueOf(tagId));
+            }
+            return builder.build();
+        }
     }
-}
 
+    /**
+     * Constants for the FTS4 table that mirrors the title and body of every note. Its docid is
+     * always the _ID of the note it belongs to, and it's kept up to date by triggers on the notes
+     * table, so nothing outside the database helper ever writes to it.
+     */
+    public static class NoteSearchEntry {
+
+        public static final String TABLE_NAME = "notes_fts";
+        public static final String COLUMN_DOCID = "docid";
+        public static final String COLUMN_TITLE = NoteEntry.COLUMN_TITLE;
+        public static final String COLUMN_BODY = NoteEntry.COLUMN_BODY;
+    }
+
+    /**
+     * Constants for the change log. Triggers on the notes table record every insert, update and
+     * delete here under a new, ever increasing version number. Each note only keeps its latest
+     * change, so the log never grows past one row per note (deleted notes keep a row flagged
+     * COLUMN_DELETED, which is the tombstone the sync engine sends to the server). Anyone holding
+     * a copy of the notes can ask for the changes since the last version they saw and patch their
+     * copy instead of reading everything again. The "limit" query parameter caps how many come back.
+     */
+    public static class NoteChangeEntry implements BaseColumns {
+
+        // The content URI for the change log; pass the last version you saw as "since"
+        public static final Uri CONTENT_URI =
+                Uri.withAppendedPath(NoteEntry.CONTENT_URI, PATH_CHANGES);
+        public static final String QUERY_PARAMETER_SINCE = "since";
+
+        public static final String TABLE_NAME = "note_changes";
+        public static final String COLUMN_VERSION = "version";
+        public static final String COLUMN_NOTE_ID = "note_id";
+        public static final String COLUMN_DELETED = "deleted";
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        // The note's UUID, kept after the note itself is deleted
+        public static final String COLUMN_UUID = NoteEntry.COLUMN_UUID;
+
+        // When the change happened: the note's modified time, or the time it was deleted
+        public static final String COLUMN_CHANGED_AT = "changed_at";
+
+        // 1 if the change was written by the sync engine rather than made on this device
+        public static final String COLUMN_FROM_SYNC = "from_sync";
+
+        // Projection that returns a single row holding the newest version in the log
+        public static final String[] PROJECTION_LATEST_VERSION =
+                { "max(" + COLUMN_VERSION + ") AS " + COLUMN_VERSION };
+    }
+
+    /**
+     * Constants for the chunks of very long bodies. A body longer than CHUNK_SIZE characters is
+     * split into pieces of at most that size, stored in order under its note's id, so no single
+     * row (or cursor) ever has to hold all of it. Each chunk may be deflated on its own.
+     *
+     * The chunks of any note, chunked or not, can be read a few at a time from buildChunksUri;
+     * each row holds COLUMN_SEQUENCE and the plain COLUMN_TEXT. A body that isn't chunked comes
+     * back as a single chunk.
+     */
+    public static class NoteChunkEntry {
+
+        // The most characters in one chunk
+        public static final int CHUNK_SIZE = 32 * 1024;
+
+        // The MIME type of a list of chunks
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_NOTES + "/" + PATH_CHUNKS;
+
+        // Query parameters for reading at most "limit" chunks starting at sequence number "from"
+        public static final String QUERY_PARAMETER_FROM = "from";
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        public static final String TABLE_NAME = "note_chunks";
+        public static final String COLUMN_NOTE_ID = "note_id";
+        public static final String COLUMN_SEQUENCE = "seq";
+        public static final String COLUMN_CODEC = "codec";
+        public static final String COLUMN_DATA = "data";
+
+        // Returned by the chunks URI instead of COLUMN_CODEC and COLUMN_DATA
+        public static final String COLUMN_TEXT = "text";
+
+        /** Builds the URI for at most limit chunks of a note, starting at chunk number from */
+        public static Uri buildChunksUri(long noteId, int from, int limit) {
+            return NoteEntry.CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(noteId))
+                    .appendPath(PATH_CHUNKS)
+                    .appendQueryParameter(QUERY_PARAMETER_FROM, String.valueOf(from))
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+    }
+
+    /**
+     * Constants for the revision history of each note. Every save that changes a note's title or
+     * body adds a revision (or, if the last one was made less than MERGE_WINDOW_MS ago, folds the
+     * change into it, so a burst of autosaves is one revision). A note gets its history when it's
+     * first edited, starting with the version from before that edit.
+     *
+     * Most revisions only store the difference from the one before (see NoteRevisionDelta), with a
+     * full snapshot every so often so rebuilding any version only has to apply a few of them.
+     * Only the newest MAX_REVISIONS or so are kept.
+     *
+     * buildRevisionsUri lists a note's revisions, newest first, with COLUMN_REVISION, COLUMN_TITLE,
+     * COLUMN_BODY_LENGTH and the timestamps. buildRevisionUri returns one revision with its whole
+     * COLUMN_BODY.
+     */
+    public static class NoteRevisionEntry {
+
+        // How many revisions each note keeps, give or take a snapshot interval
+        public static final int MAX_REVISIONS = 50;
+
+        // Saves closer together than this go into the same revision
+        public static final long MERGE_WINDOW_MS = 60 * 1000;
+
+        // The MIME types of a list of revisions and a single revision
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_NOTES + "/" + PATH_REVISIONS;
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_NOTES + "/" + PATH_REVISIONS;
+
+        public static final String TABLE_NAME = "note_revisions";
+        public static final String COLUMN_NOTE_ID = "note_id";
+
+        // Numbered from 1 for each note
+        public static final String COLUMN_REVISION = "revision";
+        public static final String COLUMN_TITLE = NoteEntry.COLUMN_TITLE;
+        public static final String COLUMN_BODY_LENGTH = "body_length";
+
+        // When the revision was first and last saved
+        public static final String COLUMN_CREATED_AT = NoteEntry.COLUMN_CREATED_AT;
+        public static final String COLUMN_MODIFIED_AT = NoteEntry.COLUMN_MODIFIED_AT;
+
+        // Only returned by buildRevisionUri
+        public static final String COLUMN_BODY = NoteEntry.COLUMN_BODY;
+
+        // How the revision is stored, which only the provider reads. Depth is the number of
+        // revisions since the last snapshot (0 for a snapshot, whose data is the whole body);
+        // otherwise the data is the text of a NoteRevisionDelta. Either may be deflated
+        public static final String COLUMN_DEPTH = "depth";
+        public static final String COLUMN_PREFIX_LENGTH = "prefix_length";
+        public static final String COLUMN_SUFFIX_LENGTH = "suffix_length";
+        public static final String COLUMN_CODEC = "codec";
+        public static final String COLUMN_DATA = "data";
+
+        /** Builds the URI for the list of a note's revisions */
+        public static Uri buildRevisionsUri(long noteId) {
+            return NoteEntry.CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(noteId))
+                    .appendPath(PATH_REVISIONS)
+                    .build();
+        }
+
+        /** Builds the URI for one revision of a note */
+        public static Uri buildRevisionUri(long noteId, int revision) {
+            return buildRevisionsUri(noteId).buildUpon()
+                    .appendPath(String.valueOf(revision))
+                    .build();
+        }
+    }
+
+    /**
+     * Constants for tags. A tag is a name (unique, ignoring case) that any number of notes can
+     * have, and a note can have any number of tags; NoteTagMapEntry links the two.
+     *
+     * CONTENT_URI lists every tag, A to Z, with COLUMN_NOTE_COUNT saying how many notes have it.
+     * Inserting a name there returns the tag's URI, and gives back the existing tag if there's
+     * already one by that name. A tag's own URI can be updated to rename it or deleted, which
+     * takes it off every note.
+     *
+     * buildNoteTagsUri lists the tags of one note, with the same columns. Insert a tag's _ID or
+     * COLUMN_NAME there to tag the note (a new name makes a new tag), and delete buildNoteTagUri
+     * to untag it. To list the notes with some tags, see NoteEntry.withTags.
+     */
+    public static class NoteTagEntry implements BaseColumns {
+
+        // The content URI for the list of tags
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(NoteEntry.CONTENT_URI, PATH_TAGS);
+
+        // The MIME types of a list of tags and a single tag
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_NOTES + "/" + PATH_TAGS;
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_NOTES + "/" + PATH_TAGS;
+
+        public static final String TABLE_NAME = "tags";
+        public static final String COLUMN_NAME = "name";
+
+        // How many notes have the tag. Triggers keep it up to date, so reading it is free
+        public static final String COLUMN_NOTE_COUNT = "note_count";
+
+        // The longest name a tag can have
+        public static final int MAX_NAME_LENGTH = 50;
+
+        /** Builds the URI for the list of a note's tags */
+        public static Uri buildNoteTagsUri(long noteId) {
+            return NoteEntry.CONTENT_URI.buildUpon()
+                    .appendPath(String.valueOf(noteId))
+                    .appendPath(PATH_TAGS)
+                    .build();
+        }
+
+        /** Builds the URI for one tag of a note */
+        public static Uri buildNoteTagUri(long noteId, long tagId) {
+            return buildNoteTagsUri(noteId).buildUpon()
+                    .appendPath(String.valueOf(tagId))
+                    .build();
+        }
+    }
+
+    /**
+     * Constants for the trash. Deleting a note through NoteEntry.CONTENT_URI only stamps its
+     * NoteEntry.COLUMN_DELETED_AT, which hides it from the list and from search; the note, its
+     * body, history and tags all stay where they are until the trash is purged.
+     *
+     * CONTENT_URI lists the trashed notes, most recently deleted first, with the columns below.
+     * Restore one with METHOD_RESTORE_NOTE, delete buildTrashUri to delete it for good, or delete
+     * CONTENT_URI to empty the whole trash. Notes left in the trash for RETENTION_MS are deleted
+     * by METHOD_PURGE_TRASH.
+     */
+    public static class NoteTrashEntry {
+
+        // The content URI for the trashed notes
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(NoteEntry.CONTENT_URI, PATH_TRASH);
+
+        // The MIME types of the list of trashed notes and a single one
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_NOTES + "/" + PATH_TRASH;
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_NOTES + "/" + PATH_TRASH;
+
+        // Columns of a trashed note
+        public static final String _ID = NoteEntry._ID;
+        public static final String COLUMN_TITLE = NoteEntry.COLUMN_TITLE;
+        public static final String COLUMN_PREVIEW = NoteEntry.COLUMN_PREVIEW;
+        public static final String COLUMN_DELETED_AT = NoteEntry.COLUMN_DELETED_AT;
+
+        // How long a note stays in the trash before it's deleted for good: 30 days
+        public static final long RETENTION_MS = 30L * 24 * 60 * 60 * 1000;
+
+        /** Builds the URI for one note in the trash */
+        public static Uri buildTrashUri(long noteId) {
+            return ContentUris.withAppendedId(CONTENT_URI, noteId);
+        }
+    }
+
+    /**
+     * Constants for the table that links notes to their tags, one row per tag on a note. Only the
+     * provider reads and writes it; everyone else goes through the NoteTagEntry URIs.
+     */
+    public static class NoteTagMapEntry {
+
+        public static final String TABLE_NAME = "note_tags";
+        public static final String COLUMN_NOTE_ID = "note_id";
+        public static final String COLUMN_TAG_ID = "tag_id";
+    }
+}
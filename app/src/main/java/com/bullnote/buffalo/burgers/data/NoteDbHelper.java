@@ -1,8 +1,20 @@
 package com.bullnote.buffalo.burgers.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteChangeEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteChunkEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteRevisionEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteSearchEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTagEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTagMapEntry;
 
 /**
  * Database helper class.
@@ -10,20 +22,375 @@ import android.database.sqlite.SQLiteOpenHelper;
 
 public class NoteDbHelper extends SQLiteOpenHelper {
 
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 12;
     public static final String DATABASE_NAME = "Notes.db";
 
     // Creates the database
     public static final String SQL_CREATE_ENTRIES = "CREATE TABLE " + NoteContract.NoteEntry.TABLE_NAME + "("
             + NoteContract.NoteEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
             + NoteContract.NoteEntry.COLUMN_TITLE + " TEXT NOT NULL, "
-            + NoteContract.NoteEntry.COLUMN_BODY + " TEXT NOT NULL);";
+            + NoteContract.NoteEntry.COLUMN_BODY + " TEXT NOT NULL, "
+            + NoteContract.NoteEntry.COLUMN_PREVIEW + " TEXT NOT NULL DEFAULT '', "
+            + NoteContract.NoteEntry.COLUMN_CREATED_AT + " INTEGER NOT NULL DEFAULT 0, "
+            + NoteContract.NoteEntry.COLUMN_MODIFIED_AT + " INTEGER NOT NULL DEFAULT 0, "
+            + NoteContract.NoteEntry.COLUMN_BODY_CODEC + " INTEGER NOT NULL DEFAULT "
+            + NoteContract.NoteEntry.BODY_CODEC_PLAIN + ", "
+            + NoteContract.NoteEntry.COLUMN_UUID + " TEXT, "
+            + NoteContract.NoteEntry.COLUMN_DELETED_AT + " INTEGER);";
+
+    // Every note's UUID is different, and the sync engine looks notes up by it
+    public static final String SQL_CREATE_UUID_INDEX = "CREATE UNIQUE INDEX "
+            + NoteEntry.TABLE_NAME + "_uuid_idx ON " + NoteEntry.TABLE_NAME + "("
+            + NoteEntry.COLUMN_UUID + ");";
+
+    // The notes that aren't in the trash, which is all the list and search ever show
+    public static final String SQL_WHERE_LIVE = NoteEntry.COLUMN_DELETED_AT + " IS NULL";
+
+    // Partial indexes (CREATE INDEX ... WHERE) need SQLite 3.8.0, which Android has from Lollipop
+    static final boolean PARTIAL_INDEXES = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+
+    // FTS4's prefix indexes need SQLite 3.7.7, which Android has from Jelly Bean
+    static final boolean PREFIX_INDEXES = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+
+    // Indexes for the list's sort orders. Each one also holds every column the list shows (the
+    // _ID is always in an index), so a sorted page is read straight out of the index without a
+    // temp B-tree sort or a lookup into the table. Where SQLite can, they only cover the notes
+    // that aren't in the trash; the trash column is in there anyway, as the query planner only
+    // treats an index as holding a column it's filtered on if the column is actually in it
+    public static final String SQL_CREATE_MODIFIED_INDEX = "CREATE INDEX "
+            + NoteEntry.TABLE_NAME + "_modified_idx ON " + NoteEntry.TABLE_NAME + "("
+            + NoteEntry.COLUMN_MODIFIED_AT + ", "
+            + NoteEntry._ID + ", "
+            + NoteEntry.COLUMN_TITLE + ", "
+            + NoteEntry.COLUMN_PREVIEW + ", "
+            + NoteEntry.COLUMN_DELETED_AT + ")";
+
+    public static final String SQL_CREATE_TITLE_INDEX = "CREATE INDEX "
+            + NoteEntry.TABLE_NAME + "_title_idx ON " + NoteEntry.TABLE_NAME + "("
+            + NoteEntry.COLUMN_TITLE + " COLLATE NOCASE, "
+            + NoteEntry._ID + ", "
+            + NoteEntry.COLUMN_PREVIEW + ", "
+            + NoteEntry.COLUMN_MODIFIED_AT + ", "
+            + NoteEntry.COLUMN_DELETED_AT + ")";
+
+    // Index of the trash, oldest first, so listing it and purging the oldest notes never touch
+    // the notes that aren't in it. Where SQLite can, it holds nothing else
+    public static final String SQL_CREATE_TRASH_INDEX = "CREATE INDEX "
+            + NoteEntry.TABLE_NAME + "_trash_idx ON " + NoteEntry.TABLE_NAME + "("
+            + NoteEntry.COLUMN_DELETED_AT + ")";
+
+    // Creates the full-text search table. The docid of each row is the _ID of its note.
+    // createSearchTable adds the prefix indexes and closes the bracket
+    public static final String SQL_CREATE_SEARCH_TABLE = "CREATE VIRTUAL TABLE "
+            + NoteSearchEntry.TABLE_NAME + " USING fts4("
+            + NoteSearchEntry.COLUMN_TITLE + ", "
+            + NoteSearchEntry.COLUMN_BODY;
+
+    // Also index the first one and two letters of every word. The search runs on every
+    // keystroke, and without these the first letters typed ("b*", "bu*") have to merge the hits
+    // of every word that starts with them, which is most of the notes
+    public static final String SQL_SEARCH_PREFIXES = "prefix='1,2'";
+
+    // The body the search table gets from a new row. SQLite can't inflate a compressed body or
+    // see a chunked one, so those go in empty and the provider writes the plain text into the
+    // search table itself with SQL_INDEX_BODY
+    private static final String SQL_SEARCHABLE_NEW_BODY = "CASE WHEN new."
+            + NoteEntry.COLUMN_BODY_CODEC + " = " + NoteEntry.BODY_CODEC_PLAIN
+            + " THEN new." + NoteEntry.COLUMN_BODY + " ELSE '' END";
+
+    // Same for an updated row, except a compressed body that didn't change (e.g. only the title
+    // was edited) keeps the plain text the search table already has
+    private static final String SQL_SEARCHABLE_UPDATED_BODY = "CASE WHEN new."
+            + NoteEntry.COLUMN_BODY_CODEC + " = " + NoteEntry.BODY_CODEC_PLAIN
+            + " THEN new." + NoteEntry.COLUMN_BODY
+            + " WHEN new." + NoteEntry.COLUMN_BODY + " IS old." + NoteEntry.COLUMN_BODY
+            + " THEN " + NoteSearchEntry.COLUMN_BODY + " ELSE '' END";
+
+    // Triggers that keep the search table in step with every insert, update and delete on notes
+    public static final String SQL_CREATE_SEARCH_INSERT_TRIGGER = "CREATE TRIGGER "
+            + NoteSearchEntry.TABLE_NAME + "_insert AFTER INSERT ON " + NoteEntry.TABLE_NAME
+            + " BEGIN INSERT INTO " + NoteSearchEntry.TABLE_NAME + "("
+            + NoteSearchEntry.COLUMN_DOCID + ", "
+            + NoteSearchEntry.COLUMN_TITLE + ", "
+            + NoteSearchEntry.COLUMN_BODY + ") VALUES (new." + NoteEntry._ID + ", new."
+            + NoteEntry.COLUMN_TITLE + ", " + SQL_SEARCHABLE_NEW_BODY + "); END;";
+
+    public static final String SQL_CREATE_SEARCH_UPDATE_TRIGGER = "CREATE TRIGGER "
+            + NoteSearchEntry.TABLE_NAME + "_update AFTER UPDATE OF "
+            + NoteEntry.COLUMN_TITLE + ", " + NoteEntry.COLUMN_BODY + " ON " + NoteEntry.TABLE_NAME
+            + " BEGIN UPDATE " + NoteSearchEntry.TABLE_NAME + " SET "
+            + NoteSearchEntry.COLUMN_TITLE + " = new." + NoteEntry.COLUMN_TITLE + ", "
+            + NoteSearchEntry.COLUMN_BODY + " = " + SQL_SEARCHABLE_UPDATED_BODY
+            + " WHERE " + NoteSearchEntry.COLUMN_DOCID + " = new." + NoteEntry._ID + "; END;";
+
+    // Puts the plain text of a body that isn't stored as plain text into the search table
+    public static final String SQL_INDEX_BODY = "UPDATE " + NoteSearchEntry.TABLE_NAME
+            + " SET " + NoteSearchEntry.COLUMN_BODY + " = ? WHERE "
+            + NoteSearchEntry.COLUMN_DOCID + " = ?";
+
+    public static final String SQL_CREATE_SEARCH_DELETE_TRIGGER = "CREATE TRIGGER "
+            + NoteSearchEntry.TABLE_NAME + "_delete AFTER DELETE ON " + NoteEntry.TABLE_NAME
+            + " BEGIN DELETE FROM " + NoteSearchEntry.TABLE_NAME
+            + " WHERE " + NoteSearchEntry.COLUMN_DOCID + " = old." + NoteEntry._ID + "; END;";
+
+    // Creates the change log; note_id is unique because each note only keeps its latest change
+    public static final String SQL_CREATE_CHANGE_LOG = "CREATE TABLE " + NoteChangeEntry.TABLE_NAME + "("
+            + NoteChangeEntry.COLUMN_VERSION + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + NoteChangeEntry.COLUMN_NOTE_ID + " INTEGER NOT NULL UNIQUE, "
+            + NoteChangeEntry.COLUMN_DELETED + " INTEGER NOT NULL DEFAULT 0, "
+            + NoteChangeEntry.COLUMN_UUID + " TEXT, "
+            + NoteChangeEntry.COLUMN_CHANGED_AT + " INTEGER NOT NULL DEFAULT 0, "
+            + NoteChangeEntry.COLUMN_FROM_SYNC + " INTEGER NOT NULL DEFAULT 0);";
+
+    // The current time in milliseconds, for the deleted time of a note
+    private static final String SQL_NOW_MILLIS =
+            "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)";
+
+    // What the change log records about a changed note: a note in the trash is logged as deleted,
+    // at the time it went in, so the list drops it and the sync engine sends its tombstone
+    private static String changeOf(String note) {
+        return note + "." + NoteEntry._ID + ", "
+                + note + "." + NoteEntry.COLUMN_DELETED_AT + " IS NOT NULL, "
+                + note + "." + NoteEntry.COLUMN_UUID + ", "
+                + "ifnull(" + note + "." + NoteEntry.COLUMN_DELETED_AT + ", "
+                + note + "." + NoteEntry.COLUMN_MODIFIED_AT + ")";
+    }
+
+    // Triggers that log every change to a note. INSERT OR REPLACE drops the note's previous entry,
+    // and AUTOINCREMENT makes sure the new one gets a higher version than anything before it.
+    // Every change starts out as a local one; the provider flags the sync engine's own writes
+    public static final String SQL_CREATE_CHANGE_INSERT_TRIGGER = "CREATE TRIGGER "
+            + NoteChangeEntry.TABLE_NAME + "_insert AFTER INSERT ON " + NoteEntry.TABLE_NAME
+            + " BEGIN INSERT OR REPLACE INTO " + NoteChangeEntry.TABLE_NAME + "("
+            + NoteChangeEntry.COLUMN_NOTE_ID + ", " + NoteChangeEntry.COLUMN_DELETED + ", "
+            + NoteChangeEntry.COLUMN_UUID + ", " + NoteChangeEntry.COLUMN_CHANGED_AT
+            + ") VALUES (new." + NoteEntry._ID + ", 0, new." + NoteEntry.COLUMN_UUID + ", new."
+            + NoteEntry.COLUMN_MODIFIED_AT + "); END;";
+
+    public static final String SQL_CREATE_CHANGE_UPDATE_TRIGGER = "CREATE TRIGGER "
+            + NoteChangeEntry.TABLE_NAME + "_update AFTER UPDATE ON " + NoteEntry.TABLE_NAME
+            + " BEGIN INSERT OR REPLACE INTO " + NoteChangeEntry.TABLE_NAME + "("
+            + NoteChangeEntry.COLUMN_NOTE_ID + ", " + NoteChangeEntry.COLUMN_DELETED + ", "
+            + NoteChangeEntry.COLUMN_UUID + ", " + NoteChangeEntry.COLUMN_CHANGED_AT
+            + ") VALUES (" + changeOf("new") + "); END;";
+
+    // A note deleted from the trash already left its tombstone when it went in there
+    public static final String SQL_CREATE_CHANGE_DELETE_TRIGGER = "CREATE TRIGGER "
+            + NoteChangeEntry.TABLE_NAME + "_delete AFTER DELETE ON " + NoteEntry.TABLE_NAME
+            + " WHEN old." + NoteEntry.COLUMN_DELETED_AT + " IS NULL"
+            + " BEGIN INSERT OR REPLACE INTO " + NoteChangeEntry.TABLE_NAME + "("
+            + NoteChangeEntry.COLUMN_NOTE_ID + ", " + NoteChangeEntry.COLUMN_DELETED + ", "
+            + NoteChangeEntry.COLUMN_UUID + ", " + NoteChangeEntry.COLUMN_CHANGED_AT
+            + ") VALUES (old." + NoteEntry._ID + ", 1, old." + NoteEntry.COLUMN_UUID + ", "
+            + SQL_NOW_MILLIS + "); END;";
+
+    // Creates the table of chunks for bodies too long for a single row. The primary key keeps
+    // each note's chunks together and in order, so reading them back is one index range scan
+    public static final String SQL_CREATE_CHUNK_TABLE = "CREATE TABLE " + NoteChunkEntry.TABLE_NAME + "("
+            + NoteChunkEntry.COLUMN_NOTE_ID + " INTEGER NOT NULL, "
+            + NoteChunkEntry.COLUMN_SEQUENCE + " INTEGER NOT NULL, "
+            + NoteChunkEntry.COLUMN_CODEC + " INTEGER NOT NULL DEFAULT " + NoteEntry.BODY_CODEC_PLAIN + ", "
+            + NoteChunkEntry.COLUMN_DATA + " NOT NULL, "
+            + "PRIMARY KEY (" + NoteChunkEntry.COLUMN_NOTE_ID + ", " + NoteChunkEntry.COLUMN_SEQUENCE + "));";
+
+    // Deletes a note's chunks along with the note, however it was deleted
+    public static final String SQL_CREATE_CHUNK_DELETE_TRIGGER = "CREATE TRIGGER "
+            + NoteChunkEntry.TABLE_NAME + "_delete AFTER DELETE ON " + NoteEntry.TABLE_NAME
+            + " BEGIN DELETE FROM " + NoteChunkEntry.TABLE_NAME
+            + " WHERE " + NoteChunkEntry.COLUMN_NOTE_ID + " = old." + NoteEntry._ID + "; END;";
+
+    // Creates the revision history. Like the chunks, the primary key keeps each note's revisions
+    // together and in order, so rebuilding one is a single index range scan
+    public static final String SQL_CREATE_REVISION_TABLE = "CREATE TABLE " + NoteRevisionEntry.TABLE_NAME + "("
+            + NoteRevisionEntry.COLUMN_NOTE_ID + " INTEGER NOT NULL, "
+            + NoteRevisionEntry.COLUMN_REVISION + " INTEGER NOT NULL, "
+            + NoteRevisionEntry.COLUMN_TITLE + " TEXT NOT NULL, "
+            + NoteRevisionEntry.COLUMN_BODY_LENGTH + " INTEGER NOT NULL, "
+            + NoteRevisionEntry.COLUMN_CREATED_AT + " INTEGER NOT NULL, "
+            + NoteRevisionEntry.COLUMN_MODIFIED_AT + " INTEGER NOT NULL, "
+            + NoteRevisionEntry.COLUMN_DEPTH + " INTEGER NOT NULL, "
+            + NoteRevisionEntry.COLUMN_PREFIX_LENGTH + " INTEGER NOT NULL DEFAULT 0, "
+            + NoteRevisionEntry.COLUMN_SUFFIX_LENGTH + " INTEGER NOT NULL DEFAULT 0, "
+            + NoteRevisionEntry.COLUMN_CODEC + " INTEGER NOT NULL DEFAULT " + NoteEntry.BODY_CODEC_PLAIN + ", "
+            + NoteRevisionEntry.COLUMN_DATA + " NOT NULL, "
+            + "PRIMARY KEY (" + NoteRevisionEntry.COLUMN_NOTE_ID + ", " + NoteRevisionEntry.COLUMN_REVISION + "));";
+
+    // Deletes a note's history along with the note
+    public static final String SQL_CREATE_REVISION_DELETE_TRIGGER = "CREATE TRIGGER "
+            + NoteRevisionEntry.TABLE_NAME + "_delete AFTER DELETE ON " + NoteEntry.TABLE_NAME
+            + " BEGIN DELETE FROM " + NoteRevisionEntry.TABLE_NAME
+            + " WHERE " + NoteRevisionEntry.COLUMN_NOTE_ID + " = old." + NoteEntry._ID + "; END;";
+
+    // Creates the tags. The name is unique ignoring case, so "Work" and "work" are the same tag
+    public static final String SQL_CREATE_TAG_TABLE = "CREATE TABLE " + NoteTagEntry.TABLE_NAME + "("
+            + NoteTagEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + NoteTagEntry.COLUMN_NAME + " TEXT NOT NULL COLLATE NOCASE UNIQUE, "
+            + NoteTagEntry.COLUMN_NOTE_COUNT + " INTEGER NOT NULL DEFAULT 0);";
+
+    // Creates the links between notes and tags. The primary key finds a note's tags, and the
+    // index finds a tag's notes; both hold the whole row, so neither ever reads the table
+    public static final String SQL_CREATE_TAG_MAP_TABLE = "CREATE TABLE " + NoteTagMapEntry.TABLE_NAME + "("
+            + NoteTagMapEntry.COLUMN_NOTE_ID + " INTEGER NOT NULL, "
+            + NoteTagMapEntry.COLUMN_TAG_ID + " INTEGER NOT NULL, "
+            + "PRIMARY KEY (" + NoteTagMapEntry.COLUMN_NOTE_ID + ", " + NoteTagMapEntry.COLUMN_TAG_ID + "));";
+
+    public static final String SQL_CREATE_TAG_MAP_INDEX = "CREATE INDEX "
+            + NoteTagMapEntry.TABLE_NAME + "_tag_idx ON " + NoteTagMapEntry.TABLE_NAME + "("
+            + NoteTagMapEntry.COLUMN_TAG_ID + ", "
+            + NoteTagMapEntry.COLUMN_NOTE_ID + ");";
+
+    // Logs the note a link belongs to as changed, the same way the notes triggers do, so a list
+    // filtered by tag picks up a note that was just tagged or untagged. Nothing is logged if the
+    // note itself is gone, which keeps the tombstone its delete just wrote
+    private static String logTaggedNote(String noteId) {
+        return "INSERT OR REPLACE INTO " + NoteChangeEntry.TABLE_NAME + "("
+                + NoteChangeEntry.COLUMN_NOTE_ID + ", " + NoteChangeEntry.COLUMN_DELETED + ", "
+                + NoteChangeEntry.COLUMN_UUID + ", " + NoteChangeEntry.COLUMN_CHANGED_AT
+                + ") SELECT " + changeOf(NoteEntry.TABLE_NAME) + " FROM " + NoteEntry.TABLE_NAME
+                + " WHERE " + NoteEntry._ID + " = " + noteId + ";";
+    }
+
+    // Adds delta to the note count of a tag, if the tagged note exists and isn't in the trash.
+    // Trashing or restoring a note moves the counts of all its tags at once, and deleting a note
+    // takes it off its tags before the links go, so neither is counted twice
+    private static String countTaggedNote(String tagId, String noteId, int delta) {
+        return "UPDATE " + NoteTagEntry.TABLE_NAME + " SET " + NoteTagEntry.COLUMN_NOTE_COUNT
+                + " = " + NoteTagEntry.COLUMN_NOTE_COUNT + " + (" + delta + ") WHERE "
+                + NoteTagEntry._ID + " = " + tagId + " AND EXISTS (SELECT 1 FROM "
+                + NoteEntry.TABLE_NAME + " WHERE " + NoteEntry._ID + " = " + noteId + " AND "
+                + SQL_WHERE_LIVE + ");";
+    }
+
+    // Triggers that keep each tag's note count right and log the tagged note as changed
+    public static final String SQL_CREATE_TAG_MAP_INSERT_TRIGGER = "CREATE TRIGGER "
+            + NoteTagMapEntry.TABLE_NAME + "_insert AFTER INSERT ON " + NoteTagMapEntry.TABLE_NAME
+            + " BEGIN " + countTaggedNote("new." + NoteTagMapEntry.COLUMN_TAG_ID,
+                    "new." + NoteTagMapEntry.COLUMN_NOTE_ID, 1) + " "
+            + logTaggedNote("new." + NoteTagMapEntry.COLUMN_NOTE_ID) + " END;";
+
+    public static final String SQL_CREATE_TAG_MAP_DELETE_TRIGGER = "CREATE TRIGGER "
+            + NoteTagMapEntry.TABLE_NAME + "_delete AFTER DELETE ON " + NoteTagMapEntry.TABLE_NAME
+            + " BEGIN " + countTaggedNote("old." + NoteTagMapEntry.COLUMN_TAG_ID,
+                    "old." + NoteTagMapEntry.COLUMN_NOTE_ID, -1) + " "
+            + logTaggedNote("old." + NoteTagMapEntry.COLUMN_NOTE_ID) + " END;";
+
+    // The tags of a note, for the triggers below
+    private static String tagsOf(String noteId) {
+        return "(SELECT " + NoteTagMapEntry.COLUMN_TAG_ID + " FROM " + NoteTagMapEntry.TABLE_NAME
+                + " WHERE " + NoteTagMapEntry.COLUMN_NOTE_ID + " = " + noteId + ")";
+    }
 
-    // Clears the database
-    public static final String SQL_DELETE_ENTRIES = "DELETE FROM " + NoteContract.NoteEntry.TABLE_NAME;
+    // Take a deleted note off its tags, and a deleted tag off its notes
+    public static final String SQL_CREATE_NOTE_TAGS_DELETE_TRIGGER = "CREATE TRIGGER "
+            + NoteTagMapEntry.TABLE_NAME + "_note_delete AFTER DELETE ON " + NoteEntry.TABLE_NAME
+            + " BEGIN UPDATE " + NoteTagEntry.TABLE_NAME + " SET " + NoteTagEntry.COLUMN_NOTE_COUNT
+            + " = " + NoteTagEntry.COLUMN_NOTE_COUNT + " - 1 WHERE old." + SQL_WHERE_LIVE
+            + " AND " + NoteTagEntry._ID + " IN " + tagsOf("old." + NoteEntry._ID) + ";"
+            + " DELETE FROM " + NoteTagMapEntry.TABLE_NAME
+            + " WHERE " + NoteTagMapEntry.COLUMN_NOTE_ID + " = old." + NoteEntry._ID + "; END;";
+
+    // A note moving into or out of the trash stops or starts counting towards its tags
+    public static final String SQL_CREATE_NOTE_TAGS_TRASH_TRIGGER = "CREATE TRIGGER "
+            + NoteTagMapEntry.TABLE_NAME + "_note_trash AFTER UPDATE OF "
+            + NoteEntry.COLUMN_DELETED_AT + " ON " + NoteEntry.TABLE_NAME
+            + " WHEN (old." + SQL_WHERE_LIVE + ") != (new." + SQL_WHERE_LIVE + ")"
+            + " BEGIN UPDATE " + NoteTagEntry.TABLE_NAME + " SET " + NoteTagEntry.COLUMN_NOTE_COUNT
+            + " = " + NoteTagEntry.COLUMN_NOTE_COUNT + " + CASE WHEN new." + SQL_WHERE_LIVE
+            + " THEN 1 ELSE -1 END WHERE " + NoteTagEntry._ID + " IN " + tagsOf("new." + NoteEntry._ID)
+            + "; END;";
+
+    public static final String SQL_CREATE_TAG_DELETE_TRIGGER = "CREATE TRIGGER "
+            + NoteTagMapEntry.TABLE_NAME + "_tag_delete AFTER DELETE ON " + NoteTagEntry.TABLE_NAME
+            + " BEGIN DELETE FROM " + NoteTagMapEntry.TABLE_NAME
+            + " WHERE " + NoteTagMapEntry.COLUMN_TAG_ID + " = old." + NoteTagEntry._ID + "; END;";
+
+    // Connection settings applied whenever the database is opened
+    private final NoteDbProfile mProfile;
+
+    // Set by onCreate, so onOpen knows the database is new and still empty
+    private boolean mCreated;
 
     public NoteDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, NoteDbProfile.DEFAULT);
+    }
+
+    public NoteDbHelper(Context context, NoteDbProfile profile) {
+        this(context, profile, null);
+    }
+
+    // The factory makes every cursor the database hands out, or is null for plain SQLiteCursors
+    public NoteDbHelper(Context context, NoteDbProfile profile,
+                        SQLiteDatabase.CursorFactory factory) {
+        this(context, DATABASE_NAME, profile, factory);
+    }
+
+    // Opens a database file other than the app's own, for tests that must leave Notes.db alone
+    public NoteDbHelper(Context context, String name, NoteDbProfile profile,
+                        SQLiteDatabase.CursorFactory factory) {
+        super(context, name, factory, DATABASE_VERSION);
+        mProfile = profile;
+    }
+
+    /**
+     * Applies the connection profile before the database is created or upgraded, so migrations
+     * get the same settings as everything else. Only called on API 16 and up; older versions get
+     * the profile in onOpen instead
+     * */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        if (mProfile.walEnabled) {
+            db.enableWriteAheadLogging();
+        } else {
+            db.disableWriteAheadLogging();
+        }
+        applyPragmas(db);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        // onConfigure doesn't exist before API 16
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            if (mProfile.walEnabled && !db.isReadOnly()) {
+                db.enableWriteAheadLogging();
+            }
+            applyPragmas(db);
+        }
+
+        // A new database is empty, so switching it to incremental auto-vacuum is instant. That
+        // needs a VACUUM, which can't run in onCreate's transaction
+        if (mCreated) {
+            mCreated = false;
+            try {
+                NoteMaintenance.enableIncrementalVacuum(db);
+            } catch (SQLiteException e) {
+                // NoteMaintenance switches it over later instead
+            }
+        }
+    }
+
+    // Sets the PRAGMAs from the profile on the main connection
+    private void applyPragmas(SQLiteDatabase db) {
+        runPragma(db, "PRAGMA synchronous = " + mProfile.synchronous);
+        if (mProfile.cacheSizeKb > 0) {
+            // A negative cache size is in KiB rather than pages
+            runPragma(db, "PRAGMA cache_size = -" + mProfile.cacheSizeKb);
+        }
+        if (mProfile.walEnabled && mProfile.walAutoCheckpointPages > 0) {
+            runPragma(db, "PRAGMA wal_autocheckpoint = " + mProfile.walAutoCheckpointPages);
+        }
+    }
+
+    // Some PRAGMAs return a row, which execSQL refuses, so run them all as queries
+    private static void runPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
     }
 
     /**
@@ -31,12 +398,73 @@ public class NoteDbHelper extends SQLiteOpenHelper {
      * */
     @Override
     public void onCreate(SQLiteDatabase db) {
+        mCreated = true;
         db.execSQL(SQL_CREATE_ENTRIES);
+        createListIndexes(db);
+        db.execSQL(SQL_CREATE_UUID_INDEX);
+        createSearchTable(db);
+        createChangeLog(db);
+        createChunkTable(db);
+        createRevisionTable(db);
+        createTagTables(db);
+        db.execSQL(SQL_CREATE_NOTE_TAGS_TRASH_TRIGGER);
     }
 
+    /**
+     * Brings an older database up to DATABASE_VERSION one step at a time, keeping every note.
+     * The steps themselves live in NoteMigrations
+     * */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(SQL_DELETE_ENTRIES);
-        onCreate(db);
+        NoteMigrations.migrate(db, oldVersion, newVersion);
+    }
+
+    // Creates the sort indexes and the trash index, as partial indexes where SQLite has them
+    static void createListIndexes(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_MODIFIED_INDEX + (PARTIAL_INDEXES ? " WHERE " + SQL_WHERE_LIVE : ""));
+        db.execSQL(SQL_CREATE_TITLE_INDEX + (PARTIAL_INDEXES ? " WHERE " + SQL_WHERE_LIVE : ""));
+        db.execSQL(SQL_CREATE_TRASH_INDEX + (PARTIAL_INDEXES
+                ? " WHERE " + NoteEntry.COLUMN_DELETED_AT + " IS NOT NULL" : ""));
+    }
+
+    // Creates the FTS4 table, with prefix indexes where SQLite has them, and the triggers that
+    // keep it in sync with the notes table
+    static void createSearchTable(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_SEARCH_TABLE + (PREFIX_INDEXES ? ", " + SQL_SEARCH_PREFIXES : "")
+                + ");");
+        db.execSQL(SQL_CREATE_SEARCH_INSERT_TRIGGER);
+        db.execSQL(SQL_CREATE_SEARCH_UPDATE_TRIGGER);
+        db.execSQL(SQL_CREATE_SEARCH_DELETE_TRIGGER);
+    }
+
+    // Creates the change log and the triggers that fill it
+    static void createChangeLog(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_CHANGE_LOG);
+        db.execSQL(SQL_CREATE_CHANGE_INSERT_TRIGGER);
+        db.execSQL(SQL_CREATE_CHANGE_UPDATE_TRIGGER);
+        db.execSQL(SQL_CREATE_CHANGE_DELETE_TRIGGER);
+    }
+
+    // Creates the chunk table and the trigger that cleans it up
+    static void createChunkTable(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_CHUNK_TABLE);
+        db.execSQL(SQL_CREATE_CHUNK_DELETE_TRIGGER);
+    }
+
+    // Creates the revision history and the trigger that cleans it up
+    static void createRevisionTable(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_REVISION_TABLE);
+        db.execSQL(SQL_CREATE_REVISION_DELETE_TRIGGER);
+    }
+
+    // Creates the tags, the links to their notes and the triggers that look after both
+    static void createTagTables(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_TAG_TABLE);
+        db.execSQL(SQL_CREATE_TAG_MAP_TABLE);
+        db.execSQL(SQL_CREATE_TAG_MAP_INDEX);
+        db.execSQL(SQL_CREATE_TAG_MAP_INSERT_TRIGGER);
+        db.execSQL(SQL_CREATE_TAG_MAP_DELETE_TRIGGER);
+        db.execSQL(SQL_CREATE_NOTE_TAGS_DELETE_TRIGGER);
+        db.execSQL(SQL_CREATE_TAG_DELETE_TRIGGER);
     }
-}
\ No newline at end of file
+}
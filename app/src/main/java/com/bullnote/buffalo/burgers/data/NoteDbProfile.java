@@ -0,0 +1,51 @@
+package com.bullnote.buffalo.burgers.data;
+
+/**
+ * Connection settings NoteDbHelper applies every time it opens Notes.db.
+ *
+ * The default turns on write-ahead logging, so the list's background queries read the last
+ * committed snapshot instead of waiting for a writer, and a commit only appends to the log rather
+ * than syncing the rollback journal and the database file. With WAL, synchronous=NORMAL is still
+ * safe against corruption; only the very last commit can be lost on a power cut.
+ */
+public class NoteDbProfile {
+
+    // Values for synchronous, as understood by PRAGMA synchronous
+    public static final String SYNCHRONOUS_OFF = "OFF";
+    public static final String SYNCHRONOUS_NORMAL = "NORMAL";
+    public static final String SYNCHRONOUS_FULL = "FULL";
+
+    /** The profile the app uses */
+    public static final NoteDbProfile DEFAULT = new NoteDbProfile(true, SYNCHRONOUS_NORMAL, 2048, 1000);
+
+    /** SQLite's own defaults: rollback journal, full sync. Handy as a baseline to compare against */
+    public static final NoteDbProfile ROLLBACK_JOURNAL = new NoteDbProfile(false, SYNCHRONOUS_FULL, 0, 0);
+
+    // Whether to use write-ahead logging instead of a rollback journal
+    public final boolean walEnabled;
+
+    // How hard SQLite works to make each commit durable
+    public final String synchronous;
+
+    // The page cache size of the main connection in KiB, or 0 to keep SQLite's default
+    public final int cacheSizeKb;
+
+    // How many pages the WAL file may hold before a commit checkpoints it back into the database,
+    // or 0 to keep SQLite's default. Ignored without WAL
+    public final int walAutoCheckpointPages;
+
+    public NoteDbProfile(boolean walEnabled, String synchronous, int cacheSizeKb,
+                         int walAutoCheckpointPages) {
+        this.walEnabled = walEnabled;
+        this.synchronous = synchronous;
+        this.cacheSizeKb = cacheSizeKb;
+        this.walAutoCheckpointPages = walAutoCheckpointPages;
+    }
+
+    @Override
+    public String toString() {
+        return "NoteDbProfile{wal=" + walEnabled + ", synchronous=" + synchronous
+                + ", cacheSizeKb=" + cacheSizeKb
+                + ", walAutoCheckpointPages=" + walAutoCheckpointPages + "}";
+    }
+}
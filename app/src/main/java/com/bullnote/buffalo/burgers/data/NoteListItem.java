@@ -0,0 +1,24 @@
+package com.bullnote.buffalo.burgers.data;
+
+/**
+ * One row of the note list: just the fields the list shows, copied out of a cursor so the cursor
+ * (and its CursorWindow) can be closed as soon as a page has been read.
+ */
+public class NoteListItem {
+
+    public final long id;
+    public final String title;
+
+    // The stored preview of the body, or the matching snippet for a search result
+    public final String preview;
+
+    // When the note last changed, in milliseconds; 0 for search results
+    public final long modifiedAt;
+
+    public NoteListItem(long id, String title, String preview, long modifiedAt) {
+        this.id = id;
+        this.title = title;
+        this.preview = preview;
+        this.modifiedAt = modifiedAt;
+    }
+}
@@ -0,0 +1,349 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteChangeEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteChunkEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteRevisionEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteSearchEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTagEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTagMapEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTrashEntry;
+
+import java.util.Locale;
+
+/**
+ * Housekeeping for Notes.db, done in short slices while the app is in the background.
+ * NoteProvider runs it for METHOD_RUN_MAINTENANCE, at most once every MIN_INTERVAL_MS.
+ *
+ * Each run does these in order, and stops starting new slices once its time budget is spent:
+ * - switches the database to incremental auto-vacuum, once. That takes a full VACUUM, which
+ *   can't run inside the transaction a migration runs in, so it's done here instead (a new
+ *   database is switched by NoteDbHelper while it's still empty)
+ * - purges the trash
+ * - gives free pages back to the file system, VACUUM_PAGES_PER_SLICE at a time
+ * - merges the full-text index's segments, FTS_MERGE_PAGES pages at a time
+ * - gathers the query planner's statistics, one table at a time every STATS_INTERVAL_MS, and
+ *   lets PRAGMA optimize top them up in between where SQLite has it
+ * - checks the database for corruption every INTEGRITY_INTERVAL_MS
+ *
+ * The size of the database and the time of the list's first page are measured before and after,
+ * so the Report shows what the run was worth.
+ */
+final class NoteMaintenance {
+
+    // Log tag
+    private static final String LOG_TAG = NoteMaintenance.class.getSimpleName();
+
+    // Where the times of the last runs are kept
+    static final String PREFS_NAME = "note_maintenance";
+    private static final String KEY_LAST_RUN = "last_run";
+    private static final String KEY_LAST_STATS = "last_stats";
+    private static final String KEY_NEXT_STATS_TABLE = "next_stats_table";
+    private static final String KEY_LAST_INTEGRITY_CHECK = "last_integrity_check";
+
+    // How often maintenance runs, gathers statistics and checks integrity
+    static final long MIN_INTERVAL_MS = 24L * 60 * 60 * 1000;
+    static final long STATS_INTERVAL_MS = 7 * MIN_INTERVAL_MS;
+    static final long INTEGRITY_INTERVAL_MS = 7 * MIN_INTERVAL_MS;
+
+    // Time after which a run starts no more slices. The one-time VACUUM and the integrity check
+    // can't be cut up, so a run can go over; the integrity check only starts with half of it left
+    static final long BUDGET_MS = 1500;
+
+    // Work done per slice: 1 MB of pages with 4 KB pages, and the pages FTS4 merges per step
+    private static final int VACUUM_PAGES_PER_SLICE = 256;
+    private static final int FTS_MERGE_PAGES = 64;
+    private static final int FTS_MERGE_MIN_SEGMENTS = 4;
+
+    // The tables ANALYZE looks at, biggest first
+    private static final String[] STATS_TABLES = {
+            NoteEntry.TABLE_NAME,
+            NoteTagMapEntry.TABLE_NAME,
+            NoteChangeEntry.TABLE_NAME,
+            NoteRevisionEntry.TABLE_NAME,
+            NoteChunkEntry.TABLE_NAME,
+            NoteTagEntry.TABLE_NAME
+    };
+
+    // PRAGMA auto_vacuum's value for incremental mode
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    // FTS4's merge command needs SQLite 3.7.13 and PRAGMA optimize 3.18.0
+    private static final int SQLITE_FTS_MERGE = 3007013;
+    private static final int SQLITE_PRAGMA_OPTIMIZE = 3018000;
+
+    // The list's first page, as NotePageLoader asks for it; timed before and after. The best of
+    // PROBE_RUNS is kept, which leaves out a cold cache and the odd hiccup
+    static final String SQL_LIST_PROBE = "SELECT " + NoteEntry._ID + ", "
+            + NoteEntry.COLUMN_TITLE + ", " + NoteEntry.COLUMN_PREVIEW + ", "
+            + NoteEntry.COLUMN_MODIFIED_AT + " FROM " + NoteEntry.TABLE_NAME
+            + " WHERE " + NoteDbHelper.SQL_WHERE_LIVE + " ORDER BY "
+            + NoteEntry.COLUMN_MODIFIED_AT + " DESC, " + NoteEntry._ID + " DESC LIMIT 50";
+    private static final int PROBE_RUNS = 3;
+
+    // Does not need a constructor, should never be instantiated
+    private NoteMaintenance() {}
+
+    /** What a run did, and the database before and after it */
+    static final class Report {
+        long sizeBefore;
+        long sizeAfter;
+        long freePagesBefore;
+        long freePagesAfter;
+        long listMicrosBefore;
+        long listMicrosAfter;
+        boolean switchedToIncrementalVacuum;
+        int purged;
+        long pagesFreed;
+        int mergeSlices;
+        int tablesAnalyzed;
+        boolean optimized;
+        // The first line of PRAGMA quick_check, "ok" if the database is fine; null if not checked
+        String integrity;
+        boolean outOfTime;
+        long elapsedMs;
+
+        /** The numbers under NoteContract's STAT_ keys, and this report under STAT_REPORT */
+        Bundle toBundle() {
+            Bundle bundle = new Bundle();
+            bundle.putBoolean(NoteContract.RESULT_MAINTENANCE_RAN, true);
+            bundle.putLong(NoteContract.STAT_DB_SIZE_BEFORE, sizeBefore);
+            bundle.putLong(NoteContract.STAT_DB_SIZE_AFTER, sizeAfter);
+            bundle.putLong(NoteContract.STAT_FREE_PAGES_BEFORE, freePagesBefore);
+            bundle.putLong(NoteContract.STAT_FREE_PAGES_AFTER, freePagesAfter);
+            bundle.putLong(NoteContract.STAT_LIST_MICROS_BEFORE, listMicrosBefore);
+            bundle.putLong(NoteContract.STAT_LIST_MICROS_AFTER, listMicrosAfter);
+            bundle.putInt(NoteContract.RESULT_PURGED, purged);
+            bundle.putString(NoteContract.STAT_INTEGRITY, integrity);
+            bundle.putString(NoteContract.STAT_REPORT, toString());
+            return bundle;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "Maintenance in %dms%s: size %dKB -> %dKB, "
+                            + "free pages %d -> %d, list page %.2fms -> %.2fms; "
+                            + "incremental vacuum switched on %b, purged %d, freed %d pages, "
+                            + "%d FTS merges, analyzed %d tables, optimized %b, integrity %s",
+                    elapsedMs, outOfTime ? " (out of time)" : "", sizeBefore / 1024,
+                    sizeAfter / 1024, freePagesBefore, freePagesAfter, listMicrosBefore / 1000.0,
+                    listMicrosAfter / 1000.0, switchedToIncrementalVacuum, purged, pagesFreed,
+                    mergeSlices, tablesAnalyzed, optimized,
+                    integrity == null ? "not checked" : integrity);
+        }
+    }
+
+    /** True if maintenance hasn't run for MIN_INTERVAL_MS */
+    static boolean isDue(SharedPreferences prefs, long now) {
+        return now - prefs.getLong(KEY_LAST_RUN, 0) >= MIN_INTERVAL_MS;
+    }
+
+    /**
+     * Runs every maintenance step that's due, for about budgetMs, and returns what it did. The
+     * caller has to drop any cached notes if the report says some were purged
+     * */
+    static Report run(SQLiteDatabase db, NoteStatements statements, SharedPreferences prefs,
+                      long now, long budgetMs) {
+        long start = System.nanoTime();
+        long deadline = start + budgetMs * 1000000;
+        Report report = new Report();
+        report.sizeBefore = databaseSize(db);
+        report.freePagesBefore = pragmaLong(db, "PRAGMA freelist_count");
+        report.listMicrosBefore = timeListProbe(db);
+        int sqliteVersion = sqliteVersion(db);
+        SharedPreferences.Editor editor = prefs.edit();
+
+        // Once per database: from here on, freed pages can be given back a slice at a time
+        try {
+            report.switchedToIncrementalVacuum = enableIncrementalVacuum(db);
+        } catch (SQLiteException e) {
+            // Most likely busy, or short of space for the copy; the next run tries again
+            Log.w(LOG_TAG, "Could not switch to incremental auto-vacuum", e);
+        }
+
+        report.purged = NoteTrash.purge(db, statements, now - NoteTrashEntry.RETENTION_MS,
+                NoteTrash.MAX_BACKGROUND_PURGE);
+
+        // Give the free pages back until there are none, or they can't be given back (the
+        // database isn't in incremental mode yet)
+        while (System.nanoTime() < deadline) {
+            long freed = incrementalVacuum(db, VACUUM_PAGES_PER_SLICE);
+            report.pagesFreed += freed;
+            if (freed < VACUUM_PAGES_PER_SLICE) {
+                break;
+            }
+        }
+
+        // Merge the full-text index's segments until FTS4 says there's nothing left to merge
+        if (sqliteVersion >= SQLITE_FTS_MERGE) {
+            while (System.nanoTime() < deadline && mergeSearchIndex(db)) {
+                report.mergeSlices++;
+            }
+        }
+
+        // Statistics: a full pass over the tables every so often, carried on from where the last
+        // run ran out of time, and PRAGMA optimize's cheap top-up on the other runs
+        if (now - prefs.getLong(KEY_LAST_STATS, 0) >= STATS_INTERVAL_MS) {
+            int table = prefs.getInt(KEY_NEXT_STATS_TABLE, 0);
+            while (table < STATS_TABLES.length && System.nanoTime() < deadline) {
+                db.execSQL("ANALYZE " + STATS_TABLES[table]);
+                report.tablesAnalyzed++;
+                table++;
+            }
+            if (table == STATS_TABLES.length) {
+                editor.putLong(KEY_LAST_STATS, now);
+                table = 0;
+            }
+            editor.putInt(KEY_NEXT_STATS_TABLE, table);
+        } else if (sqliteVersion >= SQLITE_PRAGMA_OPTIMIZE && System.nanoTime() < deadline) {
+            pragmaLong(db, "PRAGMA optimize");
+            report.optimized = true;
+        }
+
+        // The integrity check reads the whole file, so it only starts with half the budget left
+        if (now - prefs.getLong(KEY_LAST_INTEGRITY_CHECK, 0) >= INTEGRITY_INTERVAL_MS
+                && deadline - System.nanoTime() >= budgetMs * 1000000 / 2) {
+            report.integrity = quickCheck(db);
+            editor.putLong(KEY_LAST_INTEGRITY_CHECK, now);
+            if (!"ok".equals(report.integrity)) {
+                Log.e(LOG_TAG, "Notes.db failed its integrity check: " + report.integrity);
+            }
+        }
+
+        report.outOfTime = System.nanoTime() >= deadline;
+        report.sizeAfter = databaseSize(db);
+        report.freePagesAfter = pragmaLong(db, "PRAGMA freelist_count");
+        report.listMicrosAfter = timeListProbe(db);
+        report.elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        editor.putLong(KEY_LAST_RUN, now);
+        editor.apply();
+        return report;
+    }
+
+    /**
+     * Switches the database to incremental auto-vacuum, unless it's in that mode already. The
+     * mode only changes with a VACUUM, which copies the whole database, so call it when the
+     * database is empty or the app is idle, and never inside a transaction. Returns true if the
+     * mode was changed
+     * */
+    static boolean enableIncrementalVacuum(SQLiteDatabase db) {
+        if (pragmaLong(db, "PRAGMA auto_vacuum") == AUTO_VACUUM_INCREMENTAL) {
+            return false;
+        }
+        pragmaLong(db, "PRAGMA auto_vacuum = INCREMENTAL");
+        db.execSQL("VACUUM");
+        return pragmaLong(db, "PRAGMA auto_vacuum") == AUTO_VACUUM_INCREMENTAL;
+    }
+
+    /**
+     * Gives up to maxPages free pages back to the file system and returns how many it gave back.
+     * It does nothing unless the database is in incremental auto-vacuum mode
+     * */
+    static long incrementalVacuum(SQLiteDatabase db, int maxPages) {
+        // The free page count is per connection, so keep this on the one doing the vacuum
+        db.beginTransaction();
+        try {
+            long before = pragmaLong(db, "PRAGMA freelist_count");
+
+            // Each step of the pragma frees one page, so the cursor has to be read to the end,
+            // which getCount does
+            Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + maxPages + ")", null);
+            try {
+                cursor.getCount();
+            } finally {
+                cursor.close();
+            }
+            long freed = before - pragmaLong(db, "PRAGMA freelist_count");
+            db.setTransactionSuccessful();
+            return freed;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // Runs one FTS4 merge step and returns whether it found anything to merge: FTS4 changes at
+    // least two rows when it does. total_changes() is per connection, so the transaction keeps
+    // the step and both counts on the same one
+    private static boolean mergeSearchIndex(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            long before = pragmaLong(db, "SELECT total_changes()");
+            db.execSQL("INSERT INTO " + NoteSearchEntry.TABLE_NAME + "(" + NoteSearchEntry.TABLE_NAME
+                    + ") VALUES ('merge=" + FTS_MERGE_PAGES + "," + FTS_MERGE_MIN_SEGMENTS + "')");
+            boolean merged = pragmaLong(db, "SELECT total_changes()") - before >= 2;
+            db.setTransactionSuccessful();
+            return merged;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // The first line PRAGMA quick_check returns, which is "ok" for a healthy database
+    private static String quickCheck(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("PRAGMA quick_check", null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : "no result";
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // The size of the database in bytes, free pages included; the WAL file isn't counted
+    private static long databaseSize(SQLiteDatabase db) {
+        return pragmaLong(db, "PRAGMA page_count") * pragmaLong(db, "PRAGMA page_size");
+    }
+
+    // The quickest of PROBE_RUNS runs of the list's first page, in microseconds
+    private static long timeListProbe(SQLiteDatabase db) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < PROBE_RUNS; i++) {
+            long start = System.nanoTime();
+            Cursor cursor = db.rawQuery(SQL_LIST_PROBE, null);
+            try {
+                cursor.getCount();
+            } finally {
+                cursor.close();
+            }
+            best = Math.min(best, (System.nanoTime() - start) / 1000);
+        }
+        return best;
+    }
+
+    // SQLite's version as one number, 3.8.4.3 as 3008004, to compare with the SQLITE_ constants
+    private static int sqliteVersion(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT sqlite_version()", null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return 0;
+            }
+            String[] parts = cursor.getString(0).split("\\.");
+            int version = 0;
+            for (int i = 0; i < 3; i++) {
+                version = version * 1000 + (i < parts.length ? Integer.parseInt(parts[i]) : 0);
+            }
+            return version;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Runs a PRAGMA (or a SELECT of one value) and returns the first column of its first row, or
+    // -1 if it returns no rows. Some PRAGMAs return a row, which execSQL refuses, so they all go
+    // through rawQuery
+    private static long pragmaLong(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,811 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteChangeEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteChunkEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteRevisionEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteSearchEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTagEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTagMapEntry;
+
+import java.util.UUID;
+
+/**
+ * The steps that bring an existing database up to the current schema, one per version.
+ *
+ * NoteDbHelper.onUpgrade runs every step between the old and new version in order. Each step runs
+ * in its own transaction and its time is logged. SQLiteOpenHelper wraps the whole upgrade in one
+ * more transaction, so if any step fails the database is left exactly as it was, at its old
+ * version, and nothing the user wrote is lost.
+ *
+ * To change the schema: add a step to the end of MIGRATIONS, bump NoteDbHelper.DATABASE_VERSION,
+ * and make NoteDbHelper.onCreate build the new schema for fresh installs.
+ *
+ * Every statement a step runs is a V<n>_ constant here, written out as it was at that version, so
+ * changing NoteDbHelper's SQL never changes what an old step does. Only the note contents are
+ * worked out by today's code: the previews (NoteProvider.makePreview), the deflated bodies
+ * (NoteBodyCodec) and the chunks (NoteChunks.replace). A change to what those write needs a look
+ * at the steps that call them.
+ */
+final class NoteMigrations {
+
+    // Log tag
+    private static final String LOG_TAG = NoteMigrations.class.getSimpleName();
+
+    // The search table and its triggers as they were at version 2, before bodies had a codec.
+    // Version 6 replaces the insert and update triggers
+    private static final String V2_CREATE_SEARCH_TABLE = "CREATE VIRTUAL TABLE "
+            + NoteSearchEntry.TABLE_NAME + " USING fts4("
+            + NoteSearchEntry.COLUMN_TITLE + ", "
+            + NoteSearchEntry.COLUMN_BODY + ");";
+
+    private static final String[] V2_SEARCH_TRIGGERS = {
+            "CREATE TRIGGER " + NoteSearchEntry.TABLE_NAME + "_insert AFTER INSERT ON "
+                    + NoteEntry.TABLE_NAME + " BEGIN INSERT INTO " + NoteSearchEntry.TABLE_NAME + "("
+                    + NoteSearchEntry.COLUMN_DOCID + ", " + NoteSearchEntry.COLUMN_TITLE + ", "
+                    + NoteSearchEntry.COLUMN_BODY + ") VALUES (new." + NoteEntry._ID + ", new."
+                    + NoteEntry.COLUMN_TITLE + ", new." + NoteEntry.COLUMN_BODY + "); END;",
+            "CREATE TRIGGER " + NoteSearchEntry.TABLE_NAME + "_update AFTER UPDATE OF "
+                    + NoteEntry.COLUMN_TITLE + ", " + NoteEntry.COLUMN_BODY + " ON " + NoteEntry.TABLE_NAME
+                    + " BEGIN UPDATE " + NoteSearchEntry.TABLE_NAME + " SET "
+                    + NoteSearchEntry.COLUMN_TITLE + " = new." + NoteEntry.COLUMN_TITLE + ", "
+                    + NoteSearchEntry.COLUMN_BODY + " = new." + NoteEntry.COLUMN_BODY
+                    + " WHERE " + NoteSearchEntry.COLUMN_DOCID + " = new." + NoteEntry._ID + "; END;",
+            "CREATE TRIGGER " + NoteSearchEntry.TABLE_NAME + "_delete AFTER DELETE ON "
+                    + NoteEntry.TABLE_NAME + " BEGIN DELETE FROM " + NoteSearchEntry.TABLE_NAME
+                    + " WHERE " + NoteSearchEntry.COLUMN_DOCID + " = old." + NoteEntry._ID + "; END;"
+    };
+
+    // Indexes the notes the user already has
+    private static final String V2_POPULATE_SEARCH_TABLE = "INSERT INTO "
+            + NoteSearchEntry.TABLE_NAME + "(" + NoteSearchEntry.COLUMN_DOCID + ", "
+            + NoteSearchEntry.COLUMN_TITLE + ", " + NoteSearchEntry.COLUMN_BODY + ") SELECT "
+            + NoteEntry._ID + ", " + NoteEntry.COLUMN_TITLE + ", " + NoteEntry.COLUMN_BODY
+            + " FROM " + NoteEntry.TABLE_NAME;
+
+    // The preview column version 3 added; fillPreviews fills it in
+    private static final String V3_ADD_PREVIEW_COLUMN = "ALTER TABLE " + NoteEntry.TABLE_NAME
+            + " ADD COLUMN " + NoteEntry.COLUMN_PREVIEW + " TEXT NOT NULL DEFAULT ''";
+
+    // The search insert and update triggers as version 6 made them: a body that isn't plain text
+    // goes into the search table empty, and the code that wrote it indexes the text itself
+    private static final String[] V6_SEARCH_TRIGGERS = {
+            "CREATE TRIGGER " + NoteSearchEntry.TABLE_NAME + "_insert AFTER INSERT ON "
+                    + NoteEntry.TABLE_NAME + " BEGIN INSERT INTO " + NoteSearchEntry.TABLE_NAME + "("
+                    + NoteSearchEntry.COLUMN_DOCID + ", " + NoteSearchEntry.COLUMN_TITLE + ", "
+                    + NoteSearchEntry.COLUMN_BODY + ") VALUES (new." + NoteEntry._ID + ", new."
+                    + NoteEntry.COLUMN_TITLE + ", CASE WHEN new." + NoteEntry.COLUMN_BODY_CODEC + " = "
+                    + NoteEntry.BODY_CODEC_PLAIN + " THEN new." + NoteEntry.COLUMN_BODY
+                    + " ELSE '' END); END;",
+            "CREATE TRIGGER " + NoteSearchEntry.TABLE_NAME + "_update AFTER UPDATE OF "
+                    + NoteEntry.COLUMN_TITLE + ", " + NoteEntry.COLUMN_BODY + " ON " + NoteEntry.TABLE_NAME
+                    + " BEGIN UPDATE " + NoteSearchEntry.TABLE_NAME + " SET "
+                    + NoteSearchEntry.COLUMN_TITLE + " = new." + NoteEntry.COLUMN_TITLE + ", "
+                    + NoteSearchEntry.COLUMN_BODY + " = CASE WHEN new." + NoteEntry.COLUMN_BODY_CODEC
+                    + " = " + NoteEntry.BODY_CODEC_PLAIN + " THEN new." + NoteEntry.COLUMN_BODY
+                    + " WHEN new." + NoteEntry.COLUMN_BODY + " IS old." + NoteEntry.COLUMN_BODY
+                    + " THEN " + NoteSearchEntry.COLUMN_BODY + " ELSE '' END"
+                    + " WHERE " + NoteSearchEntry.COLUMN_DOCID + " = new." + NoteEntry._ID + "; END;"
+    };
+
+    // Version 6 drops version 2's search insert and update triggers while it compresses bodies
+    private static final String[] V6_DROP_SEARCH_TRIGGERS = {
+            "DROP TRIGGER IF EXISTS " + NoteSearchEntry.TABLE_NAME + "_insert",
+            "DROP TRIGGER IF EXISTS " + NoteSearchEntry.TABLE_NAME + "_update"
+    };
+
+    // The codec column version 6 added; every existing body starts out plain
+    private static final String V6_ADD_BODY_CODEC_COLUMN = "ALTER TABLE " + NoteEntry.TABLE_NAME
+            + " ADD COLUMN " + NoteEntry.COLUMN_BODY_CODEC + " INTEGER NOT NULL DEFAULT "
+            + NoteEntry.BODY_CODEC_PLAIN;
+
+    // The change log and its triggers as they were at version 5. Later steps fire these triggers
+    // before the notes table has the columns today's triggers copy, and version 9 adds the rest
+    private static final String V5_CREATE_CHANGE_LOG = "CREATE TABLE " + NoteChangeEntry.TABLE_NAME + "("
+            + NoteChangeEntry.COLUMN_VERSION + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + NoteChangeEntry.COLUMN_NOTE_ID + " INTEGER NOT NULL UNIQUE, "
+            + NoteChangeEntry.COLUMN_DELETED + " INTEGER NOT NULL DEFAULT 0);";
+
+    private static final String[] V5_CHANGE_TRIGGERS = {
+            "CREATE TRIGGER " + NoteChangeEntry.TABLE_NAME + "_insert AFTER INSERT ON "
+                    + NoteEntry.TABLE_NAME + " BEGIN INSERT OR REPLACE INTO " + NoteChangeEntry.TABLE_NAME
+                    + "(" + NoteChangeEntry.COLUMN_NOTE_ID + ", " + NoteChangeEntry.COLUMN_DELETED
+                    + ") VALUES (new." + NoteEntry._ID + ", 0); END;",
+            "CREATE TRIGGER " + NoteChangeEntry.TABLE_NAME + "_update AFTER UPDATE ON "
+                    + NoteEntry.TABLE_NAME + " BEGIN INSERT OR REPLACE INTO " + NoteChangeEntry.TABLE_NAME
+                    + "(" + NoteChangeEntry.COLUMN_NOTE_ID + ", " + NoteChangeEntry.COLUMN_DELETED
+                    + ") VALUES (new." + NoteEntry._ID + ", 0); END;",
+            "CREATE TRIGGER " + NoteChangeEntry.TABLE_NAME + "_delete AFTER DELETE ON "
+                    + NoteEntry.TABLE_NAME + " BEGIN INSERT OR REPLACE INTO " + NoteChangeEntry.TABLE_NAME
+                    + "(" + NoteChangeEntry.COLUMN_NOTE_ID + ", " + NoteChangeEntry.COLUMN_DELETED
+                    + ") VALUES (old." + NoteEntry._ID + ", 1); END;"
+    };
+
+    // Logs every note that already exists once, so the log starts out complete
+    private static final String V5_POPULATE_CHANGE_LOG = "INSERT INTO " + NoteChangeEntry.TABLE_NAME
+            + "(" + NoteChangeEntry.COLUMN_NOTE_ID + ") SELECT " + NoteEntry._ID
+            + " FROM " + NoteEntry.TABLE_NAME;
+
+    // The change log triggers as they were at version 9, before the trash: every change copies
+    // the note's UUID and time. Version 11 replaces the update and delete triggers
+    private static final String[] V9_CHANGE_TRIGGERS = {
+            "CREATE TRIGGER " + NoteChangeEntry.TABLE_NAME + "_insert AFTER INSERT ON "
+                    + NoteEntry.TABLE_NAME + " BEGIN INSERT OR REPLACE INTO " + NoteChangeEntry.TABLE_NAME
+                    + "(" + NoteChangeEntry.COLUMN_NOTE_ID + ", " + NoteChangeEntry.COLUMN_DELETED + ", "
+                    + NoteChangeEntry.COLUMN_UUID + ", " + NoteChangeEntry.COLUMN_CHANGED_AT
+                    + ") VALUES (new." + NoteEntry._ID + ", 0, new." + NoteEntry.COLUMN_UUID + ", new."
+                    + NoteEntry.COLUMN_MODIFIED_AT + "); END;",
+            "CREATE TRIGGER " + NoteChangeEntry.TABLE_NAME + "_update AFTER UPDATE ON "
+                    + NoteEntry.TABLE_NAME + " BEGIN INSERT OR REPLACE INTO " + NoteChangeEntry.TABLE_NAME
+                    + "(" + NoteChangeEntry.COLUMN_NOTE_ID + ", " + NoteChangeEntry.COLUMN_DELETED + ", "
+                    + NoteChangeEntry.COLUMN_UUID + ", " + NoteChangeEntry.COLUMN_CHANGED_AT
+                    + ") VALUES (new." + NoteEntry._ID + ", 0, new." + NoteEntry.COLUMN_UUID + ", new."
+                    + NoteEntry.COLUMN_MODIFIED_AT + "); END;",
+            "CREATE TRIGGER " + NoteChangeEntry.TABLE_NAME + "_delete AFTER DELETE ON "
+                    + NoteEntry.TABLE_NAME + " BEGIN INSERT OR REPLACE INTO " + NoteChangeEntry.TABLE_NAME
+                    + "(" + NoteChangeEntry.COLUMN_NOTE_ID + ", " + NoteChangeEntry.COLUMN_DELETED + ", "
+                    + NoteChangeEntry.COLUMN_UUID + ", " + NoteChangeEntry.COLUMN_CHANGED_AT
+                    + ") VALUES (old." + NoteEntry._ID + ", 1, old." + NoteEntry.COLUMN_UUID + ", "
+                    + "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)); END;"
+    };
+
+    // The chunk table and its clean-up trigger as version 7 made them
+    private static final String V7_CREATE_CHUNK_TABLE = "CREATE TABLE " + NoteChunkEntry.TABLE_NAME + "("
+            + NoteChunkEntry.COLUMN_NOTE_ID + " INTEGER NOT NULL, "
+            + NoteChunkEntry.COLUMN_SEQUENCE + " INTEGER NOT NULL, "
+            + NoteChunkEntry.COLUMN_CODEC + " INTEGER NOT NULL DEFAULT " + NoteEntry.BODY_CODEC_PLAIN + ", "
+            + NoteChunkEntry.COLUMN_DATA + " NOT NULL, "
+            + "PRIMARY KEY (" + NoteChunkEntry.COLUMN_NOTE_ID + ", " + NoteChunkEntry.COLUMN_SEQUENCE + "));";
+
+    private static final String V7_CREATE_CHUNK_DELETE_TRIGGER = "CREATE TRIGGER "
+            + NoteChunkEntry.TABLE_NAME + "_delete AFTER DELETE ON " + NoteEntry.TABLE_NAME
+            + " BEGIN DELETE FROM " + NoteChunkEntry.TABLE_NAME
+            + " WHERE " + NoteChunkEntry.COLUMN_NOTE_ID + " = old." + NoteEntry._ID + "; END;";
+
+    // Puts the plain text of a body that was just chunked into the search table
+    private static final String V7_INDEX_BODY = "UPDATE " + NoteSearchEntry.TABLE_NAME
+            + " SET " + NoteSearchEntry.COLUMN_BODY + " = ? WHERE "
+            + NoteSearchEntry.COLUMN_DOCID + " = ?";
+
+    // The revision history and its clean-up trigger as version 8 made them
+    private static final String V8_CREATE_REVISION_TABLE = "CREATE TABLE " + NoteRevisionEntry.TABLE_NAME + "("
+            + NoteRevisionEntry.COLUMN_NOTE_ID + " INTEGER NOT NULL, "
+            + NoteRevisionEntry.COLUMN_REVISION + " INTEGER NOT NULL, "
+            + NoteRevisionEntry.COLUMN_TITLE + " TEXT NOT NULL, "
+            + NoteRevisionEntry.COLUMN_BODY_LENGTH + " INTEGER NOT NULL, "
+            + NoteRevisionEntry.COLUMN_CREATED_AT + " INTEGER NOT NULL, "
+            + NoteRevisionEntry.COLUMN_MODIFIED_AT + " INTEGER NOT NULL, "
+            + NoteRevisionEntry.COLUMN_DEPTH + " INTEGER NOT NULL, "
+            + NoteRevisionEntry.COLUMN_PREFIX_LENGTH + " INTEGER NOT NULL DEFAULT 0, "
+            + NoteRevisionEntry.COLUMN_SUFFIX_LENGTH + " INTEGER NOT NULL DEFAULT 0, "
+            + NoteRevisionEntry.COLUMN_CODEC + " INTEGER NOT NULL DEFAULT " + NoteEntry.BODY_CODEC_PLAIN + ", "
+            + NoteRevisionEntry.COLUMN_DATA + " NOT NULL, "
+            + "PRIMARY KEY (" + NoteRevisionEntry.COLUMN_NOTE_ID + ", " + NoteRevisionEntry.COLUMN_REVISION + "));";
+
+    private static final String V8_CREATE_REVISION_DELETE_TRIGGER = "CREATE TRIGGER "
+            + NoteRevisionEntry.TABLE_NAME + "_delete AFTER DELETE ON " + NoteEntry.TABLE_NAME
+            + " BEGIN DELETE FROM " + NoteRevisionEntry.TABLE_NAME
+            + " WHERE " + NoteRevisionEntry.COLUMN_NOTE_ID + " = old." + NoteEntry._ID + "; END;";
+
+    // The UUID column version 9 added, and the unique index built once assignUuids has filled it
+    private static final String V9_ADD_UUID_COLUMN = "ALTER TABLE " + NoteEntry.TABLE_NAME
+            + " ADD COLUMN " + NoteEntry.COLUMN_UUID + " TEXT";
+
+    private static final String V9_CREATE_UUID_INDEX = "CREATE UNIQUE INDEX "
+            + NoteEntry.TABLE_NAME + "_uuid_idx ON " + NoteEntry.TABLE_NAME + "("
+            + NoteEntry.COLUMN_UUID + ");";
+
+    // Version 9 drops version 5's change log triggers and adds the sync columns they now fill.
+    // Notes deleted before then have no UUID, so their tombstones are never synced
+    private static final String[] V9_DROP_CHANGE_TRIGGERS = {
+            "DROP TRIGGER IF EXISTS " + NoteChangeEntry.TABLE_NAME + "_insert",
+            "DROP TRIGGER IF EXISTS " + NoteChangeEntry.TABLE_NAME + "_update",
+            "DROP TRIGGER IF EXISTS " + NoteChangeEntry.TABLE_NAME + "_delete"
+    };
+
+    private static final String[] V9_ADD_CHANGE_COLUMNS = {
+            "ALTER TABLE " + NoteChangeEntry.TABLE_NAME + " ADD COLUMN "
+                    + NoteChangeEntry.COLUMN_UUID + " TEXT",
+            "ALTER TABLE " + NoteChangeEntry.TABLE_NAME + " ADD COLUMN "
+                    + NoteChangeEntry.COLUMN_CHANGED_AT + " INTEGER NOT NULL DEFAULT 0",
+            "ALTER TABLE " + NoteChangeEntry.TABLE_NAME + " ADD COLUMN "
+                    + NoteChangeEntry.COLUMN_FROM_SYNC + " INTEGER NOT NULL DEFAULT 0"
+    };
+
+    private static final String V9_POPULATE_CHANGE_SYNC_COLUMNS = "UPDATE " + NoteChangeEntry.TABLE_NAME
+            + " SET " + NoteChangeEntry.COLUMN_UUID + " = (SELECT " + NoteEntry.COLUMN_UUID
+            + " FROM " + NoteEntry.TABLE_NAME + " WHERE " + NoteEntry._ID + " = "
+            + NoteChangeEntry.COLUMN_NOTE_ID + "), " + NoteChangeEntry.COLUMN_CHANGED_AT
+            + " = ifnull((SELECT " + NoteEntry.COLUMN_MODIFIED_AT + " FROM " + NoteEntry.TABLE_NAME
+            + " WHERE " + NoteEntry._ID + " = " + NoteChangeEntry.COLUMN_NOTE_ID + "), 0)";
+
+    // The tag tables and their triggers as they were at version 10, before the trash: every link
+    // counts towards its tag. Version 11 replaces the triggers on the links and on deleted notes
+    private static final String V10_CREATE_TAG_TABLE = "CREATE TABLE " + NoteTagEntry.TABLE_NAME + "("
+            + NoteTagEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + NoteTagEntry.COLUMN_NAME + " TEXT NOT NULL COLLATE NOCASE UNIQUE, "
+            + NoteTagEntry.COLUMN_NOTE_COUNT + " INTEGER NOT NULL DEFAULT 0);";
+
+    private static final String V10_CREATE_TAG_MAP_TABLE = "CREATE TABLE " + NoteTagMapEntry.TABLE_NAME + "("
+            + NoteTagMapEntry.COLUMN_NOTE_ID + " INTEGER NOT NULL, "
+            + NoteTagMapEntry.COLUMN_TAG_ID + " INTEGER NOT NULL, "
+            + "PRIMARY KEY (" + NoteTagMapEntry.COLUMN_NOTE_ID + ", " + NoteTagMapEntry.COLUMN_TAG_ID + "));";
+
+    private static final String V10_CREATE_TAG_MAP_INDEX = "CREATE INDEX "
+            + NoteTagMapEntry.TABLE_NAME + "_tag_idx ON " + NoteTagMapEntry.TABLE_NAME + "("
+            + NoteTagMapEntry.COLUMN_TAG_ID + ", " + NoteTagMapEntry.COLUMN_NOTE_ID + ");";
+
+    // Logs a tagged or untagged note as changed, as version 10's link triggers did
+    private static final String V10_LOG_TAGGED_NOTE = "INSERT OR REPLACE INTO "
+            + NoteChangeEntry.TABLE_NAME + "(" + NoteChangeEntry.COLUMN_NOTE_ID + ", "
+            + NoteChangeEntry.COLUMN_DELETED + ", " + NoteChangeEntry.COLUMN_UUID + ", "
+            + NoteChangeEntry.COLUMN_CHANGED_AT + ") SELECT " + NoteEntry._ID + ", 0, "
+            + NoteEntry.COLUMN_UUID + ", " + NoteEntry.COLUMN_MODIFIED_AT + " FROM "
+            + NoteEntry.TABLE_NAME + " WHERE " + NoteEntry._ID + " = ";
+
+    private static final String[] V10_TAG_TRIGGERS = {
+            "CREATE TRIGGER " + NoteTagMapEntry.TABLE_NAME + "_insert AFTER INSERT ON "
+                    + NoteTagMapEntry.TABLE_NAME + " BEGIN UPDATE " + NoteTagEntry.TABLE_NAME
+                    + " SET " + NoteTagEntry.COLUMN_NOTE_COUNT + " = " + NoteTagEntry.COLUMN_NOTE_COUNT
+                    + " + 1 WHERE " + NoteTagEntry._ID + " = new." + NoteTagMapEntry.COLUMN_TAG_ID + "; "
+                    + V10_LOG_TAGGED_NOTE + "new." + NoteTagMapEntry.COLUMN_NOTE_ID + "; END;",
+            "CREATE TRIGGER " + NoteTagMapEntry.TABLE_NAME + "_delete AFTER DELETE ON "
+                    + NoteTagMapEntry.TABLE_NAME + " BEGIN UPDATE " + NoteTagEntry.TABLE_NAME
+                    + " SET " + NoteTagEntry.COLUMN_NOTE_COUNT + " = " + NoteTagEntry.COLUMN_NOTE_COUNT
+                    + " - 1 WHERE " + NoteTagEntry._ID + " = old." + NoteTagMapEntry.COLUMN_TAG_ID + "; "
+                    + V10_LOG_TAGGED_NOTE + "old." + NoteTagMapEntry.COLUMN_NOTE_ID + "; END;",
+            "CREATE TRIGGER " + NoteTagMapEntry.TABLE_NAME + "_note_delete AFTER DELETE ON "
+                    + NoteEntry.TABLE_NAME + " BEGIN DELETE FROM " + NoteTagMapEntry.TABLE_NAME
+                    + " WHERE " + NoteTagMapEntry.COLUMN_NOTE_ID + " = old." + NoteEntry._ID + "; END;",
+            "CREATE TRIGGER " + NoteTagMapEntry.TABLE_NAME + "_tag_delete AFTER DELETE ON "
+                    + NoteTagEntry.TABLE_NAME + " BEGIN DELETE FROM " + NoteTagMapEntry.TABLE_NAME
+                    + " WHERE " + NoteTagMapEntry.COLUMN_TAG_ID + " = old." + NoteTagEntry._ID + "; END;"
+    };
+
+    // The trash column version 11 added; every existing note starts out of the trash
+    private static final String V11_ADD_DELETED_AT_COLUMN = "ALTER TABLE " + NoteEntry.TABLE_NAME
+            + " ADD COLUMN " + NoteEntry.COLUMN_DELETED_AT + " INTEGER";
+
+    // The notes that aren't in the trash, as version 11's indexes and triggers pick them out
+    private static final String V11_WHERE_LIVE = NoteEntry.COLUMN_DELETED_AT + " IS NULL";
+
+    // Version 11 drops version 4's sort indexes, and the change log and tag triggers it replaces
+    private static final String[] V11_DROPS = {
+            "DROP INDEX IF EXISTS " + NoteEntry.TABLE_NAME + "_modified_idx",
+            "DROP INDEX IF EXISTS " + NoteEntry.TABLE_NAME + "_title_idx",
+            "DROP TRIGGER IF EXISTS " + NoteChangeEntry.TABLE_NAME + "_update",
+            "DROP TRIGGER IF EXISTS " + NoteChangeEntry.TABLE_NAME + "_delete",
+            "DROP TRIGGER IF EXISTS " + NoteTagMapEntry.TABLE_NAME + "_insert",
+            "DROP TRIGGER IF EXISTS " + NoteTagMapEntry.TABLE_NAME + "_delete",
+            "DROP TRIGGER IF EXISTS " + NoteTagMapEntry.TABLE_NAME + "_note_delete"
+    };
+
+    // The sort indexes and the trash index as version 11 made them. Where SQLite has partial
+    // indexes the step adds V11_WHERE_LIVE to the sort indexes and V11_WHERE_TRASHED to the trash
+    // index, the same as a fresh install of that version did
+    private static final String V11_CREATE_MODIFIED_INDEX = "CREATE INDEX "
+            + NoteEntry.TABLE_NAME + "_modified_idx ON " + NoteEntry.TABLE_NAME + "("
+            + NoteEntry.COLUMN_MODIFIED_AT + ", " + NoteEntry._ID + ", " + NoteEntry.COLUMN_TITLE
+            + ", " + NoteEntry.COLUMN_PREVIEW + ", " + NoteEntry.COLUMN_DELETED_AT + ")";
+
+    private static final String V11_CREATE_TITLE_INDEX = "CREATE INDEX "
+            + NoteEntry.TABLE_NAME + "_title_idx ON " + NoteEntry.TABLE_NAME + "("
+            + NoteEntry.COLUMN_TITLE + " COLLATE NOCASE, " + NoteEntry._ID + ", "
+            + NoteEntry.COLUMN_PREVIEW + ", " + NoteEntry.COLUMN_MODIFIED_AT + ", "
+            + NoteEntry.COLUMN_DELETED_AT + ")";
+
+    private static final String V11_CREATE_TRASH_INDEX = "CREATE INDEX "
+            + NoteEntry.TABLE_NAME + "_trash_idx ON " + NoteEntry.TABLE_NAME + "("
+            + NoteEntry.COLUMN_DELETED_AT + ")";
+
+    private static final String V11_WHERE_TRASHED = NoteEntry.COLUMN_DELETED_AT + " IS NOT NULL";
+
+    // Logs a tagged or untagged note as changed, as version 11's link triggers do: a note in the
+    // trash is logged as deleted, at the time it went in
+    private static final String V11_LOG_TAGGED_NOTE = "INSERT OR REPLACE INTO "
+            + NoteChangeEntry.TABLE_NAME + "(" + NoteChangeEntry.COLUMN_NOTE_ID + ", "
+            + NoteChangeEntry.COLUMN_DELETED + ", " + NoteChangeEntry.COLUMN_UUID + ", "
+            + NoteChangeEntry.COLUMN_CHANGED_AT + ") SELECT "
+            + NoteEntry.TABLE_NAME + "." + NoteEntry._ID + ", "
+            + NoteEntry.TABLE_NAME + "." + V11_WHERE_TRASHED + ", "
+            + NoteEntry.TABLE_NAME + "." + NoteEntry.COLUMN_UUID + ", ifnull("
+            + NoteEntry.TABLE_NAME + "." + NoteEntry.COLUMN_DELETED_AT + ", "
+            + NoteEntry.TABLE_NAME + "." + NoteEntry.COLUMN_MODIFIED_AT + ") FROM "
+            + NoteEntry.TABLE_NAME + " WHERE " + NoteEntry._ID + " = ";
+
+    // The change log and tag triggers as version 11 made them, which tell trashed notes apart
+    private static final String[] V11_TRIGGERS = {
+            "CREATE TRIGGER " + NoteChangeEntry.TABLE_NAME + "_update AFTER UPDATE ON "
+                    + NoteEntry.TABLE_NAME + " BEGIN INSERT OR REPLACE INTO " + NoteChangeEntry.TABLE_NAME
+                    + "(" + NoteChangeEntry.COLUMN_NOTE_ID + ", " + NoteChangeEntry.COLUMN_DELETED + ", "
+                    + NoteChangeEntry.COLUMN_UUID + ", " + NoteChangeEntry.COLUMN_CHANGED_AT
+                    + ") VALUES (new." + NoteEntry._ID + ", new." + V11_WHERE_TRASHED + ", new."
+                    + NoteEntry.COLUMN_UUID + ", ifnull(new." + NoteEntry.COLUMN_DELETED_AT + ", new."
+                    + NoteEntry.COLUMN_MODIFIED_AT + ")); END;",
+            "CREATE TRIGGER " + NoteChangeEntry.TABLE_NAME + "_delete AFTER DELETE ON "
+                    + NoteEntry.TABLE_NAME + " WHEN old." + V11_WHERE_LIVE
+                    + " BEGIN INSERT OR REPLACE INTO " + NoteChangeEntry.TABLE_NAME
+                    + "(" + NoteChangeEntry.COLUMN_NOTE_ID + ", " + NoteChangeEntry.COLUMN_DELETED + ", "
+                    + NoteChangeEntry.COLUMN_UUID + ", " + NoteChangeEntry.COLUMN_CHANGED_AT
+                    + ") VALUES (old." + NoteEntry._ID + ", 1, old." + NoteEntry.COLUMN_UUID + ", "
+                    + "CAST((julianday('now') - 2440587.5) * 86400000 AS INTEGER)); END;",
+            "CREATE TRIGGER " + NoteTagMapEntry.TABLE_NAME + "_insert AFTER INSERT ON "
+                    + NoteTagMapEntry.TABLE_NAME + " BEGIN UPDATE " + NoteTagEntry.TABLE_NAME
+                    + " SET " + NoteTagEntry.COLUMN_NOTE_COUNT + " = " + NoteTagEntry.COLUMN_NOTE_COUNT
+                    + " + (1) WHERE " + NoteTagEntry._ID + " = new." + NoteTagMapEntry.COLUMN_TAG_ID
+                    + " AND EXISTS (SELECT 1 FROM " + NoteEntry.TABLE_NAME + " WHERE " + NoteEntry._ID
+                    + " = new." + NoteTagMapEntry.COLUMN_NOTE_ID + " AND " + V11_WHERE_LIVE + "); "
+                    + V11_LOG_TAGGED_NOTE + "new." + NoteTagMapEntry.COLUMN_NOTE_ID + "; END;",
+            "CREATE TRIGGER " + NoteTagMapEntry.TABLE_NAME + "_delete AFTER DELETE ON "
+                    + NoteTagMapEntry.TABLE_NAME + " BEGIN UPDATE " + NoteTagEntry.TABLE_NAME
+                    + " SET " + NoteTagEntry.COLUMN_NOTE_COUNT + " = " + NoteTagEntry.COLUMN_NOTE_COUNT
+                    + " + (-1) WHERE " + NoteTagEntry._ID + " = old." + NoteTagMapEntry.COLUMN_TAG_ID
+                    + " AND EXISTS (SELECT 1 FROM " + NoteEntry.TABLE_NAME + " WHERE " + NoteEntry._ID
+                    + " = old." + NoteTagMapEntry.COLUMN_NOTE_ID + " AND " + V11_WHERE_LIVE + "); "
+                    + V11_LOG_TAGGED_NOTE + "old." + NoteTagMapEntry.COLUMN_NOTE_ID + "; END;",
+            "CREATE TRIGGER " + NoteTagMapEntry.TABLE_NAME + "_note_delete AFTER DELETE ON "
+                    + NoteEntry.TABLE_NAME + " BEGIN UPDATE " + NoteTagEntry.TABLE_NAME + " SET "
+                    + NoteTagEntry.COLUMN_NOTE_COUNT + " = " + NoteTagEntry.COLUMN_NOTE_COUNT
+                    + " - 1 WHERE old." + V11_WHERE_LIVE + " AND " + NoteTagEntry._ID + " IN (SELECT "
+                    + NoteTagMapEntry.COLUMN_TAG_ID + " FROM " + NoteTagMapEntry.TABLE_NAME + " WHERE "
+                    + NoteTagMapEntry.COLUMN_NOTE_ID + " = old." + NoteEntry._ID + "); DELETE FROM "
+                    + NoteTagMapEntry.TABLE_NAME + " WHERE " + NoteTagMapEntry.COLUMN_NOTE_ID
+                    + " = old." + NoteEntry._ID + "; END;",
+            "CREATE TRIGGER " + NoteTagMapEntry.TABLE_NAME + "_note_trash AFTER UPDATE OF "
+                    + NoteEntry.COLUMN_DELETED_AT + " ON " + NoteEntry.TABLE_NAME
+                    + " WHEN (old." + V11_WHERE_LIVE + ") != (new." + V11_WHERE_LIVE + ")"
+                    + " BEGIN UPDATE " + NoteTagEntry.TABLE_NAME + " SET " + NoteTagEntry.COLUMN_NOTE_COUNT
+                    + " = " + NoteTagEntry.COLUMN_NOTE_COUNT + " + CASE WHEN new." + V11_WHERE_LIVE
+                    + " THEN 1 ELSE -1 END WHERE " + NoteTagEntry._ID + " IN (SELECT "
+                    + NoteTagMapEntry.COLUMN_TAG_ID + " FROM " + NoteTagMapEntry.TABLE_NAME + " WHERE "
+                    + NoteTagMapEntry.COLUMN_NOTE_ID + " = new." + NoteEntry._ID + "); END;"
+    };
+
+    // Moves the search table out of the way while version 12 rebuilds it with prefix indexes
+    private static final String V12_OLD_SEARCH_TABLE = NoteSearchEntry.TABLE_NAME + "_old";
+
+    private static final String V12_RENAME_OLD_SEARCH_TABLE = "ALTER TABLE "
+            + NoteSearchEntry.TABLE_NAME + " RENAME TO " + V12_OLD_SEARCH_TABLE;
+
+    private static final String V12_COPY_SEARCH_TEXT = "INSERT INTO " + NoteSearchEntry.TABLE_NAME
+            + "(" + NoteSearchEntry.COLUMN_DOCID + ", " + NoteSearchEntry.COLUMN_TITLE + ", "
+            + NoteSearchEntry.COLUMN_BODY + ") SELECT " + NoteSearchEntry.COLUMN_DOCID + ", "
+            + NoteSearchEntry.COLUMN_TITLE + ", " + NoteSearchEntry.COLUMN_BODY
+            + " FROM " + V12_OLD_SEARCH_TABLE;
+
+    private static final String V12_DROP_OLD_SEARCH_TABLE = "DROP TABLE " + V12_OLD_SEARCH_TABLE;
+
+    // Version 12 drops all three search triggers before the rename, and puts them back as
+    // versions 2 and 6 left them once the new table is in place
+    private static final String[] V12_DROP_SEARCH_TRIGGERS = {
+            "DROP TRIGGER IF EXISTS " + NoteSearchEntry.TABLE_NAME + "_insert",
+            "DROP TRIGGER IF EXISTS " + NoteSearchEntry.TABLE_NAME + "_update",
+            "DROP TRIGGER IF EXISTS " + NoteSearchEntry.TABLE_NAME + "_delete"
+    };
+
+    // The search table with the prefix indexes version 12 added
+    private static final String V12_CREATE_SEARCH_TABLE = "CREATE VIRTUAL TABLE "
+            + NoteSearchEntry.TABLE_NAME + " USING fts4("
+            + NoteSearchEntry.COLUMN_TITLE + ", "
+            + NoteSearchEntry.COLUMN_BODY + ", prefix='1,2');";
+
+    // The timestamp columns version 4 added. Existing notes get the current time, less one
+    // millisecond per newer note, so sorting by modified time keeps them in the order they were
+    // written
+    private static final String V4_ADD_CREATED_AT_COLUMN = "ALTER TABLE " + NoteEntry.TABLE_NAME
+            + " ADD COLUMN " + NoteEntry.COLUMN_CREATED_AT + " INTEGER NOT NULL DEFAULT 0";
+
+    private static final String V4_ADD_MODIFIED_AT_COLUMN = "ALTER TABLE " + NoteEntry.TABLE_NAME
+            + " ADD COLUMN " + NoteEntry.COLUMN_MODIFIED_AT + " INTEGER NOT NULL DEFAULT 0";
+
+    private static final String V4_POPULATE_TIMESTAMPS = "UPDATE " + NoteEntry.TABLE_NAME
+            + " SET " + NoteEntry.COLUMN_CREATED_AT + " = strftime('%s', 'now') * 1000 - ((SELECT max("
+            + NoteEntry._ID + ") FROM " + NoteEntry.TABLE_NAME + ") - " + NoteEntry._ID + "), "
+            + NoteEntry.COLUMN_MODIFIED_AT + " = strftime('%s', 'now') * 1000 - ((SELECT max("
+            + NoteEntry._ID + ") FROM " + NoteEntry.TABLE_NAME + ") - " + NoteEntry._ID + ")";
+
+    // The sort indexes as they were at version 4, before the trash column they now hold existed
+    private static final String V4_CREATE_MODIFIED_INDEX = "CREATE INDEX "
+            + NoteEntry.TABLE_NAME + "_modified_idx ON " + NoteEntry.TABLE_NAME + "("
+            + NoteEntry.COLUMN_MODIFIED_AT + ", " + NoteEntry._ID + ", "
+            + NoteEntry.COLUMN_TITLE + ", " + NoteEntry.COLUMN_PREVIEW + ");";
+
+    private static final String V4_CREATE_TITLE_INDEX = "CREATE INDEX "
+            + NoteEntry.TABLE_NAME + "_title_idx ON " + NoteEntry.TABLE_NAME + "("
+            + NoteEntry.COLUMN_TITLE + " COLLATE NOCASE, " + NoteEntry._ID + ", "
+            + NoteEntry.COLUMN_PREVIEW + ", " + NoteEntry.COLUMN_MODIFIED_AT + ");";
+
+    // Does not need a constructor, should never be instantiated
+    private NoteMigrations() {}
+
+    /** One schema change; version is the database version once the step has run */
+    abstract static class Migration {
+        final int version;
+        final String description;
+
+        Migration(int version, String description) {
+            this.version = version;
+            this.description = description;
+        }
+
+        abstract void migrate(SQLiteDatabase db);
+    }
+
+    // Every migration, in version order
+    static final Migration[] MIGRATIONS = {
+            new Migration(2, "full-text search table") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(V2_CREATE_SEARCH_TABLE);
+                    for (String trigger : V2_SEARCH_TRIGGERS) {
+                        db.execSQL(trigger);
+                    }
+
+                    // Index the notes the user already has
+                    db.execSQL(V2_POPULATE_SEARCH_TABLE);
+                }
+            },
+            new Migration(3, "preview column") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(V3_ADD_PREVIEW_COLUMN);
+                    fillPreviews(db);
+                }
+            },
+            new Migration(4, "timestamps and sort indexes") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(V4_ADD_CREATED_AT_COLUMN);
+                    db.execSQL(V4_ADD_MODIFIED_AT_COLUMN);
+                    db.execSQL(V4_POPULATE_TIMESTAMPS);
+
+                    // Build the indexes after the backfill so each is written once
+                    db.execSQL(V4_CREATE_MODIFIED_INDEX);
+                    db.execSQL(V4_CREATE_TITLE_INDEX);
+                }
+            },
+            new Migration(5, "change log") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(V5_CREATE_CHANGE_LOG);
+                    for (String trigger : V5_CHANGE_TRIGGERS) {
+                        db.execSQL(trigger);
+                    }
+                    db.execSQL(V5_POPULATE_CHANGE_LOG);
+                }
+            },
+            new Migration(6, "compressed bodies") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Compress the long bodies while the old search triggers are gone, so the
+                    // search table keeps the plain text it already has for them
+                    for (String drop : V6_DROP_SEARCH_TRIGGERS) {
+                        db.execSQL(drop);
+                    }
+                    db.execSQL(V6_ADD_BODY_CODEC_COLUMN);
+                    compressLongBodies(db);
+                    for (String trigger : V6_SEARCH_TRIGGERS) {
+                        db.execSQL(trigger);
+                    }
+                }
+            },
+            new Migration(7, "chunked bodies") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(V7_CREATE_CHUNK_TABLE);
+                    db.execSQL(V7_CREATE_CHUNK_DELETE_TRIGGER);
+                    chunkLongBodies(db);
+                }
+            },
+            new Migration(8, "revision history") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Nothing to fill in; each note starts its history the first time it's edited
+                    db.execSQL(V8_CREATE_REVISION_TABLE);
+                    db.execSQL(V8_CREATE_REVISION_DELETE_TRIGGER);
+                }
+            },
+            new Migration(9, "sync ids and tombstones") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(V9_ADD_UUID_COLUMN);
+                    assignUuids(db);
+                    db.execSQL(V9_CREATE_UUID_INDEX);
+
+                    // The change log triggers now copy the UUID and time of each change
+                    for (String drop : V9_DROP_CHANGE_TRIGGERS) {
+                        db.execSQL(drop);
+                    }
+                    for (String column : V9_ADD_CHANGE_COLUMNS) {
+                        db.execSQL(column);
+                    }
+                    db.execSQL(V9_POPULATE_CHANGE_SYNC_COLUMNS);
+                    for (String trigger : V9_CHANGE_TRIGGERS) {
+                        db.execSQL(trigger);
+                    }
+                }
+            },
+            new Migration(10, "tags") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Nothing to fill in; no note has a tag yet
+                    db.execSQL(V10_CREATE_TAG_TABLE);
+                    db.execSQL(V10_CREATE_TAG_MAP_TABLE);
+                    db.execSQL(V10_CREATE_TAG_MAP_INDEX);
+                    for (String trigger : V10_TAG_TRIGGERS) {
+                        db.execSQL(trigger);
+                    }
+                }
+            },
+            new Migration(11, "trash") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Nothing is in the trash yet, so no tag count or change log entry moves
+                    db.execSQL(V11_ADD_DELETED_AT_COLUMN);
+                    for (String drop : V11_DROPS) {
+                        db.execSQL(drop);
+                    }
+
+                    // The sort indexes now leave the trash out, and the trash gets its own
+                    boolean partial = NoteDbHelper.PARTIAL_INDEXES;
+                    db.execSQL(V11_CREATE_MODIFIED_INDEX + (partial ? " WHERE " + V11_WHERE_LIVE : ""));
+                    db.execSQL(V11_CREATE_TITLE_INDEX + (partial ? " WHERE " + V11_WHERE_LIVE : ""));
+                    db.execSQL(V11_CREATE_TRASH_INDEX + (partial ? " WHERE " + V11_WHERE_TRASHED : ""));
+
+                    // The change log and the tag counts now tell trashed notes apart
+                    for (String trigger : V11_TRIGGERS) {
+                        db.execSQL(trigger);
+                    }
+                }
+            },
+            new Migration(12, "search prefix indexes") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Without prefix indexes the search table stays as it is, like a fresh install
+                    if (!NoteDbHelper.PREFIX_INDEXES) {
+                        return;
+                    }
+
+                    // An FTS table can't be altered, so build a new one and copy the text over
+                    // from the old one, which already has compressed and chunked bodies as plain
+                    // text. The triggers go first so the rename can't touch them
+                    for (String drop : V12_DROP_SEARCH_TRIGGERS) {
+                        db.execSQL(drop);
+                    }
+                    db.execSQL(V12_RENAME_OLD_SEARCH_TABLE);
+                    db.execSQL(V12_CREATE_SEARCH_TABLE);
+                    for (String trigger : V6_SEARCH_TRIGGERS) {
+                        db.execSQL(trigger);
+                    }
+                    db.execSQL(V2_SEARCH_TRIGGERS[2]);
+                    db.execSQL(V12_COPY_SEARCH_TEXT);
+                    db.execSQL(V12_DROP_OLD_SEARCH_TABLE);
+                }
+            }
+    };
+
+    // Works out the preview of every note with the same NoteProvider.makePreview a save uses, so
+    // an upgraded note's preview doesn't change the first time it's saved again. Bodies are all
+    // plain text at this version, and are read one at a time so only one is ever in memory
+    private static void fillPreviews(SQLiteDatabase db) {
+        // Collect the ids first; rewriting rows while a cursor is walking the table isn't safe
+        Cursor ids = db.query(NoteEntry.TABLE_NAME, new String[] { NoteEntry._ID },
+                null, null, null, null, null);
+        long[] noteIds;
+        try {
+            noteIds = new long[ids.getCount()];
+            for (int i = 0; ids.moveToNext(); i++) {
+                noteIds[i] = ids.getLong(0);
+            }
+        } finally {
+            ids.close();
+        }
+
+        SQLiteStatement readBody = db.compileStatement("SELECT " + NoteEntry.COLUMN_BODY
+                + " FROM " + NoteEntry.TABLE_NAME + " WHERE " + NoteEntry._ID + " = ?");
+        SQLiteStatement writePreview = db.compileStatement("UPDATE " + NoteEntry.TABLE_NAME
+                + " SET " + NoteEntry.COLUMN_PREVIEW + " = ? WHERE " + NoteEntry._ID + " = ?");
+        try {
+            for (long id : noteIds) {
+                readBody.bindLong(1, id);
+                writePreview.bindString(1, NoteProvider.makePreview(readBody.simpleQueryForString()));
+                writePreview.bindLong(2, id);
+                writePreview.executeUpdateDelete();
+            }
+        } finally {
+            readBody.close();
+            writePreview.close();
+        }
+    }
+
+    // Deflates every body that's long enough to be worth it, one note at a time so only one body
+    // is ever in memory
+    private static void compressLongBodies(SQLiteDatabase db) {
+        // Collect the ids first; rewriting rows while a cursor is walking the table isn't safe
+        Cursor ids = db.query(NoteEntry.TABLE_NAME, new String[] { NoteEntry._ID },
+                "length(" + NoteEntry.COLUMN_BODY + ") >= " + NoteBodyCodec.COMPRESSION_THRESHOLD,
+                null, null, null, null);
+        long[] noteIds;
+        try {
+            noteIds = new long[ids.getCount()];
+            for (int i = 0; ids.moveToNext(); i++) {
+                noteIds[i] = ids.getLong(0);
+            }
+        } finally {
+            ids.close();
+        }
+
+        SQLiteStatement readBody = db.compileStatement("SELECT " + NoteEntry.COLUMN_BODY
+                + " FROM " + NoteEntry.TABLE_NAME + " WHERE " + NoteEntry._ID + " = ?");
+        SQLiteStatement writeBody = db.compileStatement("UPDATE " + NoteEntry.TABLE_NAME
+                + " SET " + NoteEntry.COLUMN_BODY + " = ?, " + NoteEntry.COLUMN_BODY_CODEC + " = "
+                + NoteEntry.BODY_CODEC_DEFLATE + " WHERE " + NoteEntry._ID + " = ?");
+        int compressed = 0;
+        try {
+            for (long id : noteIds) {
+                readBody.bindLong(1, id);
+                byte[] data = NoteBodyCodec.compress(readBody.simpleQueryForString());
+                if (data == null) {
+                    // Didn't shrink enough; leave it as plain text
+                    continue;
+                }
+                writeBody.bindBlob(1, data);
+                writeBody.bindLong(2, id);
+                writeBody.executeUpdateDelete();
+                compressed++;
+            }
+        } finally {
+            readBody.close();
+            writeBody.close();
+        }
+
+        Log.i(LOG_TAG, "Compressed " + compressed + " of " + noteIds.length + " long note bodies");
+    }
+
+    // Gives every existing note a UUID. The old change log triggers are still in place, so this
+    // logs every note as changed, which is what a first sync needs anyway
+    private static void assignUuids(SQLiteDatabase db) {
+        Cursor ids = db.query(NoteEntry.TABLE_NAME, new String[] { NoteEntry._ID },
+                null, null, null, null, null);
+        long[] noteIds;
+        try {
+            noteIds = new long[ids.getCount()];
+            for (int i = 0; ids.moveToNext(); i++) {
+                noteIds[i] = ids.getLong(0);
+            }
+        } finally {
+            ids.close();
+        }
+
+        SQLiteStatement setUuid = db.compileStatement("UPDATE " + NoteEntry.TABLE_NAME
+                + " SET " + NoteEntry.COLUMN_UUID + " = ? WHERE " + NoteEntry._ID + " = ?");
+        try {
+            for (long id : noteIds) {
+                setUuid.bindString(1, UUID.randomUUID().toString());
+                setUuid.bindLong(2, id);
+                setUuid.executeUpdateDelete();
+            }
+        } finally {
+            setUuid.close();
+        }
+    }
+
+    // Moves every body longer than a chunk out of its row and into the chunk table
+    private static void chunkLongBodies(SQLiteDatabase db) {
+        // Any compressed body might be long enough once it's inflated
+        Cursor ids = db.query(NoteEntry.TABLE_NAME, new String[] { NoteEntry._ID },
+                NoteEntry.COLUMN_BODY_CODEC + " = " + NoteEntry.BODY_CODEC_DEFLATE + " OR length("
+                        + NoteEntry.COLUMN_BODY + ") > " + NoteContract.NoteChunkEntry.CHUNK_SIZE,
+                null, null, null, null);
+        long[] noteIds;
+        try {
+            noteIds = new long[ids.getCount()];
+            for (int i = 0; ids.moveToNext(); i++) {
+                noteIds[i] = ids.getLong(0);
+            }
+        } finally {
+            ids.close();
+        }
+
+        SQLiteStatement markChunked = db.compileStatement("UPDATE " + NoteEntry.TABLE_NAME
+                + " SET " + NoteEntry.COLUMN_BODY + " = '', " + NoteEntry.COLUMN_BODY_CODEC + " = "
+                + NoteEntry.BODY_CODEC_CHUNKED + " WHERE " + NoteEntry._ID + " = ?");
+        int chunked = 0;
+        try {
+            for (long id : noteIds) {
+                String body = readStoredBody(db, id);
+                if (body.length() <= NoteContract.NoteChunkEntry.CHUNK_SIZE) {
+                    continue;
+                }
+
+                NoteChunks.replace(db, id, body);
+                markChunked.bindLong(1, id);
+                markChunked.executeUpdateDelete();
+
+                // The search trigger just emptied this note's body, so put the text back
+                db.execSQL(V7_INDEX_BODY, new Object[] { body, id });
+                chunked++;
+            }
+        } finally {
+            markChunked.close();
+        }
+
+        Log.i(LOG_TAG, "Chunked " + chunked + " of " + noteIds.length + " long note bodies");
+    }
+
+    // Reads a plain or deflated body. A plain one is read through a statement rather than a
+    // cursor, since a huge one wouldn't fit in a cursor window (that's what chunking fixes)
+    private static String readStoredBody(SQLiteDatabase db, long id) {
+        String[] args = { String.valueOf(id) };
+        Cursor row = db.query(NoteEntry.TABLE_NAME, new String[] { NoteEntry.COLUMN_BODY_CODEC },
+                NoteEntry._ID + " = ?", args, null, null, null);
+        int codec;
+        try {
+            row.moveToFirst();
+            codec = row.getInt(0);
+        } finally {
+            row.close();
+        }
+
+        if (codec != NoteEntry.BODY_CODEC_DEFLATE) {
+            return DatabaseUtils.stringForQuery(db, "SELECT " + NoteEntry.COLUMN_BODY + " FROM "
+                    + NoteEntry.TABLE_NAME + " WHERE " + NoteEntry._ID + " = ?", args);
+        }
+
+        row = db.query(NoteEntry.TABLE_NAME, new String[] { NoteEntry.COLUMN_BODY },
+                NoteEntry._ID + " = ?", args, null, null, null);
+        try {
+            row.moveToFirst();
+            return NoteBodyCursor.decode(codec, row, 0);
+        } finally {
+            row.close();
+        }
+    }
+
+    /**
+     * Runs every migration after oldVersion up to and including newVersion. Throws if a version
+     * in between has no migration, since carrying on would leave the schema half upgraded.
+     * */
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        long upgradeStart = SystemClock.elapsedRealtime();
+        int version = oldVersion;
+
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version <= oldVersion || migration.version > newVersion) {
+                continue;
+            }
+            if (migration.version != version + 1) {
+                throw new IllegalStateException("No migration from version " + version
+                        + " to " + (version + 1));
+            }
+
+            long stepStart = SystemClock.elapsedRealtime();
+            db.beginTransaction();
+            try {
+                migration.migrate(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            Log.i(LOG_TAG, "Migrated to version " + migration.version + " (" + migration.description
+                    + ") in " + (SystemClock.elapsedRealtime() - stepStart) + " ms");
+            version = migration.version;
+        }
+
+        if (version != newVersion) {
+            throw new IllegalStateException("No migration from version " + version
+                    + " to " + newVersion);
+        }
+
+        Log.i(LOG_TAG, "Upgraded database from version " + oldVersion + " to " + newVersion
+                + " in " + (SystemClock.elapsedRealtime() - upgradeStart) + " ms");
+    }
+}
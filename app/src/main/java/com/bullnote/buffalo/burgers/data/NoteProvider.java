@@ -1,14 +1,43 @@
 package com.bullnote.buffalo.burgers.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteChangeEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteChunkEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteRevisionEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTagEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTrashEntry;
+
 /**
  * Content Provider for interacting with the database
  */
@@ -18,6 +47,17 @@ public class NoteProvider extends ContentProvider {
     // URI matcher codes for the content URI of the pets table and a single pet
     public static final int NOTES = 100;
     public static final int NOTE_ID = 101;
+    public static final int NOTE_SEARCH = 102;
+    public static final int NOTE_CHANGES = 103;
+    public static final int NOTE_CHUNKS = 104;
+    public static final int NOTE_REVISIONS = 105;
+    public static final int NOTE_REVISION_ID = 106;
+    public static final int TAGS = 107;
+    public static final int TAG_ID = 108;
+    public static final int NOTE_TAGS = 109;
+    public static final int NOTE_TAG_ID = 110;
+    public static final int TRASH = 111;
+    public static final int TRASH_ID = 112;
 
     // UriMatcher object to match a content URI to a corresponding code
     public static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
@@ -30,6 +70,28 @@ public class NoteProvider extends ContentProvider {
     static {
         sUriMatcher.addURI(NoteContract.CONTENT_AUTHORITY, NoteContract.PATH_NOTES, NOTES);
         sUriMatcher.addURI(NoteContract.CONTENT_AUTHORITY, NoteContract.PATH_NOTES + "/#", NOTE_ID);
+        sUriMatcher.addURI(NoteContract.CONTENT_AUTHORITY,
+                NoteContract.PATH_NOTES + "/" + NoteContract.PATH_SEARCH, NOTE_SEARCH);
+        sUriMatcher.addURI(NoteContract.CONTENT_AUTHORITY,
+                NoteContract.PATH_NOTES + "/" + NoteContract.PATH_CHANGES, NOTE_CHANGES);
+        sUriMatcher.addURI(NoteContract.CONTENT_AUTHORITY,
+                NoteContract.PATH_NOTES + "/#/" + NoteContract.PATH_CHUNKS, NOTE_CHUNKS);
+        sUriMatcher.addURI(NoteContract.CONTENT_AUTHORITY,
+                NoteContract.PATH_NOTES + "/#/" + NoteContract.PATH_REVISIONS, NOTE_REVISIONS);
+        sUriMatcher.addURI(NoteContract.CONTENT_AUTHORITY,
+                NoteContract.PATH_NOTES + "/#/" + NoteContract.PATH_REVISIONS + "/#", NOTE_REVISION_ID);
+        sUriMatcher.addURI(NoteContract.CONTENT_AUTHORITY,
+                NoteContract.PATH_NOTES + "/" + NoteContract.PATH_TAGS, TAGS);
+        sUriMatcher.addURI(NoteContract.CONTENT_AUTHORITY,
+                NoteContract.PATH_NOTES + "/" + NoteContract.PATH_TAGS + "/#", TAG_ID);
+        sUriMatcher.addURI(NoteContract.CONTENT_AUTHORITY,
+                NoteContract.PATH_NOTES + "/#/" + NoteContract.PATH_TAGS, NOTE_TAGS);
+        sUriMatcher.addURI(NoteContract.CONTENT_AUTHORITY,
+                NoteContract.PATH_NOTES + "/#/" + NoteContract.PATH_TAGS + "/#", NOTE_TAG_ID);
+        sUriMatcher.addURI(NoteContract.CONTENT_AUTHORITY,
+                NoteContract.PATH_NOTES + "/" + NoteContract.PATH_TRASH, TRASH);
+        sUriMatcher.addURI(NoteContract.CONTENT_AUTHORITY,
+                NoteContract.PATH_NOTES + "/" + NoteContract.PATH_TRASH + "/#", TRASH_ID);
     }
 
     // Log tag
@@ -38,18 +100,108 @@ public class NoteProvider extends ContentProvider {
     // Database helper
     private NoteDbHelper mDbHelper;
 
+    // Recently read notes, so reopening one doesn't have to go back to the database
+    private NoteCache mNoteCache;
+
+    // Timing of every operation, and the cursor factory that counts window fills into it
+    private final NoteProviderStats mStats = new NoteProviderStats();
+    private NoteQueryTracker mQueryTracker;
+
+    // Pre-compiled statements for the writable database, made the first time they're needed.
+    // Guarded by "this"
+    private NoteStatements mStatements;
+
+    // Notes inserted per import transaction; small enough that a note being saved meanwhile only
+    // waits a few milliseconds
+    static final int IMPORT_BATCH_SIZE = 50;
+
+    // The report of the last maintenance run, for dump; null until one has run
+    private volatile String mLastMaintenance;
+
+    // Flags a note's entry in the change log as written by the sync engine
+    private static final String SQL_MARK_CHANGE_FROM_SYNC = "UPDATE " + NoteChangeEntry.TABLE_NAME
+            + " SET " + NoteChangeEntry.COLUMN_FROM_SYNC + " = 1 WHERE "
+            + NoteChangeEntry.COLUMN_NOTE_ID + " = ?";
+
+    // Set while applyBatch is running on a thread, so the operations inside it hold back their
+    // change notifications and the batch sends a single one at the end
+    private final ThreadLocal<BatchState> mBatchState = new ThreadLocal<BatchState>();
+
     @Override
     public boolean onCreate() {
+        // Providers are created before any activity, so this is the start of a cold start
+        StartupTrace.mark(StartupTrace.PROVIDER_CREATED);
+
         // Initialize the database helper as soon as the Activity is created
-        mDbHelper = new NoteDbHelper(getContext());
+        mQueryTracker = new NoteQueryTracker(mStats);
+        mDbHelper = new NoteDbHelper(getContext(), NoteDbProfile.DEFAULT, mQueryTracker);
+        mNoteCache = new NoteCache(NoteCache.DEFAULT_MAX_BYTES);
 
+        warmUp();
         return true;
     }
 
-    // Perform a query for the given URI
+    /*
+    * Opens the database on a background thread while the activity is still being created. By the
+    * time the list asks for its first page, any upgrade is done, the connection is set up, the
+    * statements are compiled and the first page's index pages are in memory, so the query only
+    * has to read them. The list's query waits for the open (getWritableDatabase is synchronized)
+    * rather than doing it again.
+    * */
+    private void warmUp() {
+        Thread warmUp = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    SQLiteDatabase database = mDbHelper.getWritableDatabase();
+                    statements(database);
+                    Cursor firstPage = database.rawQuery(NoteMaintenance.SQL_LIST_PROBE, null);
+                    try {
+                        firstPage.getCount();
+                    } finally {
+                        firstPage.close();
+                    }
+                    StartupTrace.mark(StartupTrace.DATABASE_WARM);
+                } catch (SQLiteException e) {
+                    // The list's own query opens the database and reports the problem
+                    Log.w(LOG_TAG, "Could not warm up the database", e);
+                }
+            }
+        }, "NoteDbWarmUp");
+        warmUp.start();
+    }
+
+    // Perform a query for the given URI, timing it for the stats
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        long start = System.nanoTime();
+        mQueryTracker.startTracking();
+        Cursor cursor;
+        int rows;
+        List<String> sql;
+        try {
+            cursor = runQuery(uri, projection, selection, selectionArgs, sortOrder);
+
+            // Reading the count fills the cursor's first window, which is most of a query's work.
+            // Whoever reads the cursor does that straight away anyway (CursorLoader does), so doing
+            // it here only means it's counted in the time
+            rows = cursor == null ? 0 : cursor.getCount();
+        } finally {
+            sql = mQueryTracker.stopTracking();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        mStats.record(NoteProviderStats.OP_QUERY, elapsed, rows);
+        if (mStats.isSlow(elapsed)) {
+            logSlowQuery(uri, elapsed, sql);
+        }
+        return cursor;
+    }
+
+    // Perform a query for the given URI
+    private Cursor runQuery(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                            String sortOrder) {
 
         // Get a readable database to query and the cursor that will be returned
         SQLiteDatabase database = mDbHelper.getReadableDatabase();
@@ -59,15 +211,57 @@ public class NoteProvider extends ContentProvider {
         int match = sUriMatcher.match(uri);
         switch(match){
             case NOTES:
-                // return the the entire table
-                cursor = database.query(
+                // Notes in the trash are left out, which is also what lets the sort indexes leave
+                // them out, unless the caller asks for them
+                if (!Boolean.parseBoolean(
+                        uri.getQueryParameter(NoteEntry.QUERY_PARAMETER_INCLUDE_TRASHED))) {
+                    selection = DatabaseUtils.concatenateWhere(selection, NoteDbHelper.SQL_WHERE_LIVE);
+                }
+
+                // A sort query parameter picks one of the indexed sort orders
+                String sort = uri.getQueryParameter(NoteEntry.QUERY_PARAMETER_SORT);
+                if (sort != null) {
+                    sortOrder = sortOrderFor(sort);
+                }
+
+                // If the caller asked for a page, only return the notes after the last one they
+                // already have, in a fixed order so the pages line up; otherwise return the
+                // entire table
+                String limit = uri.getQueryParameter(NoteEntry.QUERY_PARAMETER_LIMIT);
+                if (limit != null) {
+                    String afterId = uri.getQueryParameter(NoteEntry.QUERY_PARAMETER_AFTER_ID);
+                    if (afterId != null) {
+                        String afterKey = uri.getQueryParameter(NoteEntry.QUERY_PARAMETER_AFTER_KEY);
+                        selection = DatabaseUtils.concatenateWhere(selection, pageSelectionFor(sort));
+                        selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                                pageSelectionArgsFor(sort, afterKey, Long.parseLong(afterId)));
+                    }
+                    limit = String.valueOf(Integer.parseInt(limit));
+                    if (sort == null) {
+                        sortOrder = NoteEntry._ID + " ASC";
+                    }
+                }
+
+                // Tag query parameters narrow the list down to the notes with all of those tags
+                List<String> tagIds = uri.getQueryParameters(NoteEntry.QUERY_PARAMETER_TAG);
+                if (!tagIds.isEmpty()) {
+                    selection = DatabaseUtils.concatenateWhere(selection,
+                            NoteTags.filterSelection(tagIds.size()));
+                    selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                            NoteTags.filterArgs(tagIds));
+                }
+
+                // Long bodies are stored compressed or in chunks; the wrapper only turns them back
+                // into text if they're read
+                cursor = NoteBodyCursor.wrap(database.query(
                         NoteContract.NoteEntry.TABLE_NAME,
-                        projection,
+                        NoteBodyCursor.projectionFor(projection),
                         selection,
                         selectionArgs,
                         null,
                         null,
-                        sortOrder);
+                        sortOrder,
+                        limit), database);
                 break;
 
             case NOTE_ID:
@@ -75,20 +269,178 @@ public class NoteProvider extends ContentProvider {
                 // For an example URI such as "content://com.example.android.pets/notes/3",
                 // the selection will be "_id=?" and the selection argument will be a
                 // String array containing the actual ID of 3 in this case.
+                long id = ContentUris.parseId(uri);
                 selection = NoteContract.NoteEntry._ID + "=?";
-                selectionArgs = new String[] {String.valueOf(ContentUris.parseId(uri)) };
+                selectionArgs = new String[] {String.valueOf(id) };
 
-                cursor = database.query(
+                // Anything that only needs columns the cache holds (like the editor) is served
+                // from memory if the note was read recently
+                if (mNoteCache.canServe(projection)) {
+                    cursor = mNoteCache.get(id, projection);
+                    if (cursor == null) {
+                        cursor = queryIntoCache(database, id, projection);
+                    }
+                    break;
+                }
+
+                cursor = NoteBodyCursor.wrap(database.query(
                         NoteContract.NoteEntry.TABLE_NAME,
-                        projection,
+                        NoteBodyCursor.projectionFor(projection),
                         selection,
                         selectionArgs,
                         null,
                         null,
                         sortOrder
-                );
+                ), database);
                 break;
 
+            case NOTE_CHUNKS:
+                // Return a few chunks of one note's body at a time, so even a huge body can be
+                // read without any one cursor having to hold all of it
+                long noteId = Long.parseLong(uri.getPathSegments().get(1));
+                String from = uri.getQueryParameter(NoteChunkEntry.QUERY_PARAMETER_FROM);
+                String chunkLimit = uri.getQueryParameter(NoteChunkEntry.QUERY_PARAMETER_LIMIT);
+                cursor = NoteChunks.query(database, noteId,
+                        from == null ? 0 : Integer.parseInt(from),
+                        chunkLimit == null ? -1 : Integer.parseInt(chunkLimit));
+
+                // The chunks change whenever their note does
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        ContentUris.withAppendedId(NoteEntry.CONTENT_URI, noteId));
+                return cursor;
+
+            case NOTE_REVISIONS:
+                // List the note's revisions, newest first
+                long revisionsNoteId = Long.parseLong(uri.getPathSegments().get(1));
+                selection = DatabaseUtils.concatenateWhere(selection,
+                        NoteRevisionEntry.COLUMN_NOTE_ID + " = ?");
+                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                        new String[] { String.valueOf(revisionsNoteId) });
+                if (sortOrder == null) {
+                    sortOrder = NoteRevisionEntry.COLUMN_REVISION + " DESC";
+                }
+
+                cursor = database.query(
+                        NoteRevisionEntry.TABLE_NAME,
+                        projection == null ? NoteRevisions.LIST_COLUMNS : projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder);
+
+                // Every save of the note can add a revision
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        ContentUris.withAppendedId(NoteEntry.CONTENT_URI, revisionsNoteId));
+                return cursor;
+
+            case NOTE_REVISION_ID:
+                // Rebuild one revision from its snapshot and the deltas after it
+                long revisionNoteId = Long.parseLong(uri.getPathSegments().get(1));
+                cursor = NoteRevisions.query(database, revisionNoteId,
+                        Integer.parseInt(uri.getLastPathSegment()));
+
+                // A revision can be folded into by the next save, or pruned
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        ContentUris.withAppendedId(NoteEntry.CONTENT_URI, revisionNoteId));
+                return cursor;
+
+            case TAG_ID:
+                selection = DatabaseUtils.concatenateWhere(selection, NoteTagEntry._ID + " = ?");
+                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                        new String[] { String.valueOf(ContentUris.parseId(uri)) });
+                // Fall through to read the tag like any other
+            case TAGS:
+                // Every tag with its note count, which the triggers keep so nothing is counted here
+                cursor = database.query(
+                        NoteTagEntry.TABLE_NAME,
+                        projection == null ? NoteTags.TAG_COLUMNS : projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder == null ? NoteTags.SORT_BY_NAME : sortOrder);
+
+                // Deleting or tagging a note changes the counts, so watch every note
+                cursor.setNotificationUri(getContext().getContentResolver(), NoteEntry.CONTENT_URI);
+                return cursor;
+
+            case NOTE_TAGS:
+                long taggedNoteId = Long.parseLong(uri.getPathSegments().get(1));
+                cursor = NoteTags.queryNoteTags(database, taggedNoteId);
+
+                // Tagging the note notifies a URI under the note's own
+                cursor.setNotificationUri(getContext().getContentResolver(),
+                        ContentUris.withAppendedId(NoteEntry.CONTENT_URI, taggedNoteId));
+                return cursor;
+
+            case TRASH_ID:
+                selection = DatabaseUtils.concatenateWhere(selection, NoteEntry._ID + " = ?");
+                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                        new String[] { String.valueOf(ContentUris.parseId(uri)) });
+                // Fall through to read the note like any other in the trash
+            case TRASH:
+                // The trash, newest first, read through its own index
+                cursor = database.query(
+                        NoteEntry.TABLE_NAME,
+                        projection == null ? NoteTrash.TRASH_COLUMNS : projection,
+                        DatabaseUtils.concatenateWhere(selection, NoteTrash.SQL_WHERE_TRASHED),
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder == null ? NoteTrash.SORT_BY_DELETED : sortOrder);
+
+                // Deleting a note puts it in here, so watch every note
+                cursor.setNotificationUri(getContext().getContentResolver(), NoteEntry.CONTENT_URI);
+                return cursor;
+
+            case NOTE_SEARCH:
+                // Turn what the user typed into an FTS query; if there's nothing searchable in it
+                // then nothing can match, so skip the database entirely
+                String matchQuery = buildMatchQuery(
+                        uri.getQueryParameter(NoteEntry.QUERY_PARAMETER_SEARCH));
+                if (matchQuery == null) {
+                    cursor = new MatrixCursor(NoteSearch.SEARCH_COLUMNS, 0);
+                } else {
+                    cursor = NoteSearch.search(database, matchQuery);
+                }
+
+                // Search results come from the notes table, so watch that instead of the search
+                // URI (whose query parameter changes on every keystroke)
+                cursor.setNotificationUri(getContext().getContentResolver(), NoteEntry.CONTENT_URI);
+                return cursor;
+
+            case NOTE_CHANGES:
+                // Return the changes logged after the "since" version, oldest first
+                String since = uri.getQueryParameter(NoteChangeEntry.QUERY_PARAMETER_SINCE);
+                if (since != null) {
+                    selection = DatabaseUtils.concatenateWhere(selection,
+                            NoteChangeEntry.COLUMN_VERSION + " > ?");
+                    selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                            new String[] { String.valueOf(Long.parseLong(since)) });
+                }
+                if (sortOrder == null) {
+                    sortOrder = NoteChangeEntry.COLUMN_VERSION + " ASC";
+                }
+                String changeLimit = uri.getQueryParameter(NoteChangeEntry.QUERY_PARAMETER_LIMIT);
+                if (changeLimit != null) {
+                    changeLimit = String.valueOf(Integer.parseInt(changeLimit));
+                }
+
+                cursor = database.query(
+                        NoteChangeEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder,
+                        changeLimit);
+
+                // Any change to a note adds to the log
+                cursor.setNotificationUri(getContext().getContentResolver(), NoteEntry.CONTENT_URI);
+                return cursor;
+
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
@@ -101,13 +453,91 @@ public class NoteProvider extends ContentProvider {
         return cursor;
     }
 
+    // Reads every cached column of a note from the database, caches it and returns a cursor over
+    // the columns that were asked for. Returns an empty cursor if there's no such note
+    private Cursor queryIntoCache(SQLiteDatabase database, long id, String[] projection) {
+        // Read the generation before the row, so an eviction in between stops it being cached
+        long generation = mNoteCache.generation();
+        String[] idArgs = new String[] { String.valueOf(id) };
+        Cursor row = database.rawQuery(NoteStatements.SQL_QUERY_CACHE_ROW, idArgs);
+        try {
+            if (!row.moveToFirst()) {
+                return new MatrixCursor(projection, 0);
+            }
+
+            // A chunked body is too big to be worth caching, and joining it up just to read,
+            // say, the title would be a waste; read only what was asked for instead
+            int codec = row.getInt(row.getColumnIndexOrThrow(NoteEntry.COLUMN_BODY_CODEC));
+            if (codec == NoteEntry.BODY_CODEC_CHUNKED) {
+                return NoteBodyCursor.wrap(database.query(NoteEntry.TABLE_NAME,
+                        NoteBodyCursor.projectionFor(projection), NoteEntry._ID + "=?", idArgs,
+                        null, null, null), database);
+            }
+
+            return mNoteCache.put(id, NoteBodyCursor.wrap(row, database), generation, projection);
+        } finally {
+            row.close();
+        }
+    }
+
+    // Returns the ORDER BY clause for one of the NoteEntry sort orders. The _ID breaks ties so
+    // pages never skip or repeat notes with the same sort key
+    private static String sortOrderFor(String sort) {
+        if (NoteEntry.SORT_MODIFIED.equals(sort)) {
+            return NoteEntry.COLUMN_MODIFIED_AT + " DESC, " + NoteEntry._ID + " DESC";
+        } else if (NoteEntry.SORT_TITLE.equals(sort)) {
+            return NoteEntry.COLUMN_TITLE + " COLLATE NOCASE ASC, " + NoteEntry._ID + " ASC";
+        }
+        throw new IllegalArgumentException("Unknown sort order " + sort);
+    }
+
+    // Returns the selection for the notes that come after a given note in the sort order. The
+    // first comparison is a plain range on the sort key so the index can seek straight to it
+    private static String pageSelectionFor(String sort) {
+        if (sort == null) {
+            return NoteEntry._ID + " > ?";
+        } else if (NoteEntry.SORT_MODIFIED.equals(sort)) {
+            return NoteEntry.COLUMN_MODIFIED_AT + " <= ? AND (" + NoteEntry.COLUMN_MODIFIED_AT
+                    + " < ? OR " + NoteEntry._ID + " < ?)";
+        }
+        return NoteEntry.COLUMN_TITLE + " COLLATE NOCASE >= ? AND (" + NoteEntry.COLUMN_TITLE
+                + " COLLATE NOCASE > ? OR " + NoteEntry._ID + " > ?)";
+    }
+
+    // Returns the arguments for pageSelectionFor
+    private static String[] pageSelectionArgsFor(String sort, String afterKey, long afterId) {
+        String id = String.valueOf(afterId);
+        if (sort == null) {
+            return new String[] { id };
+        }
+        if (afterKey == null) {
+            throw new IllegalArgumentException("Sorted pages need "
+                    + NoteEntry.QUERY_PARAMETER_AFTER_KEY);
+        }
+        if (NoteEntry.SORT_MODIFIED.equals(sort)) {
+            afterKey = String.valueOf(Long.parseLong(afterKey));
+        }
+        return new String[] { afterKey, afterKey, id };
+    }
+
     /** Inserts a new row into the database; calls the helper method below */
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
+        long start = System.nanoTime();
+        Uri noteUri = runInsert(uri, contentValues);
+        recordWrite(NoteProviderStats.OP_INSERT, uri, start, noteUri == null ? 0 : 1);
+        return noteUri;
+    }
+
+    private Uri runInsert(Uri uri, ContentValues contentValues) {
         final int match = sUriMatcher.match(uri);
         switch(match){
             case NOTES:
                 return insertNote(uri, contentValues);
+            case TAGS:
+                return insertTag(contentValues);
+            case NOTE_TAGS:
+                return tagNote(uri, contentValues);
             default:
                 throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
@@ -115,83 +545,557 @@ public class NoteProvider extends ContentProvider {
 
     private Uri insertNote(Uri uri, ContentValues contentValues){
         // Sanity checks go here
-        String title = contentValues.getAsString(NoteContract.NoteEntry.COLUMN_TITLE);
-        String body = contentValues.getAsString(NoteContract.NoteEntry.COLUMN_BODY);
-        if (title == null || body == null){
-            throw new IllegalArgumentException("Fields cannot be empty!");
-        }
+        checkNewNote(contentValues);
+
+        // The preview always comes from the body, never from the caller; insertNoteRow makes it
+        String body = contentValues.getAsString(NoteEntry.COLUMN_BODY);
+
+        // Stamp the note with the current time unless the caller brought its own timestamps
+        long now = System.currentTimeMillis();
+        Long createdAt = contentValues.getAsLong(NoteEntry.COLUMN_CREATED_AT);
+        Long modifiedAt = contentValues.getAsLong(NoteEntry.COLUMN_MODIFIED_AT);
+
+        // Every note gets a UUID, unless it's arriving from another device with its own
+        String uuid = contentValues.getAsString(NoteEntry.COLUMN_UUID);
 
         // get a writable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        // Insert a new note into the database, returning the ID of that new row.
-        // The first argument for db.insert() is the database table name.
-        // The second argument provides the name of a column in which the framework
-        // can insert NULL in the event that the ContentValues is empty (if
-        // this is set to "null", then the framework will not insert a row when
-        // there are no values).
-        // The third argument is the ContentValues object containing the info for the note.
-        long id = database.insert(NoteContract.NoteEntry.TABLE_NAME, null, contentValues);
+        // Insert a new note into the database with the pre-compiled insert, returning the ID of
+        // that new row. Chunks and search text for a long body go in the same transaction
+        long id;
+        database.beginTransaction();
+        try {
+            id = insertNoteRow(database, statements(database),
+                    contentValues.getAsString(NoteEntry.COLUMN_TITLE), body,
+                    createdAt == null ? now : createdAt,
+                    modifiedAt == null ? now : modifiedAt,
+                    uuid == null ? UUID.randomUUID().toString() : uuid);
+            if (id != -1 && isCallerSyncAdapter(uri)) {
+                markChangeFromSync(database, id);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
         // If the id is -1, the insertion failed. Log an error and return null
         if (id == -1){
             Log.e(LOG_TAG, "Failed to insert row for " + uri);
             return null;
         }
 
-        // Notify all listeners that the data has changed for the pet content URI
-        getContext().getContentResolver().notifyChange(uri, null);
+        // Notify listeners of the new note's own URI; observers of the whole list still hear it,
+        // but editors open on other notes don't
+        Uri noteUri = ContentUris.withAppendedId(NoteEntry.CONTENT_URI, id);
+        notifyChange(noteUri);
+
+        return noteUri;
+    }
+
+    // Adds a tag by name, or finds the one that already has the name
+    private Uri insertTag(ContentValues values) {
+        String name = NoteTags.checkName(values.getAsString(NoteTagEntry.COLUMN_NAME));
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+        long id;
+        boolean created = false;
+        database.beginTransaction();
+        try {
+            id = NoteTags.find(database, name);
+            if (id == -1) {
+                id = NoteTags.create(database, name);
+                created = true;
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        Uri tagUri = ContentUris.withAppendedId(NoteTagEntry.CONTENT_URI, id);
+        if (created) {
+            notifyChange(NoteTagEntry.CONTENT_URI);
+        }
+        return tagUri;
+    }
+
+    // Gives a note a tag, by the tag's _ID or by name (making a new tag for a new name). Returns
+    // null if the note or the tag doesn't exist
+    private Uri tagNote(Uri uri, ContentValues values) {
+        long noteId = Long.parseLong(uri.getPathSegments().get(1));
+        Long tagId = values.getAsLong(NoteTagEntry._ID);
+        String name = values.getAsString(NoteTagEntry.COLUMN_NAME);
+        if (tagId == null && name == null) {
+            throw new IllegalArgumentException("Tagging a note needs the tag's "
+                    + NoteTagEntry._ID + " or " + NoteTagEntry.COLUMN_NAME);
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        boolean tagged;
+        database.beginTransaction();
+        try {
+            if (tagId == null) {
+                tagId = NoteTags.findOrCreate(database, name);
+            }
+            tagged = NoteTags.tagNote(database, noteId, tagId);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (!tagged) {
+            Log.e(LOG_TAG, "Failed to tag note " + noteId + " with tag " + tagId);
+            return null;
+        }
+
+        // The note's own tags URI, so the list and the tag counts hear about it too
+        notifyChange(NoteTagEntry.buildNoteTagsUri(noteId));
+        return NoteTagEntry.buildNoteTagUri(noteId, tagId);
+    }
+
+    /**
+     * Inserts many notes at once, e.g. when importing or restoring. The default implementation
+     * calls insert() for every row, which means a transaction, a change notification and a
+     * loader requery per note; here the whole batch is one transaction using the pre-compiled
+     * insert, followed by one notification.
+     * */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        long start = System.nanoTime();
+        int rowsInserted = runBulkInsert(uri, values);
+        recordWrite(NoteProviderStats.OP_BULK_INSERT, uri, start, rowsInserted);
+        return rowsInserted;
+    }
+
+    private int runBulkInsert(Uri uri, ContentValues[] values) {
+        if (sUriMatcher.match(uri) != NOTES) {
+            throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        }
+
+        // Check every row up front so a bad one can't leave half the batch written
+        for (ContentValues contentValues : values) {
+            checkNewNote(contentValues);
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsInserted = 0;
+        long now = System.currentTimeMillis();
+
+        database.beginTransaction();
+        try {
+            NoteStatements statements = statements(database);
+            for (ContentValues contentValues : values) {
+                // Keep the caller's timestamps (e.g. from a backup), otherwise use the current time
+                Long createdAt = contentValues.getAsLong(NoteEntry.COLUMN_CREATED_AT);
+                Long modifiedAt = contentValues.getAsLong(NoteEntry.COLUMN_MODIFIED_AT);
+
+                String uuid = contentValues.getAsString(NoteEntry.COLUMN_UUID);
+
+                long id = insertNoteRow(database, statements,
+                        contentValues.getAsString(NoteEntry.COLUMN_TITLE),
+                        contentValues.getAsString(NoteEntry.COLUMN_BODY),
+                        createdAt == null ? now : createdAt,
+                        modifiedAt == null ? now : modifiedAt,
+                        uuid == null ? UUID.randomUUID().toString() : uuid);
+                if (id == -1) {
+                    Log.e(LOG_TAG, "Failed to insert row for " + uri);
+                } else {
+                    rowsInserted++;
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rowsInserted != 0) {
+            notifyChange(uri);
+        }
+
+        return rowsInserted;
+    }
+
+    /**
+     * Adds every note in a NoteArchive file, for METHOD_IMPORT_NOTES. The notes are read from the
+     * file one at a time as they're inserted, so importing any number of them takes the same
+     * memory, and they're committed IMPORT_BATCH_SIZE per transaction like NoteTrash.purge, so a
+     * big import doesn't hold the write lock, or grow the WAL, for its whole run and autosave gets
+     * in between batches.
+     *
+     * The file is read through once before anything is written, so a damaged one imports
+     * nothing. Only if it changes between that check and the import do the batches already
+     * committed stay.
+     * */
+    private int importNotes(String path) {
+        try {
+            checkArchive(path);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not import notes from " + path, e);
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsInserted = 0;
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(path);
+            NoteArchive.Reader reader = new NoteArchive.Reader(in.getChannel());
+            NoteArchive.Entry entry = reader.next();
+            while (entry != null) {
+                int batchInserted = 0;
+                database.beginTransaction();
+                try {
+                    NoteStatements statements = statements(database);
+                    for (int i = 0; i < IMPORT_BATCH_SIZE && entry != null; i++) {
+                        // Imported notes are new notes here, so they get new UUIDs
+                        long id = insertNoteRow(database, statements, entry.title, entry.body,
+                                entry.createdAt, entry.modifiedAt, UUID.randomUUID().toString());
+                        if (id == -1) {
+                            Log.e(LOG_TAG, "Failed to import note " + entry.title);
+                        } else {
+                            batchInserted++;
+                        }
+                        entry = reader.next();
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+                rowsInserted += batchInserted;
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not import notes from " + path, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.w(LOG_TAG, "Could not close " + path, e);
+                }
+            }
+            if (rowsInserted != 0) {
+                notifyChange(NoteEntry.CONTENT_URI);
+            }
+        }
+
+        return rowsInserted;
+    }
+
+    // Reads a NoteArchive file to the end without keeping anything, so a damaged one throws
+    private static void checkArchive(String path) throws IOException {
+        FileInputStream in = new FileInputStream(path);
+        try {
+            NoteArchive.Reader reader = new NoteArchive.Reader(in.getChannel());
+            while (reader.next() != null) {
+                // Each note is read and dropped
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // Inserts one note with the pre-compiled statements, storing a long body compressed or in
+    // chunks. Returns the new _ID, or -1 if it failed. Call this inside a transaction
+    private static long insertNoteRow(SQLiteDatabase database, NoteStatements statements,
+                                      String title, String body, long createdAt, long modifiedAt,
+                                      String uuid) {
+        NoteBodyCodec.EncodedBody encodedBody = NoteBodyCodec.encode(body);
+        SQLiteStatement statement = statements.insert();
+        statement.bindString(1, title);
+        if (encodedBody.value instanceof byte[]) {
+            statement.bindBlob(2, (byte[]) encodedBody.value);
+        } else {
+            statement.bindString(2, (String) encodedBody.value);
+        }
+        statement.bindString(3, makePreview(body));
+        statement.bindLong(4, createdAt);
+        statement.bindLong(5, modifiedAt);
+        statement.bindLong(6, encodedBody.codec);
+        statement.bindString(7, uuid);
+
+        // Clear the bindings after each run, so the pool doesn't hold on to the last body
+        long id;
+        try {
+            id = statement.executeInsert();
+        } finally {
+            statement.clearBindings();
+        }
+        if (id != -1) {
+            if (encodedBody.codec == NoteEntry.BODY_CODEC_CHUNKED) {
+                NoteChunks.replace(database, id, body);
+            }
+            if (encodedBody.codec != NoteEntry.BODY_CODEC_PLAIN) {
+                SQLiteStatement indexStatement = statements.indexBody();
+                indexStatement.bindString(1, body);
+                indexStatement.bindLong(2, id);
+                try {
+                    indexStatement.execute();
+                } finally {
+                    indexStatement.clearBindings();
+                }
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Returns the preview stored alongside a body: its first MAX_PREVIEW_LENGTH characters with
+     * runs of whitespace (including line breaks) squashed into single spaces.
+     * */
+    static String makePreview(String body) {
+        StringBuilder preview = new StringBuilder(NoteEntry.MAX_PREVIEW_LENGTH);
+        boolean pendingSpace = false;
+        for (int i = 0; i < body.length() && preview.length() < NoteEntry.MAX_PREVIEW_LENGTH; i++) {
+            char c = body.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = preview.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                preview.append(' ');
+                pendingSpace = false;
+                if (preview.length() == NoteEntry.MAX_PREVIEW_LENGTH) {
+                    break;
+                }
+            }
+            preview.append(c);
+        }
+        return preview.toString();
+    }
 
-        return ContentUris.withAppendedId(uri, id);
+    /**
+     * Replaces the body in the values with what goes in its row: the body itself, the body
+     * deflated into a BLOB, or nothing if it's long enough to be chunked. Sets the codec column to
+     * match and returns how the body is stored, or null if the values have no body
+     * */
+    private static NoteBodyCodec.EncodedBody encodeBody(ContentValues values) {
+        // The codec always follows the body, never the caller
+        values.remove(NoteEntry.COLUMN_BODY_CODEC);
+        if (!values.containsKey(NoteEntry.COLUMN_BODY)) {
+            return null;
+        }
+
+        NoteBodyCodec.EncodedBody encodedBody =
+                NoteBodyCodec.encode(values.getAsString(NoteEntry.COLUMN_BODY));
+        if (encodedBody.value instanceof byte[]) {
+            values.put(NoteEntry.COLUMN_BODY, (byte[]) encodedBody.value);
+        } else {
+            values.put(NoteEntry.COLUMN_BODY, (String) encodedBody.value);
+        }
+        values.put(NoteEntry.COLUMN_BODY_CODEC, encodedBody.codec);
+        return encodedBody;
+    }
+
+    // Returns the _ID of every note matching the selection
+    private static long[] queryIds(SQLiteDatabase database, String selection, String[] selectionArgs) {
+        Cursor cursor = database.query(NoteEntry.TABLE_NAME, new String[] { NoteEntry._ID },
+                selection, selectionArgs, null, null, null);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Writes the parts of a body that don't live in its notes row: the chunks of a chunked body,
+    // and the search text of any body the search triggers can't read. Any chunks from an older,
+    // longer body are dropped. Call this in the same transaction as the write to the row
+    private static void storeBodyOutsideRow(SQLiteDatabase database, long id, String body,
+                                            int codec, boolean isNewNote) {
+        if (codec == NoteEntry.BODY_CODEC_CHUNKED || !isNewNote) {
+            NoteChunks.replace(database, id, codec == NoteEntry.BODY_CODEC_CHUNKED ? body : null);
+        }
+        if (codec != NoteEntry.BODY_CODEC_PLAIN) {
+            database.execSQL(NoteDbHelper.SQL_INDEX_BODY, new Object[] { body, id });
+        }
+    }
+
+    // Returns the pre-compiled statements for the writable database, compiling them again if it
+    // was reopened since. The old connection's statements are closed first so they aren't leaked
+    private synchronized NoteStatements statements(SQLiteDatabase database) {
+        if (mStatements == null || !mStatements.isFor(database)) {
+            if (mStatements != null) {
+                mStatements.close();
+            }
+            mStatements = new NoteStatements(database);
+        }
+        return mStatements;
+    }
+
+    // True if the sync engine is making this write
+    private static boolean isCallerSyncAdapter(Uri uri) {
+        return Boolean.parseBoolean(
+                uri.getQueryParameter(NoteContract.QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER));
+    }
+
+    // Flags the note's latest change as one the sync engine wrote, so it isn't synced back. Call
+    // this in the same transaction as the write
+    private static void markChangeFromSync(SQLiteDatabase database, long id) {
+        database.execSQL(SQL_MARK_CHANGE_FROM_SYNC, new Object[] { id });
+    }
+
+    // Throws if a new note is missing its title or body
+    private static void checkNewNote(ContentValues contentValues) {
+        String title = contentValues.getAsString(NoteEntry.COLUMN_TITLE);
+        String body = contentValues.getAsString(NoteEntry.COLUMN_BODY);
+        if (title == null || body == null){
+            throw new IllegalArgumentException("Fields cannot be empty!");
+        }
     }
 
     /** Updates entries in the database */
     @Override
     public int update(Uri uri, ContentValues contentValues, String selection,
                       String[] selectionArgs) {
+        long start = System.nanoTime();
+        int rowsUpdated = runUpdate(uri, contentValues, selection, selectionArgs);
+        recordWrite(NoteProviderStats.OP_UPDATE, uri, start, rowsUpdated);
+        return rowsUpdated;
+    }
+
+    private int runUpdate(Uri uri, ContentValues contentValues, String selection,
+                          String[] selectionArgs) {
         final int match = sUriMatcher.match(uri);
         switch(match){
             case NOTES:
-                return updateNote(uri, contentValues, selection, selectionArgs);
+                return updateNote(uri, contentValues, selection, selectionArgs, true);
             case NOTE_ID:
                 selection = NoteContract.NoteEntry._ID + "=?";
                 selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                return updateNote(uri,contentValues, selection, selectionArgs);
+                return updateNote(uri,contentValues, selection, selectionArgs, true);
+            case TAG_ID:
+                return renameTag(uri, contentValues);
             default:
                 throw new IllegalArgumentException("Update is not possible for " + uri);
         }
     }
 
-    private int updateNote(Uri uri, ContentValues values, String selection, String[] selectionArgs){
+    // Renames a tag; the name is the only thing about a tag that can change. Throws if another tag
+    // already has the new name
+    private int renameTag(Uri uri, ContentValues values) {
+        if (values.size() != 1 || !values.containsKey(NoteTagEntry.COLUMN_NAME)) {
+            throw new IllegalArgumentException("Only a tag's " + NoteTagEntry.COLUMN_NAME
+                    + " can be updated");
+        }
+        ContentValues renamed = new ContentValues();
+        renamed.put(NoteTagEntry.COLUMN_NAME,
+                NoteTags.checkName(values.getAsString(NoteTagEntry.COLUMN_NAME)));
+
+        int rowsUpdated = mDbHelper.getWritableDatabase().update(NoteTagEntry.TABLE_NAME, renamed,
+                NoteTagEntry._ID + " = ?", new String[] { String.valueOf(ContentUris.parseId(uri)) });
+        if (rowsUpdated != 0) {
+            notifyChange(NoteTagEntry.CONTENT_URI);
+        }
+        return rowsUpdated;
+    }
+
+    // Updates the notes matching the selection. Unless mergeRevision is false, a save soon after
+    // the last one is folded into the same revision of the note's history
+    private int updateNote(Uri uri, ContentValues values, String selection, String[] selectionArgs,
+                           boolean mergeRevision){
         // Sanity checks for title and body
+        String title = null;
         if (values.containsKey(NoteContract.NoteEntry.COLUMN_TITLE)){
-            String title = values.getAsString(NoteContract.NoteEntry.COLUMN_TITLE);
+            title = values.getAsString(NoteContract.NoteEntry.COLUMN_TITLE);
             if (title == null){
                 throw new IllegalArgumentException("Needs a title!");
             }
         }
 
+        // The preview always comes from the body, so only rewrite it when the body changes, a
+        // note's UUID never changes at all, and only the trash URIs move notes in and out of the
+        // trash
+        values = new ContentValues(values);
+        values.remove(NoteEntry.COLUMN_PREVIEW);
+        values.remove(NoteEntry.COLUMN_UUID);
+        values.remove(NoteEntry.COLUMN_DELETED_AT);
+        String body = null;
         if (values.containsKey(NoteContract.NoteEntry.COLUMN_BODY)){
-            String body = values.getAsString(NoteContract.NoteEntry.COLUMN_BODY);
+            body = values.getAsString(NoteContract.NoteEntry.COLUMN_BODY);
             if (body == null){
                 throw new IllegalArgumentException("Note cannot be empty!");
             }
+            values.put(NoteEntry.COLUMN_PREVIEW, makePreview(body));
         }
 
+        // Long bodies are stored compressed or in chunks
+        NoteBodyCodec.EncodedBody encodedBody = encodeBody(values);
+
         // If nothing's there, return early because there's nothing to update
         if (values.size() == 0){
             return 0;
         }
 
+        // Any real change bumps the modified time, unless the caller set it themselves
+        long now = System.currentTimeMillis();
+        if (!values.containsKey(NoteEntry.COLUMN_MODIFIED_AT)) {
+            values.put(NoteEntry.COLUMN_MODIFIED_AT, now);
+        }
+
+        // An edit from another device that's newer than this device's delete wins, the same way
+        // it brings back a note deleted for good, so it takes the note out of the trash
+        boolean fromSync = isCallerSyncAdapter(uri);
+        if (fromSync) {
+            values.putNull(NoteEntry.COLUMN_DELETED_AT);
+        }
+
         // If the values are note empty, get a writable database and update it with the values
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
-        // Perform the update on the database and get the number of rows affected
-        int rowsUpdated = database.update(NoteContract.NoteEntry.TABLE_NAME, values, selection, selectionArgs);
+        // Perform the update on the database and get the number of rows affected. A new body
+        // also needs its chunks and search text written, and a new title or body goes into each
+        // note's history, all in the same transaction
+        int rowsUpdated;
+        database.beginTransaction();
+        try {
+            // Find the notes being changed first, since the update itself doesn't say
+            long[] ids = null;
+            if (encodedBody != null || title != null || fromSync) {
+                ids = sUriMatcher.match(uri) == NOTE_ID
+                        ? new long[] { ContentUris.parseId(uri) }
+                        : queryIds(database, selection, selectionArgs);
+            }
+
+            // The history diffs against the body that's about to be replaced
+            if (encodedBody != null || title != null) {
+                for (long id : ids) {
+                    NoteRevisions.record(database, id, title, body, now, mergeRevision);
+                }
+            }
+
+            // One note is updated with a pre-compiled statement for the columns being written
+            rowsUpdated = sUriMatcher.match(uri) == NOTE_ID
+                    ? statements(database).updateById(ContentUris.parseId(uri), values)
+                    : database.update(NoteContract.NoteEntry.TABLE_NAME, values, selection, selectionArgs);
+            if (rowsUpdated != 0 && encodedBody != null) {
+                for (long id : ids) {
+                    storeBodyOutsideRow(database, id, body, encodedBody.codec, false);
+                }
+            }
+            if (rowsUpdated != 0 && fromSync) {
+                for (long id : ids) {
+                    markChangeFromSync(database, id);
+                }
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // The cached copy is out of date now
+        if (rowsUpdated != 0) {
+            evictFromCache(uri);
+        }
 
         // If 1 or more rows were updated, then notify all listeners that the data at the
-        // given URI has changed
+        // given URI has changed. For a single note that's its own URI, so the list hears about it
+        // (and can fetch just that change from the change log) but editors of other notes don't
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         return rowsUpdated;
@@ -199,6 +1103,13 @@ public class NoteProvider extends ContentProvider {
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        long start = System.nanoTime();
+        int rowsDeleted = runDelete(uri, selection, selectionArgs);
+        recordWrite(NoteProviderStats.OP_DELETE, uri, start, rowsDeleted);
+        return rowsDeleted;
+    }
+
+    private int runDelete(Uri uri, String selection, String[] selectionArgs) {
         // Get a writable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
 
@@ -209,28 +1120,438 @@ public class NoteProvider extends ContentProvider {
         switch (match){
             // Delete all rows that match the criteria
             case NOTES:
-                rowsDeleted = database.delete(NoteContract.NoteEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             // Delete a single row that matches the criteria
             case NOTE_ID:
                 selection = NoteContract.NoteEntry._ID + "=?";
                 selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                rowsDeleted = database.delete(NoteContract.NoteEntry.TABLE_NAME, selection, selectionArgs);
                 break;
+            case TAG_ID:
+            case NOTE_TAGS:
+            case NOTE_TAG_ID:
+                return deleteTags(uri, match);
+            case TRASH:
+            case TRASH_ID:
+                return deleteFromTrash(uri, match);
             default:
                 throw new IllegalArgumentException("Cannot delete " + uri);
         }
 
+        if (isCallerSyncAdapter(uri)) {
+            // The sync engine deletes for good: the note already went through the trash on the
+            // device it was deleted on
+            // The tombstones need flagging too, so find the notes first and do it all in one go
+            database.beginTransaction();
+            try {
+                long[] ids = queryIds(database, selection, selectionArgs);
+                rowsDeleted = database.delete(NoteContract.NoteEntry.TABLE_NAME, selection, selectionArgs);
+                for (long id : ids) {
+                    markChangeFromSync(database, id);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } else if (match == NOTE_ID) {
+            // Everyone else moves notes to the trash, which is one small update however big the
+            // note is. One note goes with the pre-compiled statement, inside a transaction like
+            // every use of it
+            database.beginTransaction();
+            try {
+                rowsDeleted = statements(database).trashById(ContentUris.parseId(uri),
+                        System.currentTimeMillis());
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        } else {
+            rowsDeleted = NoteTrash.trash(database, selection, selectionArgs, System.currentTimeMillis());
+        }
+
+        // The cached copy is gone now
+        if (rowsDeleted != 0) {
+            evictFromCache(uri);
+        }
+
         // If 1 or more rows were deleted, then notify all listeners that the data at the
-        // given URI has changed
+        // given URI has changed. For a single note that's its own URI, so the list hears about it
+        // (and can fetch just that change from the change log) but editors of other notes don't
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         // Return the number of rows deleted
         return rowsDeleted;
     }
 
+    // Deletes a tag, which the triggers take off every note, or takes one or all of a note's tags
+    // off it. The triggers also keep the counts right and log every note that lost a tag
+    private int deleteTags(Uri uri, int match) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsDeleted;
+        Uri changedUri;
+        database.beginTransaction();
+        try {
+            if (match == TAG_ID) {
+                rowsDeleted = database.delete(NoteTagEntry.TABLE_NAME, NoteTagEntry._ID + " = ?",
+                        new String[] { String.valueOf(ContentUris.parseId(uri)) });
+                changedUri = NoteTagEntry.CONTENT_URI;
+            } else {
+                long noteId = Long.parseLong(uri.getPathSegments().get(1));
+                rowsDeleted = NoteTags.untagNote(database, noteId,
+                        match == NOTE_TAG_ID ? ContentUris.parseId(uri) : -1);
+                changedUri = NoteTagEntry.buildNoteTagsUri(noteId);
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        if (rowsDeleted != 0) {
+            notifyChange(changedUri);
+        }
+        return rowsDeleted;
+    }
+
+    // Deletes one note in the trash for good, or empties the whole trash. Emptying it deletes a
+    // small batch at a time, so a big trash never holds the database for long
+    private int deleteFromTrash(Uri uri, int match) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsDeleted;
+        if (match == TRASH_ID) {
+            long id = ContentUris.parseId(uri);
+            rowsDeleted = NoteTrash.deleteForever(database, id);
+            mNoteCache.remove(id);
+        } else {
+            rowsDeleted = NoteTrash.purge(database, statements(database), Long.MAX_VALUE,
+                    Integer.MAX_VALUE);
+            mNoteCache.clear();
+        }
+
+        if (rowsDeleted != 0) {
+            notifyChange(NoteTrashEntry.CONTENT_URI);
+        }
+        return rowsDeleted;
+    }
+
+    // Takes a note out of the trash. Returns false if the URI isn't a note in the trash
+    private boolean restoreNote(Uri trashUri) {
+        if (sUriMatcher.match(trashUri) != TRASH_ID) {
+            throw new IllegalArgumentException("Not a note in the trash: " + trashUri);
+        }
+        long id = ContentUris.parseId(trashUri);
+        boolean restored = NoteTrash.restore(mDbHelper.getWritableDatabase(), id,
+                System.currentTimeMillis());
+        if (restored) {
+            mNoteCache.remove(id);
+            notifyChange(ContentUris.withAppendedId(NoteEntry.CONTENT_URI, id));
+        }
+        return restored;
+    }
+
+    // Deletes the notes that have been in the trash for longer than NoteTrashEntry.RETENTION_MS,
+    // at most NoteTrash.MAX_BACKGROUND_PURGE of them, and returns how many went
+    private int purgeTrash() {
+        long start = System.nanoTime();
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int purged = NoteTrash.purge(database, statements(database),
+                System.currentTimeMillis() - NoteTrashEntry.RETENTION_MS,
+                NoteTrash.MAX_BACKGROUND_PURGE);
+        if (purged != 0) {
+            mNoteCache.clear();
+            notifyChange(NoteTrashEntry.CONTENT_URI);
+            Log.i(LOG_TAG, "Purged " + purged + " notes from the trash in "
+                    + (System.nanoTime() - start) / 1000000 + "ms");
+        }
+        return purged;
+    }
+
+    // Runs NoteMaintenance if it's due (or forced) and returns its report as a Bundle
+    private Bundle runMaintenance(boolean force) {
+        SharedPreferences prefs = getContext()
+                .getSharedPreferences(NoteMaintenance.PREFS_NAME, Context.MODE_PRIVATE);
+        long now = System.currentTimeMillis();
+        if (!force && !NoteMaintenance.isDue(prefs, now)) {
+            Bundle result = new Bundle();
+            result.putBoolean(NoteContract.RESULT_MAINTENANCE_RAN, false);
+            return result;
+        }
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        NoteMaintenance.Report report;
+        try {
+            report = NoteMaintenance.run(database, statements(database), prefs, now,
+                    NoteMaintenance.BUDGET_MS);
+        } catch (SQLiteException e) {
+            // Most likely the database was busy; nothing is lost, the next run picks it up
+            Log.w(LOG_TAG, "Maintenance failed", e);
+            Bundle result = new Bundle();
+            result.putBoolean(NoteContract.RESULT_MAINTENANCE_RAN, false);
+            return result;
+        }
+
+        if (report.purged != 0) {
+            mNoteCache.clear();
+            notifyChange(NoteTrashEntry.CONTENT_URI);
+        }
+        mLastMaintenance = report.toString();
+        Log.i(LOG_TAG, mLastMaintenance);
+        return report.toBundle();
+    }
+
+    /**
+     * Applies a batch of operations inside a single transaction, so the whole batch is one journal
+     * commit (and all or nothing) instead of one transaction per operation. NoteWriteQueue sends
+     * its writes through here. The operations' change notifications are held back and replaced by
+     * one notification once the transaction has committed, so listeners requery once per batch
+     * and never see the batch half done.
+     * */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        long start = System.nanoTime();
+        ContentProviderResult[] results = runApplyBatch(operations);
+        recordWrite(NoteProviderStats.OP_APPLY_BATCH, NoteEntry.CONTENT_URI, start, results.length);
+        return results;
+    }
+
+    private ContentProviderResult[] runApplyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        BatchState batch = new BatchState();
+        mBatchState.set(batch);
+
+        ContentProviderResult[] results;
+        database.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            mBatchState.remove();
+        }
+
+        // Evict again now that the batch is committed: a read that ran while the transaction was
+        // open saw the old rows and may have cached them after the first eviction
+        if (batch.clearCache) {
+            mNoteCache.clear();
+        } else {
+            for (long id : batch.evictedIds) {
+                mNoteCache.remove(id);
+            }
+        }
+
+        if (batch.changed) {
+            mStats.recordNotification(false);
+            getContext().getContentResolver().notifyChange(NoteEntry.CONTENT_URI, null);
+        }
+
+        return results;
+    }
+
+    // Evicts the note at the URI from the cache, or every note if the URI is the whole table.
+    // Inside a batch, remembers to do it again once the batch has committed
+    private void evictFromCache(Uri uri) {
+        BatchState batch = mBatchState.get();
+        if (sUriMatcher.match(uri) == NOTE_ID) {
+            long id = ContentUris.parseId(uri);
+            mNoteCache.remove(id);
+            if (batch != null) {
+                batch.evictedIds.add(id);
+            }
+        } else {
+            mNoteCache.clear();
+            if (batch != null) {
+                batch.clearCache = true;
+            }
+        }
+    }
+
+    /**
+     * Returns the note cache's counters for METHOD_GET_CACHE_STATS and the timing stats for
+     * METHOD_GET_QUERY_STATS, sets the slow query threshold for METHOD_SET_SLOW_QUERY_THRESHOLD,
+     * restores a note to one of its revisions for METHOD_RESTORE_REVISION, imports a backup
+     * for METHOD_IMPORT_NOTES, takes notes out of the trash or purges it for
+     * METHOD_RESTORE_NOTE and METHOD_PURGE_TRASH, and looks after the database for
+     * METHOD_RUN_MAINTENANCE
+     * */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (NoteContract.METHOD_RUN_MAINTENANCE.equals(method)) {
+            return runMaintenance(NoteContract.ARG_FORCE_MAINTENANCE.equals(arg));
+        }
+        if (NoteContract.METHOD_RESTORE_NOTE.equals(method)) {
+            Bundle result = new Bundle();
+            result.putBoolean(NoteContract.RESULT_RESTORED, restoreNote(Uri.parse(arg)));
+            return result;
+        }
+        if (NoteContract.METHOD_PURGE_TRASH.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(NoteContract.RESULT_PURGED, purgeTrash());
+            return result;
+        }
+        if (NoteContract.METHOD_IMPORT_NOTES.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(NoteContract.RESULT_IMPORTED, importNotes(arg));
+            return result;
+        }
+        if (NoteContract.METHOD_RESTORE_REVISION.equals(method)) {
+            Bundle result = new Bundle();
+            result.putBoolean(NoteContract.RESULT_RESTORED, restoreRevision(Uri.parse(arg)));
+            return result;
+        }
+        if (NoteContract.METHOD_GET_QUERY_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            stats.putString(NoteContract.STAT_REPORT, mStats.report());
+            for (int op = 0; op < NoteProviderStats.OPERATION_NAMES.length; op++) {
+                stats.putLongArray(NoteProviderStats.OPERATION_NAMES[op], mStats.getHistogram(op));
+            }
+            stats.putLong(NoteContract.STAT_WINDOW_FILLS, mStats.getWindowFills());
+            stats.putLong(NoteContract.STAT_NOTIFICATIONS, mStats.getNotifications());
+            stats.putLong(NoteContract.STAT_NOTIFICATIONS_HELD, mStats.getHeldNotifications());
+            stats.putStringArray(NoteContract.STAT_SLOW_OPERATIONS, mStats.getSlowEntries());
+            if (NoteContract.ARG_RESET_STATS.equals(arg)) {
+                mStats.reset();
+            }
+            return stats;
+        }
+        if (NoteContract.METHOD_SET_SLOW_QUERY_THRESHOLD.equals(method)) {
+            mStats.setSlowThresholdMs(Long.parseLong(arg));
+            return null;
+        }
+        if (NoteContract.METHOD_GET_CACHE_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            stats.putInt(NoteContract.STAT_CACHE_HITS, mNoteCache.hitCount());
+            stats.putInt(NoteContract.STAT_CACHE_MISSES, mNoteCache.missCount());
+            stats.putInt(NoteContract.STAT_CACHE_EVICTIONS, mNoteCache.evictionCount());
+            stats.putInt(NoteContract.STAT_CACHE_SIZE_BYTES, mNoteCache.sizeInBytes());
+            stats.putInt(NoteContract.STAT_CACHE_MAX_SIZE_BYTES, mNoteCache.maxSizeInBytes());
+            return stats;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    // Puts a note back the way it was at the revision the URI points to. This is an update like any
+    // other, so it's a new revision of its own; it's never folded into the one before, so the
+    // version being replaced stays in the history too. Returns false if there's no such revision
+    private boolean restoreRevision(Uri revisionUri) {
+        if (sUriMatcher.match(revisionUri) != NOTE_REVISION_ID) {
+            throw new IllegalArgumentException("Not a revision: " + revisionUri);
+        }
+        long noteId = Long.parseLong(revisionUri.getPathSegments().get(1));
+        int revision = Integer.parseInt(revisionUri.getLastPathSegment());
+
+        // Reading the revision and writing it back are one transaction. Like a batch, the update's
+        // notification is held back until that has committed
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        Uri noteUri = ContentUris.withAppendedId(NoteEntry.CONTENT_URI, noteId);
+        boolean restored = false;
+        mBatchState.set(new BatchState());
+        database.beginTransaction();
+        try {
+            NoteRevisions.Version version = NoteRevisions.read(database, noteId, revision);
+            if (version != null) {
+                ContentValues values = new ContentValues();
+                values.put(NoteEntry.COLUMN_TITLE, version.title);
+                values.put(NoteEntry.COLUMN_BODY, version.body);
+                restored = updateNote(noteUri, values, NoteEntry._ID + "=?",
+                        new String[] { String.valueOf(noteId) }, false) != 0;
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            mBatchState.remove();
+        }
+
+        if (restored) {
+            mNoteCache.remove(noteId);
+            notifyChange(noteUri);
+        }
+        return restored;
+    }
+
+    /**
+     * Prints the cache counters and the timing stats, for
+     * "adb shell dumpsys activity provider com.bullnote.buffalo.burgers"
+     * */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Note cache: " + mNoteCache.hitCount() + " hits, "
+                + mNoteCache.missCount() + " misses, " + mNoteCache.evictionCount()
+                + " evictions, " + mNoteCache.sizeInBytes() + " of "
+                + mNoteCache.maxSizeInBytes() + " bytes");
+        mStats.dump(writer);
+        writer.println(mLastMaintenance != null ? mLastMaintenance : "No maintenance run yet");
+        StartupTrace.dump(writer);
+    }
+
+    // Records a write that started at start (from System.nanoTime) in the stats, and logs it if
+    // it was slow
+    private void recordWrite(int operation, Uri uri, long start, int rows) {
+        long elapsed = System.nanoTime() - start;
+        mStats.record(operation, elapsed, rows);
+        if (mStats.isSlow(elapsed)) {
+            Log.w(LOG_TAG, "Slow " + NoteProviderStats.OPERATION_NAMES[operation] + " ("
+                    + elapsed / 1000000 + "ms, " + rows + " rows) for " + uri);
+            mStats.recordSlow(operation, elapsed, rows + " rows for " + uri);
+        }
+    }
+
+    // Logs a slow query with the plan SQLite used for each statement it ran
+    private void logSlowQuery(Uri uri, long elapsed, List<String> sql) {
+        StringBuilder description = new StringBuilder(uri.toString());
+        for (String statement : sql) {
+            description.append("\n  ").append(statement);
+            for (String step : explainQueryPlan(statement)) {
+                description.append("\n    ").append(step);
+            }
+        }
+        Log.w(LOG_TAG, "Slow query (" + elapsed / 1000000 + "ms) for " + description);
+        mStats.recordSlow(NoteProviderStats.OP_QUERY, elapsed, description.toString());
+    }
+
+    // The steps of SQLite's plan for the statement. Its parameters are left unbound, which SQLite
+    // reads as NULL; that doesn't change which indexes the plan uses
+    private List<String> explainQueryPlan(String sql) {
+        List<String> steps = new ArrayList<String>();
+        Cursor plan = null;
+        try {
+            plan = mDbHelper.getReadableDatabase().rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+            int detail = plan.getColumnIndexOrThrow("detail");
+            while (plan.moveToNext()) {
+                steps.add(plan.getString(detail));
+            }
+        } catch (SQLiteException e) {
+            steps.add("No plan: " + e.getMessage());
+        } finally {
+            if (plan != null) {
+                plan.close();
+            }
+        }
+        return steps;
+    }
+
+    // Notifies listeners that the data at the URI changed, unless a batch is collecting changes
+    private void notifyChange(Uri uri) {
+        BatchState batch = mBatchState.get();
+        mStats.recordNotification(batch != null);
+        if (batch != null) {
+            batch.changed = true;
+            return;
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    /**
+     * Tracks whether anything in the running applyBatch call needs a change notification, and
+     * which cached notes need evicting once it commits
+     * */
+    private static class BatchState {
+        boolean changed = false;
+        boolean clearCache = false;
+        final Set<Long> evictedIds = new HashSet<Long>();
+    }
+
     @Override
     public String getType(Uri uri) {
         final int match = sUriMatcher.match(uri);
@@ -239,8 +1560,54 @@ public class NoteProvider extends ContentProvider {
                 return NoteContract.NoteEntry.CONTENT_LIST_TYPE;
             case NOTE_ID:
                 return NoteContract.NoteEntry.CONTENT_ITEM_TYPE;
+            case NOTE_SEARCH:
+                return NoteContract.NoteEntry.CONTENT_LIST_TYPE;
+            case NOTE_CHANGES:
+                return ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + NoteContract.CONTENT_AUTHORITY
+                        + "/" + NoteChangeEntry.TABLE_NAME;
+            case NOTE_CHUNKS:
+                return NoteChunkEntry.CONTENT_LIST_TYPE;
+            case NOTE_REVISIONS:
+                return NoteRevisionEntry.CONTENT_LIST_TYPE;
+            case NOTE_REVISION_ID:
+                return NoteRevisionEntry.CONTENT_ITEM_TYPE;
+            case TAGS:
+            case NOTE_TAGS:
+                return NoteTagEntry.CONTENT_LIST_TYPE;
+            case TAG_ID:
+            case NOTE_TAG_ID:
+                return NoteTagEntry.CONTENT_ITEM_TYPE;
+            case TRASH:
+                return NoteTrashEntry.CONTENT_LIST_TYPE;
+            case TRASH_ID:
+                return NoteTrashEntry.CONTENT_ITEM_TYPE;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri + " with match " + match);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Builds an FTS MATCH expression out of raw user input. Every word becomes a prefix query
+     * ("bul" finds "bull" and "bulldog") and all of them must appear in the note. Anything that
+     * isn't a letter or digit is dropped so the user can't type FTS syntax by accident.
+     * Returns null if there is nothing left to search for.
+     * */
+    static String buildMatchQuery(String input) {
+        if (TextUtils.isEmpty(input)) {
+            return null;
+        }
+
+        StringBuilder match = new StringBuilder();
+        for (String word : input.split("[^\\p{L}\\p{Nd}]+")) {
+            if (word.length() == 0) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append(word).append('*');
+        }
+
+        return match.length() == 0 ? null : match.toString();
+    }
+}
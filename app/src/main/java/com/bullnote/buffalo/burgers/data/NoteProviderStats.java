@@ -0,0 +1,222 @@
+package com.bullnote.buffalo.burgers.data;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Locale;
+
+/**
+ * Timing counters for NoteProvider, so a report of a slow list can be checked against numbers.
+ *
+ * Every query, insert, bulk insert, update, delete and batch is timed into a latency histogram,
+ * along with how many rows it touched. The provider also counts cursor window fills (each one is
+ * a trip back into SQLite for another screenful of rows) and change notifications, both the ones
+ * sent and the ones a batch held back and merged into one.
+ *
+ * An operation slower than the threshold is kept in a short list of slow ones, together with
+ * whatever the provider attached to it (the query plans, for a query).
+ *
+ * All of this is plain Java, so it can be read from any thread and tested on the development
+ * machine.
+ */
+public final class NoteProviderStats {
+
+    // The operations that are timed; the names are the keys of the provider's stats Bundle
+    public static final int OP_QUERY = 0;
+    public static final int OP_INSERT = 1;
+    public static final int OP_BULK_INSERT = 2;
+    public static final int OP_UPDATE = 3;
+    public static final int OP_DELETE = 4;
+    public static final int OP_APPLY_BATCH = 5;
+    public static final String[] OPERATION_NAMES =
+            { "query", "insert", "bulk_insert", "update", "delete", "apply_batch" };
+
+    // Upper bound of each histogram bucket in microseconds, doubling from a quarter of a
+    // millisecond to half a second; one more bucket holds everything slower
+    private static final long[] BUCKET_LIMITS_US = {
+            250, 500, 1000, 2000, 4000, 8000, 16000, 32000, 64000, 128000, 256000, 512000
+    };
+    public static final int BUCKET_COUNT = BUCKET_LIMITS_US.length + 1;
+
+    // Operations slower than this are kept in the slow list
+    public static final long DEFAULT_SLOW_THRESHOLD_MS = 100;
+
+    // How many slow operations to remember; the oldest is dropped to make room
+    private static final int MAX_SLOW_ENTRIES = 20;
+
+    // Guarded by "this"
+    private final long[] mCounts = new long[OPERATION_NAMES.length];
+    private final long[] mRows = new long[OPERATION_NAMES.length];
+    private final long[] mTotalMicros = new long[OPERATION_NAMES.length];
+    private final long[] mMaxMicros = new long[OPERATION_NAMES.length];
+    private final long[][] mHistograms = new long[OPERATION_NAMES.length][BUCKET_COUNT];
+    private final Deque<String> mSlowEntries = new ArrayDeque<String>();
+    private long mWindowFills = 0;
+    private long mNotifications = 0;
+    private long mHeldNotifications = 0;
+
+    private volatile long mSlowThresholdNanos = DEFAULT_SLOW_THRESHOLD_MS * 1000000;
+
+    /** Adds one operation that took that many nanoseconds and touched that many rows */
+    public synchronized void record(int operation, long elapsedNanos, int rows) {
+        long micros = elapsedNanos / 1000;
+        mCounts[operation]++;
+        mRows[operation] += Math.max(rows, 0);
+        mTotalMicros[operation] += micros;
+        mMaxMicros[operation] = Math.max(mMaxMicros[operation], micros);
+        mHistograms[operation][bucketFor(micros)]++;
+    }
+
+    /** True if an operation that took that long belongs in the slow list */
+    public boolean isSlow(long elapsedNanos) {
+        return elapsedNanos >= mSlowThresholdNanos;
+    }
+
+    /** Adds an operation to the slow list; describe it with whatever helps to fix it */
+    public synchronized void recordSlow(int operation, long elapsedNanos, String description) {
+        if (mSlowEntries.size() == MAX_SLOW_ENTRIES) {
+            mSlowEntries.removeFirst();
+        }
+        mSlowEntries.addLast(OPERATION_NAMES[operation] + " took "
+                + elapsedNanos / 1000000 + "ms: " + description);
+    }
+
+    /** Counts one cursor window being filled from the database */
+    public synchronized void recordWindowFill() {
+        mWindowFills++;
+    }
+
+    /** Counts one change notification, sent right away or held back for a batch to send */
+    public synchronized void recordNotification(boolean heldBack) {
+        if (heldBack) {
+            mHeldNotifications++;
+        } else {
+            mNotifications++;
+        }
+    }
+
+    public long getSlowThresholdMs() {
+        return mSlowThresholdNanos / 1000000;
+    }
+
+    public void setSlowThresholdMs(long thresholdMs) {
+        if (thresholdMs < 0) {
+            throw new IllegalArgumentException("Threshold can't be negative: " + thresholdMs);
+        }
+        mSlowThresholdNanos = thresholdMs * 1000000;
+    }
+
+    public synchronized long getCount(int operation) {
+        return mCounts[operation];
+    }
+
+    public synchronized long getRows(int operation) {
+        return mRows[operation];
+    }
+
+    public synchronized long getMaxMicros(int operation) {
+        return mMaxMicros[operation];
+    }
+
+    /** The operation's histogram: how many took up to 250us, 500us, 1ms and so on, doubling */
+    public synchronized long[] getHistogram(int operation) {
+        return Arrays.copyOf(mHistograms[operation], BUCKET_COUNT);
+    }
+
+    /**
+     * Roughly how long the given fraction of operations took at most, in microseconds: the upper
+     * bound of the bucket it falls in, or the slowest time if it's in the last bucket
+     * */
+    public synchronized long getPercentileMicros(int operation, double fraction) {
+        long target = (long) Math.ceil(mCounts[operation] * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_LIMITS_US.length; i++) {
+            seen += mHistograms[operation][i];
+            if (seen >= target) {
+                return Math.min(BUCKET_LIMITS_US[i], mMaxMicros[operation]);
+            }
+        }
+        return mMaxMicros[operation];
+    }
+
+    public synchronized long getWindowFills() {
+        return mWindowFills;
+    }
+
+    public synchronized long getNotifications() {
+        return mNotifications;
+    }
+
+    public synchronized long getHeldNotifications() {
+        return mHeldNotifications;
+    }
+
+    /** The slow list, oldest first */
+    public synchronized String[] getSlowEntries() {
+        return mSlowEntries.toArray(new String[mSlowEntries.size()]);
+    }
+
+    /** Starts counting again from nothing; the threshold is kept */
+    public synchronized void reset() {
+        Arrays.fill(mCounts, 0);
+        Arrays.fill(mRows, 0);
+        Arrays.fill(mTotalMicros, 0);
+        Arrays.fill(mMaxMicros, 0);
+        for (long[] histogram : mHistograms) {
+            Arrays.fill(histogram, 0);
+        }
+        mSlowEntries.clear();
+        mWindowFills = 0;
+        mNotifications = 0;
+        mHeldNotifications = 0;
+    }
+
+    /** Writes everything above as readable text, e.g. for dumpsys */
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Operations (count, rows, mean / p50 / p95 / max in ms):");
+        for (int op = 0; op < OPERATION_NAMES.length; op++) {
+            if (mCounts[op] == 0) {
+                continue;
+            }
+            writer.println("  " + OPERATION_NAMES[op] + ": " + mCounts[op] + " ops, "
+                    + mRows[op] + " rows, "
+                    + millis(mTotalMicros[op] / mCounts[op]) + " / "
+                    + millis(getPercentileMicros(op, 0.5)) + " / "
+                    + millis(getPercentileMicros(op, 0.95)) + " / "
+                    + millis(mMaxMicros[op]));
+        }
+        writer.println("Cursor window fills: " + mWindowFills);
+        writer.println("Notifications: " + mNotifications + " sent, "
+                + mHeldNotifications + " held back by batches");
+        writer.println("Slow operations (over " + getSlowThresholdMs() + "ms): "
+                + mSlowEntries.size());
+        for (String entry : mSlowEntries) {
+            writer.println("  " + entry);
+        }
+        writer.flush();
+    }
+
+    /** The same text dump writes */
+    public String report() {
+        StringWriter report = new StringWriter();
+        dump(new PrintWriter(report));
+        return report.toString();
+    }
+
+    // The histogram bucket an operation that took that long goes in
+    private static int bucketFor(long micros) {
+        for (int i = 0; i < BUCKET_LIMITS_US.length; i++) {
+            if (micros <= BUCKET_LIMITS_US[i]) {
+                return i;
+            }
+        }
+        return BUCKET_LIMITS_US.length;
+    }
+
+    // Microseconds as milliseconds with two decimals
+    private static String millis(long micros) {
+        return String.format(Locale.US, "%.2f", micros / 1000.0);
+    }
+}
@@ -0,0 +1,86 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The cursor factory NoteDbHelper opens the database with when the provider wants stats. Every
+ * cursor it makes counts its window fills into NoteProviderStats, and while a thread is
+ * tracking, the SQL of each query it runs is written down so a slow one can be explained.
+ */
+final class NoteQueryTracker implements SQLiteDatabase.CursorFactory {
+
+    // SQLiteQuery.toString() is this followed by the SQL
+    private static final String QUERY_PREFIX = "SQLiteQuery: ";
+
+    private final NoteProviderStats mStats;
+
+    // The SQL run so far by the tracking thread, or null if it isn't tracking
+    private final ThreadLocal<List<String>> mSql = new ThreadLocal<List<String>>();
+
+    NoteQueryTracker(NoteProviderStats stats) {
+        mStats = stats;
+    }
+
+    /** Starts writing down the SQL of the queries this thread runs */
+    void startTracking() {
+        mSql.set(new ArrayList<String>());
+    }
+
+    /** Stops tracking and returns the SQL this thread ran since startTracking */
+    List<String> stopTracking() {
+        List<String> sql = mSql.get();
+        mSql.remove();
+        return sql;
+    }
+
+    @Override
+    public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver, String editTable,
+                            SQLiteQuery query) {
+        List<String> sql = mSql.get();
+        if (sql != null) {
+            String text = query.toString();
+            sql.add(text.startsWith(QUERY_PREFIX) ? text.substring(QUERY_PREFIX.length()) : text);
+        }
+        return new CountingCursor(driver, editTable, query, mStats);
+    }
+
+    /**
+     * A SQLiteCursor that counts every time it has to fill its window: once for the first rows
+     * (getCount does that) and again whenever a move lands outside the rows the window holds
+     * */
+    private static final class CountingCursor extends SQLiteCursor {
+        private final NoteProviderStats mStats;
+
+        CountingCursor(SQLiteCursorDriver driver, String editTable, SQLiteQuery query,
+                       NoteProviderStats stats) {
+            super(driver, editTable, query);
+            mStats = stats;
+        }
+
+        @Override
+        public int getCount() {
+            if (getWindow() == null) {
+                mStats.recordWindowFill();
+            }
+            return super.getCount();
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            CursorWindow window = getWindow();
+            if (window == null || newPosition < window.getStartPosition()
+                    || newPosition >= window.getStartPosition() + window.getNumRows()) {
+                mStats.recordWindowFill();
+            }
+            return super.onMove(oldPosition, newPosition);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.bullnote.buffalo.burgers.data;
+
+import java.util.List;
+
+/**
+ * Where the UI reads notes from, as typed rows rather than cursors. The list and the editor only
+ * talk to this, so the ContentResolver behind ResolverNoteRepository can be swapped for a cached
+ * or in-memory source without touching them.
+ *
+ * Every method blocks, so call them on a background thread.
+ */
+public interface NoteRepository {
+
+    /**
+     * Reads up to limit notes in the given NoteEntry sort order, starting after the given note,
+     * or from the start if it's null. With tags, only notes that have every one of them are read
+     * */
+    List<NoteListItem> queryPage(String sortOrder, NoteListItem after, int limit, long[] tagIds);
+
+    /** Reads the ranked search results, with a snippet around the match as the preview */
+    List<NoteListItem> search(String query);
+
+    /** Reads the notes with the given _IDs that still exist (and have every tag), in no order */
+    List<NoteListItem> queryNotes(long[] ids, long[] tagIds);
+
+    /** Returns the newest version in the change log, or 0 if it's empty */
+    long queryLatestVersion();
+
+    /**
+     * Returns the notes that changed after the given change log version, or null if more than
+     * maxChanges did
+     * */
+    Changes queryChangesSince(long version, int maxChanges);
+
+    /** Returns one chunk of a note's body, or null once there are no more */
+    String queryBodyChunk(long noteId, int sequence);
+
+    /**
+     * Returns the note's version in the change log, or 0 if it has never changed. Every write to
+     * the note moves it on, so the same version before and after a few reads means nothing
+     * wrote to the note between them
+     * */
+    long queryNoteVersion(long noteId);
+
+    /**
+     * The _IDs of the notes that changed, sorted and each only once so they can be looked up with
+     * Arrays.binarySearch, and the newest version among the changes
+     * */
+    class Changes {
+        public final long[] noteIds;
+        public final long version;
+
+        public Changes(long[] noteIds, long version) {
+            this.noteIds = noteIds;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.bullnote.buffalo.burgers.data;
+
+/**
+ * The difference between two versions of a note body, stored in place of a full copy of each
+ * version in the revision history.
+ *
+ * An edit almost always touches one stretch of text, so a delta only records how many characters
+ * at the start (prefixLength) and the end (suffixLength) stayed the same, and the new text that
+ * replaced everything in between. Typing a word into a 50,000 character note stores the word.
+ *
+ * Rebuilding a version means starting from the last full snapshot and applying every delta after
+ * it, so needsSnapshot() decides when a revision should be a full copy instead, which keeps that
+ * chain at most SNAPSHOT_INTERVAL revisions long.
+ */
+public final class NoteRevisionDelta {
+
+    // A revision is stored as a full snapshot at least once every this many revisions
+    public static final int SNAPSHOT_INTERVAL = 20;
+
+    // Characters at the start and end of the old body that are kept
+    public final int prefixLength;
+    public final int suffixLength;
+
+    // What replaces the rest of the old body
+    public final String text;
+
+    public NoteRevisionDelta(int prefixLength, int suffixLength, String text) {
+        if (prefixLength < 0 || suffixLength < 0 || text == null) {
+            throw new IllegalArgumentException("Bad delta " + prefixLength + "/" + suffixLength);
+        }
+        this.prefixLength = prefixLength;
+        this.suffixLength = suffixLength;
+        this.text = text;
+    }
+
+    /** Returns the delta that turns oldBody into newBody */
+    public static NoteRevisionDelta between(String oldBody, String newBody) {
+        int maxLength = Math.min(oldBody.length(), newBody.length());
+
+        int prefix = 0;
+        while (prefix < maxLength && oldBody.charAt(prefix) == newBody.charAt(prefix)) {
+            prefix++;
+        }
+
+        // The suffix can't overlap the prefix in either body
+        int suffix = 0;
+        while (suffix < maxLength - prefix && oldBody.charAt(oldBody.length() - 1 - suffix)
+                == newBody.charAt(newBody.length() - 1 - suffix)) {
+            suffix++;
+        }
+
+        // Never cut a surrogate pair in half, or the replacement text would hold half an emoji
+        // that can't be stored as UTF-8
+        if (prefix > 0 && Character.isHighSurrogate(newBody.charAt(prefix - 1))) {
+            prefix--;
+        }
+        if (suffix > 0 && Character.isLowSurrogate(newBody.charAt(newBody.length() - suffix))) {
+            suffix--;
+        }
+
+        return new NoteRevisionDelta(prefix, suffix,
+                newBody.substring(prefix, newBody.length() - suffix));
+    }
+
+    /** Returns the delta that leaves a body of the given length as it is */
+    public static NoteRevisionDelta unchanged(int length) {
+        return new NoteRevisionDelta(length, 0, "");
+    }
+
+    /** Returns the body this delta makes out of the one it was taken from */
+    public String applyTo(String oldBody) {
+        if (prefixLength + suffixLength > oldBody.length()) {
+            throw new IllegalArgumentException("Delta doesn't fit a body of "
+                    + oldBody.length() + " characters");
+        }
+        return new StringBuilder(prefixLength + text.length() + suffixLength)
+                .append(oldBody, 0, prefixLength)
+                .append(text)
+                .append(oldBody, oldBody.length() - suffixLength, oldBody.length())
+                .toString();
+    }
+
+    /**
+     * Returns one delta that does this one and then next, given the body next produces. Whatever
+     * both of them kept at the start and the end is kept; everything else is taken from newBody
+     * */
+    public NoteRevisionDelta followedBy(NoteRevisionDelta next, String newBody) {
+        int prefix = Math.min(prefixLength, next.prefixLength);
+        int suffix = Math.min(suffixLength, next.suffixLength);
+        return new NoteRevisionDelta(prefix, suffix,
+                newBody.substring(prefix, newBody.length() - suffix));
+    }
+
+    /**
+     * True if a revision with this delta, depth revisions after the last snapshot, should be
+     * stored as a full snapshot instead: either the chain is long enough, or the delta is so big
+     * that a copy of the body costs about the same
+     * */
+    public boolean needsSnapshot(int depth, int bodyLength) {
+        return depth >= SNAPSHOT_INTERVAL || text.length() * 2 >= bodyLength;
+    }
+}
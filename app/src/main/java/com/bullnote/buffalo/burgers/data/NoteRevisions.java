@@ -0,0 +1,350 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteRevisionEntry;
+
+/**
+ * Reads and writes the revision history of each note.
+ *
+ * The provider calls record() inside the transaction of every update, before the note itself is
+ * written. A note's first edit saves the version from before it as a snapshot, so a note that's
+ * never edited costs nothing. After that each revision is a NoteRevisionDelta from the one before,
+ * or a full snapshot when NoteRevisionDelta.needsSnapshot() says so; rebuilding a revision reads
+ * back to the last snapshot and applies the deltas from there, so it never touches more than
+ * NoteRevisionDelta.SNAPSHOT_INTERVAL rows.
+ *
+ * Nothing is ever built on top of the newest revision, so a save shortly after the last one just
+ * rewrites it, and once a note has more than NoteRevisionEntry.MAX_REVISIONS revisions, the oldest
+ * whole runs of snapshot-plus-deltas are deleted.
+ */
+final class NoteRevisions {
+
+    // Columns returned by query() for a single revision
+    static final String[] REVISION_COLUMNS = {
+            NoteRevisionEntry.COLUMN_REVISION,
+            NoteRevisionEntry.COLUMN_TITLE,
+            NoteRevisionEntry.COLUMN_BODY,
+            NoteRevisionEntry.COLUMN_BODY_LENGTH,
+            NoteRevisionEntry.COLUMN_CREATED_AT,
+            NoteRevisionEntry.COLUMN_MODIFIED_AT
+    };
+
+    // Default columns for the list of revisions; the stored data isn't useful outside this class
+    static final String[] LIST_COLUMNS = {
+            NoteRevisionEntry.COLUMN_REVISION,
+            NoteRevisionEntry.COLUMN_TITLE,
+            NoteRevisionEntry.COLUMN_BODY_LENGTH,
+            NoteRevisionEntry.COLUMN_CREATED_AT,
+            NoteRevisionEntry.COLUMN_MODIFIED_AT
+    };
+
+    private static final String[] STORED_COLUMNS = {
+            NoteRevisionEntry.COLUMN_REVISION,
+            NoteRevisionEntry.COLUMN_TITLE,
+            NoteRevisionEntry.COLUMN_BODY_LENGTH,
+            NoteRevisionEntry.COLUMN_CREATED_AT,
+            NoteRevisionEntry.COLUMN_MODIFIED_AT,
+            NoteRevisionEntry.COLUMN_DEPTH,
+            NoteRevisionEntry.COLUMN_PREFIX_LENGTH,
+            NoteRevisionEntry.COLUMN_SUFFIX_LENGTH,
+            NoteRevisionEntry.COLUMN_CODEC,
+            NoteRevisionEntry.COLUMN_DATA
+    };
+
+    // The same, except a snapshot's data is left out; the newest revision is read on every save,
+    // and only a delta's data is needed then
+    private static final String[] LATEST_COLUMNS = {
+            NoteRevisionEntry.COLUMN_REVISION,
+            NoteRevisionEntry.COLUMN_TITLE,
+            NoteRevisionEntry.COLUMN_BODY_LENGTH,
+            NoteRevisionEntry.COLUMN_CREATED_AT,
+            NoteRevisionEntry.COLUMN_MODIFIED_AT,
+            NoteRevisionEntry.COLUMN_DEPTH,
+            NoteRevisionEntry.COLUMN_PREFIX_LENGTH,
+            NoteRevisionEntry.COLUMN_SUFFIX_LENGTH,
+            NoteRevisionEntry.COLUMN_CODEC,
+            "CASE WHEN " + NoteRevisionEntry.COLUMN_DEPTH + " = 0 THEN NULL ELSE "
+                    + NoteRevisionEntry.COLUMN_DATA + " END AS " + NoteRevisionEntry.COLUMN_DATA
+    };
+
+    // Indexes into STORED_COLUMNS and LATEST_COLUMNS
+    private static final int COLUMN_REVISION = 0;
+    private static final int COLUMN_TITLE = 1;
+    private static final int COLUMN_BODY_LENGTH = 2;
+    private static final int COLUMN_CREATED_AT = 3;
+    private static final int COLUMN_MODIFIED_AT = 4;
+    private static final int COLUMN_DEPTH = 5;
+    private static final int COLUMN_PREFIX_LENGTH = 6;
+    private static final int COLUMN_SUFFIX_LENGTH = 7;
+    private static final int COLUMN_CODEC = 8;
+    private static final int COLUMN_DATA = 9;
+
+    private static final String SQL_WRITE_REVISION = "INSERT OR REPLACE INTO "
+            + NoteRevisionEntry.TABLE_NAME + " ("
+            + NoteRevisionEntry.COLUMN_NOTE_ID + ", " + NoteRevisionEntry.COLUMN_REVISION + ", "
+            + NoteRevisionEntry.COLUMN_TITLE + ", " + NoteRevisionEntry.COLUMN_BODY_LENGTH + ", "
+            + NoteRevisionEntry.COLUMN_CREATED_AT + ", " + NoteRevisionEntry.COLUMN_MODIFIED_AT + ", "
+            + NoteRevisionEntry.COLUMN_DEPTH + ", " + NoteRevisionEntry.COLUMN_PREFIX_LENGTH + ", "
+            + NoteRevisionEntry.COLUMN_SUFFIX_LENGTH + ", " + NoteRevisionEntry.COLUMN_CODEC + ", "
+            + NoteRevisionEntry.COLUMN_DATA + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String SQL_RETITLE_REVISION = "UPDATE " + NoteRevisionEntry.TABLE_NAME
+            + " SET " + NoteRevisionEntry.COLUMN_TITLE + " = ?, "
+            + NoteRevisionEntry.COLUMN_MODIFIED_AT + " = ? WHERE "
+            + NoteRevisionEntry.COLUMN_NOTE_ID + " = ? AND " + NoteRevisionEntry.COLUMN_REVISION + " = ?";
+
+    // The newest snapshot at or before a given revision, which is where rebuilding it starts
+    private static final String SQL_SNAPSHOT_BEFORE = "(SELECT max("
+            + NoteRevisionEntry.COLUMN_REVISION + ") FROM " + NoteRevisionEntry.TABLE_NAME
+            + " WHERE " + NoteRevisionEntry.COLUMN_NOTE_ID + " = ? AND "
+            + NoteRevisionEntry.COLUMN_DEPTH + " = 0 AND "
+            + NoteRevisionEntry.COLUMN_REVISION + " <= ?)";
+
+    // Deletes everything before the snapshot that the oldest revision to keep is built on
+    private static final String SQL_PRUNE = "DELETE FROM " + NoteRevisionEntry.TABLE_NAME
+            + " WHERE " + NoteRevisionEntry.COLUMN_NOTE_ID + " = ? AND "
+            + NoteRevisionEntry.COLUMN_REVISION + " < " + SQL_SNAPSHOT_BEFORE;
+
+    // Does not need a constructor, should never be instantiated
+    private NoteRevisions() {}
+
+    /** A note's title and body at one point in its history */
+    static final class Version {
+        final String title;
+        final String body;
+        final long createdAt;
+        final long modifiedAt;
+
+        Version(String title, String body, long createdAt, long modifiedAt) {
+            this.title = title;
+            this.body = body;
+            this.createdAt = createdAt;
+            this.modifiedAt = modifiedAt;
+        }
+    }
+
+    // The bits of the newest revision that a save needs
+    private static final class Latest {
+        int revision;
+        String title;
+        int bodyLength;
+        long createdAt;
+        int depth;
+
+        // Null for a snapshot
+        NoteRevisionDelta delta;
+    }
+
+    /**
+     * Records a save of the note that's about to set its title and/or body (either may be null if
+     * it isn't changing) at the time now. With merge set, a save within MERGE_WINDOW_MS of the last
+     * revision is folded into it. Call this inside the update's transaction, before the note row
+     * is written
+     * */
+    static void record(SQLiteDatabase db, long noteId, String newTitle, String newBody, long now,
+                       boolean merge) {
+        Latest latest = queryLatest(db, noteId);
+
+        // The note as it is now is needed to start its history, and to diff a new body against
+        Version current = null;
+        if (latest == null || newBody != null) {
+            current = readNote(db, noteId);
+            if (current == null) {
+                return;
+            }
+        }
+
+        // Saving exactly what's already there isn't a new revision
+        String title = newTitle != null ? newTitle : latest != null ? latest.title : current.title;
+        if (current != null) {
+            if (title.equals(current.title) && (newBody == null || newBody.equals(current.body))) {
+                return;
+            }
+        } else if (title.equals(latest.title)) {
+            return;
+        }
+
+        // The note's first edit: start its history with the version from before it
+        if (latest == null) {
+            write(db, noteId, 1, current.title, current.body.length(), current.modifiedAt,
+                    current.modifiedAt, 0, null, current.body);
+            latest = new Latest();
+            latest.revision = 1;
+            latest.title = current.title;
+            latest.bodyLength = current.body.length();
+            latest.createdAt = current.modifiedAt;
+        }
+
+        int bodyLength = newBody != null ? newBody.length() : latest.bodyLength;
+        NoteRevisionDelta delta = newBody != null
+                ? NoteRevisionDelta.between(current.body, newBody)
+                : NoteRevisionDelta.unchanged(bodyLength);
+
+        if (merge && now - latest.createdAt < NoteRevisionEntry.MERGE_WINDOW_MS) {
+            // Fold this save into the newest revision. Nothing is built on it, so it can be
+            // rewritten as long as it still leads on from the revision before
+            if (newBody == null) {
+                retitle(db, noteId, latest.revision, title, now);
+            } else if (latest.delta == null) {
+                write(db, noteId, latest.revision, title, bodyLength, latest.createdAt, now,
+                        0, null, newBody);
+            } else {
+                NoteRevisionDelta merged = latest.delta.followedBy(delta, newBody);
+                if (merged.needsSnapshot(latest.depth, bodyLength)) {
+                    write(db, noteId, latest.revision, title, bodyLength, latest.createdAt, now,
+                            0, null, newBody);
+                } else {
+                    write(db, noteId, latest.revision, title, bodyLength, latest.createdAt, now,
+                            latest.depth, merged, null);
+                }
+            }
+            return;
+        }
+
+        int revision = latest.revision + 1;
+        int depth = latest.depth + 1;
+        if (delta.needsSnapshot(depth, bodyLength)) {
+            String body = newBody != null ? newBody : readNote(db, noteId).body;
+            write(db, noteId, revision, title, bodyLength, now, now, 0, null, body);
+        } else {
+            write(db, noteId, revision, title, bodyLength, now, now, depth, delta, null);
+        }
+
+        // Drop the oldest revisions, a whole run at a time, so every one that's kept can still
+        // be rebuilt
+        db.execSQL(SQL_PRUNE, new Object[] { noteId, noteId,
+                revision - NoteRevisionEntry.MAX_REVISIONS + 1 });
+    }
+
+    /** Rebuilds a revision of a note, or returns null if there's no such revision */
+    static Version read(SQLiteDatabase db, long noteId, int revision) {
+        String id = String.valueOf(noteId);
+        String number = String.valueOf(revision);
+
+        // Everything from the snapshot the revision is built on up to the revision itself
+        Cursor chain = db.query(NoteRevisionEntry.TABLE_NAME, STORED_COLUMNS,
+                NoteRevisionEntry.COLUMN_NOTE_ID + " = ? AND "
+                        + NoteRevisionEntry.COLUMN_REVISION + " <= ? AND "
+                        + NoteRevisionEntry.COLUMN_REVISION + " >= " + SQL_SNAPSHOT_BEFORE,
+                new String[] { id, number, id, number },
+                null, null, NoteRevisionEntry.COLUMN_REVISION + " ASC");
+        try {
+            String body = null;
+            while (chain.moveToNext()) {
+                String data = NoteBodyCursor.decode(chain.getInt(COLUMN_CODEC), chain, COLUMN_DATA);
+                if (chain.getInt(COLUMN_DEPTH) == 0) {
+                    body = data;
+                } else {
+                    body = new NoteRevisionDelta(chain.getInt(COLUMN_PREFIX_LENGTH),
+                            chain.getInt(COLUMN_SUFFIX_LENGTH), data).applyTo(body);
+                }
+            }
+            if (body == null || !chain.moveToLast() || chain.getInt(COLUMN_REVISION) != revision) {
+                return null;
+            }
+            return new Version(chain.getString(COLUMN_TITLE), body,
+                    chain.getLong(COLUMN_CREATED_AT), chain.getLong(COLUMN_MODIFIED_AT));
+        } finally {
+            chain.close();
+        }
+    }
+
+    /** Returns a cursor over one rebuilt revision with the columns in REVISION_COLUMNS */
+    static Cursor query(SQLiteDatabase db, long noteId, int revision) {
+        MatrixCursor result = new MatrixCursor(REVISION_COLUMNS, 1);
+        Version version = read(db, noteId, revision);
+        if (version != null) {
+            result.addRow(new Object[] { revision, version.title, version.body,
+                    version.body.length(), version.createdAt, version.modifiedAt });
+        }
+        return result;
+    }
+
+    // Returns the note's newest revision, or null if it has no history yet
+    private static Latest queryLatest(SQLiteDatabase db, long noteId) {
+        Cursor cursor = db.query(NoteRevisionEntry.TABLE_NAME, LATEST_COLUMNS,
+                NoteRevisionEntry.COLUMN_NOTE_ID + " = ?", new String[] { String.valueOf(noteId) },
+                null, null, NoteRevisionEntry.COLUMN_REVISION + " DESC", "1");
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            Latest latest = new Latest();
+            latest.revision = cursor.getInt(COLUMN_REVISION);
+            latest.title = cursor.getString(COLUMN_TITLE);
+            latest.bodyLength = cursor.getInt(COLUMN_BODY_LENGTH);
+            latest.createdAt = cursor.getLong(COLUMN_CREATED_AT);
+            latest.depth = cursor.getInt(COLUMN_DEPTH);
+            if (latest.depth != 0) {
+                latest.delta = new NoteRevisionDelta(cursor.getInt(COLUMN_PREFIX_LENGTH),
+                        cursor.getInt(COLUMN_SUFFIX_LENGTH),
+                        NoteBodyCursor.decode(cursor.getInt(COLUMN_CODEC), cursor, COLUMN_DATA));
+            }
+            return latest;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns the note as it's stored right now, or null if there's no such note
+    private static Version readNote(SQLiteDatabase db, long noteId) {
+        Cursor cursor = NoteBodyCursor.wrap(db.query(NoteEntry.TABLE_NAME,
+                NoteBodyCursor.projectionFor(new String[] {
+                        NoteEntry.COLUMN_TITLE, NoteEntry.COLUMN_BODY,
+                        NoteEntry.COLUMN_CREATED_AT, NoteEntry.COLUMN_MODIFIED_AT }),
+                NoteEntry._ID + " = ?", new String[] { String.valueOf(noteId) },
+                null, null, null), db);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return new Version(cursor.getString(0), cursor.getString(1),
+                    cursor.getLong(2), cursor.getLong(3));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Writes a revision, replacing any with the same number: a snapshot of body if delta is null,
+    // otherwise the delta
+    private static void write(SQLiteDatabase db, long noteId, int revision, String title,
+                              int bodyLength, long createdAt, long modifiedAt, int depth,
+                              NoteRevisionDelta delta, String body) {
+        String data = delta == null ? body : delta.text;
+        byte[] compressed = NoteBodyCodec.compress(data);
+
+        SQLiteStatement statement = db.compileStatement(SQL_WRITE_REVISION);
+        try {
+            statement.bindLong(1, noteId);
+            statement.bindLong(2, revision);
+            statement.bindString(3, title);
+            statement.bindLong(4, bodyLength);
+            statement.bindLong(5, createdAt);
+            statement.bindLong(6, modifiedAt);
+            statement.bindLong(7, depth);
+            statement.bindLong(8, delta == null ? 0 : delta.prefixLength);
+            statement.bindLong(9, delta == null ? 0 : delta.suffixLength);
+            if (compressed == null) {
+                statement.bindLong(10, NoteEntry.BODY_CODEC_PLAIN);
+                statement.bindString(11, data);
+            } else {
+                statement.bindLong(10, NoteEntry.BODY_CODEC_DEFLATE);
+                statement.bindBlob(11, compressed);
+            }
+            statement.executeInsert();
+        } finally {
+            statement.close();
+        }
+    }
+
+    // Changes just the title of a revision
+    private static void retitle(SQLiteDatabase db, long noteId, int revision, String title,
+                                long modifiedAt) {
+        db.execSQL(SQL_RETITLE_REVISION, new Object[] { title, modifiedAt, noteId, revision });
+    }
+}
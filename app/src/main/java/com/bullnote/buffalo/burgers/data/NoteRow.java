@@ -0,0 +1,68 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.database.Cursor;
+
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+
+/**
+ * A typed view of the current row of a note cursor. The column numbers are looked up once, when
+ * the row is made, and the same NoteRow is then moved through every row of the cursor, so reading
+ * a page costs no lookups by name and no objects beyond the values themselves.
+ *
+ * Columns the cursor doesn't have read as empty: no title or preview is null, no modified time
+ * is 0. Search results have a snippet instead of a preview, which preview() returns.
+ */
+public class NoteRow {
+
+    private final Cursor mCursor;
+    private final int mIdColumn;
+    private final int mTitleColumn;
+    private final int mPreviewColumn;
+    private final int mModifiedColumn;
+
+    public NoteRow(Cursor cursor) {
+        mCursor = cursor;
+        mIdColumn = cursor.getColumnIndex(NoteEntry._ID);
+        mTitleColumn = cursor.getColumnIndex(NoteEntry.COLUMN_TITLE);
+        int previewColumn = cursor.getColumnIndex(NoteEntry.COLUMN_PREVIEW);
+        mPreviewColumn = previewColumn != -1
+                ? previewColumn : cursor.getColumnIndex(NoteEntry.COLUMN_SNIPPET);
+        mModifiedColumn = cursor.getColumnIndex(NoteEntry.COLUMN_MODIFIED_AT);
+    }
+
+    /** Moves to the next row; false once there are no more */
+    public boolean moveToNext() {
+        return mCursor.moveToNext();
+    }
+
+    /** Moves to the first row; false if there are none */
+    public boolean moveToFirst() {
+        return mCursor.moveToFirst();
+    }
+
+    /** How many rows the cursor has */
+    public int getCount() {
+        return mCursor.getCount();
+    }
+
+    public long id() {
+        return mIdColumn == -1 ? -1 : mCursor.getLong(mIdColumn);
+    }
+
+    public String title() {
+        return mTitleColumn == -1 ? null : mCursor.getString(mTitleColumn);
+    }
+
+    public String preview() {
+        return mPreviewColumn == -1 ? null : mCursor.getString(mPreviewColumn);
+    }
+
+    public long modifiedAt() {
+        return mModifiedColumn == -1 ? 0 : mCursor.getLong(mModifiedColumn);
+    }
+
+    /** Copies the current row into a list item, which outlives the cursor */
+    public NoteListItem toListItem() {
+        return new NoteListItem(id(), title(), preview(), modifiedAt());
+    }
+}
@@ -0,0 +1,207 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteSearchEntry;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Runs a full-text search in two passes, so the cost of a keystroke doesn't grow with how long
+ * the matching notes are, or with how many there are.
+ *
+ * The first pass reads only the FTS index: the docid of each match and its matchinfo(), the hit
+ * counts of each search term in each column, which never loads a note's text. It takes the newest
+ * SEARCH_CANDIDATES matches, ranks them from those counts and keeps the best SEARCH_LIMIT. The
+ * second pass runs snippet(), which does have to load and re-tokenize the text, for just those
+ * notes.
+ *
+ * A search that matches more than SEARCH_CANDIDATES notes, like the first letter or two typed,
+ * only ranks the newest of them. The next few letters narrow it down to the rest.
+ *
+ * Notes in the trash keep their search text until they're purged, but never match.
+ */
+final class NoteSearch {
+
+    // Columns returned by a search, whatever projection the caller asked for
+    static final String[] SEARCH_COLUMNS = {
+            NoteEntry._ID,
+            NoteEntry.COLUMN_TITLE,
+            NoteEntry.COLUMN_SNIPPET
+    };
+
+    // The most matches a single search will return
+    static final int SEARCH_LIMIT = 100;
+
+    // The most matches a single search will rank, newest first
+    static final int SEARCH_CANDIDATES = 2000;
+
+    // How much a hit in each column of the search table counts; a hit in the title counts double
+    private static final double[] COLUMN_WEIGHTS = { 2.0, 1.0 };
+
+    // The newest matches and their hit counts: the number of terms, the number of columns, then
+    // for each term and column the hits in this note, the hits in every note and the notes with a
+    // hit. The trash is left out through its own index, so no note row is read
+    private static final String SQL_MATCHES = "SELECT "
+            + NoteSearchEntry.COLUMN_DOCID + ", "
+            + "matchinfo(" + NoteSearchEntry.TABLE_NAME + ", 'pcx')"
+            + " FROM " + NoteSearchEntry.TABLE_NAME
+            + " WHERE " + NoteSearchEntry.TABLE_NAME + " MATCH ?"
+            + " AND " + NoteSearchEntry.COLUMN_DOCID + " NOT IN (SELECT " + NoteEntry._ID
+            + " FROM " + NoteEntry.TABLE_NAME + " WHERE " + NoteTrash.SQL_WHERE_TRASHED + ")"
+            + " ORDER BY " + NoteSearchEntry.COLUMN_DOCID + " DESC LIMIT " + SEARCH_CANDIDATES;
+
+    // The title and snippet of the chosen matches. The + keeps the docid list away from the FTS
+    // table, which would otherwise look the notes up by docid and refuse the MATCH; this way it
+    // still runs the MATCH (from the index) and snippet() only runs on the notes in the list
+    private static final String SQL_SNIPPETS = "SELECT "
+            + NoteEntry.TABLE_NAME + "." + NoteEntry._ID + ", "
+            + NoteEntry.TABLE_NAME + "." + NoteEntry.COLUMN_TITLE + ", "
+            + "snippet(" + NoteSearchEntry.TABLE_NAME + ", '', '', '...', -1, 12)"
+            + " FROM " + NoteSearchEntry.TABLE_NAME
+            + " JOIN " + NoteEntry.TABLE_NAME + " ON "
+            + NoteEntry.TABLE_NAME + "." + NoteEntry._ID + " = "
+            + NoteSearchEntry.TABLE_NAME + "." + NoteSearchEntry.COLUMN_DOCID
+            + " WHERE " + NoteSearchEntry.TABLE_NAME + " MATCH ?"
+            + " AND +" + NoteSearchEntry.TABLE_NAME + "." + NoteSearchEntry.COLUMN_DOCID + " IN ";
+
+    // Does not need a constructor, should never be instantiated
+    private NoteSearch() {}
+
+    /** One ranked match */
+    static class Match {
+        final long id;
+        final double rank;
+
+        Match(long id, double rank) {
+            this.id = id;
+            this.rank = rank;
+        }
+    }
+
+    // Best first: higher rank, then the newer note
+    static final Comparator<Match> BEST_FIRST = new Comparator<Match>() {
+        @Override
+        public int compare(Match a, Match b) {
+            if (a.rank != b.rank) {
+                return a.rank > b.rank ? -1 : 1;
+            }
+            return a.id == b.id ? 0 : (a.id > b.id ? -1 : 1);
+        }
+    };
+
+    /**
+     * Returns the best SEARCH_LIMIT notes for an FTS match query, best first, with their _ID,
+     * title and a snippet around the hits
+     * */
+    static Cursor search(SQLiteDatabase db, String matchQuery) {
+        List<Match> matches = rankMatches(db, matchQuery);
+        MatrixCursor results = new MatrixCursor(SEARCH_COLUMNS, matches.size());
+        if (matches.isEmpty()) {
+            return results;
+        }
+
+        StringBuilder sql = new StringBuilder(SQL_SNIPPETS).append('(');
+        String[] args = new String[matches.size() + 1];
+        args[0] = matchQuery;
+        for (int i = 0; i < matches.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+            args[i + 1] = String.valueOf(matches.get(i).id);
+        }
+        sql.append(')');
+
+        // The rows come back in index order; put them back in rank order
+        Object[][] rows = new Object[matches.size()][];
+        Cursor cursor = db.rawQuery(sql.toString(), args);
+        try {
+            while (cursor.moveToNext()) {
+                int position = positionOf(matches, cursor.getLong(0));
+                if (position >= 0) {
+                    rows[position] = new Object[] {
+                            cursor.getLong(0), cursor.getString(1), cursor.getString(2) };
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (Object[] row : rows) {
+            // A note deleted between the two passes just drops out
+            if (row != null) {
+                results.addRow(row);
+            }
+        }
+        return results;
+    }
+
+    // Reads the newest matches from the index and keeps the best SEARCH_LIMIT, best first
+    static List<Match> rankMatches(SQLiteDatabase db, String matchQuery) {
+        // The worst of the kept matches is at the head, so it's the one a better match replaces
+        PriorityQueue<Match> best = new PriorityQueue<Match>(SEARCH_LIMIT + 1,
+                Collections.reverseOrder(BEST_FIRST));
+        Cursor cursor = db.rawQuery(SQL_MATCHES, new String[] { matchQuery });
+        try {
+            while (cursor.moveToNext()) {
+                Match match = new Match(cursor.getLong(0), rank(cursor.getBlob(1)));
+                if (best.size() < SEARCH_LIMIT) {
+                    best.add(match);
+                } else if (BEST_FIRST.compare(match, best.peek()) < 0) {
+                    best.poll();
+                    best.add(match);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        List<Match> matches = new ArrayList<Match>(best);
+        Collections.sort(matches, BEST_FIRST);
+        return matches;
+    }
+
+    /**
+     * Ranks a match from its matchinfo(..., 'pcx'). Each hit of a term counts for less the more
+     * hits that term has across every note, so a note with a few hits of a rare term beats one
+     * with many hits of a common one, and a hit in the title counts double
+     * */
+    static double rank(byte[] matchinfo) {
+        // matchinfo() is an array of 32-bit integers in the device's byte order
+        IntBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int terms = info.get(0);
+        int columns = info.get(1);
+
+        double rank = 0;
+        for (int term = 0; term < terms; term++) {
+            for (int column = 0; column < columns; column++) {
+                int index = 2 + 3 * (term * columns + column);
+                int hitsHere = info.get(index);
+                int hitsEverywhere = info.get(index + 1);
+                if (hitsHere > 0) {
+                    double weight = column < COLUMN_WEIGHTS.length ? COLUMN_WEIGHTS[column] : 1.0;
+                    rank += weight * hitsHere / hitsEverywhere;
+                }
+            }
+        }
+        return rank;
+    }
+
+    // Where the note is in the ranked list, or -1; the list is at most SEARCH_LIMIT long
+    private static int positionOf(List<Match> matches, long id) {
+        for (int i = 0; i < matches.size(); i++) {
+            if (matches.get(i).id == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,191 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The statements behind NoteProvider's hot paths, compiled once and rebound for every call:
+ * inserting a note, updating, trashing or deleting one by _ID. SQLiteDatabase.insert/update/delete
+ * build the SQL string from scratch every time and then look it up in the connection's statement
+ * cache; these skip both.
+ *
+ * An update is compiled once per set of columns it writes (title only, body only, and so on), so
+ * autosave's partial updates each get their own statement. Reading a note by _ID still needs a
+ * cursor, so that's a constant SQL string instead, which the connection compiles once and keeps.
+ *
+ * The statements belong to one SQLiteDatabase and are shared by every thread, so only use them
+ * inside a transaction on it: that's what keeps two threads from binding the same one at once.
+ */
+final class NoteStatements {
+
+    // Inserts one note
+    static final String SQL_INSERT_NOTE = "INSERT INTO " + NoteEntry.TABLE_NAME + " ("
+            + NoteEntry.COLUMN_TITLE + ", " + NoteEntry.COLUMN_BODY + ", "
+            + NoteEntry.COLUMN_PREVIEW + ", " + NoteEntry.COLUMN_CREATED_AT + ", "
+            + NoteEntry.COLUMN_MODIFIED_AT + ", " + NoteEntry.COLUMN_BODY_CODEC + ", "
+            + NoteEntry.COLUMN_UUID + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String SQL_DELETE_BY_ID = "DELETE FROM " + NoteEntry.TABLE_NAME
+            + " WHERE " + NoteEntry._ID + " = ?";
+
+    // Moves a note to the trash, unless it's there already
+    private static final String SQL_TRASH_BY_ID = "UPDATE " + NoteEntry.TABLE_NAME + " SET "
+            + NoteEntry.COLUMN_DELETED_AT + " = ? WHERE " + NoteEntry._ID + " = ? AND "
+            + NoteDbHelper.SQL_WHERE_LIVE;
+
+    // The row the note cache is filled from
+    static final String SQL_QUERY_CACHE_ROW = "SELECT "
+            + TextUtils.join(", ", NoteCache.QUERY_COLUMNS) + " FROM " + NoteEntry.TABLE_NAME
+            + " WHERE " + NoteEntry._ID + " = ?";
+
+    // Different sets of updated columns to keep statements for; there are only a handful in
+    // practice, and anything past this is compiled for the one call
+    private static final int MAX_UPDATE_STATEMENTS = 8;
+
+    private final SQLiteDatabase mDatabase;
+    private SQLiteStatement mInsert;
+    private SQLiteStatement mIndexBody;
+    private SQLiteStatement mDelete;
+    private SQLiteStatement mTrash;
+    private final Map<String, SQLiteStatement> mUpdates = new HashMap<String, SQLiteStatement>();
+
+    NoteStatements(SQLiteDatabase database) {
+        mDatabase = database;
+    }
+
+    /** True if these statements were compiled for that database */
+    boolean isFor(SQLiteDatabase database) {
+        return mDatabase == database;
+    }
+
+    /** SQL_INSERT_NOTE; bind it, run it, and clear it afterwards */
+    SQLiteStatement insert() {
+        if (mInsert == null) {
+            mInsert = mDatabase.compileStatement(SQL_INSERT_NOTE);
+        }
+        return mInsert;
+    }
+
+    /** NoteDbHelper.SQL_INDEX_BODY; bind it, run it, and clear it afterwards */
+    SQLiteStatement indexBody() {
+        if (mIndexBody == null) {
+            mIndexBody = mDatabase.compileStatement(NoteDbHelper.SQL_INDEX_BODY);
+        }
+        return mIndexBody;
+    }
+
+    /** Deletes the note with that _ID and returns how many rows went (0 or 1) */
+    int deleteById(long id) {
+        if (mDelete == null) {
+            mDelete = mDatabase.compileStatement(SQL_DELETE_BY_ID);
+        }
+        mDelete.bindLong(1, id);
+        try {
+            return mDelete.executeUpdateDelete();
+        } finally {
+            mDelete.clearBindings();
+        }
+    }
+
+    /** Moves the note with that _ID to the trash and returns how many rows changed (0 or 1) */
+    int trashById(long id, long deletedAt) {
+        if (mTrash == null) {
+            mTrash = mDatabase.compileStatement(SQL_TRASH_BY_ID);
+        }
+        mTrash.bindLong(1, deletedAt);
+        mTrash.bindLong(2, id);
+        try {
+            return mTrash.executeUpdateDelete();
+        } finally {
+            mTrash.clearBindings();
+        }
+    }
+
+    /** Writes the values to the note with that _ID and returns how many rows changed (0 or 1) */
+    int updateById(long id, ContentValues values) {
+        // Sorted, so the same columns always find the same statement
+        String[] columns = values.keySet().toArray(new String[values.size()]);
+        Arrays.sort(columns);
+        String key = TextUtils.join(",", columns);
+
+        SQLiteStatement statement = mUpdates.get(key);
+        boolean pooled = statement != null;
+        if (statement == null) {
+            statement = mDatabase.compileStatement(buildUpdate(columns));
+            if (mUpdates.size() < MAX_UPDATE_STATEMENTS) {
+                mUpdates.put(key, statement);
+                pooled = true;
+            }
+        }
+
+        try {
+            for (int i = 0; i < columns.length; i++) {
+                bind(statement, i + 1, values.get(columns[i]));
+            }
+            statement.bindLong(columns.length + 1, id);
+            return statement.executeUpdateDelete();
+        } finally {
+            if (pooled) {
+                statement.clearBindings();
+            } else {
+                statement.close();
+            }
+        }
+    }
+
+    /** Closes every statement */
+    void close() {
+        if (mInsert != null) {
+            mInsert.close();
+        }
+        if (mIndexBody != null) {
+            mIndexBody.close();
+        }
+        if (mDelete != null) {
+            mDelete.close();
+        }
+        if (mTrash != null) {
+            mTrash.close();
+        }
+        for (SQLiteStatement statement : mUpdates.values()) {
+            statement.close();
+        }
+        mUpdates.clear();
+    }
+
+    // "UPDATE notes SET a = ?, b = ? WHERE _id = ?" for the columns
+    private static String buildUpdate(String[] columns) {
+        StringBuilder sql = new StringBuilder("UPDATE ").append(NoteEntry.TABLE_NAME).append(" SET ");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(columns[i]).append(" = ?");
+        }
+        return sql.append(" WHERE ").append(NoteEntry._ID).append(" = ?").toString();
+    }
+
+    // Binds a ContentValues value with the type it already has, like SQLiteDatabase.update does
+    private static void bind(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof String) {
+            statement.bindString(index, (String) value);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+}
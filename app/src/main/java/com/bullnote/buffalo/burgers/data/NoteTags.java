@@ -0,0 +1,174 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTagEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTagMapEntry;
+
+import java.util.List;
+
+/**
+ * Reads and writes tags and the links between them and notes.
+ *
+ * Filtering the list by tag is one "_id IN (...)" per tag, each a range of the note_tags tag
+ * index, so SQLite looks the notes up by _ID from the smallest list instead of scanning every
+ * note. Only the page of notes that matched is then sorted. Tag counts are kept by triggers, so
+ * listing the tags never counts links.
+ */
+final class NoteTags {
+
+    // Columns returned for a tag
+    static final String[] TAG_COLUMNS = {
+            NoteTagEntry._ID,
+            NoteTagEntry.COLUMN_NAME,
+            NoteTagEntry.COLUMN_NOTE_COUNT
+    };
+
+    // Tags A to Z, the same way the unique name compares them
+    static final String SORT_BY_NAME = NoteTagEntry.COLUMN_NAME + " COLLATE NOCASE ASC";
+
+    // One note's tags, A to Z
+    private static final String SQL_NOTE_TAGS = "SELECT "
+            + NoteTagEntry.TABLE_NAME + "." + NoteTagEntry._ID + " AS " + NoteTagEntry._ID + ", "
+            + NoteTagEntry.TABLE_NAME + "." + NoteTagEntry.COLUMN_NAME + " AS " + NoteTagEntry.COLUMN_NAME + ", "
+            + NoteTagEntry.TABLE_NAME + "." + NoteTagEntry.COLUMN_NOTE_COUNT + " AS " + NoteTagEntry.COLUMN_NOTE_COUNT
+            + " FROM " + NoteTagMapEntry.TABLE_NAME
+            + " JOIN " + NoteTagEntry.TABLE_NAME + " ON "
+            + NoteTagEntry.TABLE_NAME + "." + NoteTagEntry._ID + " = "
+            + NoteTagMapEntry.TABLE_NAME + "." + NoteTagMapEntry.COLUMN_TAG_ID
+            + " WHERE " + NoteTagMapEntry.TABLE_NAME + "." + NoteTagMapEntry.COLUMN_NOTE_ID + " = ?"
+            + " ORDER BY " + NoteTagEntry.TABLE_NAME + "." + SORT_BY_NAME;
+
+    // The notes that have one tag; the tag filter is one of these per tag
+    private static final String SQL_HAS_TAG = NoteEntry._ID + " IN (SELECT "
+            + NoteTagMapEntry.COLUMN_NOTE_ID + " FROM " + NoteTagMapEntry.TABLE_NAME
+            + " WHERE " + NoteTagMapEntry.COLUMN_TAG_ID + " = ?)";
+
+    // Links a note to a tag, unless one of them doesn't exist or they're linked already. Not
+    // INSERT OR IGNORE: the triggers would inherit the IGNORE, and their INSERT OR REPLACE into the
+    // change log would quietly do nothing
+    private static final String SQL_TAG_NOTE = "INSERT INTO " + NoteTagMapEntry.TABLE_NAME
+            + " (" + NoteTagMapEntry.COLUMN_NOTE_ID + ", " + NoteTagMapEntry.COLUMN_TAG_ID + ") SELECT "
+            + NoteEntry.TABLE_NAME + "." + NoteEntry._ID + ", "
+            + NoteTagEntry.TABLE_NAME + "." + NoteTagEntry._ID
+            + " FROM " + NoteEntry.TABLE_NAME + ", " + NoteTagEntry.TABLE_NAME
+            + " WHERE " + NoteEntry.TABLE_NAME + "." + NoteEntry._ID + " = ? AND "
+            + NoteTagEntry.TABLE_NAME + "." + NoteTagEntry._ID + " = ? AND NOT EXISTS (SELECT 1 FROM "
+            + NoteTagMapEntry.TABLE_NAME + " WHERE "
+            + NoteTagMapEntry.TABLE_NAME + "." + NoteTagMapEntry.COLUMN_NOTE_ID + " = "
+            + NoteEntry.TABLE_NAME + "." + NoteEntry._ID + " AND "
+            + NoteTagMapEntry.TABLE_NAME + "." + NoteTagMapEntry.COLUMN_TAG_ID + " = "
+            + NoteTagEntry.TABLE_NAME + "." + NoteTagEntry._ID + ")";
+
+    private static final String SQL_FIND_TAG = "SELECT " + NoteTagEntry._ID + " FROM "
+            + NoteTagEntry.TABLE_NAME + " WHERE " + NoteTagEntry.COLUMN_NAME + " = ?";
+
+    private static final String SQL_INSERT_TAG = "INSERT INTO " + NoteTagEntry.TABLE_NAME
+            + " (" + NoteTagEntry.COLUMN_NAME + ") VALUES (?)";
+
+    // Does not need a constructor, should never be instantiated
+    private NoteTags() {}
+
+    /** Returns the selection for the notes that have every one of tagCount tags */
+    static String filterSelection(int tagCount) {
+        StringBuilder selection = new StringBuilder();
+        for (int i = 0; i < tagCount; i++) {
+            selection.append(i == 0 ? "" : " AND ").append(SQL_HAS_TAG);
+        }
+        return selection.toString();
+    }
+
+    /** Returns the arguments for filterSelection: the tag _IDs, checked to be numbers */
+    static String[] filterArgs(List<String> tagIds) {
+        String[] args = new String[tagIds.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = String.valueOf(Long.parseLong(tagIds.get(i)));
+        }
+        return args;
+    }
+
+    /** Returns a cursor over the note's tags, with TAG_COLUMNS */
+    static Cursor queryNoteTags(SQLiteDatabase db, long noteId) {
+        return db.rawQuery(SQL_NOTE_TAGS, new String[] { String.valueOf(noteId) });
+    }
+
+    /**
+     * Returns the _ID of the tag with that name (ignoring case), adding it if there isn't one.
+     * Throws if the name is empty or too long once the spaces around it are trimmed
+     * */
+    static long findOrCreate(SQLiteDatabase db, String name) {
+        long id = find(db, checkName(name));
+        return id != -1 ? id : create(db, name);
+    }
+
+    /** Adds a tag with that name and returns its _ID; find it first, since names are unique */
+    static long create(SQLiteDatabase db, String name) {
+        SQLiteStatement insert = db.compileStatement(SQL_INSERT_TAG);
+        try {
+            insert.bindString(1, checkName(name));
+            return insert.executeInsert();
+        } finally {
+            insert.close();
+        }
+    }
+
+    /** Returns the _ID of the tag with that name (ignoring case), or -1 if there isn't one */
+    static long find(SQLiteDatabase db, String name) {
+        Cursor cursor = db.rawQuery(SQL_FIND_TAG, new String[] { name.trim() });
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Gives the note the tag. Returns false if the note or the tag doesn't exist; a note that
+     * already has the tag keeps it, and that counts as success
+     * */
+    static boolean tagNote(SQLiteDatabase db, long noteId, long tagId) {
+        SQLiteStatement insert = db.compileStatement(SQL_TAG_NOTE);
+        try {
+            insert.bindLong(1, noteId);
+            insert.bindLong(2, tagId);
+            if (insert.executeInsert() != -1) {
+                return true;
+            }
+        } finally {
+            insert.close();
+        }
+
+        // Nothing was added; that's fine if it's because the note has the tag already
+        return DatabaseUtils.queryNumEntries(db, NoteTagMapEntry.TABLE_NAME,
+                NoteTagMapEntry.COLUMN_NOTE_ID + " = ? AND " + NoteTagMapEntry.COLUMN_TAG_ID + " = ?",
+                new String[] { String.valueOf(noteId), String.valueOf(tagId) }) != 0;
+    }
+
+    /** Takes the tag off the note, or every tag if tagId is -1. Returns how many came off */
+    static int untagNote(SQLiteDatabase db, long noteId, long tagId) {
+        if (tagId == -1) {
+            return db.delete(NoteTagMapEntry.TABLE_NAME, NoteTagMapEntry.COLUMN_NOTE_ID + " = ?",
+                    new String[] { String.valueOf(noteId) });
+        }
+        return db.delete(NoteTagMapEntry.TABLE_NAME,
+                NoteTagMapEntry.COLUMN_NOTE_ID + " = ? AND " + NoteTagMapEntry.COLUMN_TAG_ID + " = ?",
+                new String[] { String.valueOf(noteId), String.valueOf(tagId) });
+    }
+
+    /** Trims the name and throws if there's nothing left of it or it's too long */
+    static String checkName(String name) {
+        if (name == null || name.trim().length() == 0) {
+            throw new IllegalArgumentException("Tags need a name");
+        }
+        name = name.trim();
+        if (name.length() > NoteTagEntry.MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Tag names can't be longer than "
+                    + NoteTagEntry.MAX_NAME_LENGTH + " characters: " + name);
+        }
+        return name;
+    }
+}
@@ -0,0 +1,152 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTrashEntry;
+
+/**
+ * Moves notes into and out of the trash, and deletes them from it for good.
+ *
+ * Moving a note to the trash only stamps its deleted_at, whatever the size of the note: its
+ * search text, chunks, history and tags all stay put, so it's one small row update. They go when
+ * the note is purged, which deletes the oldest trashed notes a small batch at a time, each batch
+ * its own short transaction, so the list and the editor never wait long for the database. After
+ * every batch the pages it freed are given back to the file system, once NoteMaintenance has
+ * switched the database to incremental auto-vacuum; until then SQLite reuses them for the next
+ * notes written.
+ */
+final class NoteTrash {
+
+    // Log tag
+    private static final String LOG_TAG = NoteTrash.class.getSimpleName();
+
+    // Columns returned for a trashed note
+    static final String[] TRASH_COLUMNS = {
+            NoteTrashEntry._ID,
+            NoteTrashEntry.COLUMN_TITLE,
+            NoteTrashEntry.COLUMN_PREVIEW,
+            NoteTrashEntry.COLUMN_DELETED_AT
+    };
+
+    // The notes in the trash
+    static final String SQL_WHERE_TRASHED = NoteEntry.COLUMN_DELETED_AT + " IS NOT NULL";
+
+    // Most recently deleted first
+    static final String SORT_BY_DELETED = NoteEntry.COLUMN_DELETED_AT + " DESC, "
+            + NoteEntry._ID + " DESC";
+
+    // Notes deleted per purge transaction; small enough that a note being saved meanwhile only
+    // waits a few milliseconds
+    static final int PURGE_BATCH_SIZE = 50;
+
+    // The most notes one background purge deletes; anything left waits for the next one
+    static final int MAX_BACKGROUND_PURGE = 500;
+
+    // Free pages given back to the file system after each batch, 1 MB with 4 KB pages
+    private static final int VACUUM_PAGES_PER_BATCH = 256;
+
+    // The oldest trashed notes deleted before a time, trash index order
+    private static final String SQL_EXPIRED_IDS = "SELECT " + NoteEntry._ID + " FROM "
+            + NoteEntry.TABLE_NAME + " WHERE " + SQL_WHERE_TRASHED + " AND "
+            + NoteEntry.COLUMN_DELETED_AT + " <= ? ORDER BY " + NoteEntry.COLUMN_DELETED_AT
+            + " LIMIT ?";
+
+    // Does not need a constructor, should never be instantiated
+    private NoteTrash() {}
+
+    /**
+     * Moves the notes matching the selection to the trash, leaving out any already in there.
+     * Returns how many were moved
+     * */
+    static int trash(SQLiteDatabase db, String selection, String[] selectionArgs, long now) {
+        ContentValues values = new ContentValues();
+        values.put(NoteEntry.COLUMN_DELETED_AT, now);
+        String where = NoteDbHelper.SQL_WHERE_LIVE;
+        if (selection != null && selection.length() != 0) {
+            where += " AND (" + selection + ")";
+        }
+        return db.update(NoteEntry.TABLE_NAME, values, where, selectionArgs);
+    }
+
+    /**
+     * Takes the note out of the trash. It counts as modified now, so on other devices the restore
+     * wins over the tombstone the trash sent them. Returns false if it wasn't in the trash
+     * */
+    static boolean restore(SQLiteDatabase db, long id, long now) {
+        ContentValues values = new ContentValues();
+        values.putNull(NoteEntry.COLUMN_DELETED_AT);
+        values.put(NoteEntry.COLUMN_MODIFIED_AT, now);
+        return db.update(NoteEntry.TABLE_NAME, values,
+                NoteEntry._ID + " = ? AND " + SQL_WHERE_TRASHED,
+                new String[] { String.valueOf(id) }) != 0;
+    }
+
+    /** Deletes the note for good if it's in the trash, and returns how many went (0 or 1) */
+    static int deleteForever(SQLiteDatabase db, long id) {
+        return db.delete(NoteEntry.TABLE_NAME, NoteEntry._ID + " = ? AND " + SQL_WHERE_TRASHED,
+                new String[] { String.valueOf(id) });
+    }
+
+    /**
+     * Deletes for good up to maxNotes of the notes that went into the trash at or before cutoff,
+     * oldest first, PURGE_BATCH_SIZE per transaction. The triggers take their search text,
+     * chunks, history and tags with them. Returns how many notes were deleted
+     * */
+    static int purge(SQLiteDatabase db, NoteStatements statements, long cutoff, int maxNotes) {
+        int purged = 0;
+        while (purged < maxNotes) {
+            int batchSize = Math.min(PURGE_BATCH_SIZE, maxNotes - purged);
+            long[] ids;
+            db.beginTransaction();
+            try {
+                ids = expiredIds(db, cutoff, batchSize);
+                for (long id : ids) {
+                    purged += statements.deleteById(id);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            if (ids.length == 0) {
+                break;
+            }
+            incrementalVacuum(db);
+            if (ids.length < batchSize) {
+                break;
+            }
+        }
+        return purged;
+    }
+
+    // The _IDs of at most limit of the oldest notes trashed at or before cutoff
+    private static long[] expiredIds(SQLiteDatabase db, long cutoff, int limit) {
+        Cursor cursor = db.rawQuery(SQL_EXPIRED_IDS,
+                new String[] { String.valueOf(cutoff), String.valueOf(limit) });
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Gives back up to VACUUM_PAGES_PER_BATCH free pages. It does nothing unless the database is
+    // in incremental auto-vacuum mode, which NoteMaintenance switches it to
+    private static void incrementalVacuum(SQLiteDatabase db) {
+        try {
+            NoteMaintenance.incrementalVacuum(db, VACUUM_PAGES_PER_BATCH);
+        } catch (SQLiteException e) {
+            // The notes are gone either way; the space just waits for the next purge
+            Log.w(LOG_TAG, "Incremental vacuum failed", e);
+        }
+    }
+}
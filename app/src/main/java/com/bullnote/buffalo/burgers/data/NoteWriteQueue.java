@@ -0,0 +1,368 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes notes to the database on a single background thread so the UI never waits on disk.
+ *
+ * Writes are held for a short window and then handed to the NoteProvider as one batch, which it
+ * runs inside a single transaction; a burst of edits costs one journal commit instead of one per
+ * edit. Updates to a note that is still waiting to be written are merged into the pending update,
+ * and a delete cancels any pending updates to the same note.
+ *
+ * Results are delivered to the Callback on the main thread once the batch has been committed.
+ * If the batch fails, its writes are retried one at a time, so a single bad write only loses
+ * itself; its Callback gets a null result.
+ *
+ * The queue counts how many writes it's asked for, how many it merges away and how much it
+ * sends to the provider; see getStats().
+ */
+public class NoteWriteQueue {
+
+    /** A snapshot of the queue's counters since the app started */
+    public static class Stats {
+        // Inserts, updates and deletes asked for
+        public final long writesQueued;
+
+        // Updates folded into one that was already waiting, so they cost no extra write
+        public final long writesMerged;
+
+        // Batches sent to the provider, and how many of those failed
+        public final long batchesFlushed;
+        public final long batchesFailed;
+
+        // Writes that failed on their own too, after their batch failed, and were lost
+        public final long writesFailed;
+
+        // Roughly how many bytes of values were sent to the provider
+        public final long bytesWritten;
+
+        Stats(long writesQueued, long writesMerged, long batchesFlushed, long batchesFailed,
+              long writesFailed, long bytesWritten) {
+            this.writesQueued = writesQueued;
+            this.writesMerged = writesMerged;
+            this.batchesFlushed = batchesFlushed;
+            this.batchesFailed = batchesFailed;
+            this.writesFailed = writesFailed;
+            this.bytesWritten = bytesWritten;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats[queued=" + writesQueued + ", merged=" + writesMerged
+                    + ", batches=" + batchesFlushed + ", failed=" + batchesFailed
+                    + ", lost=" + writesFailed
+                    + ", bytes=" + bytesWritten + "]";
+        }
+    }
+
+    /** Receives the outcome of a queued write on the main thread */
+    public interface Callback {
+        /**
+         * Called after the batch holding this write has been committed. For an insert the result
+         * holds the new note's URI, for an update or delete it holds the number of rows affected.
+         * The result is null if this write failed.
+         * */
+        void onWriteFinished(ContentProviderResult result);
+    }
+
+    // Log tag
+    private static final String LOG_TAG = NoteWriteQueue.class.getSimpleName();
+
+    // How long to wait for more writes before flushing the batch, in milliseconds
+    private static final long FLUSH_WINDOW_MS = 100;
+
+    // Types of pending writes
+    private static final int TYPE_INSERT = 0;
+    private static final int TYPE_UPDATE = 1;
+    private static final int TYPE_DELETE = 2;
+
+    private static NoteWriteQueue sInstance;
+
+    private final ContentResolver mContentResolver;
+
+    // The single writer thread and a handler for posting results back to the UI
+    private final Handler mWriteHandler;
+    private final Handler mMainHandler;
+
+    // Writes waiting for the next flush, in the order they were queued. Guarded by "this"
+    private final List<PendingWrite> mPendingWrites = new ArrayList<PendingWrite>();
+    private boolean mFlushScheduled = false;
+
+    // Counters for getStats(). Guarded by "this"
+    private long mWritesQueued = 0;
+    private long mWritesMerged = 0;
+    private long mBatchesFlushed = 0;
+    private long mBatchesFailed = 0;
+    private long mWritesFailed = 0;
+    private long mBytesWritten = 0;
+
+    // Runs on the writer thread and sends everything that's pending to the provider
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Returns the app-wide write queue, creating it (and its thread) the first time. If the
+     * writer thread has ended, which only happens when something quits its looper the way the
+     * test runner does between tests, a new queue is made rather than queueing into nothing
+     * */
+    public static synchronized NoteWriteQueue getInstance(Context context) {
+        if (sInstance == null || !sInstance.mWriteHandler.getLooper().getThread().isAlive()) {
+            sInstance = new NoteWriteQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private NoteWriteQueue(Context context) {
+        mContentResolver = context.getContentResolver();
+
+        HandlerThread writerThread = new HandlerThread(LOG_TAG);
+        writerThread.start();
+        mWriteHandler = new Handler(writerThread.getLooper());
+        mMainHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /** Queues a new note to be inserted into NoteEntry.CONTENT_URI */
+    public synchronized void insert(ContentValues values, Callback callback) {
+        enqueue(new PendingWrite(TYPE_INSERT, NoteContract.NoteEntry.CONTENT_URI,
+                new ContentValues(values), callback));
+    }
+
+    /** Queues an update of the note at the given URI, merging it with one that's already pending */
+    public synchronized void update(Uri uri, ContentValues values, Callback callback) {
+        PendingWrite last = findLastPending(uri);
+        if (last != null && last.type == TYPE_UPDATE) {
+            // Newer values win; both callers hear about the same result
+            last.values.putAll(values);
+            last.addCallback(callback);
+            mWritesQueued++;
+            mWritesMerged++;
+            return;
+        }
+
+        enqueue(new PendingWrite(TYPE_UPDATE, uri, new ContentValues(values), callback));
+    }
+
+    /** Queues a delete of the note at the given URI, dropping any pending updates to it */
+    public synchronized void delete(Uri uri, Callback callback) {
+        PendingWrite delete = new PendingWrite(TYPE_DELETE, uri, null, callback);
+
+        // No point writing changes to a note that's about to be deleted
+        for (int i = mPendingWrites.size() - 1; i >= 0; i--) {
+            PendingWrite pending = mPendingWrites.get(i);
+            if (pending.type == TYPE_UPDATE && pending.uri.equals(uri)) {
+                mPendingWrites.remove(i);
+                delete.callbacks.addAll(pending.callbacks);
+            }
+        }
+
+        enqueue(delete);
+    }
+
+    /** Returns the queue's counters so far */
+    public synchronized Stats getStats() {
+        return new Stats(mWritesQueued, mWritesMerged, mBatchesFlushed, mBatchesFailed,
+                mWritesFailed, mBytesWritten);
+    }
+
+    // Adds a write to the queue and makes sure a flush is coming
+    private void enqueue(PendingWrite write) {
+        mPendingWrites.add(write);
+        mWritesQueued++;
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mWriteHandler.postDelayed(mFlushRunnable, FLUSH_WINDOW_MS);
+        }
+    }
+
+    // Returns the most recently queued write for the URI, or null if there isn't one
+    private PendingWrite findLastPending(Uri uri) {
+        for (int i = mPendingWrites.size() - 1; i >= 0; i--) {
+            PendingWrite pending = mPendingWrites.get(i);
+            if (pending.uri.equals(uri)) {
+                return pending;
+            }
+        }
+        return null;
+    }
+
+    // Runs on the writer thread: takes everything that's pending and applies it as one batch
+    private void flush() {
+        List<PendingWrite> writes;
+        synchronized (this) {
+            writes = new ArrayList<PendingWrite>(mPendingWrites);
+            mPendingWrites.clear();
+            mFlushScheduled = false;
+        }
+
+        if (writes.isEmpty()) {
+            return;
+        }
+
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(writes.size());
+        for (PendingWrite write : writes) {
+            operations.add(write.toOperation());
+        }
+
+        ContentProviderResult[] results = applyBatch(operations);
+        boolean batchFailed = results == null;
+        if (batchFailed) {
+            // The batch is one transaction, so nothing in it was written. Try each write on its
+            // own so the one that broke the batch doesn't take the others down with it
+            results = new ContentProviderResult[writes.size()];
+            for (int i = 0; i < operations.size(); i++) {
+                ArrayList<ContentProviderOperation> single =
+                        new ArrayList<ContentProviderOperation>(1);
+                single.add(operations.get(i));
+                ContentProviderResult[] singleResult = applyBatch(single);
+                results[i] = singleResult == null ? null : singleResult[0];
+            }
+        }
+
+        // Only the writes that made it to disk count towards the bytes written
+        long bytes = 0;
+        int failed = 0;
+        for (int i = 0; i < writes.size(); i++) {
+            if (results[i] == null) {
+                failed++;
+            } else {
+                bytes += sizeInBytes(writes.get(i).values);
+            }
+        }
+
+        synchronized (this) {
+            mBatchesFlushed++;
+            if (batchFailed) {
+                mBatchesFailed++;
+            }
+            mWritesFailed += failed;
+            mBytesWritten += bytes;
+        }
+
+        deliverResults(writes, results);
+    }
+
+    // Sends operations to the provider as one transaction. Returns null, rather than throwing,
+    // if it fails: an exception here would kill the writer thread and every later write with it
+    private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations) {
+        try {
+            return mContentResolver.applyBatch(NoteContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException e) {
+            Log.e(LOG_TAG, "Failed to write " + operations.size() + " notes", e);
+        } catch (OperationApplicationException e) {
+            Log.e(LOG_TAG, "Failed to write " + operations.size() + " notes", e);
+        } catch (RuntimeException e) {
+            // The provider's sanity checks throw IllegalArgumentException for bad values, and
+            // SQLite throws SQLiteException (a full disk, a constraint, a corrupt file)
+            Log.e(LOG_TAG, "Failed to write " + operations.size() + " notes", e);
+        }
+        return null;
+    }
+
+    // Roughly how many bytes the values take up: UTF-8 for text, the length of a byte array, and
+    // 8 for anything else. Deletes have no values
+    private static long sizeInBytes(ContentValues values) {
+        if (values == null) {
+            return 0;
+        }
+
+        long bytes = 0;
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            Object value = entry.getValue();
+            if (value instanceof String) {
+                bytes += utf8Length((String) value);
+            } else if (value instanceof byte[]) {
+                bytes += ((byte[]) value).length;
+            } else if (value != null) {
+                bytes += 8;
+            }
+        }
+        return bytes;
+    }
+
+    // Counts the bytes the text takes up as UTF-8 without actually encoding it
+    private static long utf8Length(String text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+                // Each half of a pair is two of its four bytes
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    // Hands each write's result to its callbacks on the main thread
+    private void deliverResults(final List<PendingWrite> writes, final ContentProviderResult[] results) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < writes.size(); i++) {
+                    ContentProviderResult result = results[i];
+                    for (Callback callback : writes.get(i).callbacks) {
+                        callback.onWriteFinished(result);
+                    }
+                }
+            }
+        });
+    }
+
+    /** A write waiting for the next flush */
+    private static class PendingWrite {
+        final int type;
+        final Uri uri;
+        final ContentValues values;
+        final List<Callback> callbacks = new ArrayList<Callback>(1);
+
+        PendingWrite(int type, Uri uri, ContentValues values, Callback callback) {
+            this.type = type;
+            this.uri = uri;
+            this.values = values;
+            addCallback(callback);
+        }
+
+        void addCallback(Callback callback) {
+            if (callback != null) {
+                callbacks.add(callback);
+            }
+        }
+
+        ContentProviderOperation toOperation() {
+            switch (type) {
+                case TYPE_INSERT:
+                    return ContentProviderOperation.newInsert(uri).withValues(values).build();
+                case TYPE_UPDATE:
+                    return ContentProviderOperation.newUpdate(uri).withValues(values).build();
+                default:
+                    return ContentProviderOperation.newDelete(uri).build();
+            }
+        }
+    }
+}
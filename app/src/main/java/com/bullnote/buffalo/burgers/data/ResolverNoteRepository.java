@@ -0,0 +1,184 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteChangeEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteChunkEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads notes from NoteProvider through a ContentResolver. Each cursor is copied out through a
+ * single NoteRow and closed before the method returns, so no cursor ever leaves this class.
+ */
+public class ResolverNoteRepository implements NoteRepository {
+
+    // Columns the list needs. Never the body: it can be huge, and the preview is all we show
+    private static final String[] LIST_PROJECTION = {
+            NoteEntry._ID,
+            NoteEntry.COLUMN_TITLE,
+            NoteEntry.COLUMN_PREVIEW,
+            NoteEntry.COLUMN_MODIFIED_AT
+    };
+
+    // Columns read from the change log
+    private static final String[] CHANGE_PROJECTION = {
+            NoteChangeEntry.COLUMN_NOTE_ID,
+            NoteChangeEntry.COLUMN_VERSION
+    };
+
+    private final ContentResolver mResolver;
+
+    public ResolverNoteRepository(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    @Override
+    public List<NoteListItem> queryPage(String sortOrder, NoteListItem after, int limit,
+                                        long[] tagIds) {
+        Uri pageUri;
+        if (after == null) {
+            pageUri = NoteEntry.buildPageUri(sortOrder, null, NoteEntry.FIRST_PAGE, limit);
+        } else {
+            // The page picks up after this note's position in the sort order
+            String afterKey = NoteEntry.SORT_TITLE.equals(sortOrder)
+                    ? after.title : String.valueOf(after.modifiedAt);
+            pageUri = NoteEntry.buildPageUri(sortOrder, afterKey, after.id, limit);
+        }
+        return readItems(mResolver.query(NoteEntry.withTags(pageUri, tagIds), LIST_PROJECTION,
+                null, null, null));
+    }
+
+    @Override
+    public List<NoteListItem> search(String query) {
+        Uri searchUri = NoteEntry.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NoteEntry.QUERY_PARAMETER_SEARCH, query)
+                .build();
+        return readItems(mResolver.query(searchUri, null, null, null, null));
+    }
+
+    @Override
+    public List<NoteListItem> queryNotes(long[] ids, long[] tagIds) {
+        if (ids.length == 0) {
+            return Collections.emptyList();
+        }
+
+        StringBuilder selection = new StringBuilder(NoteEntry._ID).append(" IN (");
+        String[] selectionArgs = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            selection.append(i == 0 ? "?" : ", ?");
+            selectionArgs[i] = String.valueOf(ids[i]);
+        }
+        selection.append(')');
+        return readItems(mResolver.query(NoteEntry.withTags(NoteEntry.CONTENT_URI, tagIds),
+                LIST_PROJECTION, selection.toString(), selectionArgs, null));
+    }
+
+    @Override
+    public long queryLatestVersion() {
+        Cursor cursor = mResolver.query(NoteChangeEntry.CONTENT_URI,
+                NoteChangeEntry.PROJECTION_LATEST_VERSION, null, null, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public Changes queryChangesSince(long version, int maxChanges) {
+        Uri changesUri = NoteChangeEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NoteChangeEntry.QUERY_PARAMETER_SINCE,
+                        String.valueOf(version))
+                .build();
+        Cursor changes = mResolver.query(changesUri, CHANGE_PROJECTION, null, null, null);
+        if (changes == null) {
+            return null;
+        }
+
+        try {
+            int count = changes.getCount();
+            if (count > maxChanges) {
+                return null;
+            }
+            long[] noteIds = new long[count];
+            while (changes.moveToNext()) {
+                noteIds[changes.getPosition()] = changes.getLong(0);
+                version = Math.max(version, changes.getLong(1));
+            }
+
+            // A note that changed twice is logged twice; keep it once
+            Arrays.sort(noteIds);
+            int distinct = 0;
+            for (int i = 0; i < noteIds.length; i++) {
+                if (i == 0 || noteIds[i] != noteIds[i - 1]) {
+                    noteIds[distinct++] = noteIds[i];
+                }
+            }
+            return new Changes(Arrays.copyOf(noteIds, distinct), version);
+        } finally {
+            changes.close();
+        }
+    }
+
+    @Override
+    public String queryBodyChunk(long noteId, int sequence) {
+        // Chunk queries always return the same columns, whatever the projection
+        Cursor cursor = mResolver.query(NoteChunkEntry.buildChunksUri(noteId, sequence, 1),
+                null, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return cursor.moveToFirst()
+                    ? cursor.getString(cursor.getColumnIndexOrThrow(NoteChunkEntry.COLUMN_TEXT))
+                    : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public long queryNoteVersion(long noteId) {
+        Cursor cursor = mResolver.query(NoteChangeEntry.CONTENT_URI,
+                new String[] { NoteChangeEntry.COLUMN_VERSION },
+                NoteChangeEntry.COLUMN_NOTE_ID + " = ?", new String[] { String.valueOf(noteId) },
+                null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Copies the rows out of the cursor and closes it
+    private static List<NoteListItem> readItems(Cursor cursor) {
+        if (cursor == null) {
+            return Collections.emptyList();
+        }
+
+        try {
+            // One row object for the whole cursor, with the column numbers looked up once
+            NoteRow row = new NoteRow(cursor);
+            List<NoteListItem> items = new ArrayList<NoteListItem>(row.getCount());
+            while (row.moveToNext()) {
+                items.add(row.toListItem());
+            }
+            return items;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Times a cold start, from the process starting to the list's first frames, so a change to the
+ * startup path can be checked against numbers.
+ *
+ * Each phase is logged the first time it's reached, as milliseconds after the process started,
+ * and later marks of the same phase are ignored (the activity is created again on rotation, but
+ * that isn't a cold start). Android only says when the process started from API 24; before that
+ * the clock starts when NoteProvider is created, which is the first of the app's code to run.
+ * The marks are also printed by "adb shell dumpsys activity provider".
+ */
+public final class StartupTrace {
+
+    // Log tag
+    private static final String LOG_TAG = StartupTrace.class.getSimpleName();
+
+    // The phases of a cold start, in the order they normally happen
+    public static final String PROVIDER_CREATED = "provider created";
+    public static final String DATABASE_WARM = "database warm";
+    public static final String ACTIVITY_CREATED = "activity created";
+    public static final String SNAPSHOT_DRAWN = "snapshot drawn";
+    public static final String LIST_DRAWN = "list drawn";
+
+    // SystemClock.elapsedRealtime() when the process started; 0 until it's been worked out
+    private static long sProcessStart;
+
+    // Milliseconds after the process started of each phase reached so far, in order
+    private static final Map<String, Long> sMarks = new LinkedHashMap<String, Long>();
+
+    // Does not need a constructor, should never be instantiated
+    private StartupTrace() {}
+
+    /** Records that the phase has been reached, unless it was already */
+    public static synchronized void mark(String phase) {
+        if (sMarks.containsKey(phase)) {
+            return;
+        }
+        if (sProcessStart == 0) {
+            sProcessStart = processStart();
+        }
+        long elapsed = SystemClock.elapsedRealtime() - sProcessStart;
+        sMarks.put(phase, elapsed);
+        Log.i(LOG_TAG, phase + " " + elapsed + "ms after process start");
+    }
+
+    /** Prints every phase reached so far */
+    public static synchronized void dump(PrintWriter writer) {
+        writer.println("Startup:");
+        for (Map.Entry<String, Long> mark : sMarks.entrySet()) {
+            writer.println("  " + mark.getKey() + ": " + mark.getValue() + "ms");
+        }
+    }
+
+    // When the process started, or now on versions that don't say
+    private static long processStart() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            return processStartN();
+        }
+        return SystemClock.elapsedRealtime();
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private static long processStartN() {
+        return Process.getStartElapsedRealtime();
+    }
+}
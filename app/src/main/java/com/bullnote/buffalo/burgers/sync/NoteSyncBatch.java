@@ -0,0 +1,24 @@
+package com.bullnote.buffalo.burgers.sync;
+
+import java.util.List;
+
+/**
+ * One batch of changes read from the server or from this device, with the version to carry on
+ * from next time.
+ */
+public final class NoteSyncBatch {
+
+    public final List<NoteSyncChange> changes;
+
+    // The version of the last change read, to pass as the "after" version for the next batch
+    public final long version;
+
+    // True if there are more changes after this batch
+    public final boolean hasMore;
+
+    public NoteSyncBatch(List<NoteSyncChange> changes, long version, boolean hasMore) {
+        this.changes = changes;
+        this.version = version;
+        this.hasMore = hasMore;
+    }
+}
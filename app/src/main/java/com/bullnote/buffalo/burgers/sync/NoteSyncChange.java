@@ -0,0 +1,69 @@
+package com.bullnote.buffalo.burgers.sync;
+
+/**
+ * One note as it travels between a device and the sync server: its latest title and body, or a
+ * tombstone saying it was deleted. Notes are named by their UUID, never by a device's _ID.
+ */
+public final class NoteSyncChange {
+
+    public final String uuid;
+
+    // Null for a tombstone
+    public final String title;
+    public final String body;
+
+    public final long createdAt;
+
+    // When the note was last changed, or when it was deleted; the newest change wins
+    public final long modifiedAt;
+
+    public final boolean deleted;
+
+    public NoteSyncChange(String uuid, String title, String body, long createdAt,
+                          long modifiedAt) {
+        this(uuid, title, body, createdAt, modifiedAt, false);
+    }
+
+    private NoteSyncChange(String uuid, String title, String body, long createdAt,
+                           long modifiedAt, boolean deleted) {
+        this.uuid = uuid;
+        this.title = title;
+        this.body = body;
+        this.createdAt = createdAt;
+        this.modifiedAt = modifiedAt;
+        this.deleted = deleted;
+    }
+
+    /** A note that was deleted at deletedAt */
+    public static NoteSyncChange tombstone(String uuid, long deletedAt) {
+        return new NoteSyncChange(uuid, null, null, 0, deletedAt, true);
+    }
+
+    /**
+     * True if this change should replace the other one, which is for the same note. The later
+     * change wins; if both happened in the same millisecond a delete wins, and otherwise the
+     * content decides, so every device and the server pick the same one
+     * */
+    public boolean isNewerThan(NoteSyncChange other) {
+        if (modifiedAt != other.modifiedAt) {
+            return modifiedAt > other.modifiedAt;
+        }
+        if (deleted != other.deleted) {
+            return deleted;
+        }
+        if (deleted) {
+            return false;
+        }
+        int byTitle = title.compareTo(other.title);
+        return byTitle != 0 ? byTitle > 0 : body.compareTo(other.body) > 0;
+    }
+
+    /** True if both say the same thing about the note, e.g. a change coming back from the server */
+    public boolean sameAs(NoteSyncChange other) {
+        if (deleted || other.deleted) {
+            return deleted == other.deleted;
+        }
+        return modifiedAt == other.modifiedAt && title.equals(other.title)
+                && body.equals(other.body);
+    }
+}
@@ -0,0 +1,143 @@
+package com.bullnote.buffalo.burgers.sync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Syncs this device's notes with the server through a NoteSyncTransport.
+ *
+ * Both sides keep a journal of changes numbered by version, and each side remembers the last
+ * version it has sent or received, so a sync only moves the notes that changed since the last one
+ * (in batches of BATCH_SIZE) however many notes there are. sync() first pushes this device's
+ * changes, then pulls everything the server has kept since the last pull. A pulled change is
+ * applied unless this device already has the same thing (such as its own change coming back) or
+ * something newer, so the last writer wins everywhere.
+ *
+ * The engine itself is plain Java; ResolverSyncStore connects it to the notes provider.
+ */
+public final class NoteSyncEngine {
+
+    // Changes sent or received per round trip
+    public static final int BATCH_SIZE = 100;
+
+    /** Where the engine reads and writes this device's notes */
+    public interface LocalStore {
+
+        /**
+         * Returns at most limit of the changes made on this device after afterVersion, oldest
+         * first. Changes the engine applied itself must not be returned
+         * */
+        NoteSyncBatch readLocalChanges(long afterVersion, int limit) throws IOException;
+
+        /** Returns the notes this device has with those UUIDs, tombstones included */
+        Map<String, NoteSyncChange> readNotes(Set<String> uuids) throws IOException;
+
+        /** Writes changes from the server, all or nothing */
+        void apply(List<NoteSyncChange> changes) throws IOException;
+
+        long getPushedVersion();
+
+        void savePushedVersion(long version);
+
+        long getPulledVersion();
+
+        void savePulledVersion(long version);
+    }
+
+    /** What one sync did */
+    public static final class Result {
+        // Changes sent to the server
+        public int pushed;
+
+        // Changes received from the server
+        public int pulled;
+
+        // Received changes that were written to this device
+        public int applied;
+
+        // Received changes that lost to a newer one on this device
+        public int conflicts;
+    }
+
+    private final LocalStore mStore;
+    private final NoteSyncTransport mTransport;
+
+    public NoteSyncEngine(LocalStore store, NoteSyncTransport transport) {
+        mStore = store;
+        mTransport = transport;
+    }
+
+    /**
+     * Pushes this device's changes and pulls the server's. Each batch is saved as soon as it's
+     * done, so if this throws part way through, the next sync carries on from there
+     * */
+    public synchronized Result sync() throws IOException {
+        Result result = new Result();
+
+        long pushedVersion = mStore.getPushedVersion();
+        NoteSyncBatch local;
+        do {
+            local = mStore.readLocalChanges(pushedVersion, BATCH_SIZE);
+            if (!local.changes.isEmpty()) {
+                mTransport.push(local.changes);
+                result.pushed += local.changes.size();
+            }
+            if (local.version != pushedVersion) {
+                pushedVersion = local.version;
+                mStore.savePushedVersion(pushedVersion);
+            }
+        } while (local.hasMore);
+
+        long pulledVersion = mStore.getPulledVersion();
+        NoteSyncBatch remote;
+        do {
+            remote = mTransport.pull(pulledVersion, BATCH_SIZE);
+            result.pulled += remote.changes.size();
+            applyRemoteChanges(remote.changes, result);
+            if (remote.version != pulledVersion) {
+                pulledVersion = remote.version;
+                mStore.savePulledVersion(pulledVersion);
+            }
+        } while (remote.hasMore);
+
+        return result;
+    }
+
+    // Writes the changes from the server that are newer than what this device has
+    private void applyRemoteChanges(List<NoteSyncChange> changes, Result result)
+            throws IOException {
+        if (changes.isEmpty()) {
+            return;
+        }
+        Set<String> uuids = new HashSet<String>();
+        for (NoteSyncChange change : changes) {
+            uuids.add(change.uuid);
+        }
+        Map<String, NoteSyncChange> local = mStore.readNotes(uuids);
+
+        List<NoteSyncChange> newer = new ArrayList<NoteSyncChange>();
+        for (NoteSyncChange change : changes) {
+            NoteSyncChange mine = local.get(change.uuid);
+            if (mine == null) {
+                // A note this device has never seen; a tombstone for one needs nothing doing
+                if (!change.deleted) {
+                    newer.add(change);
+                }
+            } else if (mine.sameAs(change)) {
+                // Already here, most likely because this device sent it
+                continue;
+            } else if (change.isNewerThan(mine)) {
+                newer.add(change);
+            } else {
+                result.conflicts++;
+            }
+        }
+
+        mStore.apply(newer);
+        result.applied += newer.size();
+    }
+}
@@ -0,0 +1,20 @@
+package com.bullnote.buffalo.burgers.sync;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * How NoteSyncEngine talks to the sync server. The server keeps the newest change for each UUID
+ * (as decided by NoteSyncChange.isNewerThan) and numbers every change it keeps with a new, ever
+ * increasing version, so a device only ever asks for what's new since the last version it saw.
+ *
+ * Implementations may block, since the engine runs on a background thread.
+ */
+public interface NoteSyncTransport {
+
+    /** Sends a batch of this device's changes to the server */
+    void push(List<NoteSyncChange> changes) throws IOException;
+
+    /** Returns at most limit of the changes the server kept after afterVersion, oldest first */
+    NoteSyncBatch pull(long afterVersion, int limit) throws IOException;
+}
@@ -0,0 +1,273 @@
+package com.bullnote.buffalo.burgers.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+
+import com.bullnote.buffalo.burgers.data.NoteContract;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteChangeEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The NoteSyncEngine's view of the notes provider. Local changes are read from the provider's
+ * change log, which already holds one row per changed note (a tombstone for a deleted one) under
+ * an ever increasing version. Everything the engine writes goes through URIs flagged with
+ * QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER, so the log marks those changes as from the server and
+ * they aren't pushed back. The versions the engine has reached are kept in SharedPreferences.
+ */
+public final class ResolverSyncStore implements NoteSyncEngine.LocalStore {
+
+    private static final String PREFS_NAME = "sync";
+    private static final String PREF_PUSHED_VERSION = "pushed_version";
+    private static final String PREF_PULLED_VERSION = "pulled_version";
+
+    // Changes made on this device by a note that has a UUID (every note since the sync migration)
+    private static final String SELECTION_LOCAL_CHANGES = NoteChangeEntry.COLUMN_FROM_SYNC
+            + " = 0 AND " + NoteChangeEntry.COLUMN_UUID + " IS NOT NULL";
+
+    private static final String[] CHANGE_COLUMNS = {
+            NoteChangeEntry.COLUMN_VERSION,
+            NoteChangeEntry.COLUMN_NOTE_ID,
+            NoteChangeEntry.COLUMN_UUID,
+            NoteChangeEntry.COLUMN_DELETED,
+            NoteChangeEntry.COLUMN_CHANGED_AT
+    };
+
+    private static final String[] NOTE_COLUMNS = {
+            NoteEntry._ID,
+            NoteEntry.COLUMN_UUID,
+            NoteEntry.COLUMN_TITLE,
+            NoteEntry.COLUMN_BODY,
+            NoteEntry.COLUMN_CREATED_AT,
+            NoteEntry.COLUMN_MODIFIED_AT
+    };
+
+    private final ContentResolver mResolver;
+    private final SharedPreferences mPreferences;
+
+    public ResolverSyncStore(Context context) {
+        mResolver = context.getContentResolver();
+        mPreferences = context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    @Override
+    public NoteSyncBatch readLocalChanges(long afterVersion, int limit) throws IOException {
+        Uri uri = NoteChangeEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NoteChangeEntry.QUERY_PARAMETER_SINCE, String.valueOf(afterVersion))
+                .appendQueryParameter(NoteChangeEntry.QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                .build();
+        Cursor cursor = mResolver.query(uri, CHANGE_COLUMNS, SELECTION_LOCAL_CHANGES, null, null);
+        if (cursor == null) {
+            throw new IOException("Could not read the change log");
+        }
+
+        // Keep the log's order; tombstones are complete already, edited notes are filled in below
+        List<NoteSyncChange> changes = new ArrayList<NoteSyncChange>();
+        Map<Long, Integer> positionsById = new HashMap<Long, Integer>();
+        long version = afterVersion;
+        int rows;
+        try {
+            rows = cursor.getCount();
+            while (cursor.moveToNext()) {
+                version = cursor.getLong(0);
+                if (cursor.getInt(3) != 0) {
+                    changes.add(NoteSyncChange.tombstone(cursor.getString(2), cursor.getLong(4)));
+                } else {
+                    positionsById.put(cursor.getLong(1), changes.size());
+                    changes.add(null);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (!positionsById.isEmpty()) {
+            Cursor notes = queryNotes(NoteEntry._ID, positionsById.keySet(), false);
+            try {
+                while (notes.moveToNext()) {
+                    changes.set(positionsById.get(notes.getLong(0)), readNote(notes));
+                }
+            } finally {
+                notes.close();
+            }
+        }
+
+        // A note deleted since the log was read is skipped; its tombstone comes in a later batch
+        List<NoteSyncChange> found = new ArrayList<NoteSyncChange>(changes.size());
+        for (NoteSyncChange change : changes) {
+            if (change != null) {
+                found.add(change);
+            }
+        }
+        return new NoteSyncBatch(found, version, rows == limit);
+    }
+
+    @Override
+    public Map<String, NoteSyncChange> readNotes(Set<String> uuids) throws IOException {
+        Map<String, NoteSyncChange> notes = new HashMap<String, NoteSyncChange>();
+        Cursor cursor = queryNotes(NoteEntry.COLUMN_UUID, uuids, false);
+        try {
+            while (cursor.moveToNext()) {
+                NoteSyncChange note = readNote(cursor);
+                notes.put(note.uuid, note);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (notes.size() == uuids.size()) {
+            return notes;
+        }
+
+        // The rest may have been deleted (or trashed) here, which the change log still remembers
+        Set<String> missing = new HashSet<String>(uuids);
+        missing.removeAll(notes.keySet());
+        String[] args = missing.toArray(new String[missing.size()]);
+        Cursor tombstones = mResolver.query(NoteChangeEntry.CONTENT_URI, CHANGE_COLUMNS,
+                NoteChangeEntry.COLUMN_DELETED + " = 1 AND "
+                        + inClause(NoteChangeEntry.COLUMN_UUID, args.length),
+                args, null);
+        if (tombstones == null) {
+            throw new IOException("Could not read the change log");
+        }
+        try {
+            while (tombstones.moveToNext()) {
+                NoteSyncChange tombstone =
+                        NoteSyncChange.tombstone(tombstones.getString(2), tombstones.getLong(4));
+                notes.put(tombstone.uuid, tombstone);
+            }
+        } finally {
+            tombstones.close();
+        }
+        return notes;
+    }
+
+    @Override
+    public void apply(List<NoteSyncChange> changes) throws IOException {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        // Find out which notes are already here, trashed or not, so the rest are inserted
+        Set<String> uuids = new HashSet<String>();
+        for (NoteSyncChange change : changes) {
+            uuids.add(change.uuid);
+        }
+        Set<String> existing = new HashSet<String>();
+        Cursor cursor = queryNotes(NoteEntry.COLUMN_UUID, uuids, true);
+        try {
+            while (cursor.moveToNext()) {
+                existing.add(cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Uri uri = NoteEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NoteContract.QUERY_PARAMETER_CALLER_IS_SYNC_ADAPTER, "true")
+                .build();
+        String byUuid = NoteEntry.COLUMN_UUID + " = ?";
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(changes.size());
+        for (NoteSyncChange change : changes) {
+            String[] args = { change.uuid };
+            if (change.deleted) {
+                operations.add(ContentProviderOperation.newDelete(uri)
+                        .withSelection(byUuid, args).build());
+                continue;
+            }
+
+            ContentValues values = new ContentValues();
+            values.put(NoteEntry.COLUMN_TITLE, change.title);
+            values.put(NoteEntry.COLUMN_BODY, change.body);
+            values.put(NoteEntry.COLUMN_MODIFIED_AT, change.modifiedAt);
+            if (existing.contains(change.uuid)) {
+                operations.add(ContentProviderOperation.newUpdate(uri)
+                        .withValues(values).withSelection(byUuid, args).build());
+            } else {
+                values.put(NoteEntry.COLUMN_UUID, change.uuid);
+                values.put(NoteEntry.COLUMN_CREATED_AT, change.createdAt);
+                operations.add(ContentProviderOperation.newInsert(uri).withValues(values).build());
+            }
+        }
+
+        // The provider runs the whole batch in one transaction
+        try {
+            mResolver.applyBatch(NoteContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException e) {
+            throw new IOException("Could not apply synced notes", e);
+        } catch (OperationApplicationException e) {
+            throw new IOException("Could not apply synced notes", e);
+        }
+    }
+
+    @Override
+    public long getPushedVersion() {
+        return mPreferences.getLong(PREF_PUSHED_VERSION, 0);
+    }
+
+    @Override
+    public void savePushedVersion(long version) {
+        mPreferences.edit().putLong(PREF_PUSHED_VERSION, version).apply();
+    }
+
+    @Override
+    public long getPulledVersion() {
+        return mPreferences.getLong(PREF_PULLED_VERSION, 0);
+    }
+
+    @Override
+    public void savePulledVersion(long version) {
+        mPreferences.edit().putLong(PREF_PULLED_VERSION, version).apply();
+    }
+
+    // Queries NOTE_COLUMNS of the notes whose column is one of the values, and of the ones in the
+    // trash too if includeTrashed is true
+    private Cursor queryNotes(String column, Collection<?> values, boolean includeTrashed)
+            throws IOException {
+        String[] args = new String[values.size()];
+        int i = 0;
+        for (Object value : values) {
+            args[i++] = String.valueOf(value);
+        }
+        Uri uri = !includeTrashed ? NoteEntry.CONTENT_URI : NoteEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NoteEntry.QUERY_PARAMETER_INCLUDE_TRASHED, "true")
+                .build();
+        Cursor cursor = mResolver.query(uri, NOTE_COLUMNS,
+                inClause(column, args.length), args, null);
+        if (cursor == null) {
+            throw new IOException("Could not read the notes");
+        }
+        return cursor;
+    }
+
+    // Reads the note in the cursor's current NOTE_COLUMNS row
+    private static NoteSyncChange readNote(Cursor cursor) {
+        return new NoteSyncChange(cursor.getString(1), cursor.getString(2), cursor.getString(3),
+                cursor.getLong(4), cursor.getLong(5));
+    }
+
+    // "column IN (?, ?, ...)" with count placeholders
+    private static String inClause(String column, int count) {
+        StringBuilder clause = new StringBuilder(column).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            clause.append(i == 0 ? "?" : ", ?");
+        }
+        return clause.append(')').toString();
+    }
+}
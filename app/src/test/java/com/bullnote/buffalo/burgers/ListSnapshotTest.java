@@ -0,0 +1,65 @@
+package com.bullnote.buffalo.burgers;
+
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+import com.bullnote.buffalo.burgers.data.NoteListItem;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for ListSnapshot, which is plain Java and runs on the development machine.
+ */
+public class ListSnapshotTest {
+
+    @Test
+    public void writeThenRead_keepsTheFirstScreen() throws IOException {
+        File file = newFile();
+        List<NoteListItem> items = new ArrayList<NoteListItem>();
+        for (int i = 0; i < ListSnapshot.MAX_NOTES + 5; i++) {
+            items.add(new NoteListItem(i, "Note " + i + " \u00fcber", i % 2 == 0 ? "Preview" : null,
+                    1000 - i));
+        }
+
+        ListSnapshot.write(file, NoteEntry.SORT_MODIFIED, items);
+        List<NoteListItem> read = ListSnapshot.read(file, NoteEntry.SORT_MODIFIED);
+        assertEquals(ListSnapshot.MAX_NOTES, read.size());
+        for (int i = 0; i < read.size(); i++) {
+            assertEquals(items.get(i).id, read.get(i).id);
+            assertEquals(items.get(i).title, read.get(i).title);
+            assertEquals(items.get(i).modifiedAt, read.get(i).modifiedAt);
+        }
+        assertEquals("", read.get(1).preview);
+
+        // A snapshot in another order is never shown
+        assertNull(ListSnapshot.read(file, NoteEntry.SORT_TITLE));
+    }
+
+    @Test
+    public void missingOrDamagedSnapshot_isIgnored() throws IOException {
+        File file = newFile();
+        assertNull(ListSnapshot.read(file, NoteEntry.SORT_MODIFIED));
+
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[] { 0, 0, 0, 1, 0 });
+        } finally {
+            out.close();
+        }
+        assertNull(ListSnapshot.read(file, NoteEntry.SORT_MODIFIED));
+    }
+
+    // A path in the temporary directory with nothing there yet
+    private static File newFile() throws IOException {
+        File file = File.createTempFile("list_snapshot", null);
+        assertTrue(file.delete());
+        file.deleteOnExit();
+        return file;
+    }
+}
@@ -0,0 +1,158 @@
+package com.bullnote.buffalo.burgers;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.os.HandlerThread;
+import android.widget.EditText;
+
+import com.bullnote.buffalo.burgers.data.NoteContract;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+import com.bullnote.buffalo.burgers.data.NoteProvider;
+import com.bullnote.buffalo.burgers.data.NoteWriteQueue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowToast;
+import org.robolectric.util.ActivityController;
+
+import static org.junit.Assert.*;
+
+/**
+ * The note editor across a rotation, and saving while an earlier save is still on its way. Runs
+ * on the development machine through Robolectric with a real SQLite database behind the
+ * NoteProvider.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class NoteActivityTest {
+
+    @Test
+    public void rotation_keepsTheEditAndTheSameNote() {
+        Robolectric.setupContentProvider(NoteProvider.class, NoteContract.CONTENT_AUTHORITY);
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+
+        // Write a new note; going into the background autosaves it
+        ActivityController<NoteActivity> first = Robolectric.buildActivity(NoteActivity.class)
+                .create().start().resume().visible();
+        titleBox(first.get()).setText("Buns");
+        bodyBox(first.get()).setText("Buy buns");
+        first.pause();
+        flushWrites();
+
+        // Rotate: the old editor saves its state and goes, a new one is built from that state
+        Bundle state = new Bundle();
+        first.saveInstanceState(state).stop().destroy();
+        ActivityController<NoteActivity> second = Robolectric.buildActivity(NoteActivity.class)
+                .create(state).start().restoreInstanceState(state).resume().visible();
+        flushWrites();
+
+        // The text boxes kept what was typed rather than being reloaded or emptied
+        assertEquals("Buns", titleBox(second.get()).getText().toString());
+        assertEquals("Buy buns", bodyBox(second.get()).getText().toString());
+
+        // An edit after the rotation updates the same note instead of inserting another
+        bodyBox(second.get()).setText("Buy buns and sauce");
+        second.pause();
+        flushWrites();
+
+        assertNotes(resolver, "Buns", "Buy buns and sauce");
+    }
+
+    @Test
+    public void rotation_whileTheFirstSaveIsQueuedKeepsOneNote() {
+        Robolectric.setupContentProvider(NoteProvider.class, NoteContract.CONTENT_AUTHORITY);
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+
+        // Going into the background queues the insert, which is still waiting when the
+        // rotation starts
+        ActivityController<NoteActivity> first = Robolectric.buildActivity(NoteActivity.class)
+                .create().start().resume().visible();
+        titleBox(first.get()).setText("Buns");
+        bodyBox(first.get()).setText("Buy buns");
+        first.pause();
+
+        // Rotate the way the system does, handing what the old editor retains to the new one
+        Bundle state = new Bundle();
+        first.saveInstanceState(state).stop();
+        Object retained = first.get().onRetainNonConfigurationInstance();
+        first.destroy();
+        ActivityController<NoteActivity> second = Robolectric.buildActivity(NoteActivity.class);
+        Shadows.shadowOf(second.get()).setLastNonConfigurationInstance(retained);
+        second.create(state).start().restoreInstanceState(state).resume().visible();
+
+        // The insert finishes after the rotation, and the new editor learns the note's URI
+        flushWrites();
+
+        // So an edit updates that note instead of inserting it again
+        bodyBox(second.get()).setText("Buy buns and sauce");
+        second.pause();
+        flushWrites();
+
+        assertNotes(resolver, "Buns", "Buy buns and sauce");
+    }
+
+    @Test
+    public void save_whileTheFirstSaveIsQueuedWaitsForItAndReports() {
+        Robolectric.setupContentProvider(NoteProvider.class, NoteContract.CONTENT_AUTHORITY);
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+
+        ActivityController<NoteActivity> editor = Robolectric.buildActivity(NoteActivity.class)
+                .create().start().resume().visible();
+        titleBox(editor.get()).setText("Buns");
+        bodyBox(editor.get()).setText("Buy buns");
+        editor.pause().resume();
+
+        // Save is pressed before the insert has been written, with another edit on top
+        bodyBox(editor.get()).setText("Buy buns and sauce");
+        editor.get().findViewById(R.id.saveButton).performClick();
+        assertTrue(editor.get().isFinishing());
+
+        // The insert goes first, then the edit it didn't have
+        flushWrites();
+        flushWrites();
+
+        assertNotes(resolver, "Buns", "Buy buns and sauce");
+        assertEquals("Note has been saved", ShadowToast.getTextOfLatestToast());
+    }
+
+    // Checks that there's exactly one note, and what it holds
+    private static void assertNotes(ContentResolver resolver, String title, String body) {
+        Cursor notes = resolver.query(NoteEntry.CONTENT_URI,
+                new String[] { NoteEntry.COLUMN_TITLE, NoteEntry.COLUMN_BODY }, null, null, null);
+        try {
+            assertEquals(1, notes.getCount());
+            assertTrue(notes.moveToFirst());
+            assertEquals(title, notes.getString(0));
+            assertEquals(body, notes.getString(1));
+        } finally {
+            notes.close();
+        }
+    }
+
+    private static EditText titleBox(NoteActivity activity) {
+        return (EditText) activity.findViewById(R.id.newNoteTitle);
+    }
+
+    private static EditText bodyBox(NoteActivity activity) {
+        return (EditText) activity.findViewById(R.id.newNoteBody);
+    }
+
+    // Runs the write queue's waiting flush on its thread's looper, then delivers the results,
+    // which come back on the main thread
+    private static void flushWrites() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread instanceof HandlerThread
+                    && NoteWriteQueue.class.getSimpleName().equals(thread.getName())) {
+                Shadows.shadowOf(((HandlerThread) thread).getLooper()).runToEndOfTasks();
+            }
+        }
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+    }
+}
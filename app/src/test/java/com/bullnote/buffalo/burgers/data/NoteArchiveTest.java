@@ -0,0 +1,90 @@
+package com.bullnote.buffalo.burgers.data;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for NoteArchive, which is plain Java and runs on the development machine.
+ */
+public class NoteArchiveTest {
+
+    private static final int NOTE_COUNT = 100 * 1000;
+
+    // Note i of the test archive; every thousandth one has a body bigger than the I/O buffer
+    private static String title(int i) {
+        return "Note " + i + " \u00fcber";
+    }
+
+    private static String body(int i) {
+        StringBuilder body = new StringBuilder("Body of note ").append(i).append(" \uD83D\uDC03\n");
+        if (i % 1000 == 0) {
+            while (body.length() < 100 * 1024) {
+                body.append("bull note buffalo burgers ").append(i).append('\n');
+            }
+        }
+        return body.toString();
+    }
+
+    // Writes NOTE_COUNT notes to a new temporary file
+    private static File writeArchive(boolean gzip) throws IOException {
+        File file = File.createTempFile("notes", ".bullnote");
+        file.deleteOnExit();
+        NoteArchive.Writer writer =
+                new NoteArchive.Writer(new FileOutputStream(file).getChannel(), gzip);
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            writer.write(title(i), body(i), i, i + 1L);
+        }
+        writer.close();
+        return file;
+    }
+
+    // Reads the archive back and checks every note in it
+    private static void assertRoundTrips(File file) throws IOException {
+        NoteArchive.Reader reader = new NoteArchive.Reader(new FileInputStream(file).getChannel());
+        try {
+            for (int i = 0; i < NOTE_COUNT; i++) {
+                NoteArchive.Entry entry = reader.next();
+                assertNotNull(entry);
+                assertEquals(title(i), entry.title);
+                assertEquals(body(i), entry.body);
+                assertEquals(i, entry.createdAt);
+                assertEquals(i + 1L, entry.modifiedAt);
+            }
+            assertNull(reader.next());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void archive_roundTrips100kNotes() throws Exception {
+        assertRoundTrips(writeArchive(false));
+    }
+
+    @Test
+    public void gzippedArchive_roundTrips100kNotes() throws Exception {
+        File gzipped = writeArchive(true);
+        assertRoundTrips(gzipped);
+        assertTrue(gzipped.length() < writeArchive(false).length() / 2);
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedArchive_throws() throws Exception {
+        File file = writeArchive(false);
+        RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        truncated.setLength(file.length() - 5);
+        truncated.close();
+
+        NoteArchive.Reader reader = new NoteArchive.Reader(new FileInputStream(file).getChannel());
+        while (reader.next() != null) {
+            // Read until it notices the end is missing
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+
+import com.bullnote.buffalo.burgers.BuildConfig;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Importing a backup through NoteProvider. Runs on the development machine through Robolectric
+ * with a real SQLite database.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class NoteBackupTest {
+
+    // Enough notes for a few import transactions, the last of them part full
+    private static final int NOTE_COUNT = NoteProvider.IMPORT_BATCH_SIZE * 3 + 7;
+
+    @Test
+    public void import_addsEveryNoteAcrossBatches() throws Exception {
+        Robolectric.setupContentProvider(NoteProvider.class, NoteContract.CONTENT_AUTHORITY);
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+
+        assertEquals(NOTE_COUNT, NoteBackup.importNotes(resolver, writeArchive()));
+
+        Cursor notes = resolver.query(NoteEntry.CONTENT_URI,
+                new String[] { NoteEntry.COLUMN_TITLE, NoteEntry.COLUMN_BODY }, null, null,
+                NoteEntry.COLUMN_CREATED_AT);
+        try {
+            assertEquals(NOTE_COUNT, notes.getCount());
+            for (int i = 0; notes.moveToNext(); i++) {
+                assertEquals("Note " + i, notes.getString(0));
+                assertEquals("Buy buns, note " + i, notes.getString(1));
+            }
+        } finally {
+            notes.close();
+        }
+    }
+
+    @Test
+    public void import_ofADamagedFileAddsNothing() throws Exception {
+        Robolectric.setupContentProvider(NoteProvider.class, NoteContract.CONTENT_AUTHORITY);
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+
+        // Cut off the end, well past the first batch
+        File file = writeArchive();
+        RandomAccessFile damaged = new RandomAccessFile(file, "rw");
+        try {
+            damaged.setLength(file.length() - 20);
+        } finally {
+            damaged.close();
+        }
+
+        try {
+            NoteBackup.importNotes(resolver, file);
+            fail("A damaged backup was imported");
+        } catch (IOException expected) {
+            // What the caller shows the user
+        }
+
+        Cursor notes = resolver.query(NoteEntry.CONTENT_URI, null, null, null, null);
+        try {
+            assertEquals(0, notes.getCount());
+        } finally {
+            notes.close();
+        }
+    }
+
+    // Writes NOTE_COUNT small notes to a new temporary file
+    private static File writeArchive() throws IOException {
+        File file = File.createTempFile("notes", ".bullnote");
+        file.deleteOnExit();
+        NoteArchive.Writer writer =
+                new NoteArchive.Writer(new FileOutputStream(file).getChannel(), false);
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            writer.write("Note " + i, "Buy buns, note " + i, i, i);
+        }
+        writer.close();
+        return file;
+    }
+}
@@ -0,0 +1,45 @@
+package com.bullnote.buffalo.burgers.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for NoteBodyCodec, which is plain Java and runs on the development machine.
+ */
+public class NoteBodyCodecTest {
+
+    // Builds a body of the given length out of repeated words, like real text
+    private static String repeatedText(int length) {
+        StringBuilder body = new StringBuilder(length);
+        String[] words = { "bull ", "note ", "buffalo ", "burgers ", "and ", "\u00fcn\u00efc\u00f6d\u00e9 ", "\n" };
+        for (int i = 0; body.length() < length; i++) {
+            body.append(words[i % words.length]);
+        }
+        body.setLength(length);
+        return body.toString();
+    }
+
+    @Test
+    public void shortBody_isNotCompressed() throws Exception {
+        assertNull(NoteBodyCodec.compress(repeatedText(NoteBodyCodec.COMPRESSION_THRESHOLD - 1)));
+    }
+
+    @Test
+    public void longBody_roundTrips() throws Exception {
+        String body = repeatedText(100 * 1024);
+        byte[] compressed = NoteBodyCodec.compress(body);
+
+        assertNotNull(compressed);
+        assertTrue(compressed.length < body.length() / 2);
+        assertEquals(body, NoteBodyCodec.decompress(compressed));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void corruptBody_throws() throws Exception {
+        byte[] compressed = NoteBodyCodec.compress(repeatedText(10 * 1024));
+        byte[] truncated = new byte[compressed.length / 2];
+        System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+        NoteBodyCodec.decompress(truncated);
+    }
+}
@@ -0,0 +1,92 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.bullnote.buffalo.burgers.BuildConfig;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * NoteCache on its own. Runs on the development machine through Robolectric, for LruCache and
+ * MatrixCursor.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class NoteCacheTest {
+
+    private static final int MAX_BYTES = 64 * 1024;
+
+    @Test
+    public void put_cachesTheNoteForTheNextRead() {
+        NoteCache cache = new NoteCache(MAX_BYTES);
+        assertNull(cache.get(1, NoteCache.COLUMNS));
+
+        assertBody("Buy buns", cache.put(1, row(1, "Buy buns"), cache.generation(),
+                NoteCache.COLUMNS));
+        assertBody("Buy buns", cache.get(1, NoteCache.COLUMNS));
+    }
+
+    @Test
+    public void put_ofARowReadBeforeAWriteIsNotCached() {
+        NoteCache cache = new NoteCache(MAX_BYTES);
+
+        // A read starts, a write to the note evicts it, then the read finishes with the old row
+        long generation = cache.generation();
+        cache.remove(1);
+        Cursor stale = cache.put(1, row(1, "Buy buns"), generation, NoteCache.COLUMNS);
+
+        // The reader still gets what it read, but the next read goes to the database
+        assertBody("Buy buns", stale);
+        assertNull(cache.get(1, NoteCache.COLUMNS));
+
+        // A read that started after the write is cached as usual
+        cache.put(1, row(1, "Buy buns and sauce"), cache.generation(), NoteCache.COLUMNS).close();
+        assertBody("Buy buns and sauce", cache.get(1, NoteCache.COLUMNS));
+    }
+
+    @Test
+    public void put_ofAHugeNoteLeavesTheOthersCached() {
+        NoteCache cache = new NoteCache(MAX_BYTES);
+        cache.put(1, row(1, "Buy buns"), cache.generation(), NoteCache.COLUMNS).close();
+        cache.put(2, row(2, "Light the grill"), cache.generation(), NoteCache.COLUMNS).close();
+
+        // Bigger than the whole cache; it's returned but not kept, and evicts nothing
+        StringBuilder huge = new StringBuilder();
+        while (huge.length() < MAX_BYTES) {
+            huge.append("buffalo burgers ");
+        }
+        assertBody(huge.toString(),
+                cache.put(3, row(3, huge.toString()), cache.generation(), NoteCache.COLUMNS));
+
+        assertNull(cache.get(3, NoteCache.COLUMNS));
+        assertBody("Buy buns", cache.get(1, NoteCache.COLUMNS));
+        assertBody("Light the grill", cache.get(2, NoteCache.COLUMNS));
+        assertEquals(0, cache.evictionCount());
+    }
+
+    // A row as NoteProvider hands it to the cache, positioned on the note
+    private static Cursor row(long id, String body) {
+        MatrixCursor cursor = new MatrixCursor(NoteCache.COLUMNS, 1);
+        cursor.addRow(new Object[] { id, "Note " + id, body, body, 1L, 2L });
+        cursor.moveToFirst();
+        return cursor;
+    }
+
+    // Checks the body of a cursor from the cache and closes it
+    private static void assertBody(String body, Cursor cursor) {
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(body, cursor.getString(cursor.getColumnIndex(NoteEntry.COLUMN_BODY)));
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.bullnote.buffalo.burgers.BuildConfig;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteChunkEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Splitting long bodies into chunks and putting them back together. Runs on the development
+ * machine through Robolectric with a real SQLite database.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class NoteChunksTest {
+
+    @Test
+    public void replace_splitsTheBodyAndReadBodyJoinsIt() {
+        NoteDbHelper helper = new NoteDbHelper(RuntimeEnvironment.application);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            long id = insertChunkedNote(db);
+
+            // Two full chunks, which are stored deflated, and one too short to deflate
+            String body = repeat('a', NoteChunkEntry.CHUNK_SIZE)
+                    + randomText(NoteChunkEntry.CHUNK_SIZE) + "the end \u00fcber";
+            NoteChunks.replace(db, id, body);
+
+            assertEquals(3, chunkCount(db, id));
+            assertEquals(body, NoteChunks.readBody(db, id));
+            assertChunks(db, id, body.substring(0, NoteChunkEntry.CHUNK_SIZE),
+                    body.substring(NoteChunkEntry.CHUNK_SIZE, 2 * NoteChunkEntry.CHUNK_SIZE),
+                    "the end \u00fcber");
+
+            // A shorter body leaves none of the old chunks behind, and null drops them all
+            NoteChunks.replace(db, id, "short");
+            assertEquals(1, chunkCount(db, id));
+            assertEquals("short", NoteChunks.readBody(db, id));
+            NoteChunks.replace(db, id, null);
+            assertEquals(0, chunkCount(db, id));
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void replace_neverCutsASurrogatePairInHalf() {
+        NoteDbHelper helper = new NoteDbHelper(RuntimeEnvironment.application);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            long id = insertChunkedNote(db);
+
+            // The pair would straddle the end of the first chunk, so all of it goes in the second
+            String pair = "\uD83D\uDC03";
+            String body = repeat('a', NoteChunkEntry.CHUNK_SIZE - 1) + pair + "buffalo";
+            NoteChunks.replace(db, id, body);
+
+            assertChunks(db, id, repeat('a', NoteChunkEntry.CHUNK_SIZE - 1), pair + "buffalo");
+            assertEquals(body, NoteChunks.readBody(db, id));
+
+            // A pair that ends right at the end of the chunk stays in it
+            body = repeat('a', NoteChunkEntry.CHUNK_SIZE - 2) + pair + "buffalo";
+            NoteChunks.replace(db, id, body);
+
+            assertChunks(db, id, repeat('a', NoteChunkEntry.CHUNK_SIZE - 2) + pair, "buffalo");
+            assertEquals(body, NoteChunks.readBody(db, id));
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void noteVersion_movesWhenTheBodyIsRewritten() {
+        Robolectric.setupContentProvider(NoteProvider.class, NoteContract.CONTENT_AUTHORITY);
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+        NoteRepository repository = new ResolverNoteRepository(resolver);
+
+        ContentValues values = new ContentValues();
+        values.put(NoteEntry.COLUMN_TITLE, "Long");
+        values.put(NoteEntry.COLUMN_BODY, randomText(3 * NoteChunkEntry.CHUNK_SIZE));
+        Uri note = resolver.insert(NoteEntry.CONTENT_URI, values);
+        long id = ContentUris.parseId(note);
+
+        // What the editor sees if a sync rewrites the note between two of its chunk reads
+        long version = repository.queryNoteVersion(id);
+        String firstChunk = repository.queryBodyChunk(id, 0);
+        values.put(NoteEntry.COLUMN_BODY, randomText(3 * NoteChunkEntry.CHUNK_SIZE + 1));
+        resolver.update(note, values, null, null);
+
+        assertNotEquals(version, repository.queryNoteVersion(id));
+        assertFalse(firstChunk.equals(repository.queryBodyChunk(id, 0)));
+    }
+
+    // A notes row whose body is in the chunk table
+    private static long insertChunkedNote(SQLiteDatabase db) {
+        ContentValues values = new ContentValues();
+        values.put(NoteEntry.COLUMN_TITLE, "Long");
+        values.put(NoteEntry.COLUMN_BODY, "");
+        values.put(NoteEntry.COLUMN_BODY_CODEC, NoteEntry.BODY_CODEC_CHUNKED);
+        values.put(NoteEntry.COLUMN_UUID, "chunked");
+        return db.insert(NoteEntry.TABLE_NAME, null, values);
+    }
+
+    private static long chunkCount(SQLiteDatabase db, long id) {
+        return DatabaseUtils.queryNumEntries(db, NoteChunkEntry.TABLE_NAME,
+                NoteChunkEntry.COLUMN_NOTE_ID + " = ?", new String[] { String.valueOf(id) });
+    }
+
+    // Checks the plain text of each chunk, the way the editor reads them
+    private static void assertChunks(SQLiteDatabase db, long id, String... expected) {
+        Cursor chunks = NoteChunks.query(db, id, 0, -1);
+        try {
+            assertEquals(expected.length, chunks.getCount());
+            for (int i = 0; chunks.moveToNext(); i++) {
+                assertEquals(i, chunks.getInt(0));
+                assertEquals(expected[i], chunks.getString(1));
+            }
+        } finally {
+            chunks.close();
+        }
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder text = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            text.append(c);
+        }
+        return text.toString();
+    }
+
+    // Text that doesn't repeat, so no two chunks of it are the same
+    private static String randomText(int length) {
+        Random random = new Random(length);
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) {
+            text.append((char) ('a' + random.nextInt(26)));
+        }
+        return text.toString();
+    }
+}
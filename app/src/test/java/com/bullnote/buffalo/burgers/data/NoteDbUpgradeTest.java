@@ -0,0 +1,193 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import com.bullnote.buffalo.burgers.BuildConfig;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteChangeEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteSearchEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTagEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTagMapEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Upgrades a database written by the first version of the app, through every migration, and
+ * reads it back through NoteProvider. Runs on the development machine through Robolectric.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class NoteDbUpgradeTest {
+
+    // The notes table as version 1 created it
+    private static final String V1_CREATE_ENTRIES = "CREATE TABLE notes("
+            + "_id INTEGER PRIMARY KEY AUTOINCREMENT, title TEXT NOT NULL, body TEXT NOT NULL);";
+
+    private static final String SHORT_BODY = "Buy buns for the buffalo burgers";
+    private static final String UNICODE_BODY = "\u00fcber bull \uD83D\uDC03";
+
+    // Its preview has to come out the same as a save would make it
+    private static final String SPACED_BODY = "  Buy buns\n\n for   the\tbuffalo burgers  ";
+
+    // Long enough to be deflated by the version 6 migration
+    private static final String LONG_BODY;
+    static {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 3 * NoteBodyCodec.COMPRESSION_THRESHOLD) {
+            body.append("grill the burgers on tuesday\n");
+        }
+        LONG_BODY = body.toString();
+    }
+
+    @Test
+    public void version1Database_keepsEveryNote() throws Exception {
+        Context context = RuntimeEnvironment.application;
+        File path = context.getDatabasePath(NoteDbHelper.DATABASE_NAME);
+        assertTrue(path.getParentFile().isDirectory() || path.getParentFile().mkdirs());
+
+        SQLiteDatabase v1 = SQLiteDatabase.openOrCreateDatabase(path, null);
+        v1.execSQL(V1_CREATE_ENTRIES);
+        insertV1Note(v1, "Shopping", SHORT_BODY);
+        insertV1Note(v1, "Recipe", LONG_BODY);
+        insertV1Note(v1, "Unicode", UNICODE_BODY);
+        insertV1Note(v1, "Spaced", SPACED_BODY);
+        v1.setVersion(1);
+        v1.close();
+
+        NoteDbHelper helper = new NoteDbHelper(context);
+        assertEquals(NoteDbHelper.DATABASE_VERSION, helper.getReadableDatabase().getVersion());
+        helper.close();
+
+        Robolectric.setupContentProvider(NoteProvider.class, NoteContract.CONTENT_AUTHORITY);
+        ContentResolver resolver = context.getContentResolver();
+
+        // Every note is still there, bodies and all, and has a UUID now
+        Cursor notes = resolver.query(NoteEntry.CONTENT_URI,
+                new String[] { NoteEntry.COLUMN_TITLE, NoteEntry.COLUMN_BODY,
+                        NoteEntry.COLUMN_PREVIEW, NoteEntry.COLUMN_UUID },
+                null, null, NoteEntry._ID + " ASC");
+        try {
+            assertEquals(4, notes.getCount());
+            assertNote(notes, "Shopping", SHORT_BODY);
+            assertNote(notes, "Recipe", LONG_BODY);
+            assertNote(notes, "Unicode", UNICODE_BODY);
+            assertNote(notes, "Spaced", SPACED_BODY);
+        } finally {
+            notes.close();
+        }
+
+        // The search index was built from the old notes
+        Uri searchUri = NoteEntry.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NoteEntry.QUERY_PARAMETER_SEARCH, "tuesday").build();
+        Cursor results = resolver.query(searchUri, new String[] { NoteEntry.COLUMN_TITLE },
+                null, null, null);
+        try {
+            assertEquals(1, results.getCount());
+        } finally {
+            results.close();
+        }
+
+        // And every note is in the change log, ready to sync
+        Cursor changes = resolver.query(NoteChangeEntry.CONTENT_URI,
+                new String[] { NoteChangeEntry.COLUMN_UUID }, null, null, null);
+        try {
+            assertEquals(4, changes.getCount());
+            while (changes.moveToNext()) {
+                assertNotNull(changes.getString(0));
+            }
+        } finally {
+            changes.close();
+        }
+    }
+
+    @Test
+    public void version1Database_endsUpWithTheSchemaOfAFreshInstall() throws Exception {
+        Context context = RuntimeEnvironment.application;
+        File path = context.getDatabasePath(NoteDbHelper.DATABASE_NAME);
+        assertTrue(path.getParentFile().isDirectory() || path.getParentFile().mkdirs());
+
+        SQLiteDatabase v1 = SQLiteDatabase.openOrCreateDatabase(path, null);
+        v1.execSQL(V1_CREATE_ENTRIES);
+        insertV1Note(v1, "Shopping", SHORT_BODY);
+        insertV1Note(v1, "Recipe", LONG_BODY);
+        v1.setVersion(1);
+        v1.close();
+
+        // Every step runs against the schema of its own version, so nothing fails on a column
+        // a later version added
+        NoteDbHelper helper = new NoteDbHelper(context);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        assertEquals(NoteDbHelper.DATABASE_VERSION, db.getVersion());
+
+        // The triggers and indexes left behind are exactly the ones a new install gets, so tags
+        // and the trash work the same on an upgraded database
+        Set<String> upgraded = schemaOf(db);
+        db.execSQL("INSERT INTO " + NoteTagEntry.TABLE_NAME + "(" + NoteTagEntry.COLUMN_NAME
+                + ") VALUES ('food')");
+        db.execSQL("INSERT INTO " + NoteTagMapEntry.TABLE_NAME + " VALUES (1, 1)");
+        assertEquals(1, tagNoteCount(db));
+        db.execSQL("UPDATE " + NoteEntry.TABLE_NAME + " SET " + NoteEntry.COLUMN_DELETED_AT
+                + " = 1 WHERE " + NoteEntry._ID + " = 1");
+        assertEquals(0, tagNoteCount(db));
+        helper.close();
+
+        assertTrue(context.deleteDatabase(NoteDbHelper.DATABASE_NAME));
+        helper = new NoteDbHelper(context);
+        Set<String> fresh = schemaOf(helper.getReadableDatabase());
+        helper.close();
+        assertEquals(fresh, upgraded);
+    }
+
+    // The SQL of every trigger and index in the database, and of the search table
+    private static Set<String> schemaOf(SQLiteDatabase db) {
+        Set<String> schema = new HashSet<String>();
+        Cursor cursor = db.rawQuery("SELECT sql FROM sqlite_master"
+                + " WHERE (type IN ('trigger', 'index') OR name = ?) AND sql IS NOT NULL",
+                new String[] { NoteSearchEntry.TABLE_NAME });
+        try {
+            while (cursor.moveToNext()) {
+                schema.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return schema;
+    }
+
+    private static long tagNoteCount(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT " + NoteTagEntry.COLUMN_NOTE_COUNT
+                + " FROM " + NoteTagEntry.TABLE_NAME, null);
+    }
+
+    private static void insertV1Note(SQLiteDatabase db, String title, String body) {
+        ContentValues values = new ContentValues();
+        values.put("title", title);
+        values.put("body", body);
+        db.insert("notes", null, values);
+    }
+
+    private static void assertNote(Cursor cursor, String title, String body) {
+        assertTrue(cursor.moveToNext());
+        assertEquals(title, cursor.getString(0));
+        assertEquals(body, cursor.getString(1));
+        assertEquals(NoteProvider.makePreview(body), cursor.getString(2));
+        assertNotNull(cursor.getString(3));
+    }
+}
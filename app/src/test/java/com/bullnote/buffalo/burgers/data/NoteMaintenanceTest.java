@@ -0,0 +1,84 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.bullnote.buffalo.burgers.BuildConfig;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * NoteMaintenance on a real SQLite database, through Robolectric: a new database starts out in
+ * incremental auto-vacuum mode, and a run gives every free page back and gathers statistics.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class NoteMaintenanceTest {
+
+    private static final int NOTE_COUNT = 500;
+
+    // Big enough that each note takes a page of its own
+    private static final int BODY_BYTES = 4000;
+
+    @Test
+    public void run_shrinksTheDatabaseAndRecordsIt() {
+        Context context = RuntimeEnvironment.application;
+        SharedPreferences prefs =
+                context.getSharedPreferences(NoteMaintenance.PREFS_NAME, Context.MODE_PRIVATE);
+        NoteDbHelper helper = new NoteDbHelper(context);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        NoteStatements statements = new NoteStatements(db);
+        try {
+            assertEquals(2, pragma(db, "PRAGMA auto_vacuum"));
+
+            // Fill the database, then empty it, leaving the pages free
+            db.execSQL("INSERT INTO " + NoteEntry.TABLE_NAME + " (" + NoteEntry.COLUMN_TITLE + ", "
+                    + NoteEntry.COLUMN_BODY + ", " + NoteEntry.COLUMN_UUID + ") "
+                    + "WITH RECURSIVE n(i) AS (SELECT 1 UNION ALL SELECT i + 1 FROM n WHERE i < "
+                    + NOTE_COUNT + ") SELECT 'Note ' || i, hex(randomblob(" + BODY_BYTES / 2
+                    + ")), hex(randomblob(16)) FROM n");
+            db.execSQL("DELETE FROM " + NoteEntry.TABLE_NAME);
+            assertTrue(pragma(db, "PRAGMA freelist_count") >= NOTE_COUNT);
+
+            // A generous budget, so every step gets to finish
+            long now = System.currentTimeMillis();
+            assertTrue(NoteMaintenance.isDue(prefs, now));
+            NoteMaintenance.Report report = NoteMaintenance.run(db, statements, prefs, now, 60000);
+            assertEquals(0, report.freePagesAfter);
+            assertEquals(report.freePagesBefore, report.pagesFreed);
+            assertTrue(report.toString(), report.sizeAfter < report.sizeBefore / 4);
+            assertTrue(report.tablesAnalyzed > 0);
+            assertEquals("ok", report.integrity);
+            assertFalse(report.outOfTime);
+
+            // The next run isn't due for a day, and then skips what it did this time
+            long later = now + NoteMaintenance.MIN_INTERVAL_MS / 2;
+            assertFalse(NoteMaintenance.isDue(prefs, later));
+            report = NoteMaintenance.run(db, statements, prefs, later, 60000);
+            assertEquals(0, report.tablesAnalyzed);
+            assertNull(report.integrity);
+        } finally {
+            statements.close();
+            helper.close();
+        }
+    }
+
+    private static long pragma(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
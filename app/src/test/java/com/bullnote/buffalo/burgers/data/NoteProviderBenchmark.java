@@ -0,0 +1,377 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.bullnote.buffalo.burgers.BuildConfig;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Throughput benchmarks for NoteProvider, run on the development machine through Robolectric with
+ * a real SQLite database. Each test seeds a fresh Notes.db with 1k, 10k, 50k or 100k notes of
+ * mixed sizes (short ones, long ones that get deflated and a few huge ones that get chunked) and
+ * then times inserts, updates, deletes, list pages, single notes and searches through the
+ * ContentResolver.
+ *
+ * The search that runs on each keystroke is timed as search_keystroke, and its 95th percentile is
+ * also written at the top of the JSON, since typing lags once that gets long. Nothing fails on it.
+ *
+ * They only run when asked for, with ./gradlew testDebugUnitTest -Pbenchmark --tests '*Benchmark'.
+ * The results go to app/build/benchmarks as one JSON file per database size, with the same keys
+ * in the same order every time so two runs can be diffed. Times from a desktop JVM aren't phone
+ * times; compare runs against each other, not against the device.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class NoteProviderBenchmark {
+
+    // Timed operations per measurement, after WARMUP_OPS untimed ones to let the JIT settle
+    private static final int TIMED_OPS = 200;
+    private static final int WARMUP_OPS = 50;
+
+    // What the keystroke search types, one letter more per search
+    private static final String TYPED_SEARCH = "buffalo burgers grill";
+
+    // Notes per bulkInsert while seeding, and per list page, like the list itself
+    private static final int SEED_BATCH = 500;
+    private static final int PAGE_SIZE = 50;
+
+    private static final String[] WORDS = {
+            "bull", "note", "buffalo", "burgers", "grill", "sauce", "market", "tuesday",
+            "remember", "call", "list", "recipe", "idea", "meeting", "book", "\u00fcber"
+    };
+
+    private static final String[] LIST_COLUMNS = {
+            NoteEntry._ID, NoteEntry.COLUMN_TITLE, NoteEntry.COLUMN_PREVIEW,
+            NoteEntry.COLUMN_MODIFIED_AT
+    };
+
+    private ContentResolver mResolver;
+    private Random mRandom;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean("bullnote.benchmark"));
+        Robolectric.setupContentProvider(NoteProvider.class, NoteContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mRandom = new Random(42);
+    }
+
+    @Test
+    public void notes1k() throws Exception {
+        run(1000);
+    }
+
+    @Test
+    public void notes10k() throws Exception {
+        run(10 * 1000);
+    }
+
+    @Test
+    public void notes50k() throws Exception {
+        run(50 * 1000);
+    }
+
+    @Test
+    public void notes100k() throws Exception {
+        run(100 * 1000);
+    }
+
+    // Seeds the database and runs every measurement against it
+    private void run(int noteCount) throws Exception {
+        List<Measurement> results = new ArrayList<Measurement>();
+        results.add(seed(noteCount));
+        final long[] ids = readIds();
+
+        results.add(measure("insert", new Op() {
+            @Override
+            public void run(int i) {
+                mResolver.insert(NoteEntry.CONTENT_URI, note(i));
+            }
+        }));
+
+        results.add(measure("update", new Op() {
+            @Override
+            public void run(int i) {
+                ContentValues values = new ContentValues();
+                values.put(NoteEntry.COLUMN_BODY, body());
+                mResolver.update(noteUri(randomId(ids)), values, null, null);
+            }
+        }));
+
+        results.add(measure("single_note_query", new Op() {
+            @Override
+            public void run(int i) {
+                readAll(mResolver.query(noteUri(randomId(ids)), NoteCache.COLUMNS, null, null, null));
+            }
+        }));
+
+        // The same note over and over, so it comes from the provider's cache
+        final Uri cachedUri = noteUri(ids[0]);
+        results.add(measure("single_note_query_cached", new Op() {
+            @Override
+            public void run(int i) {
+                readAll(mResolver.query(cachedUri, NoteCache.COLUMNS, null, null, null));
+            }
+        }));
+
+        results.add(measure("list_first_page", new Op() {
+            @Override
+            public void run(int i) {
+                readAll(mResolver.query(firstPageUri(), LIST_COLUMNS, null, null, null));
+            }
+        }));
+
+        // Ten pages in a row, each starting after the last note of the one before, like scrolling
+        results.add(measure("list_ten_pages", new Op() {
+            @Override
+            public void run(int i) {
+                Uri pageUri = firstPageUri();
+                for (int page = 0; page < 10; page++) {
+                    Cursor cursor = mResolver.query(pageUri, LIST_COLUMNS, null, null, null);
+                    try {
+                        if (!cursor.moveToLast()) {
+                            return;
+                        }
+                        pageUri = NoteEntry.buildPageUri(NoteEntry.SORT_MODIFIED,
+                                String.valueOf(cursor.getLong(3)), cursor.getLong(0), PAGE_SIZE);
+                    } finally {
+                        cursor.close();
+                    }
+                }
+            }
+        }));
+
+        results.add(measure("search", new Op() {
+            @Override
+            public void run(int i) {
+                Uri searchUri = NoteEntry.SEARCH_URI.buildUpon()
+                        .appendQueryParameter(NoteEntry.QUERY_PARAMETER_SEARCH,
+                                WORDS[mRandom.nextInt(WORDS.length)] + " "
+                                        + WORDS[mRandom.nextInt(WORDS.length)])
+                        .build();
+                readAll(mResolver.query(searchUri, LIST_COLUMNS, null, null, null));
+            }
+        }));
+
+        // Typing into the search box: "b", "bu", "buf" and so on, one search per letter
+        results.add(measure("search_keystroke", new Op() {
+            @Override
+            public void run(int i) {
+                String typed = TYPED_SEARCH.substring(0, 1 + i % TYPED_SEARCH.length());
+                Uri searchUri = NoteEntry.SEARCH_URI.buildUpon()
+                        .appendQueryParameter(NoteEntry.QUERY_PARAMETER_SEARCH, typed)
+                        .build();
+                readAll(mResolver.query(searchUri, LIST_COLUMNS, null, null, null));
+            }
+        }));
+
+        results.add(measure("delete", new Op() {
+            @Override
+            public void run(int i) {
+                // Deletes from the end, so no note is deleted twice
+                mResolver.delete(noteUri(ids[ids.length - 1 - i]), null, null);
+            }
+        }));
+
+        write(noteCount, results);
+    }
+
+    private static Measurement find(List<Measurement> results, String name) {
+        for (Measurement result : results) {
+            if (result.name.equals(name)) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("No measurement named " + name);
+    }
+
+    // Adds noteCount notes in batches of SEED_BATCH; each batch is one timed operation
+    private Measurement seed(int noteCount) {
+        long[] nanos = new long[(noteCount + SEED_BATCH - 1) / SEED_BATCH];
+        for (int batch = 0; batch < nanos.length; batch++) {
+            ContentValues[] values = new ContentValues[Math.min(SEED_BATCH, noteCount - batch * SEED_BATCH)];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = note(batch * SEED_BATCH + i);
+            }
+            long start = System.nanoTime();
+            mResolver.bulkInsert(NoteEntry.CONTENT_URI, values);
+            nanos[batch] = System.nanoTime() - start;
+        }
+        return new Measurement("bulk_insert_" + SEED_BATCH, nanos);
+    }
+
+    private Measurement measure(String name, Op op) throws Exception {
+        for (int i = 0; i < WARMUP_OPS; i++) {
+            op.run(i);
+        }
+        long[] nanos = new long[TIMED_OPS];
+        for (int i = 0; i < TIMED_OPS; i++) {
+            long start = System.nanoTime();
+            op.run(WARMUP_OPS + i);
+            nanos[i] = System.nanoTime() - start;
+        }
+        return new Measurement(name, nanos);
+    }
+
+    private long[] readIds() {
+        Cursor cursor = mResolver.query(NoteEntry.CONTENT_URI, new String[] { NoteEntry._ID },
+                null, null, null);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Writes the results as JSON, one file per database size
+    private void write(int noteCount, List<Measurement> results) throws Exception {
+        File dir = new File(System.getProperty("bullnote.benchmark.dir", "build/benchmarks"));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalStateException("Could not create " + dir);
+        }
+        File database = RuntimeEnvironment.application.getDatabasePath(NoteDbHelper.DATABASE_NAME);
+        File wal = new File(database.getPath() + "-wal");
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"benchmark\": \"NoteProviderBenchmark\",\n")
+                .append("  \"notes\": ").append(noteCount).append(",\n")
+                .append("  \"database_bytes\": ").append(database.length() + wal.length()).append(",\n")
+                .append("  \"search_keystroke_p95_us\": ")
+                .append(find(results, "search_keystroke").percentileMicros(0.95)).append(",\n")
+                .append("  \"results\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            json.append("    ").append(results.get(i).toJson())
+                    .append(i < results.size() - 1 ? ",\n" : "\n");
+        }
+        json.append("  ]\n}\n");
+
+        File file = new File(dir, "NoteProviderBenchmark-" + noteCount + ".json");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    // A note numbered i, with a body of one of the sizes real notes come in
+    private ContentValues note(int i) {
+        ContentValues values = new ContentValues();
+        values.put(NoteEntry.COLUMN_TITLE, "Note " + i + " " + WORDS[i % WORDS.length]);
+        values.put(NoteEntry.COLUMN_BODY, body());
+        return values;
+    }
+
+    // Mostly short bodies, some long enough to be deflated and a very few long enough to be chunked
+    private String body() {
+        int kind = mRandom.nextInt(2000);
+        int length;
+        if (kind == 0) {
+            length = 256 * 1024;
+        } else if (kind < 40) {
+            length = 16 * 1024 + mRandom.nextInt(16 * 1024);
+        } else if (kind < 400) {
+            length = 1024 + mRandom.nextInt(3 * 1024);
+        } else {
+            length = 100 + mRandom.nextInt(300);
+        }
+        StringBuilder body = new StringBuilder(length + 16);
+        while (body.length() < length) {
+            body.append(WORDS[mRandom.nextInt(WORDS.length)])
+                    .append(mRandom.nextInt(12) == 0 ? '\n' : ' ');
+        }
+        return body.toString();
+    }
+
+    private long randomId(long[] ids) {
+        return ids[mRandom.nextInt(ids.length)];
+    }
+
+    private static Uri noteUri(long id) {
+        return ContentUris.withAppendedId(NoteEntry.CONTENT_URI, id);
+    }
+
+    private static Uri firstPageUri() {
+        return NoteEntry.buildPageUri(NoteEntry.SORT_MODIFIED, null, NoteEntry.FIRST_PAGE, PAGE_SIZE);
+    }
+
+    // Reads every column of every row, the way a screen would, and closes the cursor
+    private static void readAll(Cursor cursor) {
+        try {
+            while (cursor.moveToNext()) {
+                for (int column = 0; column < cursor.getColumnCount(); column++) {
+                    cursor.getString(column);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** One timed operation; i counts up from 0 across the warm-up and the timed runs */
+    private interface Op {
+        void run(int i) throws Exception;
+    }
+
+    /** The times of every run of one operation */
+    private static final class Measurement {
+        final String name;
+        final long[] sortedNanos;
+        final long totalNanos;
+
+        Measurement(String name, long[] nanos) {
+            this.name = name;
+            sortedNanos = Arrays.copyOf(nanos, nanos.length);
+            Arrays.sort(sortedNanos);
+            long total = 0;
+            for (long time : nanos) {
+                total += time;
+            }
+            totalNanos = total;
+        }
+
+        // The time that fraction of the runs came in under, in microseconds
+        long percentileMicros(double fraction) {
+            int index = (int) Math.ceil(fraction * sortedNanos.length) - 1;
+            return sortedNanos[Math.max(0, index)] / 1000;
+        }
+
+        String toJson() {
+            return String.format(Locale.US,
+                    "{\"name\": \"%s\", \"ops\": %d, \"ops_per_sec\": %.1f, \"mean_us\": %d, "
+                            + "\"p50_us\": %d, \"p95_us\": %d, \"p99_us\": %d, \"max_us\": %d}",
+                    name, sortedNanos.length, sortedNanos.length * 1e9 / totalNanos,
+                    totalNanos / sortedNanos.length / 1000, percentileMicros(0.5),
+                    percentileMicros(0.95), percentileMicros(0.99),
+                    sortedNanos[sortedNanos.length - 1] / 1000);
+        }
+    }
+}
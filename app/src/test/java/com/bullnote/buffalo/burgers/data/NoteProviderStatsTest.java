@@ -0,0 +1,62 @@
+package com.bullnote.buffalo.burgers.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for NoteProviderStats, which is plain Java and runs on the development machine.
+ */
+public class NoteProviderStatsTest {
+
+    private static final long MS = 1000000;
+
+    @Test
+    public void record_fillsHistogramBuckets() throws Exception {
+        NoteProviderStats stats = new NoteProviderStats();
+        stats.record(NoteProviderStats.OP_QUERY, MS / 10, 5);
+        stats.record(NoteProviderStats.OP_QUERY, 3 * MS, 20);
+        stats.record(NoteProviderStats.OP_QUERY, 10000 * MS, 1);
+
+        long[] histogram = stats.getHistogram(NoteProviderStats.OP_QUERY);
+        assertEquals(1, histogram[0]);
+        assertEquals(1, histogram[4]);
+        assertEquals(1, histogram[NoteProviderStats.BUCKET_COUNT - 1]);
+        assertEquals(3, stats.getCount(NoteProviderStats.OP_QUERY));
+        assertEquals(26, stats.getRows(NoteProviderStats.OP_QUERY));
+        assertEquals(0, stats.getCount(NoteProviderStats.OP_INSERT));
+    }
+
+    @Test
+    public void percentile_usesBucketBounds() throws Exception {
+        NoteProviderStats stats = new NoteProviderStats();
+        for (int i = 0; i < 99; i++) {
+            stats.record(NoteProviderStats.OP_UPDATE, MS / 2, 1);
+        }
+        stats.record(NoteProviderStats.OP_UPDATE, 700 * MS, 1);
+
+        assertEquals(500, stats.getPercentileMicros(NoteProviderStats.OP_UPDATE, 0.5));
+        assertEquals(500, stats.getPercentileMicros(NoteProviderStats.OP_UPDATE, 0.99));
+        assertEquals(700000, stats.getPercentileMicros(NoteProviderStats.OP_UPDATE, 1.0));
+    }
+
+    @Test
+    public void slowList_keepsNewestEntries() throws Exception {
+        NoteProviderStats stats = new NoteProviderStats();
+        stats.setSlowThresholdMs(50);
+        assertFalse(stats.isSlow(49 * MS));
+        assertTrue(stats.isSlow(50 * MS));
+
+        for (int i = 0; i < 25; i++) {
+            stats.recordSlow(NoteProviderStats.OP_QUERY, 60 * MS, "query " + i);
+        }
+        String[] slow = stats.getSlowEntries();
+        assertEquals(20, slow.length);
+        assertTrue(slow[0].endsWith("query 5"));
+        assertTrue(stats.report().contains("query 24"));
+
+        stats.reset();
+        assertEquals(0, stats.getSlowEntries().length);
+        assertEquals(50, stats.getSlowThresholdMs());
+    }
+}
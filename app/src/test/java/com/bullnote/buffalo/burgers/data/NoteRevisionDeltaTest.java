@@ -0,0 +1,138 @@
+package com.bullnote.buffalo.burgers.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for NoteRevisionDelta, which is plain Java and runs on the development machine.
+ * The history tests replay the same snapshot rule NoteRevisions uses, without a database.
+ */
+public class NoteRevisionDeltaTest {
+
+    private static final String[] WORDS = { "bull ", "note ", "buffalo ", "burgers ", "\n", "\uD83D\uDC03 " };
+
+    // Builds a body of roughly the given length out of repeated words, like real text
+    private static String text(Random random, int length) {
+        StringBuilder body = new StringBuilder(length + 10);
+        while (body.length() < length) {
+            body.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return body.toString();
+    }
+
+    // Makes one small edit somewhere in the body: typing, deleting or replacing a few words
+    private static String edit(Random random, String body) {
+        int at = random.nextInt(body.length() + 1);
+        if (at > 0 && at < body.length() && Character.isLowSurrogate(body.charAt(at))) {
+            at--;
+        }
+        int end = Math.min(body.length(), at + random.nextInt(20));
+        if (end > 0 && end < body.length() && Character.isLowSurrogate(body.charAt(end))) {
+            end++;
+        }
+        switch (random.nextInt(3)) {
+            case 0:
+                return body.substring(0, at) + text(random, 8) + body.substring(at);
+            case 1:
+                return body.substring(0, at) + body.substring(end);
+            default:
+                return body.substring(0, at) + text(random, 8) + body.substring(end);
+        }
+    }
+
+    @Test
+    public void delta_rebuildsEveryEdit() throws Exception {
+        Random random = new Random(1);
+        String body = text(random, 2000);
+        for (int i = 0; i < 2000; i++) {
+            String edited = edit(random, body);
+            NoteRevisionDelta delta = NoteRevisionDelta.between(body, edited);
+            assertEquals(edited, delta.applyTo(body));
+            body = edited;
+        }
+    }
+
+    @Test
+    public void delta_neverSplitsSurrogatePairs() throws Exception {
+        // The two emoji share their high surrogate, so the plain common prefix would end inside
+        NoteRevisionDelta delta = NoteRevisionDelta.between("a\uD83D\uDC03b", "a\uD83D\uDC02b");
+
+        assertEquals(1, delta.prefixLength);
+        assertEquals(1, delta.suffixLength);
+        assertEquals("\uD83D\uDC02", delta.text);
+    }
+
+    @Test
+    public void followedBy_sameAsApplyingBoth() throws Exception {
+        Random random = new Random(2);
+        for (int i = 0; i < 500; i++) {
+            String first = text(random, 300);
+            String second = edit(random, first);
+            String third = edit(random, second);
+
+            NoteRevisionDelta merged = NoteRevisionDelta.between(first, second)
+                    .followedBy(NoteRevisionDelta.between(second, third), third);
+            assertEquals(third, merged.applyTo(first));
+        }
+    }
+
+    @Test
+    public void history_storesFarLessThanFullCopies() throws Exception {
+        Random random = new Random(3);
+        String body = text(random, 20 * 1024);
+        long fullCopies = 0;
+        long stored = 0;
+        int depth = 0;
+
+        for (int i = 0; i < 1000; i++) {
+            String edited = edit(random, body);
+            NoteRevisionDelta delta = NoteRevisionDelta.between(body, edited);
+            if (delta.needsSnapshot(depth + 1, edited.length())) {
+                stored += edited.length();
+                depth = 0;
+            } else {
+                stored += delta.text.length();
+                depth++;
+            }
+            fullCopies += edited.length();
+            body = edited;
+        }
+
+        // A snapshot every SNAPSHOT_INTERVAL revisions is about 5%; the deltas add very little
+        assertTrue("Stored " + stored + " of " + fullCopies, stored * 10 < fullCopies);
+    }
+
+    @Test
+    public void history_worstCaseRebuildIsBounded() throws Exception {
+        // A long note at the end of a full run of deltas is the most work any rebuild can be
+        Random random = new Random(4);
+        String snapshot = text(random, 1024 * 1024);
+        List<NoteRevisionDelta> chain = new ArrayList<NoteRevisionDelta>();
+        String body = snapshot;
+        for (int depth = 1; ; depth++) {
+            String edited = edit(random, body);
+            NoteRevisionDelta delta = NoteRevisionDelta.between(body, edited);
+            if (delta.needsSnapshot(depth, edited.length())) {
+                break;
+            }
+            chain.add(delta);
+            body = edited;
+        }
+        assertEquals(NoteRevisionDelta.SNAPSHOT_INTERVAL - 1, chain.size());
+
+        long start = System.nanoTime();
+        String rebuilt = snapshot;
+        for (NoteRevisionDelta delta : chain) {
+            rebuilt = delta.applyTo(rebuilt);
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(body, rebuilt);
+        assertTrue("Rebuild took " + elapsedMs + "ms", elapsedMs < 1000);
+    }
+}
@@ -0,0 +1,133 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.bullnote.buffalo.burgers.BuildConfig;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Search ranking through NoteProvider. Runs on the development machine through Robolectric with
+ * a real SQLite database.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class NoteSearchTest {
+
+    @Test
+    public void search_ranksTitleHitsThenMoreHits() {
+        Robolectric.setupContentProvider(NoteProvider.class, NoteContract.CONTENT_AUTHORITY);
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+
+        long once = insertNote(resolver, "Once", "a zebra at the grill");
+        long thrice = insertNote(resolver, "Thrice", "zebra burgers, zebra buns and zebra fries");
+        long titled = insertNote(resolver, "Zebra", "the grill");
+        insertNote(resolver, "Unrelated", "buffalo burgers");
+        long trashed = insertNote(resolver, "Trashed", "zebra zebra zebra zebra zebra");
+        resolver.delete(ContentUris.withAppendedId(NoteEntry.CONTENT_URI, trashed), null, null);
+
+        // A hit in the title beats hits in the body, more hits beat fewer, and the trash is left
+        // out even though it has the most hits of all
+        Cursor results = search(resolver, "zebra");
+        try {
+            assertEquals(3, results.getCount());
+            assertNextResult(results, titled, "Zebra");
+            assertNextResult(results, thrice, "Thrice");
+            assertNextResult(results, once, "Once");
+        } finally {
+            results.close();
+        }
+
+        // Every term has to match
+        results = search(resolver, "zebra fries");
+        try {
+            assertEquals(1, results.getCount());
+            assertNextResult(results, thrice, "Thrice");
+        } finally {
+            results.close();
+        }
+    }
+
+    @Test
+    public void search_returnsOnlyTheBestMatches() {
+        Robolectric.setupContentProvider(NoteProvider.class, NoteContract.CONTENT_AUTHORITY);
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+
+        ContentValues[] notes = new ContentValues[NoteSearch.SEARCH_LIMIT + 20];
+        for (int i = 0; i < notes.length; i++) {
+            notes[i] = new ContentValues();
+            notes[i].put(NoteEntry.COLUMN_TITLE, "Note " + i);
+            notes[i].put(NoteEntry.COLUMN_BODY, "grill the burgers");
+        }
+        resolver.bulkInsert(NoteEntry.CONTENT_URI, notes);
+        long best = insertNote(resolver, "Burgers", "burgers burgers");
+
+        // The best match comes first and the rest are cut off at the limit, newest first
+        Cursor results = search(resolver, "burgers");
+        try {
+            assertEquals(NoteSearch.SEARCH_LIMIT, results.getCount());
+            assertNextResult(results, best, "Burgers");
+            long previous = Long.MAX_VALUE;
+            while (results.moveToNext()) {
+                long id = results.getLong(results.getColumnIndex(NoteEntry._ID));
+                assertTrue(id < previous);
+                previous = id;
+            }
+        } finally {
+            results.close();
+        }
+    }
+
+    @Test
+    public void rank_weighsHitsByColumnAndRarity() {
+        // One term, two columns: title hits here, everywhere, notes with a hit; then the body
+        assertEquals(2.0 * 1 / 2 + 3.0 / 6, NoteSearch.rank(matchinfo(1, 2, 1, 2, 2, 3, 6, 2)), 1e-9);
+
+        // No hits in the title only counts the body
+        assertEquals(1.0 / 4, NoteSearch.rank(matchinfo(1, 2, 0, 2, 2, 1, 4, 3)), 1e-9);
+    }
+
+    // Packs integers the way matchinfo() returns them
+    private static byte[] matchinfo(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * values.length).order(ByteOrder.nativeOrder());
+        for (int value : values) {
+            buffer.putInt(value);
+        }
+        return buffer.array();
+    }
+
+    private static long insertNote(ContentResolver resolver, String title, String body) {
+        ContentValues values = new ContentValues();
+        values.put(NoteEntry.COLUMN_TITLE, title);
+        values.put(NoteEntry.COLUMN_BODY, body);
+        return ContentUris.parseId(resolver.insert(NoteEntry.CONTENT_URI, values));
+    }
+
+    private static Cursor search(ContentResolver resolver, String query) {
+        Uri uri = NoteEntry.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NoteEntry.QUERY_PARAMETER_SEARCH, query).build();
+        return resolver.query(uri, null, null, null, null);
+    }
+
+    private static void assertNextResult(Cursor results, long id, String title) {
+        assertTrue(results.moveToNext());
+        assertEquals(id, results.getLong(results.getColumnIndex(NoteEntry._ID)));
+        assertEquals(title, results.getString(results.getColumnIndex(NoteEntry.COLUMN_TITLE)));
+        assertFalse(results.getString(results.getColumnIndex(NoteEntry.COLUMN_SNIPPET)).isEmpty());
+    }
+}
@@ -0,0 +1,302 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.bullnote.buffalo.burgers.BuildConfig;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares NoteStatements with the SQLiteDatabase calls it replaced, for getting, inserting,
+ * updating and deleting one note by _ID. Each pair does the same work in the same transaction;
+ * the only difference is whether the SQL is built and looked up every time or compiled once.
+ *
+ * Besides the time, every operation's allocations on the calling thread are counted, which is
+ * where the SQL strings, argument arrays and ContentValues copies show up. Robolectric runs SQLite
+ * itself on another thread, so its allocations aren't in there.
+ *
+ * Like NoteProviderBenchmark it only runs with ./gradlew testDebugUnitTest -Pbenchmark
+ * --tests '*Benchmark', and writes its JSON to app/build/benchmarks.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class NoteStatementsBenchmark {
+
+    // Timed operations per measurement, after WARMUP_OPS untimed ones to let the JIT settle
+    private static final int TIMED_OPS = 2000;
+    private static final int WARMUP_OPS = 500;
+
+    // Notes in the table while measuring
+    private static final int NOTE_COUNT = 10 * 1000;
+
+    private static final String BODY = "Buy buns, sauce and pickles for the buffalo burgers";
+
+    private NoteDbHelper mDbHelper;
+    private SQLiteDatabase mDatabase;
+    private NoteStatements mStatements;
+    private com.sun.management.ThreadMXBean mThreads;
+
+    @Before
+    public void setUp() {
+        assumeTrue(Boolean.getBoolean("bullnote.benchmark"));
+        mDbHelper = new NoteDbHelper(RuntimeEnvironment.application);
+        mDatabase = mDbHelper.getWritableDatabase();
+        mStatements = new NoteStatements(mDatabase);
+        mThreads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        mThreads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        if (mStatements != null) {
+            mStatements.close();
+            mDbHelper.close();
+        }
+    }
+
+    @Test
+    public void statementsAgainstDatabaseCalls() throws Exception {
+        List<Measurement> results = new ArrayList<Measurement>();
+        final long[] ids = seed();
+
+        results.add(measure("get_by_id_query", new Op() {
+            @Override
+            public void run(int i) {
+                readAll(mDatabase.query(NoteEntry.TABLE_NAME, NoteCache.QUERY_COLUMNS,
+                        NoteEntry._ID + "=?", new String[] { String.valueOf(idAt(ids, i)) },
+                        null, null, null));
+            }
+        }));
+        results.add(measure("get_by_id_statements", new Op() {
+            @Override
+            public void run(int i) {
+                readAll(mDatabase.rawQuery(NoteStatements.SQL_QUERY_CACHE_ROW,
+                        new String[] { String.valueOf(idAt(ids, i)) }));
+            }
+        }));
+
+        results.add(measure("update_by_id_update", new Op() {
+            @Override
+            public void run(int i) {
+                mDatabase.update(NoteEntry.TABLE_NAME, titleValues(i), NoteEntry._ID + "=?",
+                        new String[] { String.valueOf(idAt(ids, i)) });
+            }
+        }));
+        results.add(measure("update_by_id_statements", new Op() {
+            @Override
+            public void run(int i) {
+                mStatements.updateById(idAt(ids, i), titleValues(i));
+            }
+        }));
+
+        results.add(measure("insert_insert", new Op() {
+            @Override
+            public void run(int i) {
+                ContentValues values = titleValues(i);
+                values.put(NoteEntry.COLUMN_BODY, BODY);
+                values.put(NoteEntry.COLUMN_PREVIEW, BODY);
+                values.put(NoteEntry.COLUMN_CREATED_AT, i);
+                values.put(NoteEntry.COLUMN_MODIFIED_AT, i);
+                values.put(NoteEntry.COLUMN_BODY_CODEC, NoteEntry.BODY_CODEC_PLAIN);
+                values.put(NoteEntry.COLUMN_UUID, UUID.randomUUID().toString());
+                mDatabase.insert(NoteEntry.TABLE_NAME, null, values);
+            }
+        }));
+        results.add(measure("insert_statements", new Op() {
+            @Override
+            public void run(int i) {
+                insertNote(i);
+            }
+        }));
+
+        // Each half of the notes is deleted by one of the two, so no note is deleted twice
+        results.add(measure("delete_by_id_delete", new Op() {
+            @Override
+            public void run(int i) {
+                mDatabase.delete(NoteEntry.TABLE_NAME, NoteEntry._ID + "=?",
+                        new String[] { String.valueOf(ids[i]) });
+            }
+        }));
+        results.add(measure("delete_by_id_statements", new Op() {
+            @Override
+            public void run(int i) {
+                mStatements.deleteById(ids[ids.length - 1 - i]);
+            }
+        }));
+
+        write(results);
+    }
+
+    // Adds NOTE_COUNT notes with the pre-compiled insert and returns their IDs
+    private long[] seed() {
+        long[] ids = new long[NOTE_COUNT];
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = insertNote(i);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        return ids;
+    }
+
+    // Inserts a short note the way NoteProvider does
+    private long insertNote(int i) {
+        SQLiteStatement insert = mStatements.insert();
+        insert.bindString(1, "Note " + i);
+        insert.bindString(2, BODY);
+        insert.bindString(3, BODY);
+        insert.bindLong(4, i);
+        insert.bindLong(5, i);
+        insert.bindLong(6, NoteEntry.BODY_CODEC_PLAIN);
+        insert.bindString(7, UUID.randomUUID().toString());
+        try {
+            return insert.executeInsert();
+        } finally {
+            insert.clearBindings();
+        }
+    }
+
+    // Runs the operation, WARMUP_OPS + TIMED_OPS times, in one transaction like the provider does
+    private Measurement measure(String name, Op op) throws Exception {
+        long threadId = Thread.currentThread().getId();
+        long[] nanos = new long[TIMED_OPS];
+        long[] bytes = new long[TIMED_OPS];
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < WARMUP_OPS; i++) {
+                op.run(i);
+            }
+            for (int i = 0; i < TIMED_OPS; i++) {
+                long startBytes = mThreads.getThreadAllocatedBytes(threadId);
+                long start = System.nanoTime();
+                op.run(WARMUP_OPS + i);
+                nanos[i] = System.nanoTime() - start;
+                bytes[i] = mThreads.getThreadAllocatedBytes(threadId) - startBytes;
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        return new Measurement(name, nanos, bytes);
+    }
+
+    // Writes the results as JSON, next to NoteProviderBenchmark's
+    private void write(List<Measurement> results) throws Exception {
+        File dir = new File(System.getProperty("bullnote.benchmark.dir", "build/benchmarks"));
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalStateException("Could not create " + dir);
+        }
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"benchmark\": \"NoteStatementsBenchmark\",\n")
+                .append("  \"notes\": ").append(NOTE_COUNT).append(",\n")
+                .append("  \"results\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            json.append("    ").append(results.get(i).toJson())
+                    .append(i < results.size() - 1 ? ",\n" : "\n");
+        }
+        json.append("  ]\n}\n");
+
+        File file = new File(dir, "NoteStatementsBenchmark.json");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+        System.out.print(json);
+    }
+
+    private static long idAt(long[] ids, int i) {
+        return ids[(i * 7919) % ids.length];
+    }
+
+    private static ContentValues titleValues(int i) {
+        ContentValues values = new ContentValues();
+        values.put(NoteEntry.COLUMN_TITLE, "Edited " + i);
+        return values;
+    }
+
+    // Reads every column of every row and closes the cursor
+    private static void readAll(Cursor cursor) {
+        try {
+            while (cursor.moveToNext()) {
+                for (int column = 0; column < cursor.getColumnCount(); column++) {
+                    cursor.getString(column);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** One timed operation; i counts up from 0 across the warm-up and the timed runs */
+    private interface Op {
+        void run(int i) throws Exception;
+    }
+
+    /** The times and allocations of every run of one operation */
+    private static final class Measurement {
+        final String name;
+        final long[] sortedNanos;
+        final long totalNanos;
+        final long totalBytes;
+
+        Measurement(String name, long[] nanos, long[] bytes) {
+            this.name = name;
+            sortedNanos = Arrays.copyOf(nanos, nanos.length);
+            Arrays.sort(sortedNanos);
+            long total = 0;
+            for (long time : nanos) {
+                total += time;
+            }
+            totalNanos = total;
+            long allocated = 0;
+            for (long size : bytes) {
+                allocated += size;
+            }
+            totalBytes = allocated;
+        }
+
+        // The time that fraction of the runs came in under, in microseconds
+        long percentileMicros(double fraction) {
+            int index = (int) Math.ceil(fraction * sortedNanos.length) - 1;
+            return sortedNanos[Math.max(0, index)] / 1000;
+        }
+
+        String toJson() {
+            return String.format(Locale.US,
+                    "{\"name\": \"%s\", \"ops\": %d, \"mean_us\": %.1f, \"p50_us\": %d, "
+                            + "\"p95_us\": %d, \"p99_us\": %d, \"bytes_per_op\": %d}",
+                    name, sortedNanos.length, totalNanos / 1000.0 / sortedNanos.length,
+                    percentileMicros(0.5), percentileMicros(0.95), percentileMicros(0.99),
+                    totalBytes / sortedNanos.length);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+
+import com.bullnote.buffalo.burgers.BuildConfig;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTagEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTagMapEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tags through NoteProvider, and the query plans of the tag filter with 50k notes of 10 tags
+ * each. Runs on the development machine through Robolectric with a real SQLite database.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class NoteTagsTest {
+
+    private static final int NOTE_COUNT = 50 * 1000;
+    private static final int TAG_COUNT = 200;
+    private static final int TAGS_PER_NOTE = 10;
+
+    // Notes per page, like the list
+    private static final int PAGE_SIZE = 50;
+
+    private static final String[] LIST_COLUMNS = {
+            NoteEntry._ID, NoteEntry.COLUMN_TITLE, NoteEntry.COLUMN_PREVIEW,
+            NoteEntry.COLUMN_MODIFIED_AT
+    };
+
+    @Test
+    public void tagsThroughProvider() {
+        Robolectric.setupContentProvider(NoteProvider.class, NoteContract.CONTENT_AUTHORITY);
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+
+        long grill = insertNote(resolver, "Grill");
+        long shop = insertNote(resolver, "Shop");
+        insertNote(resolver, "Untagged");
+
+        // Tagging by name makes the tag the first time and finds it, whatever the case, after that
+        Uri burgers = tag(resolver, grill, "Burgers");
+        assertEquals(burgers.getLastPathSegment(), tag(resolver, shop, "burgers").getLastPathSegment());
+        long burgersId = Long.parseLong(burgers.getLastPathSegment());
+        long weekendId = Long.parseLong(tag(resolver, grill, " Weekend ").getLastPathSegment());
+
+        // Every tag, A to Z, with its count
+        Cursor tags = resolver.query(NoteTagEntry.CONTENT_URI, null, null, null, null);
+        try {
+            assertEquals(2, tags.getCount());
+            tags.moveToFirst();
+            assertEquals("Burgers", tags.getString(tags.getColumnIndex(NoteTagEntry.COLUMN_NAME)));
+            assertEquals(2, tags.getInt(tags.getColumnIndex(NoteTagEntry.COLUMN_NOTE_COUNT)));
+            tags.moveToNext();
+            assertEquals("Weekend", tags.getString(tags.getColumnIndex(NoteTagEntry.COLUMN_NAME)));
+            assertEquals(1, tags.getInt(tags.getColumnIndex(NoteTagEntry.COLUMN_NOTE_COUNT)));
+        } finally {
+            tags.close();
+        }
+
+        // One tag, then both: only notes with every tag come back, paged or not
+        assertEquals(Arrays.asList(grill, shop), noteIds(resolver,
+                NoteEntry.withTags(NoteEntry.CONTENT_URI, new long[] { burgersId })));
+        assertEquals(Arrays.asList(grill), noteIds(resolver, NoteEntry.withTags(
+                NoteEntry.buildPageUri(null, null, NoteEntry.FIRST_PAGE, 10),
+                new long[] { burgersId, weekendId })));
+
+        // Untagging and deleting keep the counts right
+        assertEquals(1, resolver.delete(NoteTagEntry.buildNoteTagUri(shop, burgersId), null, null));
+        assertEquals(1, resolver.delete(ContentUris.withAppendedId(NoteEntry.CONTENT_URI, grill),
+                null, null));
+        Cursor counts = resolver.query(NoteTagEntry.CONTENT_URI,
+                new String[] { NoteTagEntry.COLUMN_NOTE_COUNT }, null, null, null);
+        try {
+            while (counts.moveToNext()) {
+                assertEquals(0, counts.getInt(0));
+            }
+        } finally {
+            counts.close();
+        }
+
+        // A deleted tag comes off its notes
+        tag(resolver, shop, "Weekend");
+        assertEquals(1, resolver.delete(ContentUris.withAppendedId(NoteTagEntry.CONTENT_URI, weekendId),
+                null, null));
+        Cursor shopTags = resolver.query(NoteTagEntry.buildNoteTagsUri(shop), null, null, null, null);
+        try {
+            assertEquals(0, shopTags.getCount());
+        } finally {
+            shopTags.close();
+        }
+    }
+
+    @Test
+    public void tagFilter_usesTheJoinIndex() {
+        NoteDbHelper helper = new NoteDbHelper(RuntimeEnvironment.application);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            seed(db);
+
+            // One tag and three tags, in both sort orders
+            String[] sortOrders = {
+                    NoteEntry.COLUMN_MODIFIED_AT + " DESC, " + NoteEntry._ID + " DESC",
+                    NoteEntry.COLUMN_TITLE + " COLLATE NOCASE ASC, " + NoteEntry._ID + " ASC"
+            };
+            for (String sortOrder : sortOrders) {
+                for (int tagCount : new int[] { 1, 3 }) {
+                    String[] args = new String[tagCount];
+                    for (int i = 0; i < tagCount; i++) {
+                        args[i] = String.valueOf(i * 17 + 1);
+                    }
+                    // Notes in the trash are left out, as the provider does
+                    String selection = DatabaseUtils.concatenateWhere(NoteDbHelper.SQL_WHERE_LIVE,
+                            NoteTags.filterSelection(tagCount));
+                    String sql = SQLiteQueryBuilder.buildQueryString(false, NoteEntry.TABLE_NAME,
+                            LIST_COLUMNS, selection, null, null, sortOrder, String.valueOf(PAGE_SIZE));
+                    assertUsesJoinIndex(explain(db, sql, args));
+                }
+            }
+
+            // A note's tags come straight out of the primary key, and listing the tags with
+            // their counts doesn't touch the links at all
+            List<String> noteTagsPlan = explain(db, "SELECT " + NoteTagMapEntry.COLUMN_TAG_ID
+                    + " FROM " + NoteTagMapEntry.TABLE_NAME + " WHERE "
+                    + NoteTagMapEntry.COLUMN_NOTE_ID + " = ?", new String[] { "1" });
+            assertFalse(noteTagsPlan.toString(), noteTagsPlan.toString().contains("SCAN"));
+
+            List<String> tagsPlan = explain(db, SQLiteQueryBuilder.buildQueryString(false,
+                    NoteTagEntry.TABLE_NAME, NoteTags.TAG_COLUMNS, null, null, null,
+                    NoteTags.SORT_BY_NAME, null), null);
+            assertFalse(tagsPlan.toString(), tagsPlan.toString().contains(NoteTagMapEntry.TABLE_NAME));
+        } finally {
+            helper.close();
+        }
+    }
+
+    // Every tag filter reads note_tags through its tag index, and never scans it
+    private static void assertUsesJoinIndex(List<String> plan) {
+        boolean usesIndex = false;
+        for (String step : plan) {
+            assertFalse(plan.toString(), step.startsWith("SCAN") && step.contains(NoteTagMapEntry.TABLE_NAME));
+            usesIndex |= step.contains(NoteTagMapEntry.TABLE_NAME + "_tag_idx");
+        }
+        assertTrue(plan.toString(), usesIndex);
+    }
+
+    // Adds NOTE_COUNT notes with TAGS_PER_NOTE different tags each out of TAG_COUNT
+    private static void seed(SQLiteDatabase db) {
+        db.beginTransaction();
+        try {
+            db.execSQL("INSERT INTO " + NoteEntry.TABLE_NAME + " (" + NoteEntry.COLUMN_TITLE + ", "
+                    + NoteEntry.COLUMN_BODY + ", " + NoteEntry.COLUMN_PREVIEW + ", "
+                    + NoteEntry.COLUMN_MODIFIED_AT + ", " + NoteEntry.COLUMN_UUID + ") "
+                    + "WITH RECURSIVE n(i) AS (SELECT 1 UNION ALL SELECT i + 1 FROM n WHERE i < "
+                    + NOTE_COUNT + ") SELECT 'Note ' || i, 'Grill the burgers', 'Grill the burgers', "
+                    + "(i * 7919) % 100003, hex(randomblob(16)) FROM n");
+            for (int i = 1; i <= TAG_COUNT; i++) {
+                db.execSQL("INSERT INTO " + NoteTagEntry.TABLE_NAME + " (" + NoteTagEntry.COLUMN_NAME
+                        + ") VALUES (?)", new Object[] { "Tag " + i });
+            }
+            // Tags i + 17k for k from 0 to 9, which never repeat for a note
+            for (int k = 0; k < TAGS_PER_NOTE; k++) {
+                db.execSQL("INSERT INTO " + NoteTagMapEntry.TABLE_NAME + " SELECT " + NoteEntry._ID
+                        + ", (" + NoteEntry._ID + " + " + (k * 17) + ") % " + TAG_COUNT + " + 1 FROM "
+                        + NoteEntry.TABLE_NAME);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // The detail column of EXPLAIN QUERY PLAN, one entry per step
+    private static List<String> explain(SQLiteDatabase db, String sql, String[] args) {
+        Cursor plan = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            List<String> steps = new ArrayList<String>();
+            int detail = plan.getColumnIndexOrThrow("detail");
+            while (plan.moveToNext()) {
+                steps.add(plan.getString(detail));
+            }
+            return steps;
+        } finally {
+            plan.close();
+        }
+    }
+
+    private static long insertNote(ContentResolver resolver, String title) {
+        ContentValues values = new ContentValues();
+        values.put(NoteEntry.COLUMN_TITLE, title);
+        values.put(NoteEntry.COLUMN_BODY, title + " notes");
+        return ContentUris.parseId(resolver.insert(NoteEntry.CONTENT_URI, values));
+    }
+
+    private static Uri tag(ContentResolver resolver, long noteId, String name) {
+        ContentValues values = new ContentValues();
+        values.put(NoteTagEntry.COLUMN_NAME, name);
+        Uri tagUri = resolver.insert(NoteTagEntry.buildNoteTagsUri(noteId), values);
+        assertNotNull(tagUri);
+        return tagUri;
+    }
+
+    private static List<Long> noteIds(ContentResolver resolver, Uri uri) {
+        Cursor cursor = resolver.query(uri, new String[] { NoteEntry._ID }, null, null,
+                NoteEntry._ID + " ASC");
+        try {
+            List<Long> ids = new ArrayList<Long>();
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.bullnote.buffalo.burgers.BuildConfig;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTagEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTrashEntry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * The trash through NoteProvider, and purging it. Runs on the development machine through
+ * Robolectric with a real SQLite database.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class NoteTrashTest {
+
+    @Test
+    public void trashThroughProvider() {
+        Robolectric.setupContentProvider(NoteProvider.class, NoteContract.CONTENT_AUTHORITY);
+        ContentResolver resolver = RuntimeEnvironment.application.getContentResolver();
+
+        long grill = insertNote(resolver, "Grill");
+        long shop = insertNote(resolver, "Shop");
+        ContentValues tag = new ContentValues();
+        tag.put(NoteTagEntry.COLUMN_NAME, "Burgers");
+        resolver.insert(NoteTagEntry.buildNoteTagsUri(grill), tag);
+
+        // Deleting moves the note to the trash: it's gone from the list, search and its tag count
+        assertEquals(1, resolver.delete(ContentUris.withAppendedId(NoteEntry.CONTENT_URI, grill),
+                null, null));
+        assertEquals(1, count(resolver, NoteEntry.CONTENT_URI));
+        assertEquals(0, count(resolver, NoteEntry.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NoteEntry.QUERY_PARAMETER_SEARCH, "grill").build()));
+        assertEquals(0, tagNoteCount(resolver));
+        assertEquals(2, count(resolver, NoteEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NoteEntry.QUERY_PARAMETER_INCLUDE_TRASHED, "true").build()));
+
+        // It's in the trash, and a note already there can't be deleted into it again
+        Cursor trash = resolver.query(NoteTrashEntry.CONTENT_URI, null, null, null, null);
+        try {
+            assertEquals(1, trash.getCount());
+            trash.moveToFirst();
+            assertEquals(grill, trash.getLong(trash.getColumnIndex(NoteTrashEntry._ID)));
+            assertFalse(trash.isNull(trash.getColumnIndex(NoteTrashEntry.COLUMN_DELETED_AT)));
+        } finally {
+            trash.close();
+        }
+        assertEquals(0, resolver.delete(ContentUris.withAppendedId(NoteEntry.CONTENT_URI, grill),
+                null, null));
+
+        // Restoring brings back the note and its tag count
+        Bundle result = resolver.call(NoteEntry.CONTENT_URI, NoteContract.METHOD_RESTORE_NOTE,
+                NoteTrashEntry.buildTrashUri(grill).toString(), null);
+        assertTrue(result.getBoolean(NoteContract.RESULT_RESTORED));
+        assertEquals(2, count(resolver, NoteEntry.CONTENT_URI));
+        assertEquals(1, tagNoteCount(resolver));
+        assertEquals(0, count(resolver, NoteTrashEntry.CONTENT_URI));
+
+        // Deleting forever only works from the trash, and emptying it takes everything in it
+        assertEquals(0, resolver.delete(NoteTrashEntry.buildTrashUri(grill), null, null));
+        resolver.delete(ContentUris.withAppendedId(NoteEntry.CONTENT_URI, grill), null, null);
+        resolver.delete(ContentUris.withAppendedId(NoteEntry.CONTENT_URI, shop), null, null);
+        assertEquals(1, resolver.delete(NoteTrashEntry.buildTrashUri(grill), null, null));
+        assertEquals(1, resolver.delete(NoteTrashEntry.CONTENT_URI, null, null));
+        assertEquals(0, count(resolver, NoteEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NoteEntry.QUERY_PARAMETER_INCLUDE_TRASHED, "true").build()));
+    }
+
+    @Test
+    public void purge_deletesOnlyExpiredNotes() {
+        NoteDbHelper helper = new NoteDbHelper(RuntimeEnvironment.application);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        NoteStatements statements = new NoteStatements(db);
+        try {
+            // 120 notes trashed at times 1 to 120, and one that's still in the list
+            for (int i = 1; i <= 121; i++) {
+                db.execSQL("INSERT INTO " + NoteEntry.TABLE_NAME + " (" + NoteEntry.COLUMN_TITLE
+                        + ", " + NoteEntry.COLUMN_BODY + ", " + NoteEntry.COLUMN_UUID
+                        + ") VALUES ('Note', 'Body', hex(randomblob(16)))");
+                if (i <= 120) {
+                    statements.trashById(i, i);
+                }
+            }
+
+            // Limited to 75, then everything up to 100, across several batches
+            assertEquals(75, NoteTrash.purge(db, statements, 100, 75));
+            assertEquals(25, NoteTrash.purge(db, statements, 100, NoteTrash.MAX_BACKGROUND_PURGE));
+            assertEquals(0, NoteTrash.purge(db, statements, 100, NoteTrash.MAX_BACKGROUND_PURGE));
+            assertEquals(21, DatabaseUtils.queryNumEntries(db, NoteEntry.TABLE_NAME));
+            assertEquals(20, DatabaseUtils.queryNumEntries(db, NoteEntry.TABLE_NAME,
+                    NoteTrash.SQL_WHERE_TRASHED));
+        } finally {
+            statements.close();
+            helper.close();
+        }
+    }
+
+    private static long insertNote(ContentResolver resolver, String title) {
+        ContentValues values = new ContentValues();
+        values.put(NoteEntry.COLUMN_TITLE, title);
+        values.put(NoteEntry.COLUMN_BODY, title + " the burgers");
+        return ContentUris.parseId(resolver.insert(NoteEntry.CONTENT_URI, values));
+    }
+
+    private static int count(ContentResolver resolver, Uri uri) {
+        Cursor cursor = resolver.query(uri, null, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // The note count of the only tag
+    private static int tagNoteCount(ContentResolver resolver) {
+        Cursor tags = resolver.query(NoteTagEntry.CONTENT_URI,
+                new String[] { NoteTagEntry.COLUMN_NOTE_COUNT }, null, null, null);
+        try {
+            assertTrue(tags.moveToFirst());
+            return tags.getInt(0);
+        } finally {
+            tags.close();
+        }
+    }
+}
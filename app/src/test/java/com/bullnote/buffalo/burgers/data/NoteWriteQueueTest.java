@@ -0,0 +1,171 @@
+package com.bullnote.buffalo.burgers.data;
+
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.HandlerThread;
+
+import com.bullnote.buffalo.burgers.BuildConfig;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteEntry;
+import com.bullnote.buffalo.burgers.data.NoteContract.NoteTrashEntry;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The batched write queue in front of NoteProvider: merging, cancelling and a bad write in a
+ * batch. Runs on the development machine through Robolectric with a real SQLite database; the
+ * writer thread's flush is run by hand.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class NoteWriteQueueTest {
+
+    private ContentResolver mResolver;
+    private NoteWriteQueue mQueue;
+
+    @Before
+    public void setUp() {
+        Robolectric.setupContentProvider(NoteProvider.class, NoteContract.CONTENT_AUTHORITY);
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mQueue = NoteWriteQueue.getInstance(RuntimeEnvironment.application);
+    }
+
+    @Test
+    public void updates_toAWaitingNoteMergeIntoOneWrite() {
+        Uri note = insertNote("Buns", "Buy buns");
+        NoteWriteQueue.Stats before = mQueue.getStats();
+
+        Results first = new Results();
+        Results second = new Results();
+        mQueue.update(note, values(NoteEntry.COLUMN_TITLE, "Burger buns"), first);
+        mQueue.update(note, values(NoteEntry.COLUMN_BODY, "Buy burger buns"), second);
+        flushWrites();
+
+        // One write, one batch, and both callers hear about it
+        NoteWriteQueue.Stats after = mQueue.getStats();
+        assertEquals(2, after.writesQueued - before.writesQueued);
+        assertEquals(1, after.writesMerged - before.writesMerged);
+        assertEquals(1, after.batchesFlushed - before.batchesFlushed);
+        assertEquals(1, first.single().count.intValue());
+        assertSame(first.single(), second.single());
+
+        // The newer values were added to the waiting ones rather than replacing them
+        assertNote(NoteEntry.CONTENT_URI, note, "Burger buns", "Buy burger buns");
+    }
+
+    @Test
+    public void delete_dropsTheWaitingUpdatesToTheNote() {
+        Uri note = insertNote("Buns", "Buy buns");
+
+        Results update = new Results();
+        Results delete = new Results();
+        mQueue.update(note, values(NoteEntry.COLUMN_TITLE, "Burger buns"), update);
+        mQueue.delete(note, delete);
+        flushWrites();
+
+        // The update was never written, and its caller hears the delete's result instead
+        assertEquals(1, delete.single().count.intValue());
+        assertSame(delete.single(), update.single());
+        assertNote(NoteTrashEntry.CONTENT_URI, note, "Buns", "Buy buns");
+    }
+
+    @Test
+    public void badWrite_inABatchLosesOnlyItself() {
+        Uri buns = insertNote("Buns", "Buy buns");
+        Uri grill = insertNote("Grill", "Light the grill");
+        NoteWriteQueue.Stats before = mQueue.getStats();
+
+        // The provider turns down a null title, which fails the whole batch the first time round
+        Results inserted = new Results();
+        Results bad = new Results();
+        Results updated = new Results();
+        ContentValues sauce = values(NoteEntry.COLUMN_TITLE, "Sauce");
+        sauce.put(NoteEntry.COLUMN_BODY, "Make the sauce");
+        mQueue.insert(sauce, inserted);
+        mQueue.update(buns, values(NoteEntry.COLUMN_TITLE, null), bad);
+        mQueue.update(grill, values(NoteEntry.COLUMN_BODY, "Light the grill early"), updated);
+        flushWrites();
+
+        NoteWriteQueue.Stats after = mQueue.getStats();
+        assertEquals(1, after.batchesFailed - before.batchesFailed);
+        assertEquals(1, after.writesFailed - before.writesFailed);
+
+        // The bad write gets a null result and changes nothing; the others went through
+        assertNull(bad.single());
+        assertNote(NoteEntry.CONTENT_URI, buns, "Buns", "Buy buns");
+        assertNote(NoteEntry.CONTENT_URI, inserted.single().uri, "Sauce", "Make the sauce");
+        assertEquals(1, updated.single().count.intValue());
+        assertNote(NoteEntry.CONTENT_URI, grill, "Grill", "Light the grill early");
+    }
+
+    private Uri insertNote(String title, String body) {
+        ContentValues values = values(NoteEntry.COLUMN_TITLE, title);
+        values.put(NoteEntry.COLUMN_BODY, body);
+        return mResolver.insert(NoteEntry.CONTENT_URI, values);
+    }
+
+    private static ContentValues values(String column, String value) {
+        ContentValues values = new ContentValues();
+        values.put(column, value);
+        return values;
+    }
+
+    // Checks the title and body of a note, looking for it under the given list URI
+    private void assertNote(Uri listUri, Uri note, String title, String body) {
+        Cursor cursor = mResolver.query(listUri,
+                new String[] { NoteEntry.COLUMN_TITLE, NoteEntry.COLUMN_BODY },
+                NoteEntry._ID + " = ?", new String[] { String.valueOf(ContentUris.parseId(note)) },
+                null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(title, cursor.getString(0));
+            assertEquals(body, cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Runs the write queue's waiting flush on its thread's looper, then delivers the results,
+    // which come back on the main thread
+    private static void flushWrites() {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread instanceof HandlerThread
+                    && NoteWriteQueue.class.getSimpleName().equals(thread.getName())) {
+                Shadows.shadowOf(((HandlerThread) thread).getLooper()).runToEndOfTasks();
+            }
+        }
+        ShadowLooper.runUiThreadTasksIncludingDelayedTasks();
+    }
+
+    /** Collects the results a write's callback is given */
+    private static final class Results implements NoteWriteQueue.Callback {
+        final List<ContentProviderResult> mResults = new ArrayList<ContentProviderResult>();
+
+        @Override
+        public void onWriteFinished(ContentProviderResult result) {
+            mResults.add(result);
+        }
+
+        // The one result given, which may be null
+        ContentProviderResult single() {
+            assertEquals(1, mResults.size());
+            return mResults.get(0);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.bullnote.buffalo.burgers.sync;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * An in-process sync server for tests. It keeps the newest change for each UUID, like the real
+ * one, and counts every change that goes over the "network".
+ */
+public class FakeSyncServer implements NoteSyncTransport {
+
+    // The change kept for each note, by the version it was kept under
+    private final TreeMap<Long, NoteSyncChange> mChanges = new TreeMap<Long, NoteSyncChange>();
+    private final Map<String, Long> mVersions = new HashMap<String, Long>();
+    private long mVersion = 0;
+
+    private int mTransferred = 0;
+
+    @Override
+    public synchronized void push(List<NoteSyncChange> changes) {
+        mTransferred += changes.size();
+        for (NoteSyncChange change : changes) {
+            Long version = mVersions.get(change.uuid);
+            if (version != null) {
+                NoteSyncChange kept = mChanges.get(version);
+                if (kept.sameAs(change) || !change.isNewerThan(kept)) {
+                    continue;
+                }
+                mChanges.remove(version);
+            }
+            mVersion++;
+            mChanges.put(mVersion, change);
+            mVersions.put(change.uuid, mVersion);
+        }
+    }
+
+    @Override
+    public synchronized NoteSyncBatch pull(long afterVersion, int limit) {
+        NavigableMap<Long, NoteSyncChange> newer = mChanges.tailMap(afterVersion, false);
+        List<NoteSyncChange> batch = new ArrayList<NoteSyncChange>();
+        long version = afterVersion;
+        for (Map.Entry<Long, NoteSyncChange> entry : newer.entrySet()) {
+            if (batch.size() == limit) {
+                break;
+            }
+            batch.add(entry.getValue());
+            version = entry.getKey();
+        }
+        mTransferred += batch.size();
+        return new NoteSyncBatch(batch, version, batch.size() < newer.size());
+    }
+
+    /** How many changes have been pushed or pulled so far */
+    public synchronized int getTransferred() {
+        return mTransferred;
+    }
+}
@@ -0,0 +1,232 @@
+package com.bullnote.buffalo.burgers.sync;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for NoteSyncEngine, which is plain Java and runs on the development machine.
+ * Each "device" is an in-memory store with a change log that works like the provider's, and they
+ * all sync with a FakeSyncServer.
+ */
+public class NoteSyncEngineTest {
+
+    /** A device's notes and change log, kept in memory */
+    private static class Device implements NoteSyncEngine.LocalStore {
+        // Every note this device knows about, tombstones included
+        final Map<String, NoteSyncChange> notes = new HashMap<String, NoteSyncChange>();
+
+        // One entry per note, under the version of its latest change; true if the engine wrote it
+        private final TreeMap<Long, String> mLog = new TreeMap<Long, String>();
+        private final Map<String, Long> mLogVersions = new HashMap<String, Long>();
+        private final Map<String, Boolean> mFromSync = new HashMap<String, Boolean>();
+        private long mVersion = 0;
+
+        private long mPushedVersion = 0;
+        private long mPulledVersion = 0;
+
+        final NoteSyncEngine engine;
+
+        Device(FakeSyncServer server) {
+            engine = new NoteSyncEngine(this, server);
+        }
+
+        String create(String title, String body, long now) {
+            String uuid = UUID.randomUUID().toString();
+            write(new NoteSyncChange(uuid, title, body, now, now), false);
+            return uuid;
+        }
+
+        void edit(String uuid, String title, String body, long now) {
+            write(new NoteSyncChange(uuid, title, body, notes.get(uuid).createdAt, now), false);
+        }
+
+        void delete(String uuid, long now) {
+            write(NoteSyncChange.tombstone(uuid, now), false);
+        }
+
+        NoteSyncEngine.Result sync() throws Exception {
+            return engine.sync();
+        }
+
+        private void write(NoteSyncChange note, boolean fromSync) {
+            notes.put(note.uuid, note);
+            Long old = mLogVersions.get(note.uuid);
+            if (old != null) {
+                mLog.remove(old);
+            }
+            mVersion++;
+            mLog.put(mVersion, note.uuid);
+            mLogVersions.put(note.uuid, mVersion);
+            mFromSync.put(note.uuid, fromSync);
+        }
+
+        @Override
+        public NoteSyncBatch readLocalChanges(long afterVersion, int limit) {
+            List<NoteSyncChange> changes = new ArrayList<NoteSyncChange>();
+            long version = afterVersion;
+            for (Map.Entry<Long, String> entry : mLog.tailMap(afterVersion, false).entrySet()) {
+                if (changes.size() == limit) {
+                    return new NoteSyncBatch(changes, version, true);
+                }
+                if (!mFromSync.get(entry.getValue())) {
+                    changes.add(notes.get(entry.getValue()));
+                    version = entry.getKey();
+                }
+            }
+            return new NoteSyncBatch(changes, version, false);
+        }
+
+        @Override
+        public Map<String, NoteSyncChange> readNotes(Set<String> uuids) {
+            Map<String, NoteSyncChange> found = new HashMap<String, NoteSyncChange>();
+            for (String uuid : uuids) {
+                if (notes.containsKey(uuid)) {
+                    found.put(uuid, notes.get(uuid));
+                }
+            }
+            return found;
+        }
+
+        @Override
+        public void apply(List<NoteSyncChange> changes) {
+            for (NoteSyncChange change : changes) {
+                write(change, true);
+            }
+        }
+
+        @Override
+        public long getPushedVersion() {
+            return mPushedVersion;
+        }
+
+        @Override
+        public void savePushedVersion(long version) {
+            mPushedVersion = version;
+        }
+
+        @Override
+        public long getPulledVersion() {
+            return mPulledVersion;
+        }
+
+        @Override
+        public void savePulledVersion(long version) {
+            mPulledVersion = version;
+        }
+    }
+
+    @Test
+    public void newNote_reachesOtherDevice() throws Exception {
+        FakeSyncServer server = new FakeSyncServer();
+        Device phone = new Device(server);
+        Device tablet = new Device(server);
+
+        String uuid = phone.create("Buffalo", "burgers", 100);
+        assertEquals(1, phone.sync().pushed);
+        assertEquals(1, tablet.sync().applied);
+
+        NoteSyncChange note = tablet.notes.get(uuid);
+        assertEquals("Buffalo", note.title);
+        assertEquals("burgers", note.body);
+        assertEquals(100, note.modifiedAt);
+    }
+
+    @Test
+    public void delete_reachesOtherDeviceAsTombstone() throws Exception {
+        FakeSyncServer server = new FakeSyncServer();
+        Device phone = new Device(server);
+        Device tablet = new Device(server);
+        String uuid = phone.create("Buffalo", "burgers", 100);
+        phone.sync();
+        tablet.sync();
+
+        phone.delete(uuid, 200);
+        phone.sync();
+        tablet.sync();
+
+        assertTrue(tablet.notes.get(uuid).deleted);
+    }
+
+    @Test
+    public void concurrentEdits_lastWriterWins() throws Exception {
+        FakeSyncServer server = new FakeSyncServer();
+        Device phone = new Device(server);
+        Device tablet = new Device(server);
+        String uuid = phone.create("Buffalo", "burgers", 100);
+        phone.sync();
+        tablet.sync();
+
+        // Both edit the note offline; the tablet's edit is later but the phone syncs last
+        tablet.edit(uuid, "Buffalo", "tablet", 300);
+        phone.edit(uuid, "Buffalo", "phone", 200);
+        tablet.sync();
+        NoteSyncEngine.Result phoneResult = phone.sync();
+        tablet.sync();
+
+        assertEquals("tablet", phone.notes.get(uuid).body);
+        assertEquals("tablet", tablet.notes.get(uuid).body);
+        assertEquals(0, phoneResult.conflicts);
+
+        // The other way round: the later edit syncs last and its device keeps it
+        phone.edit(uuid, "Buffalo", "phone again", 500);
+        tablet.edit(uuid, "Buffalo", "tablet again", 400);
+        phone.sync();
+        NoteSyncEngine.Result tabletResult = tablet.sync();
+        phone.sync();
+
+        assertEquals("phone again", phone.notes.get(uuid).body);
+        assertEquals("phone again", tablet.notes.get(uuid).body);
+        assertEquals(0, tabletResult.conflicts);
+    }
+
+    @Test
+    public void pulledChanges_areNotPushedBack() throws Exception {
+        FakeSyncServer server = new FakeSyncServer();
+        Device phone = new Device(server);
+        Device tablet = new Device(server);
+        phone.create("Buffalo", "burgers", 100);
+        phone.sync();
+        tablet.sync();
+
+        NoteSyncEngine.Result again = tablet.sync();
+        assertEquals(0, again.pushed);
+        assertEquals(0, again.pulled);
+
+        // The phone sees its own note come back once, and leaves it alone
+        NoteSyncEngine.Result echo = phone.sync();
+        assertEquals(0, echo.applied);
+        assertEquals(0, echo.conflicts);
+    }
+
+    @Test
+    public void syncCost_scalesWithChangesNotNotes() throws Exception {
+        FakeSyncServer server = new FakeSyncServer();
+        Device phone = new Device(server);
+        Device tablet = new Device(server);
+        List<String> uuids = new ArrayList<String>();
+        for (int i = 0; i < 10000; i++) {
+            uuids.add(phone.create("Note " + i, "Body " + i, i));
+        }
+        assertEquals(10000, phone.sync().pushed);
+        assertEquals(10000, tablet.sync().applied);
+        phone.sync();
+
+        // One edit moves one note up to the server and one back down to each device
+        int before = server.getTransferred();
+        phone.edit(uuids.get(1234), "Note 1234", "edited", 20000);
+        phone.sync();
+        tablet.sync();
+
+        assertEquals(3, server.getTransferred() - before);
+        assertEquals("edited", tablet.notes.get(uuids.get(1234)).body);
+    }
+}